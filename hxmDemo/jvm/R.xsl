@@ -0,0 +1,29 @@
+<?xml version="1.0" encoding="utf-8"?>
+<!--
+  Makes the R class the app's code needs from res/values/strings.xml, for the JVM
+  build only.  The Android build gets R from aapt as usual.  Only R.string is made,
+  the rest of R is for the Activity, which isn't built here.
+-->
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+	<xsl:output method="text" encoding="utf-8"/>
+
+	<xsl:template match="/">
+		<xsl:text>/* Made by hxmDemo/jvm/R.xsl from res/values/strings.xml, don't edit */
+package com.pyebrook.hxmDemo;
+
+public final class R {
+	public static final class string {
+</xsl:text>
+		<xsl:for-each select="resources/string">
+			<xsl:text>		public static final int </xsl:text>
+			<xsl:value-of select="@name"/>
+			<xsl:text> = </xsl:text>
+			<xsl:value-of select="format-number(2131034112 + position(), '0')"/>
+			<xsl:text>;
+</xsl:text>
+		</xsl:for-each>
+		<xsl:text>	}
+}
+</xsl:text>
+	</xsl:template>
+</xsl:stylesheet>
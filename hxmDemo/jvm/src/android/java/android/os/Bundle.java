@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Bundle
+ *
+ * The JVM stand in, see android.util.Log.  Only the strings and ints the service
+ * puts in its messages.
+ */
+public final class Bundle {
+	private final Map<String, Object> mValues = new HashMap<String, Object>();
+
+	public void putString(String key, String value) {
+		mValues.put(key, value);
+	}
+
+	public String getString(String key) {
+		Object value = mValues.get(key);
+		return (value instanceof String) ? (String) value : null;
+	}
+
+	public void putInt(String key, int value) {
+		mValues.put(key, value);
+	}
+
+	public int getInt(String key) {
+		Object value = mValues.get(key);
+		return (value instanceof Integer) ? (Integer) value : 0;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package android.os;
+
+/*
+ * Handler
+ *
+ * The JVM stand in, see android.util.Log.  Messages and Runnables are queued on
+ * the Looper and handled on its thread, in the order they are due.
+ */
+public class Handler {
+	public interface Callback {
+		boolean handleMessage(Message msg);
+	}
+
+	private final Looper mLooper;
+	private final Callback mCallback;
+
+	public Handler() {
+		this((Callback) null);
+	}
+
+	public Handler(Callback callback) {
+		this(Looper.myLooper(), callback);
+		if (mLooper == null)
+			throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+	}
+
+	public Handler(Looper looper) {
+		this(looper, null);
+	}
+
+	public Handler(Looper looper, Callback callback) {
+		mLooper = looper;
+		mCallback = callback;
+	}
+
+	public void handleMessage(Message msg) {
+	}
+
+	public void dispatchMessage(Message msg) {
+		if (msg.mCallback != null) {
+			msg.mCallback.run();
+		} else {
+			if (mCallback != null && mCallback.handleMessage(msg))
+				return;
+			handleMessage(msg);
+		}
+	}
+
+	public final Looper getLooper() {
+		return mLooper;
+	}
+
+	public final Message obtainMessage() {
+		return Message.obtain(this, 0, 0, 0, null);
+	}
+
+	public final Message obtainMessage(int what) {
+		return Message.obtain(this, what, 0, 0, null);
+	}
+
+	public final Message obtainMessage(int what, Object obj) {
+		return Message.obtain(this, what, 0, 0, obj);
+	}
+
+	public final Message obtainMessage(int what, int arg1, int arg2) {
+		return Message.obtain(this, what, arg1, arg2, null);
+	}
+
+	public final Message obtainMessage(int what, int arg1, int arg2, Object obj) {
+		return Message.obtain(this, what, arg1, arg2, obj);
+	}
+
+	public final boolean post(Runnable r) {
+		return postDelayed(r, 0);
+	}
+
+	public final boolean postDelayed(Runnable r, long delayMillis) {
+		return postAtTime(r, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+	}
+
+	public final boolean postAtTime(Runnable r, long uptimeMillis) {
+		Message msg = Message.obtain(this, 0, 0, 0, null);
+		msg.mCallback = r;
+		return sendMessageAtTime(msg, uptimeMillis);
+	}
+
+	public final boolean sendMessage(Message msg) {
+		return sendMessageDelayed(msg, 0);
+	}
+
+	public final boolean sendEmptyMessage(int what) {
+		return sendMessage(obtainMessage(what));
+	}
+
+	public final boolean sendEmptyMessageDelayed(int what, long delayMillis) {
+		return sendMessageDelayed(obtainMessage(what), delayMillis);
+	}
+
+	public final boolean sendMessageDelayed(Message msg, long delayMillis) {
+		return sendMessageAtTime(msg, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+	}
+
+	public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+		msg.mTarget = this;
+		return mLooper.enqueue(msg, uptimeMillis);
+	}
+
+	public final void removeCallbacks(Runnable r) {
+		mLooper.remove(this, -1, r, null, true);
+	}
+
+	public final void removeMessages(int what) {
+		mLooper.remove(this, what, null, null, true);
+	}
+
+	public final void removeCallbacksAndMessages(Object token) {
+		mLooper.remove(this, -1, null, token, true);
+	}
+
+	public final boolean hasMessages(int what) {
+		return mLooper.remove(this, what, null, null, false);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package android.os;
+
+/*
+ * HandlerThread
+ *
+ * The JVM stand in, see android.util.Log.  A thread that runs a Looper.
+ */
+public class HandlerThread extends Thread {
+	private Looper mLooper;
+
+	public HandlerThread(String name) {
+		super(name);
+	}
+
+	public HandlerThread(String name, int priority) {
+		super(name);
+	}
+
+	protected void onLooperPrepared() {
+	}
+
+	@Override
+	public void run() {
+		Looper.prepare();
+		synchronized (this) {
+			mLooper = Looper.myLooper();
+			notifyAll();
+		}
+		onLooperPrepared();
+		Looper.loop();
+	}
+
+	/*
+	 * Waits for the thread to start if it has to, null if it isn't alive
+	 */
+	public Looper getLooper() {
+		if (!isAlive())
+			return null;
+
+		synchronized (this) {
+			while (isAlive() && mLooper == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Keep waiting, as Android does
+				}
+			}
+		}
+		return mLooper;
+	}
+
+	public boolean quit() {
+		Looper looper = getLooper();
+		if (looper == null)
+			return false;
+		looper.quit();
+		return true;
+	}
+}
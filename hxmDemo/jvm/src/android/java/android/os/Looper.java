@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package android.os;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/*
+ * Looper
+ *
+ * The JVM stand in, see android.util.Log.  A queue of messages ordered by when
+ * they are due, and the loop that hands them to their Handlers one at a time on
+ * the Looper's thread.  quit() drops the messages still waiting, as on Android.
+ *
+ * A plain JVM has no main thread with a Looper, prepareMainLooper() makes the
+ * calling thread's Looper the main one.
+ */
+public final class Looper {
+	private static final ThreadLocal<Looper> sLooper = new ThreadLocal<Looper>();
+	private static Looper sMainLooper = null;
+
+	private final Thread mThread;
+	private final PriorityQueue<Message> mQueue = new PriorityQueue<Message>(16, new Comparator<Message>() {
+		public int compare(Message a, Message b) {
+			if (a.mWhen != b.mWhen)
+				return (a.mWhen < b.mWhen) ? -1 : 1;
+			return (a.mSequence < b.mSequence) ? -1 : (a.mSequence == b.mSequence ? 0 : 1);
+		}
+	});
+	private long mSequence = 0;
+	private boolean mQuitting = false;
+
+	private Looper() {
+		mThread = Thread.currentThread();
+	}
+
+	public static void prepare() {
+		if (sLooper.get() != null)
+			throw new RuntimeException("Only one Looper may be created per thread");
+		sLooper.set(new Looper());
+	}
+
+	public static synchronized void prepareMainLooper() {
+		prepare();
+		sMainLooper = myLooper();
+	}
+
+	public static synchronized Looper getMainLooper() {
+		return sMainLooper;
+	}
+
+	public static Looper myLooper() {
+		return sLooper.get();
+	}
+
+	public Thread getThread() {
+		return mThread;
+	}
+
+	public static void loop() {
+		Looper me = myLooper();
+		if (me == null)
+			throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+
+		Message msg;
+		while ((msg = me.next()) != null)
+			msg.mTarget.dispatchMessage(msg);
+	}
+
+	public void quit() {
+		synchronized (mQueue) {
+			mQuitting = true;
+			mQueue.clear();
+			mQueue.notifyAll();
+		}
+	}
+
+	/*
+	 * The next message once it is due, null once the Looper has quit
+	 */
+	private Message next() {
+		synchronized (mQueue) {
+			while (true) {
+				if (mQuitting)
+					return null;
+
+				Message msg = mQueue.peek();
+				long wait = (msg == null) ? 0 : msg.mWhen - SystemClock.uptimeMillis();
+				if (msg != null && wait <= 0)
+					return mQueue.poll();
+
+				try {
+					mQueue.wait(wait);
+				} catch (InterruptedException e) {
+					// Loopers don't stop for interrupts
+				}
+			}
+		}
+	}
+
+	boolean enqueue(Message msg, long when) {
+		synchronized (mQueue) {
+			if (mQuitting)
+				return false;
+			msg.mWhen = when;
+			msg.mSequence = mSequence++;
+			mQueue.add(msg);
+			mQueue.notifyAll();
+			return true;
+		}
+	}
+
+	/*
+	 * Take out the messages for handler that match what (if what isn't -1), r (if
+	 * r isn't null) and object (if object isn't null)
+	 */
+	boolean remove(Handler handler, int what, Runnable r, Object object, boolean takeOut) {
+		boolean found = false;
+		synchronized (mQueue) {
+			for (Iterator<Message> it = mQueue.iterator(); it.hasNext(); ) {
+				Message msg = it.next();
+				if (msg.mTarget != handler)
+					continue;
+				if (what != -1 && (msg.mCallback != null || msg.what != what))
+					continue;
+				if (r != null && msg.mCallback != r)
+					continue;
+				if (object != null && msg.obj != object)
+					continue;
+				found = true;
+				if (!takeOut)
+					break;
+				it.remove();
+			}
+		}
+		return found;
+	}
+}
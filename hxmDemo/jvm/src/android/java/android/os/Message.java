@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package android.os;
+
+/*
+ * Message
+ *
+ * The JVM stand in, see android.util.Log.  Messages aren't pooled.
+ */
+public final class Message {
+	public int what;
+	public int arg1;
+	public int arg2;
+	public Object obj;
+
+	Handler mTarget;
+	Runnable mCallback;
+	long mWhen;
+	long mSequence;
+	private Bundle mData;
+
+	public static Message obtain() {
+		return new Message();
+	}
+
+	public static Message obtain(Handler target, int what, int arg1, int arg2, Object obj) {
+		Message msg = new Message();
+		msg.mTarget = target;
+		msg.what = what;
+		msg.arg1 = arg1;
+		msg.arg2 = arg2;
+		msg.obj = obj;
+		return msg;
+	}
+
+	public Handler getTarget() {
+		return mTarget;
+	}
+
+	public void setTarget(Handler target) {
+		mTarget = target;
+	}
+
+	public Runnable getCallback() {
+		return mCallback;
+	}
+
+	public long getWhen() {
+		return mWhen;
+	}
+
+	public Bundle getData() {
+		if (mData == null)
+			mData = new Bundle();
+		return mData;
+	}
+
+	public void setData(Bundle data) {
+		mData = data;
+	}
+
+	public void sendToTarget() {
+		mTarget.sendMessage(this);
+	}
+
+	public void recycle() {
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package android.util;
+
+/*
+ * Log
+ *
+ * Stands in for the Android class when the app's code is run on a plain JVM by the
+ * tests and harnesses in this module.  Messages go to System.err, from the level
+ * given by the hxm.log system property up, WARN if it isn't set:
+ *
+ *         mvn test -Dhxm.log=DEBUG
+ */
+public final class Log {
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	public static final int ASSERT = 7;
+
+	private static final String[] LEVEL_NAMES = { "", "", "V", "D", "I", "W", "E", "A" };
+
+	private static final int sLevel = parseLevel(System.getProperty("hxm.log", "WARN"));
+
+	private Log() {
+	}
+
+	private static int parseLevel(String name) {
+		for (int level = VERBOSE; level <= ASSERT; level++) {
+			if (LEVEL_NAMES[level].equalsIgnoreCase(name.substring(0, 1)))
+				return level;
+		}
+		return WARN;
+	}
+
+	public static boolean isLoggable(String tag, int level) {
+		return level >= sLevel;
+	}
+
+	public static int println(int priority, String tag, String msg) {
+		return println(priority, tag, msg, null);
+	}
+
+	private static int println(int priority, String tag, String msg, Throwable tr) {
+		if (priority < sLevel)
+			return 0;
+		synchronized (Log.class) {
+			System.err.println(LEVEL_NAMES[priority] + "/" + tag + " [" + Thread.currentThread().getName() + "]: " + msg);
+			if (tr != null)
+				tr.printStackTrace();
+		}
+		return msg.length();
+	}
+
+	public static int v(String tag, String msg) {
+		return println(VERBOSE, tag, msg, null);
+	}
+
+	public static int v(String tag, String msg, Throwable tr) {
+		return println(VERBOSE, tag, msg, tr);
+	}
+
+	public static int d(String tag, String msg) {
+		return println(DEBUG, tag, msg, null);
+	}
+
+	public static int d(String tag, String msg, Throwable tr) {
+		return println(DEBUG, tag, msg, tr);
+	}
+
+	public static int i(String tag, String msg) {
+		return println(INFO, tag, msg, null);
+	}
+
+	public static int i(String tag, String msg, Throwable tr) {
+		return println(INFO, tag, msg, tr);
+	}
+
+	public static int w(String tag, String msg) {
+		return println(WARN, tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return println(WARN, tag, msg, tr);
+	}
+
+	public static int w(String tag, Throwable tr) {
+		return println(WARN, tag, "", tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return println(ERROR, tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println(ERROR, tag, msg, tr);
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * HxmBench
+ *
+ * What the benchmark harnesses in src/bench/java have in common: made up HxM
+ * byte streams, a stream that plays one over and over, and a way of timing a
+ * piece of work and saying how much it allocated.  The harnesses are plain
+ * programs, run them from the jvm directory with
+ *
+ *     mvn -B -q compile exec:java -Dexec.mainClass=com.pyebrook.hxmDemo.<harness>
+ *
+ *     HxmFrameBench      frame sync, decode and dispatch on clean, noisy and split streams
+ *     HxmCrcBench        the cost of the CRC check against the cost of decoding a message
+ *     HxmExecutorBench   reconnect latency and memory per session, pooled against polling
+ *     HxmHrvBench        100 devices' beats through the HRV windows on one thread
+ *     HxmLoadHarness     20 and 50 simulated devices through the service and the pipeline
+ *
+ * A harness warms up by running its work a few rounds before it starts timing, so
+ * the JIT has compiled the hot path by the time it counts.  The numbers are for
+ * comparing one build against another on the same machine, not for quoting.
+ */
+final class HxmBench {
+
+	/*
+	 * The stream every made up stream is cut from, so a harness sees the same bytes
+	 * every run
+	 */
+	static final long SEED = 0x4858AL;
+
+	private static final ThreadMXBean sThreads = ManagementFactory.getThreadMXBean();
+
+	/*
+	 * Something for the timed work to leave its results in, so the JIT can't decide
+	 * the work isn't needed
+	 */
+	static volatile long sSink;
+
+	private HxmBench() {
+	}
+
+	/*
+	 * A piece of work to time, one round of it
+	 */
+	interface Work {
+		/*
+		 * @return how many things, messages or beats, the round did
+		 */
+		long run() throws Exception;
+	}
+
+	/*
+	 * Messages with random payloads and good CRCs, one after another
+	 */
+	static byte[] cleanStream(int frames) {
+		Random random = new Random(SEED);
+		byte[] stream = new byte[frames * HxmFrameReader.FRAME_LENGTH];
+		for (int i = 0; i < frames; i++)
+			frame(random, stream, i * HxmFrameReader.FRAME_LENGTH);
+		return stream;
+	}
+
+	/*
+	 * One message with a random payload at buffer[offset]
+	 */
+	static void frame(Random random, byte[] buffer, int offset) {
+		for (int i = HxmFrameReader.OFFSET_PAYLOAD; i < HxmFrameReader.OFFSET_CRC; i++)
+			buffer[offset + i] = (byte) random.nextInt(256);
+		buffer[offset + HxmFrameReader.OFFSET_STX] = HxmFrameReader.STX;
+		buffer[offset + HxmFrameReader.OFFSET_MSGID] = HxmFrameReader.MSGID;
+		buffer[offset + HxmFrameReader.OFFSET_DLC] = HxmFrameReader.DLC;
+		buffer[offset + HxmFrameReader.OFFSET_CRC] = (byte) HxmCrc8.compute(buffer, offset + HxmFrameReader.OFFSET_PAYLOAD, HxmFrameReader.DLC);
+		buffer[offset + HxmFrameReader.OFFSET_ETX] = HxmFrameReader.ETX;
+	}
+
+	/*
+	 * Messages with random garbage between them, some of it made of STX bytes and
+	 * whole headers that lead nowhere, and some messages with a byte changed so their
+	 * CRC fails
+	 *
+	 * @param garbage  the chance a message has up to a message's worth of garbage in front of it
+	 * @param damage   the chance a message has a byte changed
+	 */
+	static byte[] noisyStream(int frames, double garbage, double damage) {
+		Random random = new Random(SEED);
+		Random payloads = new Random(SEED);
+		byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+		byte[] stream = new byte[frames * 2 * HxmFrameReader.FRAME_LENGTH];
+		int length = 0;
+
+		for (int i = 0; i < frames; i++) {
+			if (random.nextDouble() < garbage) {
+				int count = 1 + random.nextInt(HxmFrameReader.FRAME_LENGTH);
+				for (int j = 0; j < count; j++) {
+					switch (random.nextInt(4)) {
+					case 0:
+						stream[length++] = HxmFrameReader.STX;
+						break;
+					case 1:
+						// A header that looks right, for a message that isn't there, or one
+						// random byte when the header won't fit
+						if (j + 3 <= count) {
+							stream[length++] = HxmFrameReader.STX;
+							stream[length++] = HxmFrameReader.MSGID;
+							stream[length++] = HxmFrameReader.DLC;
+							j += 2;
+						} else {
+							stream[length++] = (byte) random.nextInt(256);
+						}
+						break;
+					default:
+						stream[length++] = (byte) random.nextInt(256);
+						break;
+					}
+				}
+			}
+
+			frame(payloads, frame, 0);
+			if (random.nextDouble() < damage) {
+				int index = HxmFrameReader.OFFSET_PAYLOAD + random.nextInt(HxmFrameReader.DLC);
+				frame[index] ^= (byte) (1 + random.nextInt(255));
+			}
+			System.arraycopy(frame, 0, stream, length, frame.length);
+			length += frame.length;
+		}
+
+		byte[] trimmed = new byte[length];
+		System.arraycopy(stream, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	/*
+	 * Plays a byte array over and over, forever.  Each read returns at most the next
+	 * chunk size from a list of them, or as much as is asked for when there is no list,
+	 * so the same stream can come in big reads or in odd little pieces.  The bytes are
+	 * copied like a socket's would be, nothing is made per read.
+	 */
+	static final class LoopStream extends InputStream {
+		private final byte[] mBytes;
+		private final int[] mChunks;
+		private int mPosition = 0;
+		private int mChunk = 0;
+
+		LoopStream(byte[] bytes) {
+			this(bytes, null);
+		}
+
+		LoopStream(byte[] bytes, int[] chunks) {
+			mBytes = bytes;
+			mChunks = chunks;
+		}
+
+		@Override
+		public int read() {
+			int b = mBytes[mPosition++] & 0xFF;
+			if (mPosition == mBytes.length)
+				mPosition = 0;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (length == 0)
+				return 0;
+
+			if (mChunks != null) {
+				length = Math.min(length, mChunks[mChunk++]);
+				if (mChunk == mChunks.length)
+					mChunk = 0;
+			}
+			length = Math.min(length, mBytes.length - mPosition);
+
+			System.arraycopy(mBytes, mPosition, buffer, offset, length);
+			mPosition += length;
+			if (mPosition == mBytes.length)
+				mPosition = 0;
+			return length;
+		}
+
+		@Override
+		public int available() {
+			return mBytes.length - mPosition;
+		}
+	}
+
+	/*
+	 * Chunk sizes for a LoopStream, each from 1 to max bytes, so the reads end in the
+	 * middle of headers, payloads and CRCs
+	 */
+	static int[] oddChunks(int count, int max) {
+		Random random = new Random(SEED);
+		int[] chunks = new int[count];
+		for (int i = 0; i < count; i++)
+			chunks[i] = 1 + random.nextInt(max);
+		return chunks;
+	}
+
+	/*
+	 * Bytes the calling thread has allocated so far, or -1 if the JVM can't say
+	 */
+	static long allocatedBytes() {
+		if (sThreads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) sThreads;
+			if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/*
+	 * Run the work for the warm up rounds, then time the rest one at a time.  The
+	 * fastest round is the best the code can do, the median what it usually does.
+	 *
+	 * @return the median rate, things per second
+	 */
+	static double measure(String name, String unit, int warmups, int rounds, Work work) throws Exception {
+		for (int i = 0; i < warmups; i++)
+			work.run();
+
+		double[] rates = new double[rounds];
+		long count = 0;
+		long allocated = allocatedBytes();
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			long done = work.run();
+			long elapsed = System.nanoTime() - start;
+			rates[i] = done * 1e9 / elapsed;
+			count += done;
+		}
+		long after = allocatedBytes();
+
+		Arrays.sort(rates);
+		double median = rates[rounds / 2];
+		String perThing = (allocated < 0 || count == 0) ? "n/a"
+				: String.format("%.2f", (double) (after - allocated) / count);
+		System.out.println(String.format("%-28s %14.0f %s/s median %14.0f best   %8s bytes allocated per %s",
+				name, median, unit, rates[rounds - 1], perThing, unit));
+		return median;
+	}
+}
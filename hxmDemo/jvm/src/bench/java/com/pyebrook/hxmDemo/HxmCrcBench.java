@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+/*
+ * HxmCrcBench
+ *
+ * The CRC check has to cost less than decoding the message it protects, or it
+ * isn't worth having on the receive path.  This times the two on their own, over
+ * the same messages already in memory, so nothing but the work itself is counted:
+ *
+ *     crc     HxmCrc8.check() on the message's payload, what HxmFrameReader does
+ *             for every candidate message
+ *     parse   wrapping the message in an HrmReading and reading every field,
+ *             the 15 beat times included
+ *     decode  what the pipeline's worker does to every message before it is
+ *             stored or shown, reading the fields and working out the RR intervals
+ *             and HRV from the beat times
+ *
+ * and says what the check costs as a part of each.  Both should come out under 1.
+ * On a machine with a single slow core the check and the parse come out close,
+ * run it a few times before reading anything into one result.
+ *
+ *     mvn -B -q compile exec:java -Dexec.mainClass=com.pyebrook.hxmDemo.HxmCrcBench [-Dexec.args="rounds"]
+ */
+public class HxmCrcBench {
+
+	private static final int STREAM_FRAMES = 4096;
+	private static final int PASSES_PER_ROUND = 50;
+	private static final int WARMUPS = 20;
+	private static final int DEFAULT_ROUNDS = 15;
+
+	public static void main(String[] args) throws Exception {
+		int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+		final byte[] stream = HxmBench.cleanStream(STREAM_FRAMES);
+		final HrmReading reading = new HrmReading();
+
+		System.out.println("HxmCrcBench, " + (STREAM_FRAMES * PASSES_PER_ROUND) + " messages a round, " + rounds
+				+ " rounds after " + WARMUPS + " to warm up");
+
+		double crc = HxmBench.measure("crc", "msg", WARMUPS, rounds, new HxmBench.Work() {
+			public long run() {
+				int good = 0;
+				for (int pass = 0; pass < PASSES_PER_ROUND; pass++) {
+					for (int offset = 0; offset < stream.length; offset += HxmFrameReader.FRAME_LENGTH) {
+						if (HxmCrc8.check(stream, offset))
+							good++;
+					}
+				}
+				HxmBench.sSink += good;
+				return STREAM_FRAMES * PASSES_PER_ROUND;
+			}
+		});
+
+		double parse = HxmBench.measure("parse", "msg", WARMUPS, rounds, new HxmBench.Work() {
+			public long run() {
+				long sum = 0;
+				for (int pass = 0; pass < PASSES_PER_ROUND; pass++) {
+					for (int offset = 0; offset < stream.length; offset += HxmFrameReader.FRAME_LENGTH)
+						sum += parse(reading.wrap(stream, offset));
+				}
+				HxmBench.sSink += sum;
+				return STREAM_FRAMES * PASSES_PER_ROUND;
+			}
+		});
+
+		final HxmRrExtractor rr = new HxmRrExtractor(new HxmHrv());
+		double decode = HxmBench.measure("decode", "msg", WARMUPS, rounds, new HxmBench.Work() {
+			public long run() {
+				long sum = 0;
+				for (int pass = 0; pass < PASSES_PER_ROUND; pass++) {
+					for (int offset = 0; offset < stream.length; offset += HxmFrameReader.FRAME_LENGTH) {
+						reading.wrap(stream, offset);
+						sum += parse(reading);
+						rr.update(reading);
+					}
+				}
+				HxmBench.sSink += sum;
+				return STREAM_FRAMES * PASSES_PER_ROUND;
+			}
+		});
+
+		System.out.println(String.format("the check costs %.2f of a parse and %.2f of a decode", parse / crc, decode / crc));
+	}
+
+	private static long parse(HrmReading reading) {
+		long sum = reading.stx() + reading.msgId() + reading.dlc() + reading.firmwareId() + reading.firmwareVersion()
+				+ reading.hardwareId() + reading.hardwareVersion() + reading.batteryIndicator() + reading.heartRate()
+				+ reading.heartBeatNumber() + reading.distance() + reading.speed() + reading.strides() + reading.crc()
+				+ reading.etx();
+		for (int i = 1; i <= HrmReading.HB_TIME_COUNT; i++)
+			sum += reading.hbTime(i);
+		return sum;
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+/*
+ * HxmExecutorBench
+ *
+ * PooledSessionExecutor against PollingSessionExecutor, on the two things that
+ * set them apart, run through an HxmService the way the app runs them:
+ *
+ *     memory      devices are connected one at a time, at the HxM's one message a
+ *                 second, and once they are all delivering the heap and the number
+ *                 of threads are compared with before the executor was made, per
+ *                 session.  Each thread also has a stack, up to -Xss of it.
+ *     reconnect   devices sending 50 messages a second lose their connection at
+ *                 random, about once a second each, and the service reconnects them
+ *                 straight away.  The latency is from the stream failing to the
+ *                 first byte being read from the new connection, so it is the
+ *                 executor's own overhead and nothing else, the policy waits 0ms.
+ *
+ * The polling executor gets one reader thread per processor, polling every
+ * DEFAULT_POLL_INTERVAL_MS, so its threads per session should be close to 0.  Its
+ * reconnect latency has a reader's nap in it whenever the readers had nothing to
+ * do, up to a poll interval, which shows at the top end.
+ *
+ *     mvn -B -q compile exec:java -Dexec.mainClass=com.pyebrook.hxmDemo.HxmExecutorBench [-Dexec.args="devices seconds"]
+ */
+public class HxmExecutorBench {
+
+	private static final int DEFAULT_DEVICES = 100;
+	private static final int DEFAULT_SECONDS = 10;
+
+	private static final double RECONNECT_RATE = 50;
+	private static final double RECONNECT_DROP = 0.02;
+
+	/*
+	 * The executors to compare, made fresh for each run
+	 */
+	private static final String[] STRATEGIES = { "pooled", "polling" };
+
+	public static void main(String[] args) throws Exception {
+		// Every lost connection is logged as an error, which is the point here
+		if (System.getProperty("hxm.log") == null)
+			System.setProperty("hxm.log", "ASSERT");
+
+		int devices = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_DEVICES;
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+
+		HandlerThread frames = new HandlerThread("HxmFrames");
+		frames.start();
+		Handler handler = new Handler(frames.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				// Take the messages out of the ring like the pipeline would, and drop them
+				if (msg.obj instanceof HxmSession) {
+					HxmFrameRing ring = ((HxmSession) msg.obj).getRing();
+					ring.clearSignal();
+					while (ring.poll() >= 0)
+						ring.release();
+				}
+			}
+		};
+
+		System.out.println("HxmExecutorBench, " + devices + " devices, " + Runtime.getRuntime().availableProcessors()
+				+ " processors");
+		for (String strategy : STRATEGIES)
+			memory(strategy, devices, handler);
+		for (String strategy : STRATEGIES)
+			reconnect(strategy, devices, seconds, handler);
+
+		frames.getLooper().quit();
+	}
+
+	private static HxmSessionExecutor newExecutor(String strategy) {
+		return strategy.equals("pooled") ? new PooledSessionExecutor() : new PollingSessionExecutor();
+	}
+
+	private static void memory(String strategy, int devices, Handler handler) throws Exception {
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		long heap = usedHeap();
+
+		HxmService service = new HxmService(null, handler);
+		service.setReconnectPolicy(HxmReconnectPolicy.NEVER);
+		service.setSessionExecutor(newExecutor(strategy));
+
+		TimedLink[] links = new TimedLink[devices];
+		for (int i = 0; i < devices; i++) {
+			links[i] = new TimedLink(new SimulatedHxmLink(i));
+			service.connect(links[i]);
+			links[i].awaitBytes();
+		}
+
+		long used = usedHeap() - heap;
+		int usedThreads = ManagementFactory.getThreadMXBean().getThreadCount() - threads;
+		System.out.println(String.format("%-8s memory     %8.0f bytes of heap and %.2f threads per session",
+				strategy, (double) used / links.length, (double) usedThreads / devices));
+
+		service.close();
+		settle(threads);
+	}
+
+	private static void reconnect(String strategy, int devices, int seconds, Handler handler) throws Exception {
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		HxmService service = new HxmService(null, handler);
+		service.setReconnectPolicy(new HxmReconnectPolicy(0, 0, Integer.MAX_VALUE));
+		service.setSessionExecutor(newExecutor(strategy));
+
+		TimedLink[] links = new TimedLink[devices];
+		for (int i = 0; i < devices; i++) {
+			SimulatedHxmLink link = new SimulatedHxmLink(i);
+			link.setFrameRate(RECONNECT_RATE);
+			link.setDrop(RECONNECT_DROP);
+			links[i] = new TimedLink(link);
+			service.connect(links[i]);
+		}
+
+		Thread.sleep(seconds * 1000L);
+		service.close();
+		settle(threads);
+
+		int count = 0;
+		for (TimedLink link : links)
+			count += link.mLatencyCount;
+		long[] latencies = new long[count];
+		count = 0;
+		for (TimedLink link : links) {
+			synchronized (link) {
+				System.arraycopy(link.mLatencies, 0, latencies, count, link.mLatencyCount);
+				count += link.mLatencyCount;
+			}
+		}
+		Arrays.sort(latencies);
+
+		HxmMetrics metrics = service.getMetrics();
+		System.out.println(String.format("%-8s reconnect  %8d reconnects, latency median %.2fms, 99%% %.2fms, max %.2fms"
+				+ " (%d lost, %d messages)", strategy, count, percentile(latencies, 0.5), percentile(latencies, 0.99),
+				percentile(latencies, 1), metrics.getTotal(HxmMetrics.CONNECTIONS_LOST), metrics.getTotal(HxmMetrics.FRAMES)));
+	}
+
+	/*
+	 * Wait for the threads of a closed service to finish, so they aren't counted
+	 * against the next run
+	 */
+	private static void settle(int threads) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (ManagementFactory.getThreadMXBean().getThreadCount() > threads && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int index = Math.min(sorted.length - 1, (int) (p * sorted.length));
+		return sorted[index] / 1e6;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/*
+	 * Passes a simulated link through, noting when each connection's stream fails and
+	 * when the next connection's first byte is read
+	 */
+	private static class TimedLink implements HxmLink {
+		private final SimulatedHxmLink mLink;
+		private long mLostNanos = 0;
+		private boolean mRead = false;
+		long[] mLatencies = new long[64];
+		int mLatencyCount = 0;
+
+		TimedLink(SimulatedHxmLink link) {
+			mLink = link;
+		}
+
+		public String getAddress() {
+			return mLink.getAddress();
+		}
+
+		public String getName() {
+			return mLink.getName();
+		}
+
+		public boolean isReconnectable() {
+			return mLink.isReconnectable();
+		}
+
+		public InputStream connect() throws IOException {
+			final InputStream in = mLink.connect();
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					try {
+						int b = in.read();
+						read();
+						return b;
+					} catch (IOException e) {
+						lost();
+						throw e;
+					}
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int length) throws IOException {
+					try {
+						int count = in.read(buffer, offset, length);
+						if (count > 0)
+							TimedLink.this.read();
+						return count;
+					} catch (IOException e) {
+						lost();
+						throw e;
+					}
+				}
+
+				@Override
+				public int available() throws IOException {
+					try {
+						return in.available();
+					} catch (IOException e) {
+						lost();
+						throw e;
+					}
+				}
+
+				@Override
+				public void close() throws IOException {
+					in.close();
+				}
+			};
+		}
+
+		public void close() {
+			mLink.close();
+		}
+
+		private synchronized void lost() {
+			if (mLostNanos == 0)
+				mLostNanos = System.nanoTime();
+		}
+
+		private synchronized void read() {
+			if (mLostNanos != 0) {
+				if (mLatencyCount == mLatencies.length) {
+					long[] latencies = new long[mLatencies.length * 2];
+					System.arraycopy(mLatencies, 0, latencies, 0, mLatencyCount);
+					mLatencies = latencies;
+				}
+				mLatencies[mLatencyCount++] = System.nanoTime() - mLostNanos;
+				mLostNanos = 0;
+			}
+			if (!mRead) {
+				mRead = true;
+				notifyAll();
+			}
+		}
+
+		synchronized void awaitBytes() throws InterruptedException {
+			while (!mRead)
+				wait();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.InputStream;
+
+/*
+ * HxmFrameBench
+ *
+ * How fast messages get through the receive path, in three stages timed
+ * separately, each one doing everything the one before it does and a little more:
+ *
+ *     sync       HxmFrameReader finding the messages in the stream and checking
+ *                their CRC, what a session's read loop does
+ *     decode     as well as that, wrapping each message in an HrmReading and reading
+ *                its fields
+ *     dispatch   as well as that, handing each message over through an HxmFrameRing
+ *                the way a session hands them to the pipeline's worker, and decoding
+ *                it on the other side
+ *
+ * Each stage is run on three streams of the same messages:
+ *
+ *     clean      the messages and nothing else, in reads as big as the reader asks for
+ *     noisy      random garbage in front of one message in ten, and one in twenty
+ *                with a byte changed so it fails the CRC
+ *     split      the clean stream in reads of 1 to 59 bytes, so messages arrive in
+ *                pieces cut anywhere
+ *
+ * Rates are good messages out of the reader per second, so the noisy stream's
+ * include the time spent getting past the garbage and the rejected messages.  The
+ * allocation should be 0 bytes per message on every line, anything else is a
+ * regression in the hot path.  Everything runs on one thread, so the handover
+ * costs what the ring costs and nothing for waking another thread.
+ *
+ *     mvn -B -q compile exec:java -Dexec.mainClass=com.pyebrook.hxmDemo.HxmFrameBench [-Dexec.args="rounds"]
+ */
+public class HxmFrameBench {
+
+	private static final int STREAM_FRAMES = 4096;
+	private static final int FRAMES_PER_ROUND = 200000;
+	private static final int WARMUPS = 20;
+	private static final int DEFAULT_ROUNDS = 15;
+
+	private static final String ADDRESS = "00:07:80:00:00:01";
+
+	public static void main(String[] args) throws Exception {
+		int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+
+		byte[] clean = HxmBench.cleanStream(STREAM_FRAMES);
+		byte[] noisy = HxmBench.noisyStream(STREAM_FRAMES, 0.1, 0.05);
+		int[] chunks = HxmBench.oddChunks(1021, HxmFrameReader.FRAME_LENGTH - 1);
+
+		System.out.println("HxmFrameBench, " + FRAMES_PER_ROUND + " messages a round, " + rounds + " rounds after "
+				+ WARMUPS + " to warm up");
+		run("clean", clean, null, rounds);
+		run("noisy", noisy, null, rounds);
+		run("split", clean, chunks, rounds);
+	}
+
+	private static void run(String stream, byte[] bytes, int[] chunks, int rounds) throws Exception {
+		HxmFrameReader reader = reader(bytes, chunks);
+		HxmBench.measure(stream + " sync", "msg", WARMUPS, rounds, sync(reader));
+		HxmBench.measure(stream + " decode", "msg", WARMUPS, rounds, decode(reader(bytes, chunks)));
+		HxmBench.measure(stream + " dispatch", "msg", WARMUPS, rounds, dispatch(reader(bytes, chunks)));
+
+		long frames = reader.getFrameCount();
+		System.out.println(String.format("%-28s %.2f bytes skipped and %.4f CRC failures per message", stream + " stream",
+				(double) reader.getSkippedByteCount() / frames, (double) reader.getCrcFailureCount() / frames));
+	}
+
+	private static HxmFrameReader reader(byte[] bytes, int[] chunks) {
+		InputStream in = new HxmBench.LoopStream(bytes, chunks);
+		return new HxmFrameReader(in);
+	}
+
+	private static HxmBench.Work sync(final HxmFrameReader reader) {
+		return new HxmBench.Work() {
+			public long run() throws Exception {
+				long sum = 0;
+				for (int i = 0; i < FRAMES_PER_ROUND; i++)
+					sum += reader.nextFrame();
+				HxmBench.sSink += sum;
+				return FRAMES_PER_ROUND;
+			}
+		};
+	}
+
+	private static HxmBench.Work decode(final HxmFrameReader reader) {
+		final HrmReading reading = new HrmReading();
+		return new HxmBench.Work() {
+			public long run() throws Exception {
+				final byte[] buffer = reader.getBuffer();
+				long sum = 0;
+				for (int i = 0; i < FRAMES_PER_ROUND; i++) {
+					reading.wrap(buffer, reader.nextFrame());
+					sum += fields(reading);
+				}
+				HxmBench.sSink += sum;
+				return FRAMES_PER_ROUND;
+			}
+		};
+	}
+
+	private static HxmBench.Work dispatch(final HxmFrameReader reader) {
+		final HrmReading reading = new HrmReading();
+		final HxmFrameRing ring = new HxmFrameRing(HxmSession.RING_CAPACITY, HxmFrameReader.FRAME_LENGTH,
+				HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		return new HxmBench.Work() {
+			public long run() throws Exception {
+				final byte[] buffer = reader.getBuffer();
+				long sum = 0;
+				for (int i = 0; i < FRAMES_PER_ROUND; i++) {
+					int start = reader.nextFrame();
+					ring.offer(buffer, start, HxmFrameReader.FRAME_LENGTH, System.nanoTime(), ADDRESS);
+					if (ring.needsSignal())
+						ring.clearSignal();
+
+					int offset = ring.poll();
+					reading.wrap(ring.getBuffer(), offset);
+					sum += fields(reading) + ring.getTimestamp(offset);
+					ring.release();
+				}
+				HxmBench.sSink += sum;
+				return FRAMES_PER_ROUND;
+			}
+		};
+	}
+
+	/*
+	 * The fields the pipeline looks at for every message
+	 */
+	private static long fields(HrmReading reading) {
+		return reading.heartRate() + reading.heartBeatNumber() + reading.hbTime(1) + reading.batteryIndicator()
+				+ reading.distance() + reading.speed() + reading.strides();
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.util.Arrays;
+
+/*
+ * HxmHrvBench
+ *
+ * Whether one thread can keep the HRV up to date for 100 devices as fast as their
+ * messages arrive.  Each device's messages, one a second from an HxmSimulator, are
+ * made up front, then played through an HxmRrExtractor and HxmHrv per device the
+ * way the pipeline's worker does, a second at a time across all the devices.
+ * After each message the device's statistics are read from every window, as a
+ * screen showing them would.
+ *
+ * The recording is ten minutes long, so the five minute window fills and spends
+ * most of the run letting beats go as well as taking them in.  Each round starts
+ * from fresh devices, made before the clock starts.
+ *
+ * The result is how many times faster than real time the devices were kept up to
+ * date, and the share of the core that keeping up in real time would take.
+ *
+ *     mvn -B -q compile exec:java -Dexec.mainClass=com.pyebrook.hxmDemo.HxmHrvBench [-Dexec.args="devices seconds"]
+ */
+public class HxmHrvBench {
+
+	private static final int DEFAULT_DEVICES = 100;
+	private static final int DEFAULT_SECONDS = 600;
+	private static final int WARMUPS = 5;
+	private static final int ROUNDS = 9;
+
+	public static void main(String[] args) throws Exception {
+		int devices = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_DEVICES;
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+
+		// One row of messages per second, one message per device in each row
+		byte[] recording = new byte[devices * seconds * HxmFrameReader.FRAME_LENGTH];
+		for (int d = 0; d < devices; d++) {
+			HxmSimulator simulator = new HxmSimulator(HxmBench.SEED + d);
+			for (int s = 0; s < seconds; s++)
+				simulator.nextFrame(recording, (s * devices + d) * HxmFrameReader.FRAME_LENGTH);
+		}
+
+		System.out.println("HxmHrvBench, " + devices + " devices, " + seconds + "s of messages, " + ROUNDS
+				+ " rounds after " + WARMUPS + " to warm up");
+
+		double[] elapsed = new double[ROUNDS];
+		long beats = 0;
+		long allocated = 0;
+		for (int round = -WARMUPS; round < ROUNDS; round++) {
+			HxmRrExtractor[] extractors = new HxmRrExtractor[devices];
+			HxmHrv[] hrvs = new HxmHrv[devices];
+			for (int d = 0; d < devices; d++) {
+				hrvs[d] = new HxmHrv();
+				extractors[d] = new HxmRrExtractor(hrvs[d]);
+			}
+			HrmReading reading = new HrmReading();
+
+			long before = HxmBench.allocatedBytes();
+			long start = System.nanoTime();
+			double sum = 0;
+			for (int offset = 0; offset < recording.length; offset += HxmFrameReader.FRAME_LENGTH) {
+				int d = (offset / HxmFrameReader.FRAME_LENGTH) % devices;
+				extractors[d].update(reading.wrap(recording, offset));
+
+				HxmHrv hrv = hrvs[d];
+				for (int w = 0; w < hrv.getWindowCount(); w++) {
+					HxmHrvWindow window = hrv.getWindow(w);
+					sum += window.getMeanRr() + window.getSdnn() + window.getRmssd() + window.getPnn50();
+				}
+			}
+			long end = System.nanoTime();
+			long after = HxmBench.allocatedBytes();
+			HxmBench.sSink += (long) sum;
+
+			if (round >= 0) {
+				elapsed[round] = (end - start) / 1e9;
+				for (HxmRrExtractor extractor : extractors)
+					beats += extractor.getIntervalCount();
+				allocated += after - before;
+			}
+		}
+
+		Arrays.sort(elapsed);
+		double median = elapsed[ROUNDS / 2];
+		long messages = (long) devices * seconds;
+		System.out.println(String.format("%d devices: %.0f messages/s, %.0f beats/s, %.2f bytes allocated per beat",
+				devices, messages / median, beats / ROUNDS / median,
+				(HxmBench.allocatedBytes() < 0) ? Double.NaN : (double) allocated / beats));
+		System.out.println(String.format("%.0f times faster than real time, keeping up takes %.4f%% of one core",
+				seconds / median, 100 * median / seconds));
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/*
+ * HxmLoadHarness
+ *
+ * Runs a room full of simulated straps through the whole app, less the screen:
+ * SimulatedHxmLinks connected by an HxmService, read by its sessions and handed to
+ * an HxmPipeline, whose worker runs the analytics and whose UI thread, a Looper
+ * thread of our own here, shows the latest message on a Display that only counts.
+ * The service and the pipeline share one HxmMetrics, one message in TRACE_INTERVAL
+ * is traced, and anything slower than the pipeline's slow trace limit is too.
+ *
+ * Each link sends a fixed number of messages at a fixed rate, in reads of a few
+ * bytes at a time, and then ends.  Once every link has ended and the pipeline has
+ * caught up, the numbers have to add up exactly, and the harness says whether
+ * they did:
+ *
+ *     messages the links made       = messages the sessions read, the FRAMES counter
+ *     messages the sessions read    = messages the worker processed + DROPPED
+ *     messages the worker processed = DISPATCH and PROCESS histogram counts
+ *     messages shown                = READ_TO_DISPLAY histogram count
+ *     every trace                   = stages that add up to its total, none negative
+ *
+ * Then it prints the totals, the latency percentiles of every stage, and the
+ * latest traces.  Run with 20 links and then 50 unless told otherwise.
+ *
+ *     mvn -B -q compile exec:java -Dexec.mainClass=com.pyebrook.hxmDemo.HxmLoadHarness [-Dexec.args="seconds rate links..."]
+ *
+ * rate is messages a second from each link, 10 to start with, ten times an HxM's.
+ */
+public class HxmLoadHarness {
+
+	private static final int DEFAULT_SECONDS = 10;
+	private static final double DEFAULT_RATE = 10;
+	private static final int[] DEFAULT_LINKS = { 20, 50 };
+
+	private static final int SPLIT = 7;
+	private static final int TRACE_INTERVAL = 100;
+	private static final int TRACES_SHOWN = 5;
+
+	public static void main(String[] args) throws Exception {
+		// Every link ending is logged as an error, which is the point here
+		if (System.getProperty("hxm.log") == null)
+			System.setProperty("hxm.log", "ASSERT");
+
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SECONDS;
+		double rate = (args.length > 1) ? Double.parseDouble(args[1]) : DEFAULT_RATE;
+		int[] links = DEFAULT_LINKS;
+		if (args.length > 2) {
+			links = new int[args.length - 2];
+			for (int i = 0; i < links.length; i++)
+				links[i] = Integer.parseInt(args[i + 2]);
+		}
+
+		HxmLog.setTraceInterval(TRACE_INTERVAL);
+
+		boolean good = true;
+		for (int count : links)
+			good &= run(count, seconds, rate);
+
+		System.out.println(good ? "all runs reconciled" : "SOME RUNS DID NOT RECONCILE");
+		if (!good)
+			System.exit(1);
+	}
+
+	private static boolean run(int count, int seconds, double rate) throws Exception {
+		HandlerThread ui = new HandlerThread("HxmUi");
+		ui.start();
+		Handler uiHandler = new Handler(ui.getLooper());
+
+		final AtomicLong shown = new AtomicLong();
+		HxmPipeline pipeline = new HxmPipeline(uiHandler, new HxmPipeline.Display() {
+			public void show(String address, HrmReading reading) {
+				shown.incrementAndGet();
+			}
+		});
+		final AtomicLong processed = new AtomicLong();
+		pipeline.addStage(new HxmPipeline.Stage() {
+			public void process(String address, long deviceId, HrmReading reading, long receivedNanos) {
+				processed.incrementAndGet();
+			}
+		});
+
+		HxmService service = new HxmService(null, uiHandler);
+		service.setFrameHandler(pipeline.getHandler());
+		service.setReconnectPolicy(HxmReconnectPolicy.NEVER);
+		HxmMetrics metrics = service.getMetrics();
+		pipeline.setMetrics(metrics);
+
+		long frames = (long) Math.ceil(seconds * rate);
+		SimulatedHxmLink[] simulated = new SimulatedHxmLink[count];
+		for (int i = 0; i < count; i++) {
+			simulated[i] = new SimulatedHxmLink(i);
+			simulated[i].setFrameRate(rate);
+			simulated[i].setSplit(SPLIT);
+			simulated[i].setFrameLimit(frames);
+		}
+
+		System.out.println();
+		System.out.println(count + " links, " + frames + " messages each at " + rate + " a second, " + seconds + "s");
+		long start = System.nanoTime();
+		for (SimulatedHxmLink link : simulated)
+			service.connect(link);
+
+		// Each link's stream ends after its last message, which loses the connection
+		long deadline = System.currentTimeMillis() + seconds * 1000L + 30000;
+		while (metrics.getTotal(HxmMetrics.CONNECTIONS_LOST) + metrics.getTotal(HxmMetrics.CONNECT_FAILURES) < count) {
+			if (System.currentTimeMillis() > deadline) {
+				System.out.println("timed out waiting for the links to finish");
+				break;
+			}
+			Thread.sleep(10);
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		// Let the worker finish, then the render it may have asked for
+		await(pipeline.getHandler(), 0);
+		await(uiHandler, 2 * HxmPipeline.FRAME_INTERVAL_MS);
+
+		long made = 0;
+		for (SimulatedHxmLink link : simulated)
+			made += link.getFrameCount();
+
+		HxmMetrics.Snapshot snapshot = metrics.snapshot();
+		HxmMetrics.DeviceSnapshot total = snapshot.getTotal();
+		long read = total.get(HxmMetrics.FRAMES);
+		long dropped = total.get(HxmMetrics.DROPPED);
+
+		System.out.println(String.format("%.1fs, %.0f messages a second", elapsed, read / elapsed));
+
+		boolean good = true;
+		good &= check("made = read", made, read);
+		good &= check("read = processed + dropped", read, processed.get() + dropped);
+		good &= check("processed = DISPATCH count", processed.get(), total.getHistogram(HxmMetrics.DISPATCH).getCount());
+		good &= check("processed = PROCESS count", processed.get(), total.getHistogram(HxmMetrics.PROCESS).getCount());
+		good &= check("shown = READ_TO_DISPLAY count", shown.get(), total.getHistogram(HxmMetrics.READ_TO_DISPLAY).getCount());
+
+		List<HxmTrace> traces = pipeline.getTraces();
+		int badTraces = 0;
+		for (HxmTrace trace : traces) {
+			long sum = 0;
+			boolean negative = false;
+			for (int stage = HxmTrace.DISPATCHED; stage < HxmTrace.STAGE_COUNT; stage++) {
+				if (trace.getStamp(stage) == 0)
+					break;
+				negative |= trace.getStageNanos(stage) < 0;
+				sum += trace.getStageNanos(stage);
+			}
+			if (negative || sum != trace.getTotalNanos())
+				badTraces++;
+		}
+		good &= check("traces that don't add up", badTraces, 0);
+
+		for (int counter = 0; counter < HxmMetrics.COUNTER_COUNT; counter++)
+			System.out.println(String.format("    %-20s %d", HxmMetrics.COUNTER_NAMES[counter], total.get(counter)));
+		for (int histogram = 0; histogram < HxmMetrics.HISTOGRAM_COUNT; histogram++) {
+			HxmMetrics.HistogramSnapshot latency = total.getHistogram(histogram);
+			System.out.println(String.format("    %-20s %8d  mean %8.3fms  50%% %8.3fms  99%% %8.3fms  max %8.3fms",
+					HxmMetrics.HISTOGRAM_NAMES[histogram], latency.getCount(), latency.getMeanNanos() / 1e6,
+					latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(99) / 1e6, latency.getMaxNanos() / 1e6));
+		}
+		System.out.println("    " + traces.size() + " traces, the latest:");
+		for (int i = Math.max(0, traces.size() - TRACES_SHOWN); i < traces.size(); i++)
+			System.out.println("        " + traces.get(i));
+
+		service.close();
+		pipeline.quit();
+		ui.getLooper().quit();
+		return good;
+	}
+
+	/*
+	 * Wait for a Handler's thread to get through everything already queued for it,
+	 * and anything queued in the next delayMs
+	 */
+	private static void await(Handler handler, long delayMs) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		handler.postDelayed(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		}, delayMs);
+		done.await(10, TimeUnit.SECONDS);
+	}
+
+	private static boolean check(String what, long actual, long expected) {
+		boolean good = actual == expected;
+		System.out.println(String.format("    %-32s %10d %s %d", what, actual, good ? "==" : "!=", expected));
+		return good;
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * HrmReadingTest
+ *
+ * The flyweight has to read the same values out of a message as the old
+ * HrmReading(byte[]) constructor did, wherever the message sits in its buffer.
+ */
+public class HrmReadingTest {
+
+	private static final int MESSAGES = 1000;
+
+	@Test
+	public void sameAsTheOldDecoding() {
+		Random random = new Random(1);
+		HrmReading reading = new HrmReading();
+
+		for (int i = 0; i < MESSAGES; i++) {
+			int offset = random.nextInt(100);
+			byte[] buffer = new byte[offset + HxmFrameReader.FRAME_LENGTH + random.nextInt(100)];
+			random.nextBytes(buffer);
+
+			byte[] message = new byte[HxmFrameReader.FRAME_LENGTH];
+			System.arraycopy(buffer, offset, message, 0, message.length);
+
+			assertSame(reading, reading.wrap(buffer, offset));
+			assertSame(buffer, reading.getBuffer());
+			assertEquals(offset, reading.getOffset());
+			assertDecodes(new OldReading(message), reading);
+		}
+	}
+
+	@Test
+	public void readsTheBytesWhenAsked() {
+		byte[] buffer = new byte[HxmFrameReader.FRAME_LENGTH];
+		HrmReading reading = new HrmReading(buffer, 0);
+		assertEquals(0, reading.heartRate());
+
+		// Nothing is copied, so a change to the bytes shows straight away
+		buffer[HrmReading.OFFSET_HEART_RATE] = (byte) 181;
+		buffer[HrmReading.OFFSET_HB_TIME + 2 * 14] = 0x34;
+		buffer[HrmReading.OFFSET_HB_TIME + 2 * 14 + 1] = (byte) 0xF2;
+		assertEquals(181, reading.heartRate());
+		assertEquals(0xF234, reading.hbTime(15));
+	}
+
+	private static void assertDecodes(OldReading expected, HrmReading reading) {
+		assertEquals(expected.stx, (byte) reading.stx());
+		assertEquals(expected.msgId, (byte) reading.msgId());
+		assertEquals(expected.dlc, (byte) reading.dlc());
+		assertEquals(expected.firmwareId, reading.firmwareId());
+		assertEquals(expected.firmwareVersion, reading.firmwareVersion());
+		assertEquals(expected.hardWareId, reading.hardwareId());
+		assertEquals(expected.hardwareVersion, reading.hardwareVersion());
+		assertEquals(expected.batteryIndicator, reading.batteryIndicator());
+		assertEquals(expected.heartRate, reading.heartRate());
+		assertEquals(expected.heartBeatNumber, reading.heartBeatNumber());
+		for (int i = 1; i <= HrmReading.HB_TIME_COUNT; i++)
+			assertEquals("hbTime" + i, expected.hbTime[i - 1], reading.hbTime(i));
+		assertEquals(expected.reserved1, reading.reserved1());
+		assertEquals(expected.reserved2, reading.reserved2());
+		assertEquals(expected.reserved3, reading.reserved3());
+		assertEquals(expected.distance, reading.distance());
+		assertEquals(expected.speed, reading.speed());
+
+		// The old code kept these as signed bytes, the flyweight gives them unsigned
+		assertEquals(expected.strides & 0xFF, reading.strides());
+		assertEquals(expected.reserved4 & 0xFF, reading.reserved4());
+		assertEquals(expected.reserved5, reading.reserved5());
+		assertEquals(expected.crc & 0xFF, reading.crc());
+		assertEquals(expected.etx & 0xFF, reading.etx());
+	}
+
+	/*
+	 * The decoding the HrmReading(byte[]) constructor used to do, field after field
+	 * from the start of the message
+	 */
+	private static class OldReading {
+		byte stx;
+		byte msgId;
+		byte dlc;
+		int firmwareId;
+		int firmwareVersion;
+		int hardWareId;
+		int hardwareVersion;
+		int batteryIndicator;
+		int heartRate;
+		int heartBeatNumber;
+		long[] hbTime = new long[HrmReading.HB_TIME_COUNT];
+		long reserved1;
+		long reserved2;
+		long reserved3;
+		long distance;
+		long speed;
+		byte strides;
+		byte reserved4;
+		long reserved5;
+		byte crc;
+		byte etx;
+
+		private final byte[] mBuffer;
+		private int mIndex = 0;
+
+		OldReading(byte[] buffer) {
+			mBuffer = buffer;
+			stx = buffer[mIndex++];
+			msgId = buffer[mIndex++];
+			dlc = buffer[mIndex++];
+			firmwareId = u16();
+			firmwareVersion = u16();
+			hardWareId = u16();
+			hardwareVersion = u16();
+			batteryIndicator = 0xFF & buffer[mIndex++];
+			heartRate = 0xFF & buffer[mIndex++];
+			heartBeatNumber = 0xFF & buffer[mIndex++];
+			for (int i = 0; i < hbTime.length; i++)
+				hbTime[i] = u16();
+			reserved1 = u16();
+			reserved2 = u16();
+			reserved3 = u16();
+			distance = u16();
+			speed = u16();
+			strides = buffer[mIndex++];
+			reserved4 = buffer[mIndex++];
+			reserved5 = u16();
+			crc = buffer[mIndex++];
+			etx = buffer[mIndex];
+		}
+
+		private int u16() {
+			return (0xFF & mBuffer[mIndex++]) | (0xFF & mBuffer[mIndex++]) << 8;
+		}
+	}
+}
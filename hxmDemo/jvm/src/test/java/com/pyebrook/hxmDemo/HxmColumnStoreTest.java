@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * HxmColumnStoreTest
+ *
+ * What HxmColumnWriter writes, HxmColumnStore reads back, a column and a stretch
+ * of time at a time.
+ */
+public class HxmColumnStoreTest {
+
+	private static final int DEVICES = 2;
+	private static final int ROWS = 2500;
+	private static final int BLOCK_ROWS = 1000;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDirectory;
+	private HxmColumnWriter mWriter;
+
+	/*
+	 * The values written, by device, column and row
+	 */
+	private final int[][][] mValues = new int[DEVICES][HxmColumnStore.COLUMN_COUNT][ROWS];
+
+	@Before
+	public void setUp() throws Exception {
+		mDirectory = mFolder.newFolder("columns");
+		mWriter = new HxmColumnWriter(mDirectory, BLOCK_ROWS);
+	}
+
+	@Test
+	public void everyRowOfEveryColumn() throws Exception {
+		write(0, ROWS);
+		mWriter.close();
+		assertEquals(DEVICES * ROWS, mWriter.getRowCount());
+
+		HxmColumnStore store = new HxmColumnStore(mDirectory);
+		Set<Long> ids = new HashSet<Long>();
+		for (int d = 0; d < DEVICES; d++)
+			ids.add(deviceId(d));
+		assertEquals(ids, store.getDeviceIds());
+
+		int[] columns = new int[HxmColumnStore.COLUMN_COUNT];
+		for (int c = 0; c < columns.length; c++)
+			columns[c] = c;
+
+		for (int d = 0; d < DEVICES; d++) {
+			HxmColumnStore.Series series = store.query(deviceId(d), columns, 0, Long.MAX_VALUE);
+			assertEquals(ROWS, series.getCount());
+			for (int row = 0; row < ROWS; row++) {
+				if (row > 0)
+					assertTrue(series.getTime(row) > series.getTime(row - 1));
+				for (int c = 0; c < columns.length; c++)
+					assertEquals("device " + d + " column " + c + " row " + row, mValues[d][c][row], series.getValue(c, row));
+			}
+		}
+	}
+
+	@Test
+	public void stretchOfTime() throws Exception {
+		write(0, ROWS);
+		mWriter.close();
+
+		HxmColumnStore store = new HxmColumnStore(mDirectory);
+		HxmColumnStore.Series all = store.query(deviceId(1), HxmColumnStore.COLUMN_HEART_RATE, 0, Long.MAX_VALUE);
+
+		// From the middle of the first block to a quarter way into the third, the end not included
+		int first = BLOCK_ROWS / 2;
+		int end = 2 * BLOCK_ROWS + BLOCK_ROWS / 4;
+		HxmColumnStore.Series series = store.query(deviceId(1), HxmColumnStore.COLUMN_HEART_RATE, all.getTime(first),
+				all.getTime(end));
+
+		assertEquals(end - first, series.getCount());
+		assertEquals(HxmColumnStore.COLUMN_HEART_RATE, series.getColumn(0));
+		for (int row = first; row < end; row++) {
+			assertEquals(all.getTime(row), series.getTime(row - first));
+			assertEquals(mValues[1][HxmColumnStore.COLUMN_HEART_RATE][row], series.getValue(row - first));
+		}
+
+		// Before, after and between the rows there is nothing
+		assertEquals(0, store.query(deviceId(1), HxmColumnStore.COLUMN_SPEED, 0, all.getTime(0)).getCount());
+		assertEquals(0, store.query(deviceId(1), HxmColumnStore.COLUMN_SPEED, all.getTime(ROWS - 1) + 1, Long.MAX_VALUE).getCount());
+		assertEquals(0, store.query(deviceId(1), HxmColumnStore.COLUMN_SPEED, all.getTime(5) + 1, all.getTime(6)).getCount());
+	}
+
+	@Test
+	public void unknownDeviceHasNoRows() throws Exception {
+		write(0, 10);
+		mWriter.close();
+
+		HxmColumnStore store = new HxmColumnStore(mDirectory);
+		assertEquals(0, store.query(12345, HxmColumnStore.COLUMN_HEART_RATE, 0, Long.MAX_VALUE).getCount());
+	}
+
+	@Test
+	public void queryWhileWriting() throws Exception {
+		HxmColumnStore store = new HxmColumnStore(mDirectory);
+
+		write(0, BLOCK_ROWS + 10);
+		assertEquals(BLOCK_ROWS, store.query(deviceId(0), HxmColumnStore.COLUMN_DISTANCE, 0, Long.MAX_VALUE).getCount());
+
+		// The store picks up the blocks written since it last looked
+		write(BLOCK_ROWS + 10, ROWS);
+		mWriter.flush();
+		HxmColumnStore.Series series = store.query(deviceId(0), HxmColumnStore.COLUMN_DISTANCE, 0, Long.MAX_VALUE);
+		assertEquals(ROWS, series.getCount());
+		for (int row = 0; row < ROWS; row++)
+			assertEquals(mValues[0][HxmColumnStore.COLUMN_DISTANCE][row], series.getValue(row));
+		mWriter.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownColumn() throws Exception {
+		new HxmColumnStore(mDirectory).query(deviceId(0), HxmColumnStore.COLUMN_COUNT, 0, Long.MAX_VALUE);
+	}
+
+	private static long deviceId(int d) {
+		return 0x0007800000000000L + d;
+	}
+
+	@Test
+	public void appendingToAKeptDeviceMakesNothing() {
+		HxmColumnWriter.Device device = mWriter.getDevice(deviceId(0));
+		assertSame(device, mWriter.getDevice(deviceId(0)));
+		assertEquals(deviceId(0), device.getDeviceId());
+
+		HrmReading reading = new HrmReading();
+		reading.wrap(HxmFrameReaderTest.frames(3, 1)[0], 0);
+
+		// Short of a block, so nothing is written out
+		long before = HxmBench.allocatedBytes();
+		for (int row = 0; row < BLOCK_ROWS - 1; row++)
+			mWriter.append(device, reading, row);
+		if (before >= 0)
+			assertTrue(HxmBench.allocatedBytes() - before < BLOCK_ROWS);
+		assertEquals(BLOCK_ROWS - 1, mWriter.getRowCount());
+		assertEquals(0, mWriter.getBlockCount());
+	}
+
+	/*
+	 * Rows from to end of every device, a second apart and ending now.  Device 0's
+	 * are appended by id, the others' to the Device the writer gives for them.
+	 */
+	private void write(int from, int end) {
+		long start = System.nanoTime() - ROWS * 1000000000L;
+		for (int d = 0; d < DEVICES; d++) {
+			byte[][] frames = HxmFrameReaderTest.frames(d, end);
+			HrmReading reading = new HrmReading();
+			HxmColumnWriter.Device device = mWriter.getDevice(deviceId(d));
+			for (int row = from; row < end; row++) {
+				reading.wrap(frames[row], 0);
+				for (int c = 0; c < HxmColumnStore.COLUMN_COUNT; c++)
+					mValues[d][c][row] = HxmColumnStore.getValue(reading, c);
+				if (d == 0)
+					mWriter.append(deviceId(d), reading, start + row * 1000000000L);
+				else
+					mWriter.append(device, reading, start + row * 1000000000L);
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * HxmCrc8Test
+ *
+ * The table driven CRC against the bit at a time one the API guide describes, and
+ * against values worked out elsewhere.
+ */
+public class HxmCrc8Test {
+
+	/*
+	 * The API guide's description, one bit at a time
+	 */
+	private static int reference(byte[] buffer, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc ^= buffer[i] & 0xFF;
+			for (int bit = 0; bit < 8; bit++)
+				crc = ((crc & 0x01) != 0) ? (crc >>> 1) ^ HxmCrc8.POLYNOMIAL : crc >>> 1;
+		}
+		return crc;
+	}
+
+	@Test
+	public void knownValues() {
+		// The usual check value for this CRC, known elsewhere as CRC-8/MAXIM
+		assertEquals(0xA1, HxmCrc8.compute("123456789".getBytes(), 0, 9));
+		assertEquals(0x00, HxmCrc8.compute(new byte[HxmFrameReader.DLC], 0, HxmFrameReader.DLC));
+		assertEquals(0x00, HxmCrc8.compute(new byte[0], 0, 0));
+	}
+
+	@Test
+	public void knownFrame() {
+		// A general data message with heart rate 72 and nothing else
+		byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+		frame[HxmFrameReader.OFFSET_STX] = HxmFrameReader.STX;
+		frame[HxmFrameReader.OFFSET_MSGID] = HxmFrameReader.MSGID;
+		frame[HxmFrameReader.OFFSET_DLC] = HxmFrameReader.DLC;
+		frame[HrmReading.OFFSET_HEART_RATE] = 72;
+		frame[HxmFrameReader.OFFSET_ETX] = HxmFrameReader.ETX;
+
+		int crc = reference(frame, HxmFrameReader.OFFSET_PAYLOAD, HxmFrameReader.DLC);
+		assertEquals(crc, HxmCrc8.compute(frame, HxmFrameReader.OFFSET_PAYLOAD, HxmFrameReader.DLC));
+		assertEquals(0xAA, crc);
+		assertFalse(HxmCrc8.check(frame, 0));
+
+		frame[HxmFrameReader.OFFSET_CRC] = (byte) crc;
+		assertTrue(HxmCrc8.check(frame, 0));
+	}
+
+	@Test
+	public void matchesReferenceAtEveryLengthAndOffset() {
+		Random random = new Random(1);
+		byte[] buffer = new byte[200];
+		for (int trial = 0; trial < 100; trial++) {
+			random.nextBytes(buffer);
+			for (int length = 0; length <= 100; length++) {
+				int offset = random.nextInt(buffer.length - length + 1);
+				assertEquals("length " + length, reference(buffer, offset, length), HxmCrc8.compute(buffer, offset, length));
+			}
+		}
+	}
+
+	@Test
+	public void goodFramesCheck() {
+		Random random = new Random(2);
+		byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+		for (int i = 0; i < 1000; i++) {
+			frame(random, frame, 0);
+			assertTrue(HxmCrc8.check(frame, 0));
+		}
+	}
+
+	@Test
+	public void everySingleBitErrorIsCaught() {
+		byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+		frame(new Random(3), frame, 0);
+
+		for (int i = HxmFrameReader.OFFSET_PAYLOAD; i <= HxmFrameReader.OFFSET_CRC; i++) {
+			for (int bit = 0; bit < 8; bit++) {
+				frame[i] ^= (byte) (1 << bit);
+				assertFalse("byte " + i + " bit " + bit, HxmCrc8.check(frame, 0));
+				frame[i] ^= (byte) (1 << bit);
+			}
+		}
+		assertTrue(HxmCrc8.check(frame, 0));
+	}
+
+	@Test
+	public void byteBufferMatchesArray() {
+		byte[] frames = new byte[10 * HxmFrameReader.FRAME_LENGTH];
+		Random random = new Random(4);
+		for (int i = 0; i < 10; i++)
+			frame(random, frames, i * HxmFrameReader.FRAME_LENGTH);
+		frames[4 * HxmFrameReader.FRAME_LENGTH + 20] ^= 0x10;
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(frames.length + 7);
+		buffer.position(7);
+		buffer.put(frames);
+
+		for (int i = 0; i < 10; i++) {
+			int offset = i * HxmFrameReader.FRAME_LENGTH;
+			assertEquals(HxmCrc8.compute(frames, offset + 3, HxmFrameReader.DLC),
+					HxmCrc8.compute(buffer, 7 + offset + 3, HxmFrameReader.DLC));
+			assertEquals(i != 4, HxmCrc8.check(buffer, 7 + offset));
+			assertEquals(i != 4, HxmCrc8.check(frames, offset));
+		}
+		assertEquals(buffer.capacity(), buffer.position());
+
+		// An array behind the buffer, not starting at its first byte
+		byte[] padded = new byte[frames.length + 7];
+		System.arraycopy(frames, 0, padded, 7, frames.length);
+		ByteBuffer wrapped = ByteBuffer.wrap(padded, 3, frames.length + 4).slice();
+		for (int i = 0; i < 10; i++) {
+			int offset = i * HxmFrameReader.FRAME_LENGTH;
+			assertEquals(HxmCrc8.compute(frames, offset + 3, HxmFrameReader.DLC),
+					HxmCrc8.compute(wrapped, 4 + offset + 3, HxmFrameReader.DLC));
+			assertEquals(i != 4, HxmCrc8.check(wrapped, 4 + offset));
+		}
+	}
+
+	/*
+	 * A message with random contents and the CRC the reference gives it
+	 */
+	private static void frame(Random random, byte[] buffer, int offset) {
+		byte[] payload = new byte[HxmFrameReader.DLC];
+		random.nextBytes(payload);
+		buffer[offset + HxmFrameReader.OFFSET_STX] = HxmFrameReader.STX;
+		buffer[offset + HxmFrameReader.OFFSET_MSGID] = HxmFrameReader.MSGID;
+		buffer[offset + HxmFrameReader.OFFSET_DLC] = HxmFrameReader.DLC;
+		System.arraycopy(payload, 0, buffer, offset + HxmFrameReader.OFFSET_PAYLOAD, payload.length);
+		buffer[offset + HxmFrameReader.OFFSET_CRC] = (byte) reference(payload, 0, payload.length);
+		buffer[offset + HxmFrameReader.OFFSET_ETX] = HxmFrameReader.ETX;
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+/*
+ * HxmFlowTest
+ *
+ * The service's reading stream and the operators built on it never send a
+ * subscriber more than it asked for, and a subscriber that doesn't ask loses the
+ * readings its strategy says.
+ */
+public class HxmFlowTest {
+
+	/*
+	 * Passes readings on there and then, so every test runs on one thread
+	 */
+	private static final Executor DIRECT = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final HxmService mService = new HxmService(null, null);
+	private final HxmLatest mLatest = new HxmLatest();
+	private final byte[] mFrame = HxmFrameReaderTest.frames(1, 1)[0];
+	private final long mStart = System.nanoTime();
+
+	/*
+	 * A reading from a device, received ms after the test started
+	 */
+	private HxmLatest.Snapshot reading(int d, long ms) {
+		HxmLatest.Slot slot = mLatest.getSlot(HxmServiceTest.address(d));
+		slot.publish(mFrame, 0, mStart + ms * 1000000L);
+		HxmLatest.Snapshot snapshot = new HxmLatest.Snapshot();
+		slot.getLatest(snapshot);
+		return snapshot;
+	}
+
+	@Test
+	public void onlyWhatWasAskedFor() {
+		Recorder<HxmLatest.Snapshot> recorder = new Recorder<HxmLatest.Snapshot>();
+		mService.readings(DIRECT, 16, HxmReadingPublisher.STRATEGY_DROP_OLDEST).subscribe(recorder);
+		HxmReadingPublisher.ReadingSubscription subscription = recorder.getReadingSubscription();
+
+		HxmLatest.Snapshot[] readings = new HxmLatest.Snapshot[5];
+		for (int i = 0; i < readings.length; i++) {
+			readings[i] = reading(0, i);
+			subscription.offer(readings[i]);
+		}
+		assertEquals(0, recorder.mItems.size());
+
+		recorder.mSubscription.request(2);
+		assertEquals(2, recorder.mItems.size());
+		recorder.mSubscription.request(8);
+		assertEquals(5, recorder.mItems.size());
+		for (int i = 0; i < readings.length; i++)
+			assertSame(readings[i], recorder.mItems.get(i));
+
+		// What is left of the demand is used as readings arrive
+		for (int i = 0; i < 5; i++)
+			subscription.offer(reading(0, 5 + i));
+		assertEquals(10, recorder.mItems.size());
+		subscription.offer(reading(0, 10));
+		assertEquals(10, recorder.mItems.size());
+	}
+
+	@Test
+	public void dropOldest() {
+		List<HxmLatest.Snapshot> readings = overflow(HxmReadingPublisher.STRATEGY_DROP_OLDEST, 1);
+		assertEquals(4, readings.size());
+		for (int i = 0; i < 4; i++)
+			assertEquals(6 + i, readings.get(i).getSequence());
+	}
+
+	@Test
+	public void dropNewest() {
+		List<HxmLatest.Snapshot> readings = overflow(HxmReadingPublisher.STRATEGY_DROP_NEWEST, 1);
+		assertEquals(4, readings.size());
+		for (int i = 0; i < 4; i++)
+			assertEquals(i, readings.get(i).getSequence());
+	}
+
+	@Test
+	public void latestFromEachDevice() {
+		// Devices 0, 1, 2, 0, 1 ... each reading takes the place of the one before from its device
+		List<HxmLatest.Snapshot> readings = overflow(HxmReadingPublisher.STRATEGY_LATEST, 3);
+		assertEquals(3, readings.size());
+		assertEquals(HxmServiceTest.address(0), readings.get(0).getAddress());
+		assertEquals(3, readings.get(0).getSequence());
+		assertEquals(HxmServiceTest.address(1), readings.get(1).getAddress());
+		assertEquals(2, readings.get(1).getSequence());
+		assertEquals(HxmServiceTest.address(2), readings.get(2).getAddress());
+		assertEquals(2, readings.get(2).getSequence());
+	}
+
+	/*
+	 * Ten readings round the devices into a buffer of four nobody is taking from,
+	 * then what comes out when they are asked for
+	 */
+	private List<HxmLatest.Snapshot> overflow(int strategy, int devices) {
+		Recorder<HxmLatest.Snapshot> recorder = new Recorder<HxmLatest.Snapshot>();
+		HxmReadingPublisher publisher = mService.readings(DIRECT, 4, strategy);
+		publisher.subscribe(recorder);
+		HxmReadingPublisher.ReadingSubscription subscription = recorder.getReadingSubscription();
+
+		for (int i = 0; i < 10; i++)
+			subscription.offer(reading(i % devices, i));
+		recorder.mSubscription.request(Long.MAX_VALUE);
+
+		assertEquals(10 - recorder.mItems.size(), publisher.getDroppedCount());
+		return recorder.mItems;
+	}
+
+	@Test
+	public void requestOfNothingIsAnError() {
+		Recorder<HxmLatest.Snapshot> recorder = new Recorder<HxmLatest.Snapshot>();
+		mService.readings(DIRECT, 4, HxmReadingPublisher.STRATEGY_DROP_OLDEST).subscribe(recorder);
+		HxmReadingPublisher.ReadingSubscription subscription = recorder.getReadingSubscription();
+
+		recorder.mSubscription.request(0);
+		assertTrue(recorder.mError instanceof IllegalArgumentException);
+
+		recorder.mSubscription.request(1);
+		subscription.offer(reading(0, 0));
+		assertEquals(0, recorder.mItems.size());
+	}
+
+	@Test
+	public void nothingAfterCancel() {
+		Recorder<HxmLatest.Snapshot> recorder = new Recorder<HxmLatest.Snapshot>();
+		mService.readings(DIRECT, 4, HxmReadingPublisher.STRATEGY_DROP_OLDEST).subscribe(recorder);
+		HxmReadingPublisher.ReadingSubscription subscription = recorder.getReadingSubscription();
+
+		recorder.mSubscription.request(10);
+		subscription.offer(reading(0, 0));
+		recorder.mSubscription.cancel();
+		subscription.offer(reading(0, 1));
+		assertEquals(1, recorder.mItems.size());
+	}
+
+	@Test
+	public void forDevice() {
+		Source source = new Source();
+		for (int i = 0; i < 12; i++)
+			source.mItems.add(reading(i % 3, i));
+
+		Recorder<HxmLatest.Snapshot> recorder = new Recorder<HxmLatest.Snapshot>();
+		HxmFlow.forDevice(source, HxmServiceTest.address(1)).subscribe(recorder);
+		recorder.mSubscription.request(2);
+
+		assertEquals(2, recorder.mItems.size());
+		for (HxmLatest.Snapshot reading : recorder.mItems)
+			assertEquals(HxmServiceTest.address(1), reading.getAddress());
+
+		// Readings are asked for one at a time, and not once the subscriber has what it wanted
+		assertEquals(1, source.mMostRequested);
+		assertEquals(5, source.mNext);
+
+		recorder.mSubscription.request(10);
+		assertEquals(4, recorder.mItems.size());
+		assertTrue(recorder.mComplete);
+	}
+
+	@Test
+	public void sample() {
+		Source source = new Source();
+		for (int i = 0; i < 20; i++) {
+			source.mItems.add(reading(0, i * 300));
+			source.mItems.add(reading(1, i * 300 + 150));
+		}
+
+		Recorder<HxmLatest.Snapshot> recorder = new Recorder<HxmLatest.Snapshot>();
+		HxmFlow.sample(source, 1000).subscribe(recorder);
+		recorder.mSubscription.request(Long.MAX_VALUE);
+
+		// Every fourth reading from each device, the ones at 0, 1200, 2400 ...
+		assertEquals(10, recorder.mItems.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(HxmServiceTest.address(i % 2), recorder.mItems.get(i).getAddress());
+			assertEquals((i / 2) * 4, recorder.mItems.get(i).getSequence());
+		}
+	}
+
+	@Test
+	public void window() {
+		Source source = new Source();
+		for (int i = 0; i < 10; i++)
+			source.mItems.add(reading(0, i * 300));
+		for (int i = 0; i < 3; i++)
+			source.mItems.add(reading(1, i * 300));
+
+		Recorder<List<HxmLatest.Snapshot>> recorder = new Recorder<List<HxmLatest.Snapshot>>();
+		HxmFlow.window(source, 1000, 3).subscribe(recorder);
+		recorder.mSubscription.request(Long.MAX_VALUE);
+
+		// Device 0 fills three windows of three, the last reading of each device is left open
+		assertEquals(3, recorder.mItems.size());
+		for (int w = 0; w < 3; w++) {
+			List<HxmLatest.Snapshot> window = recorder.mItems.get(w);
+			assertEquals(3, window.size());
+			for (int i = 0; i < 3; i++)
+				assertEquals(w * 3 + i, window.get(i).getSequence());
+		}
+		assertTrue(recorder.mComplete);
+	}
+
+	@Test
+	public void windowByTime() {
+		Source source = new Source();
+		for (int i = 0; i < 7; i++)
+			source.mItems.add(reading(0, i * 300));
+
+		Recorder<List<HxmLatest.Snapshot>> recorder = new Recorder<List<HxmLatest.Snapshot>>();
+		HxmFlow.window(source, 1000, 100).subscribe(recorder);
+		recorder.mSubscription.request(Long.MAX_VALUE);
+
+		// 0, 300, 600 and 900, then 1200 ... 1800 is still open
+		assertEquals(1, recorder.mItems.size());
+		assertEquals(4, recorder.mItems.get(0).size());
+	}
+
+	@Test
+	public void operatorRequestOfNothingIsAnError() {
+		Source source = new Source();
+		source.mItems.add(reading(0, 0));
+
+		Recorder<HxmLatest.Snapshot> recorder = new Recorder<HxmLatest.Snapshot>();
+		HxmFlow.forDevice(source, HxmServiceTest.address(0)).subscribe(recorder);
+		recorder.mSubscription.request(-1);
+
+		assertTrue(recorder.mError instanceof IllegalArgumentException);
+		assertTrue(source.mCancelled);
+		recorder.mSubscription.request(1);
+		assertEquals(0, recorder.mItems.size());
+
+		// Asking for nothing again changes nothing, the recorder fails on a second error
+		recorder.mSubscription.request(0);
+	}
+
+	@Test
+	public void operatorErrorWaitsForOnNext() {
+		Source source = new Source();
+		for (int i = 0; i < 3; i++)
+			source.mItems.add(reading(0, i));
+
+		final List<String> calls = new ArrayList<String>();
+		HxmFlow.forDevice(source, HxmServiceTest.address(0)).subscribe(new HxmFlow.Subscriber<HxmLatest.Snapshot>() {
+			private HxmFlow.Subscription mSubscription;
+
+			public void onSubscribe(HxmFlow.Subscription subscription) {
+				mSubscription = subscription;
+				subscription.request(1);
+			}
+
+			public void onNext(HxmLatest.Snapshot item) {
+				calls.add("next start");
+				mSubscription.request(0);
+				mSubscription.request(-1);
+				calls.add("next end");
+			}
+
+			public void onError(Throwable throwable) {
+				calls.add("error");
+			}
+
+			public void onComplete() {
+				calls.add("complete");
+			}
+		});
+
+		assertEquals(Arrays.asList("next start", "next end", "error"), calls);
+		assertTrue(source.mCancelled);
+	}
+
+	/*
+	 * Publishes a list of items to one subscriber, as fast as it asks for them
+	 */
+	private static class Source implements HxmFlow.Publisher<HxmLatest.Snapshot>, HxmFlow.Subscription {
+		final List<HxmLatest.Snapshot> mItems = new ArrayList<HxmLatest.Snapshot>();
+		HxmFlow.Subscriber<? super HxmLatest.Snapshot> mSubscriber;
+		int mNext = 0;
+		long mDemand = 0;
+		long mMostRequested = 0;
+		boolean mCancelled = false;
+		boolean mEmitting = false;
+
+		public void subscribe(HxmFlow.Subscriber<? super HxmLatest.Snapshot> subscriber) {
+			mSubscriber = subscriber;
+			subscriber.onSubscribe(this);
+		}
+
+		public void request(long n) {
+			mDemand += n;
+			mMostRequested = Math.max(mMostRequested, mDemand);
+
+			// Items asked for while one is being sent go out once it has been
+			if (mEmitting)
+				return;
+			mEmitting = true;
+			while (!mCancelled && mDemand > 0 && mNext < mItems.size()) {
+				mDemand--;
+				mSubscriber.onNext(mItems.get(mNext++));
+			}
+			mEmitting = false;
+
+			if (!mCancelled && mNext == mItems.size()) {
+				mCancelled = true;
+				mSubscriber.onComplete();
+			}
+		}
+
+		public void cancel() {
+			mCancelled = true;
+		}
+	}
+
+	/*
+	 * Keeps what it is sent and checks it is never sent more than it asked for
+	 */
+	static class Recorder<T> implements HxmFlow.Subscriber<T> {
+		final List<T> mItems = new ArrayList<T>();
+		HxmFlow.Subscription mSubscription;
+		HxmFlow.Subscription mUpstream;
+		Throwable mError;
+		boolean mComplete = false;
+		private long mRequested = 0;
+
+		public void onSubscribe(final HxmFlow.Subscription subscription) {
+			assertNull(mSubscription);
+			mSubscription = new HxmFlow.Subscription() {
+				public void request(long n) {
+					if (n > 0)
+						mRequested = (mRequested + n < 0) ? Long.MAX_VALUE : mRequested + n;
+					subscription.request(n);
+				}
+
+				public void cancel() {
+					subscription.cancel();
+				}
+			};
+			mUpstream = subscription;
+		}
+
+		HxmReadingPublisher.ReadingSubscription getReadingSubscription() {
+			return (HxmReadingPublisher.ReadingSubscription) mUpstream;
+		}
+
+		public void onNext(T item) {
+			assertTrue("more than was asked for", mItems.size() < mRequested);
+			assertNull(mError);
+			mItems.add(item);
+		}
+
+		public void onError(Throwable throwable) {
+			assertNull("a second error", mError);
+			mError = throwable;
+		}
+
+		public void onComplete() {
+			mComplete = true;
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * HxmFrameReaderTest
+ *
+ * Finding the messages in a stream, whatever else is in it and however it is cut
+ * up on the way.
+ */
+public class HxmFrameReaderTest {
+
+	private static final int FRAMES = 200;
+
+	@Test
+	public void cleanStream() throws IOException {
+		byte[][] frames = frames(1, FRAMES);
+		HxmFrameReader reader = new HxmFrameReader(new ByteArrayInputStream(concat(frames)));
+
+		assertFrames(reader, frames);
+		assertEquals(FRAMES, reader.getFrameCount());
+		assertEquals(0, reader.getSkippedByteCount());
+		assertEquals(0, reader.getCrcFailureCount());
+	}
+
+	@Test
+	public void resyncAfterGarbage() throws IOException {
+		byte[][] frames = frames(2, FRAMES);
+		Random random = new Random(2);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		int garbage = 0;
+
+		for (byte[] frame : frames) {
+			int count = random.nextInt(2 * HxmFrameReader.FRAME_LENGTH);
+			for (int i = 0; i < count; i++) {
+				switch (random.nextInt(5)) {
+				case 0:
+					stream.write(HxmFrameReader.STX);
+					break;
+				case 1:
+					// A header that leads nowhere
+					stream.write(HxmFrameReader.STX);
+					stream.write(HxmFrameReader.MSGID);
+					stream.write(HxmFrameReader.DLC);
+					garbage += 2;
+					break;
+				default:
+					stream.write(random.nextInt(256));
+					break;
+				}
+			}
+			garbage += count;
+			stream.write(frame, 0, frame.length);
+		}
+
+		HxmFrameReader reader = new HxmFrameReader(new ByteArrayInputStream(stream.toByteArray()));
+		assertFrames(reader, frames);
+		assertEquals(garbage, reader.getSkippedByteCount());
+	}
+
+	@Test
+	public void strayStxRightBeforeAFrame() throws IOException {
+		byte[][] frames = frames(3, 2);
+		byte[] stream = concat(new byte[][] { { HxmFrameReader.STX }, frames[0], { HxmFrameReader.STX, HxmFrameReader.STX }, frames[1] });
+
+		HxmFrameReader reader = new HxmFrameReader(new ByteArrayInputStream(stream));
+		assertFrames(reader, frames);
+		assertEquals(3, reader.getSkippedByteCount());
+	}
+
+	@Test
+	public void crcFailureIsRejectedAndCounted() throws IOException {
+		byte[][] frames = frames(4, 3);
+		byte[] bad = frames[1].clone();
+		bad[HrmReading.OFFSET_HEART_RATE] ^= 0x01;
+
+		HxmFrameReader reader = new HxmFrameReader(new ByteArrayInputStream(concat(new byte[][] { frames[0], bad, frames[2] })));
+		assertFrames(reader, new byte[][] { frames[0], frames[2] });
+		assertEquals(1, reader.getCrcFailureCount());
+		assertEquals(HxmFrameReader.FRAME_LENGTH, reader.getSkippedByteCount());
+	}
+
+	@Test
+	public void badEtxIsRejected() throws IOException {
+		byte[][] frames = frames(5, 3);
+		byte[] bad = frames[1].clone();
+		bad[HxmFrameReader.OFFSET_ETX] = 0;
+
+		HxmFrameReader reader = new HxmFrameReader(new ByteArrayInputStream(concat(new byte[][] { frames[0], bad, frames[2] })));
+		assertFrames(reader, new byte[][] { frames[0], frames[2] });
+		assertEquals(HxmFrameReader.FRAME_LENGTH, reader.getSkippedByteCount());
+	}
+
+	@Test
+	public void splitReads() throws IOException {
+		byte[][] frames = frames(6, FRAMES);
+		byte[] stream = concat(frames);
+
+		for (int max = 1; max <= HxmFrameReader.FRAME_LENGTH + 1; max++) {
+			HxmFrameReader reader = new HxmFrameReader(new ChunkedStream(stream, max, new Random(max)));
+			assertFrames(reader, frames);
+			assertEquals(0, reader.getSkippedByteCount());
+		}
+	}
+
+	@Test
+	public void readFrameCopies() throws IOException {
+		byte[][] frames = frames(7, 3);
+		HxmFrameReader reader = new HxmFrameReader(new ByteArrayInputStream(concat(frames)));
+		byte[] dst = new byte[HxmFrameReader.FRAME_LENGTH + 5];
+
+		for (byte[] frame : frames) {
+			assertEquals(HxmFrameReader.FRAME_LENGTH, reader.readFrame(dst, 5));
+			byte[] copy = new byte[HxmFrameReader.FRAME_LENGTH];
+			System.arraycopy(dst, 5, copy, 0, copy.length);
+			assertArrayEquals(frame, copy);
+		}
+		assertEquals(-1, reader.readFrame(dst, 0));
+	}
+
+	@Test
+	public void pollFrameWaitsForTheWholeFrame() throws IOException {
+		byte[][] frames = frames(8, 2);
+		FeedStream in = new FeedStream();
+		HxmFrameReader reader = new HxmFrameReader(in);
+
+		assertEquals(HxmFrameReader.NO_FRAME, reader.pollFrame());
+		in.feed(frames[0], 0, 30);
+		assertEquals(HxmFrameReader.NO_FRAME, reader.pollFrame());
+		in.feed(frames[0], 30, HxmFrameReader.FRAME_LENGTH - 30);
+		assertFrame(frames[0], reader, reader.pollFrame());
+		assertEquals(HxmFrameReader.NO_FRAME, reader.pollFrame());
+		in.feed(frames[1], 0, HxmFrameReader.FRAME_LENGTH);
+		assertFrame(frames[1], reader, reader.pollFrame());
+	}
+
+	/*
+	 * The message at offset in the reader's buffer
+	 */
+	private static void assertFrame(byte[] expected, HxmFrameReader reader, int offset) {
+		byte[] actual = new byte[expected.length];
+		System.arraycopy(reader.getBuffer(), offset, actual, 0, actual.length);
+		assertArrayEquals(expected, actual);
+	}
+
+	/*
+	 * Messages with random contents and a good CRC
+	 */
+	static byte[][] frames(long seed, int count) {
+		Random random = new Random(seed);
+		byte[][] frames = new byte[count][HxmFrameReader.FRAME_LENGTH];
+		for (byte[] frame : frames) {
+			random.nextBytes(frame);
+			frame[HxmFrameReader.OFFSET_STX] = HxmFrameReader.STX;
+			frame[HxmFrameReader.OFFSET_MSGID] = HxmFrameReader.MSGID;
+			frame[HxmFrameReader.OFFSET_DLC] = HxmFrameReader.DLC;
+			frame[HxmFrameReader.OFFSET_CRC] = (byte) HxmCrc8.compute(frame, HxmFrameReader.OFFSET_PAYLOAD, HxmFrameReader.DLC);
+			frame[HxmFrameReader.OFFSET_ETX] = HxmFrameReader.ETX;
+		}
+		return frames;
+	}
+
+	static byte[] concat(byte[][] parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts)
+			out.write(part, 0, part.length);
+		return out.toByteArray();
+	}
+
+	private static void assertFrames(HxmFrameReader reader, byte[][] frames) throws IOException {
+		byte[] actual = new byte[HxmFrameReader.FRAME_LENGTH];
+		for (int i = 0; i < frames.length; i++) {
+			assertEquals(HxmFrameReader.FRAME_LENGTH, reader.readFrame(actual, 0));
+			assertArrayEquals(frames[i], actual);
+		}
+		assertEquals(-1, reader.readFrame(actual, 0));
+	}
+
+	/*
+	 * Hands out a byte array 1 to max bytes per read
+	 */
+	static class ChunkedStream extends InputStream {
+		private final byte[] mBytes;
+		private final int mMax;
+		private final Random mRandom;
+		private int mPosition = 0;
+
+		ChunkedStream(byte[] bytes, int max, Random random) {
+			mBytes = bytes;
+			mMax = max;
+			mRandom = random;
+		}
+
+		@Override
+		public int read() {
+			return (mPosition < mBytes.length) ? mBytes[mPosition++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (mPosition == mBytes.length)
+				return -1;
+			int count = Math.min(Math.min(length, 1 + mRandom.nextInt(mMax)), mBytes.length - mPosition);
+			System.arraycopy(mBytes, mPosition, buffer, offset, count);
+			mPosition += count;
+			return count;
+		}
+	}
+
+	/*
+	 * Only has the bytes it has been fed, and says so in available()
+	 */
+	private static class FeedStream extends InputStream {
+		private final ByteArrayOutputStream mFed = new ByteArrayOutputStream();
+		private int mPosition = 0;
+
+		void feed(byte[] bytes, int offset, int length) {
+			mFed.write(bytes, offset, length);
+		}
+
+		@Override
+		public int available() {
+			return mFed.size() - mPosition;
+		}
+
+		@Override
+		public int read() {
+			return (available() > 0) ? mFed.toByteArray()[mPosition++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			int count = Math.min(length, available());
+			System.arraycopy(mFed.toByteArray(), mPosition, buffer, offset, count);
+			mPosition += count;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/*
+ * HxmFrameRingTest
+ *
+ * Messages come out of the ring in order and whole, each overflow policy throws
+ * away what it says it does, and the slot the consumer is looking at is never
+ * written under it.
+ */
+public class HxmFrameRingTest {
+
+	private static final int SLOT_SIZE = 16;
+
+	@Test
+	public void messagesComeOutInOrder() {
+		HxmFrameRing ring = new HxmFrameRing(4, SLOT_SIZE, HxmFrameRing.OVERFLOW_DROP_NEWEST);
+
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 3; i++)
+				assertTrue(ring.offer(message(round * 3 + i), 0, 1 + i, 1000 + i, "tag" + i));
+			assertEquals(3, ring.size());
+
+			for (int i = 0; i < 3; i++) {
+				int offset = ring.poll();
+				assertEquals(1 + i, ring.getLength(offset));
+				assertEquals(1000 + i, ring.getTimestamp(offset));
+				assertEquals("tag" + i, ring.getTag(offset));
+				assertMessage(round * 3 + i, ring, offset);
+				ring.release();
+			}
+			assertEquals(-1, ring.poll());
+		}
+		assertEquals(15, ring.getOfferedCount());
+		assertEquals(0, ring.getDroppedCount());
+	}
+
+	@Test
+	public void dropOldest() {
+		HxmFrameRing ring = new HxmFrameRing(4, SLOT_SIZE, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+
+		for (int i = 0; i < 10; i++)
+			assertTrue(ring.offer(message(i), 0, SLOT_SIZE, i));
+		assertEquals(4, ring.size());
+		assertEquals(6, ring.getDroppedOldestCount());
+		assertEquals(0, ring.getDroppedNewestCount());
+
+		assertMessages(ring, 6, 10);
+	}
+
+	@Test
+	public void dropNewest() {
+		HxmFrameRing ring = new HxmFrameRing(4, SLOT_SIZE, HxmFrameRing.OVERFLOW_DROP_NEWEST);
+
+		for (int i = 0; i < 10; i++)
+			assertEquals(i < 4, ring.offer(message(i), 0, SLOT_SIZE, i));
+		assertEquals(4, ring.size());
+		assertEquals(0, ring.getDroppedOldestCount());
+		assertEquals(6, ring.getDroppedNewestCount());
+
+		assertMessages(ring, 0, 4);
+	}
+
+	@Test
+	public void blockWaitsForTheConsumer() throws Exception {
+		final HxmFrameRing ring = new HxmFrameRing(2, SLOT_SIZE, HxmFrameRing.OVERFLOW_BLOCK);
+		final int count = 200;
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < count; i++)
+					ring.offer(message(i), 0, SLOT_SIZE, i);
+			}
+		};
+		producer.start();
+
+		for (int i = 0; i < count; i++) {
+			int offset;
+			while ((offset = ring.poll()) < 0)
+				Thread.yield();
+			assertMessage(i, ring, offset);
+			ring.release();
+		}
+		producer.join(10000);
+		assertFalse(producer.isAlive());
+		assertEquals(0, ring.getDroppedCount());
+	}
+
+	@Test
+	public void interruptedProducerGivesUp() throws Exception {
+		final HxmFrameRing ring = new HxmFrameRing(1, SLOT_SIZE, HxmFrameRing.OVERFLOW_BLOCK);
+		final boolean[] added = { true };
+		assertTrue(ring.offer(message(0), 0, SLOT_SIZE, 0));
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				added[0] = ring.offer(message(1), 0, SLOT_SIZE, 1);
+			}
+		};
+		producer.start();
+		producer.interrupt();
+		producer.join(10000);
+
+		assertFalse(producer.isAlive());
+		assertFalse(added[0]);
+		assertEquals(1, ring.getDroppedNewestCount());
+		assertMessages(ring, 0, 1);
+	}
+
+	@Test
+	public void heldSlotIsNeverWritten() {
+		HxmFrameRing ring = new HxmFrameRing(4, SLOT_SIZE, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		ring.offer(message(0), 0, SLOT_SIZE, 0);
+		int held = ring.poll();
+
+		// Lap the ring over and over while the first message is held
+		int added = 0;
+		for (int i = 1; i <= 20; i++) {
+			if (ring.offer(message(i), 0, SLOT_SIZE, i))
+				added++;
+			assertMessage(0, ring, held);
+		}
+		assertEquals(20, ring.getOfferedCount() - 1 + ring.getDroppedNewestCount());
+		assertEquals(added, ring.getOfferedCount() - 1);
+		assertTrue(ring.getDroppedNewestCount() > 0);
+		ring.release();
+
+		// What is left is whole, and in order
+		long last = 0;
+		int offset;
+		while ((offset = ring.poll()) >= 0) {
+			long sequence = ring.getTimestamp(offset);
+			assertTrue(sequence > last);
+			assertMessage((int) sequence, ring, offset);
+			last = sequence;
+			ring.release();
+		}
+	}
+
+	@Test
+	public void heldSlotUnderLoad() throws Exception {
+		final HxmFrameRing ring = new HxmFrameRing(8, SLOT_SIZE, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		final int count = 200000;
+		final AtomicLong done = new AtomicLong(-1);
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				byte[] message = new byte[SLOT_SIZE];
+				for (int i = 0; i < count; i++) {
+					fill(message, i);
+					ring.offer(message, 0, SLOT_SIZE, i);
+				}
+				done.set(count);
+			}
+		};
+		producer.start();
+
+		long last = -1;
+		long taken = 0;
+		while (true) {
+			boolean finished = done.get() >= 0;
+			int offset = ring.poll();
+			if (offset < 0) {
+				if (finished)
+					break;
+				Thread.yield();
+				continue;
+			}
+			long sequence = ring.getTimestamp(offset);
+			assertTrue(sequence > last);
+			assertMessage((int) sequence, ring, offset);
+			last = sequence;
+			taken++;
+			ring.release();
+		}
+		producer.join();
+
+		assertEquals(count - 1, last);
+		assertEquals(count, ring.getOfferedCount() + ring.getDroppedNewestCount());
+		assertEquals(ring.getOfferedCount(), taken + ring.getDroppedOldestCount());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void pollWithoutReleaseThrows() {
+		HxmFrameRing ring = new HxmFrameRing(4, SLOT_SIZE, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		ring.offer(message(0), 0, SLOT_SIZE, 0);
+		ring.offer(message(1), 0, SLOT_SIZE, 1);
+		ring.poll();
+		ring.poll();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void messageLargerThanASlot() {
+		new HxmFrameRing(4, SLOT_SIZE, HxmFrameRing.OVERFLOW_DROP_OLDEST).offer(new byte[SLOT_SIZE + 1], 0, SLOT_SIZE + 1, 0);
+	}
+
+	@Test
+	public void signalOncePerClear() {
+		HxmFrameRing ring = new HxmFrameRing(4, SLOT_SIZE, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		assertTrue(ring.needsSignal());
+		assertFalse(ring.needsSignal());
+		ring.clearSignal();
+		assertTrue(ring.needsSignal());
+		assertFalse(ring.needsSignal());
+	}
+
+	/*
+	 * A message whose every byte comes from its sequence number
+	 */
+	private static byte[] message(int sequence) {
+		byte[] message = new byte[SLOT_SIZE];
+		fill(message, sequence);
+		return message;
+	}
+
+	private static void fill(byte[] message, int sequence) {
+		for (int i = 0; i < message.length; i++)
+			message[i] = (byte) (sequence + i);
+	}
+
+	private static void assertMessage(int sequence, HxmFrameRing ring, int offset) {
+		byte[] buffer = ring.getBuffer();
+		for (int i = 0; i < ring.getLength(offset); i++)
+			assertEquals("message " + sequence + " byte " + i, (byte) (sequence + i), buffer[offset + i]);
+	}
+
+	/*
+	 * The ring holds exactly messages first to end, in order
+	 */
+	private static void assertMessages(HxmFrameRing ring, int first, int end) {
+		for (int i = first; i < end; i++) {
+			int offset = ring.poll();
+			assertTrue(offset >= 0);
+			assertMessage(i, ring, offset);
+			ring.release();
+		}
+		assertEquals(-1, ring.poll());
+	}
+}
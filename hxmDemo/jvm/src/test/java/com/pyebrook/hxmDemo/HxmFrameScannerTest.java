@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/*
+ * HxmFrameScannerTest
+ *
+ * The scanner finds the same messages, stops in the same places and counts the
+ * same things in a direct buffer as in one wrapped round an array, and never moves
+ * the buffer.  HxmFrameReaderTest and HxmGatewayTest cover it from their sides.
+ */
+public class HxmFrameScannerTest {
+
+	@Test
+	public void directAndArrayBuffersAgree() {
+		byte[][] frames = HxmFrameReaderTest.frames(1, 3);
+		byte[] bad = frames[1].clone();
+		bad[HrmReading.OFFSET_HEART_RATE] ^= 0x01;
+		byte[] stream = HxmFrameReaderTest.concat(new byte[][] {
+				{ 0x55, HxmFrameReader.STX }, frames[0], bad, frames[2],
+				{ HxmFrameReader.STX, HxmFrameReader.MSGID } });
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(stream.length + 4);
+		direct.position(4);
+		direct.put(stream);
+		ByteBuffer wrapped = ByteBuffer.wrap(stream);
+
+		assertScans(direct, 4);
+		assertScans(wrapped, 0);
+	}
+
+	@Test
+	public void nothingYet() {
+		HxmFrameScanner scanner = new HxmFrameScanner(new HxmMessageTypes());
+		byte[] frame = HxmFrameReaderTest.frames(2, 1)[0];
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+
+		// Every part of a message is kept, waiting for the rest of it
+		for (int limit = 0; limit < frame.length; limit++) {
+			assertFalse(scanner.scan(buffer, 0, limit));
+			assertEquals(0, scanner.getStop());
+		}
+		assertTrue(scanner.scan(buffer, 0, frame.length));
+		assertEquals(0, scanner.getSkippedByteCount());
+	}
+
+	/*
+	 * The stream from directAndArrayBuffersAgree(), starting at base
+	 */
+	private static void assertScans(ByteBuffer buffer, int base) {
+		HxmFrameScanner scanner = new HxmFrameScanner(new HxmMessageTypes());
+		final int position = buffer.position();
+		final int limit = buffer.limit();
+		final int length = HxmFrameReader.FRAME_LENGTH;
+		int i = base;
+
+		// A byte and a stray STX in front of the first message
+		assertTrue(scanner.scan(buffer, i, limit));
+		assertEquals(base + 2, scanner.getStop());
+		assertEquals(HxmMessageTypes.HEART_RATE, scanner.getFrameType());
+		assertEquals(length, scanner.getFrameLength());
+		assertEquals(2, scanner.getSkippedByteCount());
+		i = scanner.getStop() + length;
+
+		// The damaged message is thrown away a byte at a time
+		assertTrue(scanner.scan(buffer, i, limit));
+		assertEquals(base + 2 + 2 * length, scanner.getStop());
+		assertEquals(1, scanner.getCrcFailureCount());
+		assertEquals(2 + length, scanner.getSkippedByteCount());
+		i = scanner.getStop() + length;
+
+		// The start of a header at the end is kept for next time
+		assertFalse(scanner.scan(buffer, i, limit));
+		assertEquals(i, scanner.getStop());
+		assertEquals(2 + length, scanner.getSkippedByteCount());
+
+		assertEquals(position, buffer.position());
+		assertEquals(limit, buffer.limit());
+	}
+}
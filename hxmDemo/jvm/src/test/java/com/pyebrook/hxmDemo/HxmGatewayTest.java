@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * HxmGatewayTest
+ *
+ * Devices connect to a gateway on the loopback interface and send it messages,
+ * a few bytes at a time, and the Sink has to get every one of them under the
+ * right address.
+ */
+public class HxmGatewayTest {
+
+	private static final long TIMEOUT_MS = 10000;
+
+	private HxmGateway mGateway;
+	private HxmMetrics mMetrics;
+
+	/*
+	 * Everything the Sink was given, by address
+	 */
+	private final Map<String, ByteArrayOutputStream> mReceived = new HashMap<String, ByteArrayOutputStream>();
+
+	@Before
+	public void setUp() throws IOException {
+		mMetrics = new HxmMetrics();
+		mGateway = new HxmGateway(new InetSocketAddress("127.0.0.1", 0), 2);
+		mGateway.setMetrics(mMetrics);
+		mGateway.setLogger(new HxmGateway.Logger() {
+			public void info(String tag, String message) {
+			}
+
+			public void error(String tag, String message, Throwable e) {
+			}
+		});
+		mGateway.setSink(new HxmGateway.Sink() {
+			public void framesReady(HxmFrameRing ring) {
+				ring.clearSignal();
+				int offset;
+				while ((offset = ring.poll()) >= 0) {
+					String address = (String) ring.getTag(offset);
+					synchronized (mReceived) {
+						ByteArrayOutputStream received = mReceived.get(address);
+						if (received == null) {
+							received = new ByteArrayOutputStream();
+							mReceived.put(address, received);
+						}
+						received.write(ring.getBuffer(), offset, ring.getLength(offset));
+					}
+					ring.release();
+				}
+			}
+		});
+		mGateway.start();
+	}
+
+	@After
+	public void tearDown() {
+		mGateway.stop();
+	}
+
+	@Test
+	public void saysNothingUnlessGivenALogger() throws IOException {
+		PrintStream err = System.err;
+		ByteArrayOutputStream said = new ByteArrayOutputStream();
+		HxmGateway gateway = new HxmGateway(new InetSocketAddress("127.0.0.1", 0), 1);
+
+		System.setErr(new PrintStream(said));
+		try {
+			gateway.start();
+		} finally {
+			System.setErr(err);
+			gateway.stop();
+		}
+		assertEquals(0, said.size());
+	}
+
+	@Test
+	public void manyDevicesInPieces() throws Exception {
+		final int devices = 10;
+		final int count = 20;
+		Random random = new Random(5);
+
+		Socket[] sockets = new Socket[devices];
+		byte[][] sent = new byte[devices][];
+		for (int d = 0; d < devices; d++) {
+			sockets[d] = connect();
+			sent[d] = HxmFrameReaderTest.concat(HxmFrameReaderTest.frames(100 + d, count));
+		}
+
+		// Take turns, so the workers see every connection part way through a message
+		int[] positions = new int[devices];
+		for (boolean more = true; more;) {
+			more = false;
+			for (int d = 0; d < devices; d++) {
+				if (positions[d] == sent[d].length)
+					continue;
+				int length = Math.min(1 + random.nextInt(HxmFrameReader.FRAME_LENGTH + 1), sent[d].length - positions[d]);
+				if (positions[d] == 0)
+					write(sockets[d], hello(deviceId(d)));
+				write(sockets[d], sent[d], positions[d], length);
+				positions[d] += length;
+				more = true;
+			}
+			Thread.sleep(1);
+		}
+
+		waitForFrames(devices * count);
+		assertEquals(devices, mGateway.getAcceptedCount());
+		assertEquals(devices, mGateway.getConnectionCount());
+		assertEquals(0, mGateway.getCrcFailureCount());
+		assertEquals(0, mGateway.getSkippedByteCount());
+		assertEquals(0, mGateway.getDroppedCount());
+
+		for (int d = 0; d < devices; d++) {
+			String address = HxmRecorder.getAddress(deviceId(d));
+			assertArrayEquals(address, sent[d], received(address));
+			assertEquals(count, mMetrics.getDevice(address).get(HxmMetrics.FRAMES));
+			assertEquals(1, mMetrics.getDevice(address).get(HxmMetrics.CONNECTS));
+			sockets[d].close();
+		}
+	}
+
+	@Test
+	public void badHelloIsHungUpOn() throws Exception {
+		Socket socket = connect();
+		byte[] hello = hello(deviceId(0));
+		hello[4] = (byte) (HxmGateway.VERSION + 1);
+		write(socket, hello);
+
+		assertEquals(-1, socket.getInputStream().read());
+		assertEquals(1, mGateway.getBadHelloCount());
+		waitForConnections(0);
+		socket.close();
+	}
+
+	@Test
+	public void crcFailureIsSkipped() throws Exception {
+		byte[][] frames = HxmFrameReaderTest.frames(7, 3);
+		frames[1][HxmFrameReader.OFFSET_CRC] ^= 0x01;
+
+		Socket socket = connect();
+		write(socket, hello(deviceId(0)));
+		write(socket, HxmFrameReaderTest.concat(frames));
+
+		waitForFrames(2);
+		assertEquals(1, mGateway.getCrcFailureCount());
+		String address = HxmRecorder.getAddress(deviceId(0));
+		assertArrayEquals(HxmFrameReaderTest.concat(new byte[][] { frames[0], frames[2] }), received(address));
+		assertEquals(1, mMetrics.getDevice(address).get(HxmMetrics.CRC_FAILURES));
+		socket.close();
+	}
+
+	@Test
+	public void stopHangsUp() throws Exception {
+		Socket[] sockets = new Socket[3];
+		for (int d = 0; d < sockets.length; d++) {
+			sockets[d] = connect();
+			write(sockets[d], hello(deviceId(d)));
+			write(sockets[d], HxmFrameReaderTest.frames(d, 1)[0]);
+		}
+		waitForFrames(sockets.length);
+		assertEquals(sockets.length, mGateway.getConnectionCount());
+
+		mGateway.stop();
+		for (Socket socket : sockets) {
+			assertEquals(-1, socket.getInputStream().read());
+			socket.close();
+		}
+		waitForConnections(0);
+	}
+
+	private static long deviceId(int d) {
+		return 0x0007800000000000L + d;
+	}
+
+	private static byte[] hello(long deviceId) {
+		ByteBuffer hello = ByteBuffer.allocate(HxmGateway.HELLO_LENGTH);
+		hello.put(HxmGateway.MAGIC).put((byte) HxmGateway.VERSION).putLong(deviceId);
+		return hello.array();
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket("127.0.0.1", mGateway.getPort());
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout((int) TIMEOUT_MS);
+		return socket;
+	}
+
+	private static void write(Socket socket, byte[] bytes) throws IOException {
+		write(socket, bytes, 0, bytes.length);
+	}
+
+	private static void write(Socket socket, byte[] bytes, int offset, int length) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(bytes, offset, length);
+		out.flush();
+	}
+
+	private byte[] received(String address) {
+		synchronized (mReceived) {
+			ByteArrayOutputStream received = mReceived.get(address);
+			return (received != null) ? received.toByteArray() : new byte[0];
+		}
+	}
+
+	private void waitForFrames(long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (received() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(count, mGateway.getFrameCount());
+		assertEquals(count, received());
+	}
+
+	private void waitForConnections(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (mGateway.getConnectionCount() != count && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(count, mGateway.getConnectionCount());
+	}
+
+	/*
+	 * Messages the Sink has been given, across every device
+	 */
+	private long received() {
+		long count = 0;
+		synchronized (mReceived) {
+			for (ByteArrayOutputStream received : mReceived.values())
+				count += received.size() / HxmFrameReader.FRAME_LENGTH;
+		}
+		return count;
+	}
+}
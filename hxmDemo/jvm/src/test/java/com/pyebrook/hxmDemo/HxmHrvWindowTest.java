@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * HxmHrvWindowTest
+ *
+ * The running sums against the statistics worked out from scratch over the beats
+ * in the window, after every beat.
+ */
+public class HxmHrvWindowTest {
+
+	private static final double DELTA = 1e-6;
+
+	@Test
+	public void matchesBruteForce() {
+		long[] windows = { 5000, 30000, 300000 };
+		for (long windowMs : windows) {
+			for (long seed = 0; seed < 5; seed++)
+				check(windowMs, seed, 5000);
+		}
+	}
+
+	@Test
+	public void emptyAndSingleBeat() {
+		HxmHrvWindow window = new HxmHrvWindow(30000);
+		assertEquals(0, window.getCount());
+		assertEquals(0, window.getMeanRr(), DELTA);
+		assertEquals(0, window.getSdnn(), DELTA);
+		assertEquals(0, window.getRmssd(), DELTA);
+		assertEquals(0, window.getPnn50(), DELTA);
+
+		window.add(1000, 800);
+		assertEquals(1, window.getCount());
+		assertEquals(800, window.getMeanRr(), DELTA);
+		assertEquals(0, window.getSdnn(), DELTA);
+		assertEquals(0, window.getRmssd(), DELTA);
+	}
+
+	@Test
+	public void knownValues() {
+		HxmHrvWindow window = new HxmHrvWindow(30000);
+		int[] intervals = { 800, 860, 790, 800 };
+		long time = 0;
+		for (int rr : intervals) {
+			time += rr;
+			window.add(time, rr);
+		}
+
+		// Differences 60, -70, 10
+		assertEquals(812.5, window.getMeanRr(), DELTA);
+		assertEquals(Math.sqrt((12.5 * 12.5 + 47.5 * 47.5 + 22.5 * 22.5 + 12.5 * 12.5) / 3), window.getSdnn(), DELTA);
+		assertEquals(Math.sqrt((3600 + 4900 + 100) / 3.0), window.getRmssd(), DELTA);
+		assertEquals(200.0 / 3, window.getPnn50(), DELTA);
+
+		// A gap, so the next difference isn't one
+		window.gap();
+		window.add(time + 2000, 1000);
+		assertEquals(200.0 / 3, window.getPnn50(), DELTA);
+		assertEquals(Math.sqrt((3600 + 4900 + 100) / 3.0), window.getRmssd(), DELTA);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void windowTooShort() {
+		new HxmHrvWindow(HxmHrvWindow.MIN_RR_MS - 1);
+	}
+
+	/*
+	 * Feed a window random intervals, with the odd gap, and compare it with the
+	 * reference after every one
+	 */
+	private static void check(long windowMs, long seed, int beats) {
+		Random random = new Random(seed);
+		HxmHrvWindow window = new HxmHrvWindow(windowMs);
+		List<long[]> all = new ArrayList<long[]>();
+		long time = 0;
+		int rr = 800;
+		boolean gap = false;
+
+		for (int i = 0; i < beats; i++) {
+			if (random.nextInt(50) == 0) {
+				window.gap();
+				gap = true;
+				time += random.nextInt(10000);
+			}
+
+			// Mostly small changes, now and then a big one
+			rr += (random.nextInt(10) == 0) ? random.nextInt(601) - 300 : random.nextInt(81) - 40;
+			rr = Math.max(HxmHrvWindow.MIN_RR_MS, Math.min(2000, rr));
+			time += rr;
+
+			window.add(time, rr);
+			all.add(new long[] { time, rr, gap ? 1 : 0 });
+			gap = false;
+
+			String where = "window " + windowMs + " seed " + seed + " beat " + i;
+			Reference reference = new Reference(all, windowMs);
+			assertEquals(where, reference.mCount, window.getCount());
+			assertEquals(where, reference.mMean, window.getMeanRr(), DELTA);
+			assertEquals(where, reference.mSdnn, window.getSdnn(), DELTA);
+			assertEquals(where, reference.mRmssd, window.getRmssd(), DELTA);
+			assertEquals(where, reference.mPnn50, window.getPnn50(), DELTA);
+		}
+	}
+
+	/*
+	 * The statistics straight from the definitions, over the beats no older than the
+	 * window counted back from the newest beat
+	 */
+	private static class Reference {
+		int mCount;
+		double mMean;
+		double mSdnn;
+		double mRmssd;
+		double mPnn50;
+
+		Reference(List<long[]> all, long windowMs) {
+			long now = all.get(all.size() - 1)[0];
+			int first = all.size() - 1;
+			while (first > 0 && now - all.get(first - 1)[0] <= windowMs)
+				first--;
+
+			mCount = all.size() - first;
+			double sum = 0;
+			for (int i = first; i < all.size(); i++)
+				sum += all.get(i)[1];
+			mMean = sum / mCount;
+
+			if (mCount > 1) {
+				double squares = 0;
+				for (int i = first; i < all.size(); i++)
+					squares += (all.get(i)[1] - mMean) * (all.get(i)[1] - mMean);
+				mSdnn = Math.sqrt(squares / (mCount - 1));
+			}
+
+			// A difference needs both intervals in the window and no gap between them
+			int diffs = 0;
+			int nn50 = 0;
+			double diffSquares = 0;
+			for (int i = first + 1; i < all.size(); i++) {
+				if (all.get(i)[2] != 0)
+					continue;
+				long diff = all.get(i)[1] - all.get(i - 1)[1];
+				diffs++;
+				diffSquares += diff * diff;
+				if (Math.abs(diff) > HxmHrvWindow.NN50_MS)
+					nn50++;
+			}
+			if (diffs > 0) {
+				mRmssd = Math.sqrt(diffSquares / diffs);
+				mPnn50 = 100.0 * nn50 / diffs;
+			}
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/*
+ * HxmLatestTest
+ *
+ * The registry gives back the newest message from each device, decoded the same
+ * way HrmReading does it, into snapshots the readers keep, and a reader looking
+ * while a session publishes never sees half of one message and half of another.
+ */
+public class HxmLatestTest {
+
+	@Test
+	public void latestMessage() {
+		HxmLatest latest = new HxmLatest();
+		HxmLatest.Slot slot = latest.getSlot(HxmServiceTest.address(1));
+		assertSame(slot, latest.getSlot(HxmServiceTest.address(1)));
+		HxmLatest.Snapshot snapshot = new HxmLatest.Snapshot();
+		assertFalse(latest.get(HxmServiceTest.address(1), snapshot));
+		assertFalse(slot.getLatest(snapshot));
+
+		byte[][] frames = HxmFrameReaderTest.frames(1, 5);
+		for (int i = 0; i < frames.length; i++) {
+			slot.publish(frames[i], 0, 1000L * i);
+
+			assertTrue(latest.get(HxmServiceTest.address(1), snapshot));
+			HrmReading reading = new HrmReading(frames[i], 0);
+			assertEquals(HxmServiceTest.address(1), snapshot.getAddress());
+			assertEquals(HxmRecorder.getDeviceId(HxmServiceTest.address(1)), snapshot.getDeviceId());
+			assertEquals(i, snapshot.getSequence());
+			assertEquals(1000L * i, snapshot.getReceivedNanos());
+			assertEquals(reading.batteryIndicator(), snapshot.batteryIndicator());
+			assertEquals(reading.heartRate(), snapshot.heartRate());
+			assertEquals(reading.heartBeatNumber(), snapshot.heartBeatNumber());
+			assertEquals(reading.distance(), snapshot.distance());
+			assertEquals(reading.speed(), snapshot.speed());
+			assertEquals(reading.strides(), snapshot.strides());
+
+			byte[] copy = new byte[HxmFrameReader.FRAME_LENGTH + 3];
+			snapshot.copyFrame(copy, 3);
+			for (int b = 0; b < HxmFrameReader.FRAME_LENGTH; b++)
+				assertEquals(frames[i][b], copy[3 + b]);
+		}
+	}
+
+	@Test
+	public void publishingCopiesTheMessage() {
+		HxmLatest latest = new HxmLatest();
+		byte[] frame = HxmFrameReaderTest.frames(2, 1)[0];
+		byte[] original = frame.clone();
+		latest.getSlot(HxmServiceTest.address(0)).publish(frame, 0, 0);
+		frame[HrmReading.OFFSET_HEART_RATE]++;
+
+		HxmLatest.Snapshot snapshot = new HxmLatest.Snapshot();
+		assertTrue(latest.get(HxmServiceTest.address(0), snapshot));
+		byte[] copy = new byte[HxmFrameReader.FRAME_LENGTH];
+		snapshot.copyFrame(copy, 0);
+		assertArrayEquals(original, copy);
+	}
+
+	@Test
+	public void readersKeepTheirSnapshots() {
+		HxmLatest latest = new HxmLatest();
+		HxmLatest.Slot slot = latest.getSlot(HxmServiceTest.address(0));
+		byte[][] frames = HxmFrameReaderTest.frames(4, 2);
+		HxmLatest.Snapshot first = new HxmLatest.Snapshot();
+		HxmLatest.Snapshot second = new HxmLatest.Snapshot();
+
+		slot.publish(frames[0], 0, 0);
+		assertTrue(slot.getLatest(first));
+		slot.publish(frames[1], 0, 1);
+		assertTrue(slot.getLatest(second));
+
+		// Publishing again doesn't change a snapshot already taken
+		byte[] copy = new byte[HxmFrameReader.FRAME_LENGTH];
+		first.copyFrame(copy, 0);
+		assertArrayEquals(frames[0], copy);
+		assertEquals(0, first.getSequence());
+		second.copyFrame(copy, 0);
+		assertArrayEquals(frames[1], copy);
+		assertEquals(1, second.getSequence());
+
+		// getAll() fills in the snapshots it is given, rather than making new ones
+		HxmLatest.Snapshot[] all = { first };
+		assertEquals(1, latest.getAll(all));
+		assertSame(first, all[0]);
+		assertEquals(1, first.getSequence());
+	}
+
+	@Test
+	public void publishingMakesNothing() {
+		HxmLatest latest = new HxmLatest();
+		HxmLatest.Slot slot = latest.getSlot(HxmServiceTest.address(0));
+		HxmLatest.Snapshot snapshot = new HxmLatest.Snapshot();
+		byte[] frame = HxmFrameReaderTest.frames(5, 1)[0];
+
+		// Warm up first, so the JIT's own allocations don't count
+		for (int i = 0; i < 20000; i++) {
+			slot.publish(frame, 0, i);
+			slot.getLatest(snapshot);
+		}
+
+		long before = HxmBench.allocatedBytes();
+		if (before < 0)
+			return;
+		for (int i = 0; i < 20000; i++) {
+			slot.publish(frame, 0, i);
+			slot.getLatest(snapshot);
+		}
+		assertTrue(HxmBench.allocatedBytes() - before < 20000);
+	}
+
+	@Test
+	public void allDevices() {
+		HxmLatest latest = new HxmLatest();
+		byte[] frame = HxmFrameReaderTest.frames(3, 1)[0];
+		for (int d = 0; d < 5; d++)
+			latest.getSlot(HxmServiceTest.address(d));
+		for (int d = 0; d < 5; d += 2)
+			latest.getSlot(HxmServiceTest.address(d)).publish(frame, 0, d);
+		assertEquals(5, latest.size());
+
+		// Only devices that have sent something
+		HxmLatest.Snapshot[] all = new HxmLatest.Snapshot[10];
+		assertEquals(3, latest.getAll(all));
+		long seen = 0;
+		for (int i = 0; i < 3; i++)
+			seen |= 1L << all[i].getReceivedNanos();
+		assertEquals(0x15, seen);
+
+		// The count is of all of them even if they don't fit
+		HxmLatest.Snapshot[] two = new HxmLatest.Snapshot[2];
+		assertEquals(3, latest.getAll(two));
+
+		latest.remove(HxmServiceTest.address(2));
+		assertEquals(4, latest.size());
+		assertEquals(2, latest.getAll(all));
+		assertFalse(latest.get(HxmServiceTest.address(2), new HxmLatest.Snapshot()));
+	}
+
+	/*
+	 * Every byte of each message published is its sequence number, so a message that
+	 * is part one and part another shows up as bytes that differ
+	 */
+	@Test
+	public void readersNeverSeeAHalfWrittenMessage() throws InterruptedException {
+		final HxmLatest latest = new HxmLatest();
+		final HxmLatest.Slot slot = latest.getSlot(HxmServiceTest.address(0));
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+
+		Thread[] readers = new Thread[3];
+		for (int r = 0; r < readers.length; r++) {
+			readers[r] = new Thread() {
+				public void run() {
+					byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+					HxmLatest.Snapshot snapshot = new HxmLatest.Snapshot();
+					long last = -1;
+					while (!done.get() && failure.get() == null) {
+						if (!latest.get(HxmServiceTest.address(0), snapshot))
+							continue;
+
+						snapshot.copyFrame(frame, 0);
+						long sequence = snapshot.getSequence();
+						byte expected = (byte) sequence;
+						for (int b = HxmFrameReader.OFFSET_PAYLOAD; b < HxmFrameReader.OFFSET_CRC; b++) {
+							if (frame[b] != expected)
+								failure.set("message " + sequence + " has byte " + b + " of " + frame[b]);
+						}
+						if (snapshot.heartRate() != (expected & 0xFF) || snapshot.getReceivedNanos() != sequence)
+							failure.set("message " + sequence + " has the fields of another");
+						if (sequence < last)
+							failure.set("message " + sequence + " after " + last);
+						last = sequence;
+					}
+				}
+			};
+			readers[r].start();
+		}
+
+		byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+		for (int i = 0; i < 200000 && failure.get() == null; i++) {
+			for (int b = HxmFrameReader.OFFSET_PAYLOAD; b < HxmFrameReader.OFFSET_CRC; b++)
+				frame[b] = (byte) i;
+			slot.publish(frame, 0, i);
+		}
+		done.set(true);
+		for (Thread reader : readers)
+			reader.join();
+
+		assertNull(failure.get());
+		HxmLatest.Snapshot snapshot = new HxmLatest.Snapshot();
+		assertTrue(latest.get(HxmServiceTest.address(0), snapshot));
+		assertEquals(199999, snapshot.getSequence());
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * HxmMessageTypesTest
+ *
+ * Messages of other kinds, with payloads of any length their type allows, come out
+ * of a stream alongside the HxM's own, and go to their decoders.
+ */
+public class HxmMessageTypesTest {
+
+	private static final int LIFESIGN = 0x23;
+	private static final int SUMMARY = 0x2B;
+
+	@Test
+	public void heartRateIsAlwaysThere() {
+		HxmMessageTypes types = new HxmMessageTypes();
+		assertEquals(1, types.getTypeCount());
+		assertEquals(HxmMessageTypes.HEART_RATE, types.lookup(HxmFrameReader.MSGID, HxmFrameReader.DLC));
+		assertEquals(HxmMessageTypes.UNKNOWN, types.lookup(HxmFrameReader.MSGID, HxmFrameReader.DLC - 1));
+		assertEquals(HxmMessageTypes.UNKNOWN, types.lookup(SUMMARY, HxmFrameReader.DLC));
+	}
+
+	@Test
+	public void everyLengthInTheRange() {
+		HxmMessageTypes types = new HxmMessageTypes();
+		int type = types.register(SUMMARY, 4, 40, "summary", null);
+
+		assertEquals(HxmMessageTypes.UNKNOWN, types.lookup(SUMMARY, 3));
+		for (int dlc = 4; dlc <= 40; dlc++)
+			assertEquals(type, types.lookup(SUMMARY, dlc));
+		assertEquals(HxmMessageTypes.UNKNOWN, types.lookup(SUMMARY, 41));
+
+		assertEquals("summary", types.getType(type).getName());
+		assertEquals(4, types.getType(type).getMinDlc());
+		assertEquals(40, types.getType(type).getMaxDlc());
+	}
+
+	@Test
+	public void lengthsCantOverlap() {
+		HxmMessageTypes types = new HxmMessageTypes();
+		types.register(SUMMARY, 4, 40, "summary", null);
+		types.register(SUMMARY, 41, 50, "long summary", null);
+
+		try {
+			types.register(SUMMARY, 50, 60, "longer summary", null);
+			fail("MSGID " + SUMMARY + " with DLC 50 was taken");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+		// Nothing of the failed type is left behind
+		assertEquals(3, types.getTypeCount());
+		assertEquals(HxmMessageTypes.UNKNOWN, types.lookup(SUMMARY, 51));
+	}
+
+	@Test
+	public void badTypes() {
+		HxmMessageTypes types = new HxmMessageTypes();
+		int[][] bad = { { 256, 0, 0 }, { -1, 0, 0 }, { SUMMARY, -1, 4 }, { SUMMARY, 5, 4 }, { SUMMARY, 0, HxmMessageTypes.MAX_DLC + 1 } };
+		for (int[] args : bad) {
+			try {
+				types.register(args[0], args[1], args[2], "bad", null);
+				fail("MSGID " + args[0] + " DLC " + args[1] + " to " + args[2]);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+		assertEquals(1, types.getTypeCount());
+	}
+
+	@Test
+	public void noRoomForMore() {
+		HxmMessageTypes types = new HxmMessageTypes();
+		for (int i = 1; i < HxmMessageTypes.MAX_TYPES; i++)
+			types.register(i, 0, 0, "type " + i, null);
+
+		try {
+			types.register(0, 0, 0, "one too many", null);
+			fail("more than " + HxmMessageTypes.MAX_TYPES + " types");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(HxmMessageTypes.MAX_TYPES - 1, types.lookup(HxmMessageTypes.MAX_TYPES - 1, 0));
+	}
+
+	@Test
+	public void fixedLengthMessage() throws IOException {
+		HxmMessageTypes types = new HxmMessageTypes();
+		int type = types.register(LIFESIGN, 0, 0, "lifesign", null);
+
+		byte[] lifesign = message(LIFESIGN, new byte[0]);
+		byte[][] frames = HxmFrameReaderTest.frames(9, 2);
+
+		HxmFrameReader reader = new HxmFrameReader(new ByteArrayInputStream(HxmFrameReaderTest.concat(new byte[][] { frames[0], lifesign, frames[1] })), types);
+		assertMessage(frames[0], reader, reader.nextFrame());
+		assertEquals(HxmMessageTypes.HEART_RATE, reader.getFrameType());
+		assertMessage(lifesign, reader, reader.nextFrame());
+		assertEquals(type, reader.getFrameType());
+		assertMessage(frames[1], reader, reader.nextFrame());
+		assertEquals(-1, reader.nextFrame());
+	}
+
+	/*
+	 * HxM messages, summaries of every length the type allows, a few summaries that
+	 * are too long or have a bad CRC, and some noise, all mixed up and read in
+	 * pieces.  Exactly the good messages come out, in order.
+	 */
+	@Test
+	public void variableLengthMessagesInAStream() throws IOException {
+		HxmMessageTypes types = new HxmMessageTypes();
+		final List<byte[]> decoded = new ArrayList<byte[]>();
+		final int summary = types.register(SUMMARY, 0, HxmMessageTypes.MAX_DLC - 1, "summary", new HxmMessageTypes.Decoder() {
+			public void decode(String address, int type, byte[] buffer, int offset, int length, long receivedNanos) {
+				assertEquals(HxmServiceTest.address(0), address);
+				assertEquals(length, (buffer[offset + HxmFrameReader.OFFSET_DLC] & 0xFF) + 5);
+				byte[] message = new byte[length];
+				System.arraycopy(buffer, offset, message, 0, length);
+				decoded.add(message);
+			}
+		});
+
+		Random random = new Random(1);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		List<byte[]> expected = new ArrayList<byte[]>();
+		byte[][] frames = HxmFrameReaderTest.frames(2, 300);
+
+		for (int i = 0; i < frames.length; i++) {
+			byte[] payload = new byte[random.nextInt(HxmMessageTypes.MAX_DLC)];
+			random.nextBytes(payload);
+			byte[] message = message(SUMMARY, payload);
+
+			switch (random.nextInt(6)) {
+			case 0:
+				// Too long for the type
+				stream.write(message(SUMMARY, new byte[HxmMessageTypes.MAX_DLC]), 0, HxmMessageTypes.MAX_FRAME_LENGTH);
+				break;
+			case 1:
+				message[message.length - 2] ^= 0x40;
+				stream.write(message, 0, message.length);
+				break;
+			case 2:
+				stream.write(HxmFrameReader.STX);
+				stream.write(random.nextInt(256));
+				break;
+			default:
+				stream.write(message, 0, message.length);
+				expected.add(message);
+				break;
+			}
+
+			stream.write(frames[i], 0, frames[i].length);
+			expected.add(frames[i]);
+		}
+
+		HxmFrameReader reader = new HxmFrameReader(new HxmFrameReaderTest.ChunkedStream(stream.toByteArray(), 200, new Random(3)), types);
+		List<byte[]> summaries = new ArrayList<byte[]>();
+		for (byte[] message : expected) {
+			int offset = reader.nextFrame();
+			assertMessage(message, reader, offset);
+
+			if (message[HxmFrameReader.OFFSET_MSGID] == SUMMARY) {
+				assertEquals(summary, reader.getFrameType());
+				types.dispatch(HxmServiceTest.address(0), reader.getFrameType(), reader.getBuffer(), offset, reader.getFrameLength(), 0);
+				summaries.add(message);
+			} else {
+				assertEquals(HxmMessageTypes.HEART_RATE, reader.getFrameType());
+			}
+		}
+		assertEquals(-1, reader.nextFrame());
+		assertEquals(expected.size(), reader.getFrameCount());
+
+		assertEquals(summaries.size(), decoded.size());
+		for (int i = 0; i < summaries.size(); i++)
+			assertArrayEquals(summaries.get(i), decoded.get(i));
+	}
+
+	/*
+	 * A message with a good CRC
+	 */
+	static byte[] message(int msgId, byte[] payload) {
+		byte[] message = new byte[payload.length + 5];
+		message[HxmFrameReader.OFFSET_STX] = HxmFrameReader.STX;
+		message[HxmFrameReader.OFFSET_MSGID] = (byte) msgId;
+		message[HxmFrameReader.OFFSET_DLC] = (byte) payload.length;
+		System.arraycopy(payload, 0, message, HxmFrameReader.OFFSET_PAYLOAD, payload.length);
+		message[HxmFrameReader.OFFSET_PAYLOAD + payload.length] = (byte) HxmCrc8.compute(payload, 0, payload.length);
+		message[HxmFrameReader.OFFSET_PAYLOAD + payload.length + 1] = HxmFrameReader.ETX;
+		return message;
+	}
+
+	private static void assertMessage(byte[] expected, HxmFrameReader reader, int offset) {
+		assertEquals(expected.length, reader.getFrameLength());
+		byte[] actual = new byte[reader.getFrameLength()];
+		System.arraycopy(reader.getBuffer(), offset, actual, 0, actual.length);
+		assertArrayEquals(expected, actual);
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/*
+ * HxmMetricsTest
+ *
+ * The counts add up across devices, the histograms put each latency in the right
+ * bucket, and the text export is what Prometheus expects.
+ */
+public class HxmMetricsTest {
+
+	@Test
+	public void countersAddUp() {
+		HxmMetrics metrics = new HxmMetrics();
+		metrics.getDevice(HxmServiceTest.address(0)).add(HxmMetrics.FRAMES, 10);
+		metrics.getDevice(HxmServiceTest.address(1)).add(HxmMetrics.FRAMES, 5);
+		metrics.getDevice(HxmServiceTest.address(1)).increment(HxmMetrics.CRC_FAILURES);
+		assertSame(metrics.getDevice(HxmServiceTest.address(0)), metrics.getDevice(HxmServiceTest.address(0)));
+
+		assertEquals(15, metrics.getTotal(HxmMetrics.FRAMES));
+		HxmMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(2, snapshot.getDevices().length);
+		assertEquals(15, snapshot.getTotal().get(HxmMetrics.FRAMES));
+		assertEquals(1, snapshot.getTotal().get(HxmMetrics.CRC_FAILURES));
+
+		// A snapshot doesn't change afterwards
+		metrics.getDevice(HxmServiceTest.address(0)).add(HxmMetrics.FRAMES, 10);
+		assertEquals(15, snapshot.getTotal().get(HxmMetrics.FRAMES));
+	}
+
+	@Test
+	public void buckets() {
+		assertEquals(0, HxmMetrics.Histogram.getBucket(0));
+		assertEquals(0, HxmMetrics.Histogram.getBucket(1024));
+		assertEquals(1, HxmMetrics.Histogram.getBucket(1025));
+		assertEquals(1, HxmMetrics.Histogram.getBucket(2048));
+		assertEquals(2, HxmMetrics.Histogram.getBucket(2049));
+		assertEquals(HxmMetrics.Histogram.BUCKET_COUNT - 1, HxmMetrics.Histogram.getBucket(Long.MAX_VALUE));
+
+		// Every value goes in the first bucket whose upper bound it doesn't pass
+		for (long nanos = 1; nanos > 0 && nanos < Long.MAX_VALUE / 3; nanos = nanos * 3 + 1) {
+			int bucket = HxmMetrics.Histogram.getBucket(nanos);
+			assertTrue(nanos <= HxmMetrics.Histogram.getUpperBound(bucket));
+			assertTrue(bucket == 0 || nanos > HxmMetrics.Histogram.getUpperBound(bucket - 1));
+		}
+	}
+
+	@Test
+	public void histogram() {
+		HxmMetrics.Device device = new HxmMetrics().getDevice(HxmServiceTest.address(0));
+		for (int i = 1; i <= 100; i++)
+			device.record(HxmMetrics.RENDER, i * 1000000L);
+		device.record(HxmMetrics.RENDER, -5);
+
+		HxmMetrics.HistogramSnapshot histogram = device.snapshot().getHistogram(HxmMetrics.RENDER);
+		assertEquals(101, histogram.getCount());
+		assertEquals(5050 * 1000000L, histogram.getSumNanos());
+		assertEquals(100000000L, histogram.getMaxNanos());
+		assertEquals(1, histogram.getBucket(0));
+
+		// The percentiles are bucket bounds, at least the value and less than twice it
+		long p50 = histogram.getPercentileNanos(50);
+		assertTrue(p50 >= 50000000L && p50 < 100000000L);
+		assertEquals(100000000L, histogram.getPercentileNanos(100));
+	}
+
+	@Test
+	public void prometheusText() {
+		HxmMetrics metrics = new HxmMetrics();
+		HxmMetrics.Device one = metrics.getDevice(HxmServiceTest.address(1));
+		HxmMetrics.Device two = metrics.getDevice(HxmServiceTest.address(2));
+		one.add(HxmMetrics.FRAMES, 7);
+		two.add(HxmMetrics.FRAMES, 3);
+		one.record(HxmMetrics.READ_TO_DISPLAY, 500);
+		one.record(HxmMetrics.READ_TO_DISPLAY, 1500000);
+		metrics.register("sessions", new HxmMetrics.Gauge() {
+			public long get() {
+				return 2;
+			}
+		});
+
+		Map<String, String> values = parse(metrics.snapshot().toString());
+		String device1 = "{device=\"" + HxmServiceTest.address(1) + "\"";
+		String device2 = "{device=\"" + HxmServiceTest.address(2) + "\"";
+
+		assertEquals("7", values.get("hxm_frames_total" + device1 + "}"));
+		assertEquals("3", values.get("hxm_frames_total" + device2 + "}"));
+		assertEquals("0", values.get("hxm_crc_failures_total" + device1 + "}"));
+		assertEquals("0", values.get("hxm_queue_depth" + device1 + "}"));
+		assertEquals("2", values.get("hxm_sessions"));
+
+		// Every line is for a device, summing over the label counts nothing twice
+		for (String name : values.keySet())
+			assertTrue(name, name.startsWith("hxm_sessions") || name.contains("device=\""));
+
+		// Cumulative buckets with bounds in seconds, then +Inf, sum and count
+		String histogram = "hxm_read_to_display_seconds";
+		assertEquals("1", values.get(histogram + "_bucket" + device1 + ",le=\"0.000001024\"}"));
+		assertEquals("1", values.get(histogram + "_bucket" + device1 + ",le=\"0.001048576\"}"));
+		assertEquals("2", values.get(histogram + "_bucket" + device1 + ",le=\"0.002097152\"}"));
+		assertEquals("2", values.get(histogram + "_bucket" + device1 + ",le=\"+Inf\"}"));
+		assertEquals("0.001500500", values.get(histogram + "_sum" + device1 + "}"));
+		assertEquals("2", values.get(histogram + "_count" + device1 + "}"));
+		assertEquals("0", values.get(histogram + "_count" + device2 + "}"));
+
+		metrics.unregister("sessions");
+		assertFalse(parse(metrics.snapshot().toString()).containsKey("hxm_sessions"));
+	}
+
+	@Test
+	public void typeLinesComeFirst() {
+		HxmMetrics metrics = new HxmMetrics();
+		metrics.getDevice(HxmServiceTest.address(1)).add(HxmMetrics.FRAMES, 1);
+
+		// Each family is declared once, before any of its samples
+		List<String> declared = new ArrayList<String>();
+		for (String line : metrics.snapshot().toString().split("\n")) {
+			if (line.startsWith("# TYPE ")) {
+				String name = line.split(" ")[2];
+				assertFalse(name, declared.contains(name));
+				declared.add(name);
+				String type = line.split(" ")[3];
+				assertTrue(type, type.equals("counter") || type.equals("gauge") || type.equals("histogram"));
+			} else {
+				String name = line.split("[{ ]")[0];
+				String family = name.replaceAll("_(bucket|sum|count)$", "");
+				assertTrue(line, declared.get(declared.size() - 1).equals(name)
+						|| declared.get(declared.size() - 1).equals(family));
+			}
+		}
+		assertEquals(HxmMetrics.COUNTER_COUNT + 1 + HxmMetrics.HISTOGRAM_COUNT, declared.size());
+	}
+
+	/*
+	 * The samples in the text format, by name and labels
+	 */
+	private static Map<String, String> parse(String text) {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String line : text.split("\n")) {
+			if (line.startsWith("#"))
+				continue;
+			int space = line.lastIndexOf(' ');
+			assertFalse(line, values.containsKey(line.substring(0, space)));
+			values.put(line.substring(0, space), line.substring(space + 1));
+		}
+		return values;
+	}
+}
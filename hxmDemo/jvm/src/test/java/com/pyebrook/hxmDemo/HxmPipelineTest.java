@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/*
+ * HxmPipelineTest
+ *
+ * The screen gets each device's latest message once a display frame, however
+ * many messages the devices sent in between and in whatever order.
+ */
+public class HxmPipelineTest {
+
+	private HandlerThread mUiThread;
+	private Handler mUi;
+	private HxmPipeline mPipeline;
+
+	/*
+	 * What the display was asked to show, address and message
+	 */
+	private final List<String> mShownAddresses = new ArrayList<String>();
+	private final List<byte[]> mShownFrames = new ArrayList<byte[]>();
+
+	@Before
+	public void setUp() {
+		mUiThread = new HandlerThread("UI");
+		mUiThread.start();
+		mUi = new Handler(mUiThread.getLooper());
+		mPipeline = new HxmPipeline(mUi, new HxmPipeline.Display() {
+			public void show(String address, HrmReading reading) {
+				byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+				System.arraycopy(reading.getBuffer(), reading.getOffset(), frame, 0, frame.length);
+				synchronized (mShownAddresses) {
+					mShownAddresses.add(address);
+					mShownFrames.add(frame);
+				}
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		mPipeline.quit();
+		mUiThread.quit();
+	}
+
+	@Test
+	public void eachDevicesLatestIsShown() throws Exception {
+		final int devices = 3;
+		byte[][] frames = HxmFrameReaderTest.frames(1, devices * 10);
+		HxmFrameRing ring = ring();
+		for (int i = 0; i < frames.length; i++)
+			ring.offer(frames[i], 0, frames[i].length, System.nanoTime(), HxmServiceTest.address(i % devices));
+
+		deliverWhileTheUiIsBusy(ring);
+
+		waitForShown(devices);
+		for (int d = 0; d < devices; d++)
+			assertShown(HxmServiceTest.address(d), frames[frames.length - devices + d]);
+	}
+
+	@Test
+	public void oneDeviceCantCrowdOutAnother() throws Exception {
+		byte[][] frames = HxmFrameReaderTest.frames(2, 21);
+		HxmFrameRing ring = ring();
+		ring.offer(frames[0], 0, frames[0].length, System.nanoTime(), HxmServiceTest.address(0));
+		for (int i = 1; i < frames.length; i++)
+			ring.offer(frames[i], 0, frames[i].length, System.nanoTime(), HxmServiceTest.address(1));
+
+		deliverWhileTheUiIsBusy(ring);
+
+		waitForShown(2);
+		assertShown(HxmServiceTest.address(0), frames[0]);
+		assertShown(HxmServiceTest.address(1), frames[frames.length - 1]);
+	}
+
+	private static HxmFrameRing ring() {
+		return new HxmFrameRing(64, HxmFrameReader.FRAME_LENGTH, HxmFrameRing.OVERFLOW_DROP_NEWEST);
+	}
+
+	/*
+	 * Have the worker take everything in the ring while the UI thread is held up,
+	 * so all of it is waiting by the time the UI thread comes for it
+	 */
+	private void deliverWhileTheUiIsBusy(HxmFrameRing ring) throws InterruptedException {
+		final CountDownLatch hold = new CountDownLatch(1);
+		final CountDownLatch drained = new CountDownLatch(1);
+		mUi.post(new Runnable() {
+			public void run() {
+				try {
+					hold.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		mPipeline.getGatewaySink().framesReady(ring);
+		mPipeline.getHandler().post(new Runnable() {
+			public void run() {
+				drained.countDown();
+			}
+		});
+		assertTrue(drained.await(HxmServiceTest.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		assertEquals(0, ring.size());
+		hold.countDown();
+	}
+
+	/*
+	 * Wait for count messages to be shown, then a few display frames more to be
+	 * sure no more are coming
+	 */
+	private void waitForShown(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + HxmServiceTest.TIMEOUT_MS;
+		while (shownCount() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		Thread.sleep(5 * HxmPipeline.FRAME_INTERVAL_MS);
+		assertEquals(count, shownCount());
+	}
+
+	private int shownCount() {
+		synchronized (mShownAddresses) {
+			return mShownAddresses.size();
+		}
+	}
+
+	/*
+	 * The device was shown once, and it was this message
+	 */
+	private void assertShown(String address, byte[] frame) {
+		synchronized (mShownAddresses) {
+			int index = mShownAddresses.indexOf(address);
+			assertTrue(address, index >= 0);
+			assertEquals(address, index, mShownAddresses.lastIndexOf(address));
+			assertArrayEquals(address, frame, mShownFrames.get(index));
+		}
+	}
+}
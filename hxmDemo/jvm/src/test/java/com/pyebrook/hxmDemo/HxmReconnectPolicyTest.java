@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * HxmReconnectPolicyTest
+ *
+ * The waits back off the way the policy says, and the service keeps trying a
+ * device for as long as the budget lasts and not a moment longer.
+ */
+public class HxmReconnectPolicyTest {
+
+	private HxmServiceTest.ServiceHandler mHandler;
+	private HxmService mService;
+
+	@Before
+	public void setUp() {
+		mHandler = HxmServiceTest.ServiceHandler.start();
+		mService = new HxmService(null, mHandler);
+	}
+
+	@After
+	public void tearDown() {
+		mService.close();
+		mHandler.quit();
+	}
+
+	@Test
+	public void delaysDoubleUpToTheMaximum() {
+		HxmReconnectPolicy policy = new HxmReconnectPolicy(100, 1000, 5);
+
+		for (int failures = 0; failures < 10; failures++) {
+			long delay = Math.min(100L << failures, 1000);
+			long least = Long.MAX_VALUE;
+			long most = 0;
+			for (int i = 0; i < 1000; i++) {
+				long wait = policy.getDelayMs(failures);
+				assertTrue(failures + " failures waited " + wait, wait >= delay / 2 && wait <= delay);
+				least = Math.min(least, wait);
+				most = Math.max(most, wait);
+			}
+
+			// Half of it is random, so straps that dropped out together come back apart
+			assertTrue(failures + " failures waited " + least + " to " + most, most - least > delay / 4);
+		}
+	}
+
+	@Test
+	public void budget() {
+		HxmReconnectPolicy policy = new HxmReconnectPolicy(100, 1000, 3);
+		assertEquals(3, policy.getRetryBudget());
+		assertTrue(policy.shouldRetry(0));
+		assertTrue(policy.shouldRetry(2));
+		assertFalse(policy.shouldRetry(3));
+
+		assertFalse(HxmReconnectPolicy.NEVER.shouldRetry(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maximumBelowInitial() {
+		new HxmReconnectPolicy(1000, 100, 3);
+	}
+
+	@Test
+	public void givesUpWhenTheBudgetIsSpent() throws Exception {
+		mService.setReconnectPolicy(new HxmReconnectPolicy(1, 4, 3));
+		ScriptedLink link = new ScriptedLink(0);
+
+		mService.connect(link);
+		mHandler.waitForToast("after 3 attempts");
+		assertEquals(3, link.getAttempts());
+		assertEquals(R.string.HXM_SERVICE_RESTING, mService.getState(link.getAddress()));
+		assertEquals(0, mService.getSessions().size());
+	}
+
+	@Test
+	public void aConnectionWithoutMessagesIsAFailure() throws Exception {
+		mService.setReconnectPolicy(new HxmReconnectPolicy(1, 4, 3));
+		ScriptedLink link = new ScriptedLink(Integer.MAX_VALUE) {
+			@Override
+			InputStream open(int attempt) {
+				return new ByteArrayInputStream(new byte[0]);
+			}
+		};
+
+		mService.connect(link);
+		HxmServiceTest.waitForState(mService, link.getAddress(), R.string.HXM_SERVICE_RESTING);
+		Thread.sleep(50);
+		assertEquals(3, link.getAttempts());
+	}
+
+	@Test
+	public void messagesStartTheCountOver() throws Exception {
+		mService.setReconnectPolicy(new HxmReconnectPolicy(1, 4, 3));
+
+		// Four connections that each deliver a message and drop, then nothing but failures
+		ScriptedLink link = new ScriptedLink(4);
+
+		mService.connect(link);
+		mHandler.waitForToast("after 3 attempts");
+		assertEquals(4 + 3, link.getAttempts());
+		mHandler.waitForFrames(link.getAddress(), 4);
+	}
+
+	@Test
+	public void disconnectStopsTheRetries() throws Exception {
+		mService.setReconnectPolicy(new HxmReconnectPolicy(200, 200, 10));
+		ScriptedLink link = new ScriptedLink(0);
+
+		mService.connect(link);
+		HxmServiceTest.waitForState(mService, link.getAddress(), R.string.HXM_SERVICE_CONNECTING);
+		long deadline = System.currentTimeMillis() + HxmServiceTest.TIMEOUT_MS;
+		while (link.getAttempts() < 1 && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		mService.disconnect(link.getAddress());
+
+		Thread.sleep(500);
+		assertEquals(1, link.getAttempts());
+		assertEquals(R.string.HXM_SERVICE_RESTING, mService.getState(link.getAddress()));
+	}
+
+	/*
+	 * A link whose first few connections each deliver one message and end, and whose
+	 * connections after that fail
+	 */
+	private static class ScriptedLink implements HxmLink {
+		private final int mWorking;
+		private final AtomicInteger mAttempts = new AtomicInteger();
+
+		ScriptedLink(int working) {
+			mWorking = working;
+		}
+
+		public String getAddress() {
+			return HxmServiceTest.address(1);
+		}
+
+		public String getName() {
+			return "HXM1";
+		}
+
+		public boolean isReconnectable() {
+			return true;
+		}
+
+		public InputStream connect() throws IOException {
+			int attempt = mAttempts.incrementAndGet();
+			if (attempt > mWorking)
+				throw new IOException("ScriptedLink: attempt " + attempt + " failed");
+			return open(attempt);
+		}
+
+		InputStream open(int attempt) {
+			return new ByteArrayInputStream(HxmFrameReaderTest.frames(attempt, 1)[0]);
+		}
+
+		public void close() {
+		}
+
+		int getAttempts() {
+			return mAttempts.get();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * HxmRecorderTest
+ *
+ * What the recorder writes has to be in the documented format, record for record,
+ * across as many segments as it takes.
+ */
+public class HxmRecorderTest {
+
+	private static final int DEVICES = 3;
+	private static final int RECORDS_PER_SEGMENT = 50;
+	private static final int SEGMENT_SIZE = HxmRecorder.HEADER_SIZE + RECORDS_PER_SEGMENT * HxmRecorder.RECORD_SIZE;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void recordsAcrossSegments() throws IOException {
+		File directory = new File(mFolder.getRoot(), "recording");
+		HxmRecorder recorder = new HxmRecorder(directory, SEGMENT_SIZE, 10);
+
+		final int count = 4 * RECORDS_PER_SEGMENT + 7;
+		byte[][] frames = HxmFrameReaderTest.frames(1, count);
+		long start = System.nanoTime() - count * 1000000000L;
+		long before = System.currentTimeMillis() - count * 1000L;
+		for (int i = 0; i < count; i++)
+			recorder.append(deviceId(i % DEVICES), frames[i], 0, frames[i].length, start + i * 1000000000L);
+		recorder.close();
+		long after = System.currentTimeMillis();
+
+		assertEquals(count, recorder.getRecordCount());
+		assertEquals(0, recorder.getDroppedCount());
+
+		File[] segments = HxmRecorder.listSegments(directory);
+		assertEquals(5, segments.length);
+
+		int record = 0;
+		long last = 0;
+		for (File segment : segments) {
+			ByteBuffer buffer = read(segment);
+			assertEquals(SEGMENT_SIZE, buffer.capacity());
+			for (int i = 0; i < HxmRecorder.MAGIC.length; i++)
+				assertEquals(HxmRecorder.MAGIC[i], buffer.get(i));
+			assertEquals(HxmRecorder.FORMAT_VERSION, buffer.getInt(8));
+			assertEquals(HxmRecorder.RECORD_SIZE, buffer.getInt(12));
+			long started = buffer.getLong(HxmRecorder.HEADER_OFFSET_START_TIME);
+			assertTrue(started >= before && started <= after);
+
+			int records = buffer.getInt(HxmRecorder.HEADER_OFFSET_COUNT);
+			assertEquals(Math.min(RECORDS_PER_SEGMENT, count - record), records);
+			for (int i = 0; i < records; i++, record++) {
+				int position = HxmRecorder.HEADER_SIZE + i * HxmRecorder.RECORD_SIZE;
+				long time = buffer.getLong(position + HxmRecorder.RECORD_OFFSET_TIME);
+				assertTrue(time >= before && time <= after);
+				if (record > 0)
+					assertTrue(Math.abs(time - last - 1000) <= 1);
+				last = time;
+
+				assertEquals(deviceId(record % DEVICES), buffer.getLong(position + HxmRecorder.RECORD_OFFSET_DEVICE));
+				assertEquals(HxmFrameReader.FRAME_LENGTH, buffer.getShort(position + HxmRecorder.RECORD_OFFSET_LENGTH));
+				byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+				buffer.position(position + HxmRecorder.RECORD_OFFSET_FRAME);
+				buffer.get(frame);
+				assertArrayEquals(frames[record], frame);
+			}
+		}
+		assertEquals(count, record);
+	}
+
+	@Test
+	public void nothingIsRecordedAfterClose() throws IOException {
+		File directory = mFolder.newFolder("recording");
+		HxmRecorder recorder = new HxmRecorder(directory, SEGMENT_SIZE, 10);
+		byte[] frame = HxmFrameReaderTest.frames(2, 1)[0];
+
+		recorder.append(deviceId(0), frame, 0, frame.length, System.nanoTime());
+		recorder.close();
+		recorder.append(deviceId(0), frame, 0, frame.length, System.nanoTime());
+		recorder.append(deviceId(0), new byte[HxmRecorder.MAX_FRAME_LENGTH + 1], 0, HxmRecorder.MAX_FRAME_LENGTH + 1, System.nanoTime());
+
+		assertEquals(1, recorder.getRecordCount());
+		assertEquals(2, recorder.getDroppedCount());
+		File[] segments = HxmRecorder.listSegments(directory);
+		assertEquals(1, segments.length);
+		assertEquals(1, read(segments[0]).getInt(HxmRecorder.HEADER_OFFSET_COUNT));
+	}
+
+	@Test
+	public void segmentsInTheOrderTheyWereMade() throws IOException {
+		File directory = mFolder.newFolder("recording");
+		String[] names = { "hxm-100-2.hxr", "hxm-100-10.hxr", "hxm-99-11.hxr", "hxm-100-9.hxr" };
+		for (String name : names)
+			new File(directory, name).createNewFile();
+		new File(directory, "notes.txt").createNewFile();
+
+		File[] segments = HxmRecorder.listSegments(directory);
+		assertEquals(4, segments.length);
+		assertEquals("hxm-99-11.hxr", segments[0].getName());
+		assertEquals("hxm-100-2.hxr", segments[1].getName());
+		assertEquals("hxm-100-9.hxr", segments[2].getName());
+		assertEquals("hxm-100-10.hxr", segments[3].getName());
+
+		assertEquals(0, HxmRecorder.listSegments(new File(directory, "missing")).length);
+	}
+
+	@Test
+	public void deviceIds() {
+		long id = HxmRecorder.getDeviceId("00:07:80:9D:8A:E8");
+		assertEquals(0x0007809D8AE8L, id);
+		assertEquals("00:07:80:9D:8A:E8", HxmRecorder.getAddress(id));
+		assertEquals(HxmRecorder.getDeviceId("00:07:80:9d:8a:e8"), id);
+
+		// Anything that isn't a Bluetooth address is hashed, and marked with the top bit
+		long sim = HxmRecorder.getDeviceId("sim-7");
+		assertTrue(sim < 0);
+		assertEquals(sim, HxmRecorder.getDeviceId("sim-7"));
+		assertTrue(sim != HxmRecorder.getDeviceId("sim-8"));
+		assertTrue(HxmRecorder.getDeviceId("00:07:80:9D:8A:EX") < 0);
+	}
+
+	static long deviceId(int d) {
+		return 0x000780000000L + d;
+	}
+
+	private static ByteBuffer read(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			return ByteBuffer.wrap(bytes);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * HxmReplayLinkTest
+ *
+ * A recording played back gives each device's messages back as they were recorded,
+ * at the pace asked for, through a stream or through the service.
+ */
+public class HxmReplayLinkTest {
+
+	private static final int DEVICES = 3;
+	private static final int SEGMENT_SIZE = HxmRecorder.HEADER_SIZE + 40 * HxmRecorder.RECORD_SIZE;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws IOException {
+		File directory = mFolder.newFolder("recording");
+		byte[][] sent = record(directory, 30, 1000);
+
+		List<HxmReplayLink> links = HxmReplayLink.forRecording(directory, HxmReplayLink.SPEED_MAX);
+		assertEquals(DEVICES, links.size());
+		for (int d = 0; d < DEVICES; d++) {
+			HxmReplayLink link = links.get(d);
+			assertEquals(HxmRecorderTest.deviceId(d), link.getDeviceId());
+			assertEquals(HxmRecorder.getAddress(HxmRecorderTest.deviceId(d)), link.getAddress());
+			assertArrayEquals(sent[d], readAll(link.connect()));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void onlyPlaysOnce() throws IOException {
+		File directory = mFolder.newFolder("recording");
+		record(directory, 3, 1000);
+
+		HxmReplayLink link = HxmReplayLink.forRecording(directory, HxmReplayLink.SPEED_MAX).get(0);
+		readAll(link.connect());
+		link.connect();
+	}
+
+	@Test
+	public void pace() throws IOException {
+		File directory = mFolder.newFolder("recording");
+		byte[][] sent = record(directory, 6, 100);
+		HxmReplayLink link = new HxmReplayLink(HxmRecorder.listSegments(directory), HxmRecorderTest.deviceId(0), 2.0);
+
+		// Five gaps of 300ms between the first device's messages, played twice as fast
+		long start = System.nanoTime();
+		assertArrayEquals(sent[0], readAll(link.connect()));
+		long elapsedMs = (System.nanoTime() - start) / 1000000L;
+		assertTrue("took " + elapsedMs + "ms", elapsedMs >= 740 && elapsedMs < 5000);
+	}
+
+	@Test
+	public void closeStopsAWaitingRead() throws Exception {
+		File directory = mFolder.newFolder("recording");
+		record(directory, 3, 60000);
+		final HxmReplayLink link = new HxmReplayLink(HxmRecorder.listSegments(directory), HxmRecorderTest.deviceId(0),
+				HxmReplayLink.SPEED_REALTIME);
+
+		InputStream in = link.connect();
+		HxmFrameReader reader = new HxmFrameReader(in);
+		assertTrue(reader.nextFrame() >= 0);
+
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				link.close();
+			}
+		}.start();
+
+		long start = System.nanoTime();
+		try {
+			reader.nextFrame();
+			assertTrue("read the next message three minutes early", false);
+		} catch (IOException e) {
+			long elapsedMs = (System.nanoTime() - start) / 1000000L;
+			assertTrue("took " + elapsedMs + "ms", elapsedMs < 5000);
+		}
+	}
+
+	@Test
+	public void throughTheService() throws Exception {
+		File directory = mFolder.newFolder("recording");
+		byte[][] sent = record(directory, HxmSession.RING_CAPACITY, 1000);
+
+		HxmServiceTest.ServiceHandler handler = HxmServiceTest.ServiceHandler.start();
+		HxmService service = new HxmService(null, handler);
+		try {
+			for (HxmReplayLink link : HxmReplayLink.forRecording(directory, HxmReplayLink.SPEED_MAX))
+				service.connect(link);
+
+			for (int d = 0; d < DEVICES; d++) {
+				String address = HxmRecorder.getAddress(HxmRecorderTest.deviceId(d));
+				handler.waitForFrames(address, HxmSession.RING_CAPACITY);
+				assertArrayEquals(sent[d], handler.getFrames(address));
+				HxmServiceTest.waitForState(service, address, R.string.HXM_SERVICE_RESTING);
+			}
+
+			// The end of a replay is the end, the service doesn't try it again
+			Thread.sleep(2 * HxmService.DEFAULT_RECONNECT_POLICY.getDelayMs(0));
+			assertEquals(0, service.getSessions().size());
+			for (int d = 0; d < DEVICES; d++)
+				assertEquals(0, service.getMetrics().getDevice(HxmRecorder.getAddress(HxmRecorderTest.deviceId(d))).get(HxmMetrics.RECONNECTS));
+		} finally {
+			service.close();
+			handler.quit();
+		}
+	}
+
+	/*
+	 * Record count messages from each device, the devices taking turns every gapMs.
+	 * Returns what each device sent.
+	 */
+	private static byte[][] record(File directory, int count, long gapMs) {
+		HxmRecorder recorder = new HxmRecorder(directory, SEGMENT_SIZE, 10);
+		byte[][] frames = HxmFrameReaderTest.frames(gapMs, DEVICES * count);
+		ByteArrayOutputStream[] sent = new ByteArrayOutputStream[DEVICES];
+		for (int d = 0; d < DEVICES; d++)
+			sent[d] = new ByteArrayOutputStream();
+
+		long start = System.nanoTime() - DEVICES * count * gapMs * 1000000L;
+		for (int i = 0; i < DEVICES * count; i++) {
+			int d = i % DEVICES;
+			recorder.append(HxmRecorderTest.deviceId(d), frames[i], 0, frames[i].length, start + i * gapMs * 1000000L);
+			sent[d].write(frames[i], 0, frames[i].length);
+		}
+		recorder.close();
+
+		byte[][] bytes = new byte[DEVICES][];
+		for (int d = 0; d < DEVICES; d++)
+			bytes[d] = sent[d].toByteArray();
+		return bytes;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		HxmFrameReader reader = new HxmFrameReader(in);
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+		while (reader.readFrame(frame, 0) > 0)
+			frames.write(frame, 0, frame.length);
+		assertEquals(0, reader.getSkippedByteCount());
+		return frames.toByteArray();
+	}
+}
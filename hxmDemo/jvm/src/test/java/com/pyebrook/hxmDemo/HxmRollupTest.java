@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * HxmRollupTest
+ *
+ * Buckets open and roll off the ring as time goes by, and each one holds what a
+ * pass over its messages would give.
+ */
+public class HxmRollupTest {
+
+	private static final long INTERVAL_MS = 10000;
+	private static final double DELTA = 1e-9;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void matchesBruteForce() {
+		Random random = new Random(1);
+		HxmRollup rollup = new HxmRollup(INTERVAL_MS, 8);
+		TreeMap<Long, List<int[]>> buckets = new TreeMap<Long, List<int[]>>();
+		long time = 1287000000000L;
+
+		for (int i = 0; i < 2000; i++) {
+			// Mostly a message a second, now and then a silence of a few intervals
+			time += (random.nextInt(20) == 0) ? random.nextInt(5) * INTERVAL_MS : 1000;
+			int[] values = { 40 + random.nextInt(150), random.nextInt(2000), 100 - i / 20 };
+			rollup.add(time, values[0], values[1], values[2]);
+
+			long start = time - time % INTERVAL_MS;
+			if (!buckets.containsKey(start))
+				buckets.put(start, new ArrayList<int[]>());
+			buckets.get(start).add(values);
+
+			assertEquals(Math.min(8, buckets.size()), rollup.size());
+			assertEquals(buckets.size() - rollup.size(), rollup.getDroppedCount());
+			assertBuckets(buckets, rollup);
+		}
+	}
+
+	@Test
+	public void clockSetBackGoesInTheNewestBucket() {
+		HxmRollup rollup = new HxmRollup(INTERVAL_MS, 4);
+		rollup.add(50000, 60, 0, 90);
+		rollup.add(61000, 70, 0, 90);
+		rollup.add(45000, 80, 0, 90);
+
+		assertEquals(2, rollup.size());
+		assertEquals(60000, rollup.getStart(1));
+		assertEquals(2, rollup.getCount(1));
+		assertEquals(80, rollup.getLast(1, HxmRollup.FIELD_HEART_RATE));
+	}
+
+	@Test
+	public void timesBeforeTheEpoch() {
+		HxmRollup rollup = new HxmRollup(INTERVAL_MS, 4);
+		rollup.add(-1, 60, 0, 90);
+		rollup.add(0, 60, 0, 90);
+		assertEquals(-INTERVAL_MS, rollup.getStart(0));
+		assertEquals(0, rollup.getStart(1));
+	}
+
+	@Test
+	public void find() {
+		HxmRollup rollup = new HxmRollup(INTERVAL_MS, 10);
+		long[] times = { 10000, 25000, 60000, 61000, 90000 };
+		for (long time : times)
+			rollup.add(time, 60, 0, 90);
+
+		// Buckets start at 10000, 20000, 60000 and 90000
+		assertEquals(0, rollup.find(0));
+		assertEquals(0, rollup.find(19999));
+		assertEquals(1, rollup.find(20000));
+		assertEquals(2, rollup.find(30000));
+		assertEquals(2, rollup.find(69999));
+		assertEquals(3, rollup.find(70000));
+		assertEquals(4, rollup.find(100000));
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		HxmRollup rollup = new HxmRollup(INTERVAL_MS, 4);
+		rollup.add(10000, 60, 0, 90);
+		HxmRollup copy = new HxmRollup(rollup);
+		rollup.add(20000, 70, 0, 90);
+
+		assertEquals(1, copy.size());
+		assertEquals(60, copy.getLast(0, HxmRollup.FIELD_HEART_RATE));
+		copy.copyFrom(rollup);
+		assertEquals(2, copy.size());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void noSuchBucket() {
+		HxmRollup rollup = new HxmRollup(INTERVAL_MS, 4);
+		rollup.add(10000, 60, 0, 90);
+		rollup.getCount(1);
+	}
+
+	@Test
+	public void flushWritesEachFinishedBucketOnce() throws IOException {
+		HxmRollups rollups = new HxmRollups(new long[] { INTERVAL_MS }, new int[] { 100 });
+		File directory = mFolder.newFolder("rollups");
+		File file = new File(directory, "rollup-10s.csv");
+		byte[] frame = HxmFrameReaderTest.frames(1, 1)[0];
+		HrmReading reading = new HrmReading(frame, 0);
+
+		// Three messages in each of six buckets, from the middle of a bucket ten buckets back
+		long first = (System.currentTimeMillis() / INTERVAL_MS - 10) * INTERVAL_MS + INTERVAL_MS / 2;
+		for (int b = 0; b < 6; b++) {
+			for (int i = 0; i < 3; i++) {
+				for (int d = 0; d < 2; d++)
+					rollups.process(HxmServiceTest.address(d), d, reading, nanos(first + b * INTERVAL_MS + i * 1000));
+			}
+		}
+		assertNull(rollups.getRollup(HxmServiceTest.address(2), 0));
+		assertEquals(6, rollups.getRollup(HxmServiceTest.address(0), 0).size());
+
+		// The newest bucket is still filling
+		rollups.flush(directory, false);
+		List<String[]> lines = readLines(file);
+		assertEquals(2 * 5, lines.size());
+		for (String[] line : lines) {
+			assertEquals(3 + 4 * HxmRollup.FIELD_COUNT, line.length);
+			assertEquals("3", line[2]);
+			assertEquals(Integer.toString(reading.heartRate()), line[3]);
+		}
+
+		rollups.flush(directory, false);
+		assertEquals(2 * 5, readLines(file).size());
+
+		// Another bucket for one device finishes its sixth
+		rollups.process(HxmServiceTest.address(0), 0, reading, nanos(first + 6 * INTERVAL_MS));
+		rollups.flush(directory, false);
+		lines = readLines(file);
+		assertEquals(2 * 5 + 1, lines.size());
+		assertEquals(HxmServiceTest.address(0), lines.get(10)[0]);
+		assertEquals(Long.toString(first - INTERVAL_MS / 2 + 5 * INTERVAL_MS), lines.get(10)[1]);
+
+		rollups.flush(directory, true);
+		assertEquals(2 * 5 + 1 + 2, readLines(file).size());
+	}
+
+	/*
+	 * The System.nanoTime() a message would have to have been received at to be at a
+	 * wall clock time
+	 */
+	private static long nanos(long timeMs) {
+		return System.nanoTime() - (System.currentTimeMillis() - timeMs) * 1000000L;
+	}
+
+	private static List<String[]> readLines(File file) throws IOException {
+		List<String[]> lines = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				lines.add(line.split(","));
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	/*
+	 * The rollup holds the newest of the buckets, each with the statistics of its messages
+	 */
+	private static void assertBuckets(TreeMap<Long, List<int[]>> buckets, HxmRollup rollup) {
+		int bucket = rollup.size() - buckets.size();
+		for (Map.Entry<Long, List<int[]>> entry : buckets.entrySet()) {
+			if (bucket++ < 0)
+				continue;
+			int b = bucket - 1;
+			List<int[]> messages = entry.getValue();
+			assertEquals((long) entry.getKey(), rollup.getStart(b));
+			assertEquals(messages.size(), rollup.getCount(b));
+
+			for (int f = 0; f < HxmRollup.FIELD_COUNT; f++) {
+				int min = Integer.MAX_VALUE;
+				int max = Integer.MIN_VALUE;
+				long sum = 0;
+				for (int[] values : messages) {
+					min = Math.min(min, values[f]);
+					max = Math.max(max, values[f]);
+					sum += values[f];
+				}
+				assertEquals(min, rollup.getMin(b, f));
+				assertEquals(max, rollup.getMax(b, f));
+				assertEquals((double) sum / messages.size(), rollup.getAverage(b, f), DELTA);
+				assertEquals(messages.get(messages.size() - 1)[f], rollup.getLast(b, f));
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * HxmRrExtractorTest
+ *
+ * Messages are made from a made up list of beats, each message carrying the beat
+ * number and 15 time stamps of the newest beat so far, rolled over the way the
+ * strap rolls them over.  The intervals that come out have to be the ones between
+ * the beats, each once, with a gap only where beats really were missed.
+ */
+public class HxmRrExtractorTest {
+
+	private long[] mBeats;
+	private final List<Integer> mIntervals = new ArrayList<Integer>();
+	private final List<Long> mBeatTimes = new ArrayList<Long>();
+	private final List<Integer> mGaps = new ArrayList<Integer>();
+	private HxmRrExtractor mExtractor;
+
+	@Before
+	public void setUp() {
+		// Long enough for the beat number and the time stamps to roll over many times
+		Random random = new Random(1);
+		mBeats = new long[3000];
+		mBeats[0] = 60000;
+		for (int i = 1; i < mBeats.length; i++)
+			mBeats[i] = mBeats[i - 1] + 400 + random.nextInt(800);
+
+		mExtractor = new HxmRrExtractor(new HxmRrExtractor.Listener() {
+			public void onRrInterval(long beatTimeMs, int rrMs) {
+				mIntervals.add(rrMs);
+				mBeatTimes.add(beatTimeMs);
+			}
+
+			public void onRrGap() {
+				mGaps.add(mIntervals.size());
+			}
+		});
+	}
+
+	@Test
+	public void firstMessageGivesEveryInterval() {
+		mExtractor.update(message(14));
+
+		assertBeats(1, 14, 0);
+		assertEquals(0, mGaps.size());
+	}
+
+	@Test
+	public void everyIntervalOnceAcrossRollOvers() {
+		Random random = new Random(2);
+		int newest = 14;
+		mExtractor.update(message(newest));
+
+		while (newest + 3 < mBeats.length) {
+			// Sometimes no new beat at all, sometimes several
+			newest += random.nextInt(4);
+			mExtractor.update(message(newest));
+		}
+
+		assertBeats(1, newest, 0);
+		assertEquals(0, mGaps.size());
+		assertEquals(0, mExtractor.getGapCount());
+		assertEquals(newest, mExtractor.getIntervalCount());
+	}
+
+	@Test
+	public void sameMessageTwiceGivesNothing() {
+		mExtractor.update(message(20));
+		mExtractor.update(message(20));
+
+		assertBeats(7, 20, 0);
+	}
+
+	@Test
+	public void fifteenNewBeatsIsNotAGap() {
+		mExtractor.update(message(14));
+		mExtractor.update(message(29));
+
+		assertBeats(1, 29, 0);
+		assertEquals(0, mGaps.size());
+	}
+
+	@Test
+	public void sixteenNewBeatsIsAGap() {
+		mExtractor.update(message(14));
+		mExtractor.update(message(30));
+
+		// The beats up to 14, then the gap, then the 14 the second message holds
+		assertEquals(1, mGaps.size());
+		assertEquals(14, (int) mGaps.get(0));
+		assertBeats(1, 14, 0);
+		assertBeats(17, 30, 14);
+		assertEquals(28, mIntervals.size());
+	}
+
+	@Test
+	public void stampsThatDontFollowOnAreAGap() {
+		mExtractor.update(message(14));
+
+		// The strap restarted, its beat number goes on but the stamps are another clock
+		HrmReading restarted = message(15);
+		byte[] frame = restarted.getBuffer();
+		for (int i = 0; i < HrmReading.HB_TIME_COUNT; i++) {
+			int index = HrmReading.OFFSET_HB_TIME + 2 * i;
+			int stamp = ((frame[index] & 0xFF) | (frame[index + 1] & 0xFF) << 8) + 12345;
+			frame[index] = (byte) stamp;
+			frame[index + 1] = (byte) (stamp >> 8);
+		}
+		mExtractor.update(restarted);
+
+		assertEquals(1, mGaps.size());
+		assertEquals(28, mIntervals.size());
+		for (int i = 0; i < 14; i++)
+			assertEquals((int) (mBeats[i + 2] - mBeats[i + 1]), (int) mIntervals.get(14 + i));
+	}
+
+	/*
+	 * The message sent after beat newest, carrying it and the 14 before it
+	 */
+	private HrmReading message(int newest) {
+		byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+		frame[HrmReading.OFFSET_HEART_BEAT_NUMBER] = (byte) newest;
+		for (int i = 1; i <= HrmReading.HB_TIME_COUNT; i++) {
+			int stamp = (int) (mBeats[newest - i + 1] & 0xFFFF);
+			int index = HrmReading.OFFSET_HB_TIME + 2 * (i - 1);
+			frame[index] = (byte) stamp;
+			frame[index + 1] = (byte) (stamp >> 8);
+		}
+		return new HrmReading(frame, 0);
+	}
+
+	/*
+	 * The intervals ending at beats first to last came out, in order, starting at
+	 * index, and their beat times follow the beats with the roll overs taken out.
+	 * The extractor's clock starts at the oldest stamp of the first message.
+	 */
+	private void assertBeats(int first, int last, int index) {
+		long clock = mBeats[0] & 0xFFFF;
+		for (int beat = first; beat <= last; beat++, index++) {
+			assertEquals("beat " + beat, (int) (mBeats[beat] - mBeats[beat - 1]), (int) mIntervals.get(index));
+			assertEquals("beat " + beat, clock + mBeats[beat] - mBeats[0], (long) mBeatTimes.get(index));
+		}
+	}
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+/*
+ * HxmServiceTest
+ *
+ * Many devices at once through one service, each device's messages reaching the
+ * Handler whole and in order, and each connection coming and going without
+ * disturbing the others.
+ */
+public class HxmServiceTest {
+
+	static final long TIMEOUT_MS = 10000;
+
+	private ServiceHandler mHandler;
+	private HxmService mService;
+
+	@Before
+	public void setUp() {
+		mHandler = ServiceHandler.start();
+		mService = new HxmService(null, mHandler);
+		mService.setReconnectPolicy(HxmReconnectPolicy.NEVER);
+	}
+
+	@After
+	public void tearDown() {
+		mService.close();
+		mHandler.quit();
+	}
+
+	@Test
+	public void manyDevicesAtOnce() throws Exception {
+		final int devices = 10;
+		final int rounds = 3;
+		final int count = 10;
+
+		FeedStream[] streams = new FeedStream[devices];
+		ByteArrayOutputStream[] sent = new ByteArrayOutputStream[devices];
+		for (int d = 0; d < devices; d++) {
+			streams[d] = new FeedStream();
+			sent[d] = new ByteArrayOutputStream();
+			mService.connect(new StreamHxmLink(address(d), "HXM" + d, streams[d]));
+		}
+		for (int d = 0; d < devices; d++)
+			waitForState(mService, address(d), R.string.HXM_SERVICE_CONNECTED);
+		assertEquals(R.string.HXM_SERVICE_CONNECTED, mService.getState());
+		assertEquals(devices, mService.getSessions().size());
+
+		// No more at a time than a session's ring holds, so none are dropped
+		for (int round = 0; round < rounds; round++) {
+			for (int d = 0; d < devices; d++) {
+				byte[] frames = HxmFrameReaderTest.concat(HxmFrameReaderTest.frames(round * devices + d, count));
+				sent[d].write(frames);
+				streams[d].feed(frames);
+			}
+			for (int d = 0; d < devices; d++)
+				mHandler.waitForFrames(address(d), (round + 1) * count);
+		}
+
+		for (int d = 0; d < devices; d++)
+			assertArrayEquals(sent[d].toByteArray(), mHandler.getFrames(address(d)));
+	}
+
+	@Test
+	public void oneDeviceEndingLeavesTheOthers() throws Exception {
+		FeedStream[] streams = new FeedStream[3];
+		for (int d = 0; d < streams.length; d++) {
+			streams[d] = new FeedStream();
+			mService.connect(new StreamHxmLink(address(d), "HXM" + d, streams[d]));
+			waitForState(mService, address(d), R.string.HXM_SERVICE_CONNECTED);
+		}
+
+		streams[1].end();
+		waitForState(mService, address(1), R.string.HXM_SERVICE_RESTING);
+		mHandler.waitForToast("connection was lost HXM1");
+		assertEquals(R.string.HXM_SERVICE_CONNECTED, mService.getState());
+		assertEquals(2, mService.getSessions().size());
+
+		byte[] frames = HxmFrameReaderTest.concat(HxmFrameReaderTest.frames(1, 5));
+		streams[0].feed(frames);
+		streams[2].feed(frames);
+		mHandler.waitForFrames(address(0), 5);
+		mHandler.waitForFrames(address(2), 5);
+		assertArrayEquals(frames, mHandler.getFrames(address(0)));
+		assertArrayEquals(frames, mHandler.getFrames(address(2)));
+	}
+
+	@Test
+	public void streamThatEndsIsNotRetried() throws Exception {
+		mService.setReconnectPolicy(HxmService.DEFAULT_RECONNECT_POLICY);
+		FeedStream stream = new FeedStream();
+		mService.connect(new StreamHxmLink(address(0), "HXM0", stream));
+		waitForState(mService, address(0), R.string.HXM_SERVICE_CONNECTED);
+
+		stream.feed(HxmFrameReaderTest.concat(HxmFrameReaderTest.frames(3, 2)));
+		stream.end();
+		waitForState(mService, address(0), R.string.HXM_SERVICE_RESTING);
+		mHandler.waitForToast("connection was lost HXM0");
+
+		// Long enough for the first retry, had there been one
+		Thread.sleep(2 * HxmService.DEFAULT_RECONNECT_POLICY.getDelayMs(0));
+		assertEquals(0, mService.getSessions().size());
+		assertEquals(0, mService.getMetrics().getDevice(address(0)).get(HxmMetrics.RECONNECTS));
+		assertEquals(1, mHandler.getToasts().size());
+	}
+
+	@Test
+	public void disconnectAndStop() throws Exception {
+		FeedStream[] streams = new FeedStream[3];
+		for (int d = 0; d < streams.length; d++) {
+			streams[d] = new FeedStream();
+			mService.connect(new StreamHxmLink(address(d), "HXM" + d, streams[d]));
+			waitForState(mService, address(d), R.string.HXM_SERVICE_CONNECTED);
+		}
+
+		mService.disconnect(address(0));
+		assertEquals(R.string.HXM_SERVICE_RESTING, mService.getState(address(0)));
+		assertTrue(streams[0].isClosed());
+		assertEquals(R.string.HXM_SERVICE_CONNECTED, mService.getState());
+
+		mService.stop();
+		assertEquals(R.string.HXM_SERVICE_RESTING, mService.getState());
+		assertEquals(0, mService.getSessions().size());
+		for (FeedStream stream : streams)
+			assertTrue(stream.isClosed());
+	}
+
+	@Test
+	public void connectingAgainReplacesTheSession() throws Exception {
+		FeedStream first = new FeedStream();
+		mService.connect(new StreamHxmLink(address(0), "HXM0", first));
+		waitForState(mService, address(0), R.string.HXM_SERVICE_CONNECTED);
+
+		FeedStream second = new FeedStream();
+		mService.connect(new StreamHxmLink(address(0), "HXM0", second));
+		assertTrue(first.isClosed());
+		waitForState(mService, address(0), R.string.HXM_SERVICE_CONNECTED);
+		assertEquals(1, mService.getSessions().size());
+
+		byte[] frames = HxmFrameReaderTest.concat(HxmFrameReaderTest.frames(2, 3));
+		second.feed(frames);
+		mHandler.waitForFrames(address(0), 3);
+		assertArrayEquals(frames, mHandler.getFrames(address(0)));
+	}
+
+	static String address(int d) {
+		return String.format("00:07:80:00:00:%02X", d);
+	}
+
+	static void waitForState(HxmService service, String address, int state) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (service.getState(address) != state && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(address, state, service.getState(address));
+	}
+
+	/*
+	 * The Handler the service talks to, on a thread of its own.  It takes the messages
+	 * from each session's ring and keeps them by address, and keeps the toasts.
+	 */
+	static class ServiceHandler extends Handler {
+		private final HandlerThread mThread;
+		private final Map<String, ByteArrayOutputStream> mFrames = new HashMap<String, ByteArrayOutputStream>();
+		private final List<String> mToasts = new ArrayList<String>();
+
+		private ServiceHandler(HandlerThread thread) {
+			super(thread.getLooper());
+			mThread = thread;
+		}
+
+		static ServiceHandler start() {
+			HandlerThread thread = new HandlerThread("ServiceHandler");
+			thread.start();
+			return new ServiceHandler(thread);
+		}
+
+		void quit() {
+			mThread.quit();
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			if (msg.what == R.string.HXM_SERVICE_MSG_READ) {
+				HxmSession session = (HxmSession) msg.obj;
+				HxmFrameRing ring = session.getRing();
+				ring.clearSignal();
+				int offset;
+				while ((offset = ring.poll()) >= 0) {
+					synchronized (this) {
+						ByteArrayOutputStream frames = mFrames.get(session.getAddress());
+						if (frames == null) {
+							frames = new ByteArrayOutputStream();
+							mFrames.put(session.getAddress(), frames);
+						}
+						frames.write(ring.getBuffer(), offset, ring.getLength(offset));
+					}
+					ring.release();
+				}
+			} else if (msg.what == R.string.HXM_SERVICE_MSG_TOAST) {
+				synchronized (this) {
+					mToasts.add(msg.getData().getString(null));
+				}
+			}
+		}
+
+		synchronized byte[] getFrames(String address) {
+			ByteArrayOutputStream frames = mFrames.get(address);
+			return (frames != null) ? frames.toByteArray() : new byte[0];
+		}
+
+		synchronized List<String> getToasts() {
+			return new ArrayList<String>(mToasts);
+		}
+
+		void waitForFrames(String address, int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+			while (getFrames(address).length < count * HxmFrameReader.FRAME_LENGTH && System.currentTimeMillis() < deadline)
+				Thread.sleep(5);
+			assertEquals(address, count * HxmFrameReader.FRAME_LENGTH, getFrames(address).length);
+		}
+
+		/*
+		 * Wait for a toast that ends with some text
+		 */
+		void waitForToast(String text) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+			while (System.currentTimeMillis() < deadline) {
+				for (String toast : getToasts()) {
+					if (toast.endsWith(text))
+						return;
+				}
+				Thread.sleep(5);
+			}
+			assertTrue("no toast ending \"" + text + "\" in " + getToasts(), false);
+		}
+	}
+
+	/*
+	 * A stream that only has what the test has fed it, and blocks for more until it
+	 * is ended or closed
+	 */
+	static class FeedStream extends InputStream {
+		private byte[] mBytes = new byte[0];
+		private int mPosition = 0;
+		private boolean mEnded = false;
+		private boolean mClosed = false;
+
+		synchronized void feed(byte[] bytes) {
+			byte[] joined = new byte[mBytes.length - mPosition + bytes.length];
+			System.arraycopy(mBytes, mPosition, joined, 0, mBytes.length - mPosition);
+			System.arraycopy(bytes, 0, joined, mBytes.length - mPosition, bytes.length);
+			mBytes = joined;
+			mPosition = 0;
+			notifyAll();
+		}
+
+		synchronized void end() {
+			mEnded = true;
+			notifyAll();
+		}
+
+		synchronized boolean isClosed() {
+			return mClosed;
+		}
+
+		@Override
+		public synchronized int available() throws IOException {
+			if (mClosed)
+				throw new IOException("FeedStream: closed");
+			return mBytes.length - mPosition;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+			while (true) {
+				if (mClosed)
+					throw new IOException("FeedStream: closed");
+				if (mPosition < mBytes.length)
+					break;
+				if (mEnded)
+					return -1;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("FeedStream: interrupted");
+				}
+			}
+			int count = Math.min(length, mBytes.length - mPosition);
+			System.arraycopy(mBytes, mPosition, buffer, offset, count);
+			mPosition += count;
+			return count;
+		}
+
+		@Override
+		public synchronized void close() {
+			mClosed = true;
+			notifyAll();
+		}
+	}
+}
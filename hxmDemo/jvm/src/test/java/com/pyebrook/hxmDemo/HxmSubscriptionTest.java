@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/*
+ * HxmSubscriptionTest
+ *
+ * A subscription hands the messages over in order, in batches that fill up or time
+ * out, and a listener that falls behind loses messages the way its overflow policy
+ * says and is told how many.
+ */
+public class HxmSubscriptionTest {
+
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+	@After
+	public void tearDown() {
+		mExecutor.shutdownNow();
+	}
+
+	@Test
+	public void fullBatches() throws InterruptedException {
+		Listener listener = new Listener();
+		HxmSubscription subscription = new HxmSubscription(listener, mExecutor, 4, 10000, 64, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		byte[][] frames = HxmFrameReaderTest.frames(1, 12);
+
+		for (int i = 0; i < frames.length; i++)
+			subscription.offer(HxmServiceTest.address(i % 3), frames[i], 0, i);
+		listener.waitFor(12);
+
+		assertEquals(12, subscription.getDeliveredCount());
+		assertEquals(0, subscription.getBacklog());
+		for (int size : listener.mBatchSizes)
+			assertEquals(4, size);
+		for (int i = 0; i < frames.length; i++) {
+			assertArrayEquals(frames[i], listener.mFrames.get(i));
+			assertEquals(HxmServiceTest.address(i % 3), listener.mAddresses.get(i));
+			assertEquals(i, (long) listener.mReceivedNanos.get(i));
+		}
+	}
+
+	@Test
+	public void partBatchAfterTheDelay() throws InterruptedException {
+		Listener listener = new Listener();
+		HxmSubscription subscription = new HxmSubscription(listener, mExecutor, 16, 200, 64, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		byte[][] frames = HxmFrameReaderTest.frames(2, 3);
+
+		long start = System.nanoTime();
+		for (byte[] frame : frames)
+			subscription.offer(HxmServiceTest.address(0), frame, 0, 0);
+		Thread.sleep(50);
+		assertEquals(0, listener.size());
+
+		listener.waitFor(3);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+		assertEquals(1, listener.mBatchSizes.size());
+	}
+
+	@Test
+	public void noDelay() throws InterruptedException {
+		Listener listener = new Listener();
+		HxmSubscription subscription = new HxmSubscription(listener, mExecutor, 16, 0, 64, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		subscription.offer(HxmServiceTest.address(0), HxmFrameReaderTest.frames(3, 1)[0], 0, 0);
+		listener.waitFor(1);
+	}
+
+	@Test
+	public void slowListenerLosesTheOldest() throws InterruptedException {
+		final CountDownLatch stuck = new CountDownLatch(1);
+		final CountDownLatch unstick = new CountDownLatch(1);
+		Listener listener = new Listener() {
+			public void onReadings(HxmBatch batch) {
+				super.onReadings(batch);
+				stuck.countDown();
+				try {
+					unstick.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		HxmSubscription subscription = new HxmSubscription(listener, mExecutor, 1, 0, 8, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		byte[][] frames = HxmFrameReaderTest.frames(4, 21);
+
+		subscription.offer(HxmServiceTest.address(0), frames[0], 0, 0);
+		assertTrue(stuck.await(HxmServiceTest.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		for (int i = 1; i < frames.length; i++)
+			subscription.offer(HxmServiceTest.address(0), frames[i], 0, i);
+		assertEquals(8, subscription.getBacklog());
+		assertEquals(12, subscription.getDroppedCount());
+
+		unstick.countDown();
+		listener.waitFor(9);
+
+		// The listener is told about the drops with the first batch after them
+		assertEquals(0, listener.mDropped.get(0).longValue());
+		assertEquals(12, listener.mDropped.get(1).longValue());
+		for (int i = 2; i < 9; i++)
+			assertEquals(0, listener.mDropped.get(i).longValue());
+		assertArrayEquals(frames[0], listener.mFrames.get(0));
+		for (int i = 1; i < 9; i++)
+			assertArrayEquals(frames[12 + i], listener.mFrames.get(i));
+	}
+
+	@Test
+	public void blockWaitsForTheListener() throws InterruptedException {
+		final Listener listener = new Listener() {
+			public void onReadings(HxmBatch batch) {
+				super.onReadings(batch);
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		final HxmSubscription subscription = new HxmSubscription(listener, mExecutor, 1, 0, 4, HxmFrameRing.OVERFLOW_BLOCK);
+		final byte[][] frames = HxmFrameReaderTest.frames(7, 50);
+
+		Thread session = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < frames.length; i++)
+					subscription.offer(HxmServiceTest.address(0), frames[i], 0, i);
+			}
+		};
+		session.start();
+		listener.waitFor(frames.length);
+		session.join(HxmServiceTest.TIMEOUT_MS);
+
+		assertEquals(0, subscription.getDroppedCount());
+		for (int i = 0; i < frames.length; i++)
+			assertArrayEquals(frames[i], listener.mFrames.get(i));
+	}
+
+	@Test
+	public void cancelLetsWaitingSessionsGo() throws InterruptedException {
+		final CountDownLatch stuck = new CountDownLatch(1);
+		final CountDownLatch unstick = new CountDownLatch(1);
+		Listener listener = new Listener() {
+			public void onReadings(HxmBatch batch) {
+				super.onReadings(batch);
+				stuck.countDown();
+				try {
+					unstick.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		final HxmSubscription subscription = new HxmSubscription(listener, mExecutor, 1, 0, 1, HxmFrameRing.OVERFLOW_BLOCK);
+		final byte[][] frames = HxmFrameReaderTest.frames(8, 4);
+
+		subscription.offer(HxmServiceTest.address(0), frames[0], 0, 0);
+		assertTrue(stuck.await(HxmServiceTest.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		subscription.offer(HxmServiceTest.address(0), frames[1], 0, 1);
+
+		// Two sessions wait for room the stuck listener never makes
+		Thread[] sessions = new Thread[2];
+		for (int i = 0; i < sessions.length; i++) {
+			final int device = 1 + i;
+			sessions[i] = new Thread() {
+				@Override
+				public void run() {
+					subscription.offer(HxmServiceTest.address(device), frames[1 + device], 0, 1 + device);
+				}
+			};
+			sessions[i].start();
+		}
+		Thread.sleep(50);
+		for (Thread session : sessions)
+			assertTrue(session.isAlive());
+
+		subscription.cancel();
+		for (Thread session : sessions) {
+			session.join(HxmServiceTest.TIMEOUT_MS);
+			assertFalse(session.isAlive());
+		}
+		unstick.countDown();
+	}
+
+	@Test
+	public void eventsInOrder() throws InterruptedException {
+		Listener listener = new Listener();
+		HxmSubscription subscription = new HxmSubscription(listener, mExecutor, 16, 0, 64, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		subscription.stateChanged(HxmServiceTest.address(1), R.string.HXM_SERVICE_CONNECTING);
+		subscription.connected(HxmServiceTest.address(1), "HXM1");
+		subscription.notice(HxmServiceTest.address(1), "hello");
+
+		mExecutor.submit(new Runnable() {
+			public void run() {
+			}
+		});
+		mExecutor.shutdown();
+		assertTrue(mExecutor.awaitTermination(HxmServiceTest.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("state " + HxmServiceTest.address(1) + " " + R.string.HXM_SERVICE_CONNECTING);
+		expected.add("connected " + HxmServiceTest.address(1) + " HXM1");
+		expected.add("notice " + HxmServiceTest.address(1) + " hello");
+		assertEquals(expected, listener.mEvents);
+	}
+
+	@Test
+	public void nothingAfterCancel() throws InterruptedException {
+		Listener listener = new Listener();
+		HxmSubscription subscription = new HxmSubscription(listener, mExecutor, 1, 0, 64, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		subscription.cancel();
+		subscription.offer(HxmServiceTest.address(0), HxmFrameReaderTest.frames(5, 1)[0], 0, 0);
+		subscription.notice(HxmServiceTest.address(0), "hello");
+
+		mExecutor.shutdown();
+		assertTrue(mExecutor.awaitTermination(HxmServiceTest.TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		assertEquals(0, listener.size());
+		assertEquals(0, listener.mEvents.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void batchSizeOfNothing() {
+		new HxmSubscription(new Listener(), mExecutor, 0, 0, 64, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+	}
+
+	/*
+	 * Keeps a copy of everything it is told
+	 */
+	static class Listener implements HxmListener {
+		final List<byte[]> mFrames = new ArrayList<byte[]>();
+		final List<String> mAddresses = new ArrayList<String>();
+		final List<Long> mReceivedNanos = new ArrayList<Long>();
+		final List<Integer> mBatchSizes = new ArrayList<Integer>();
+		final List<Long> mDropped = new ArrayList<Long>();
+		final List<String> mEvents = new ArrayList<String>();
+
+		public synchronized void onStateChanged(String address, int state) {
+			mEvents.add("state " + address + " " + state);
+		}
+
+		public synchronized void onConnected(String address, String name) {
+			mEvents.add("connected " + address + " " + name);
+		}
+
+		public synchronized void onNotice(String address, String text) {
+			mEvents.add("notice " + address + " " + text);
+		}
+
+		public synchronized void onReadings(HxmBatch batch) {
+			mBatchSizes.add(batch.size());
+			mDropped.add(batch.getDroppedCount());
+			for (int i = 0; i < batch.size(); i++) {
+				byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+				batch.copyFrame(i, frame, 0);
+				mFrames.add(frame);
+				mAddresses.add(batch.getAddress(i));
+				mReceivedNanos.add(batch.getReceivedNanos(i));
+			}
+			notifyAll();
+		}
+
+		synchronized int size() {
+			return mFrames.size();
+		}
+
+		synchronized void waitFor(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + HxmServiceTest.TIMEOUT_MS;
+			while (mFrames.size() < count) {
+				long left = end - System.currentTimeMillis();
+				assertTrue("waiting for " + count + " messages, have " + mFrames.size(), left > 0);
+				wait(left);
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/*
+ * HxmTraceTest
+ *
+ * The gaps between stamps, for a message that made it to the screen and for one
+ * a newer message took the place of.
+ */
+public class HxmTraceTest {
+
+	@Test
+	public void rendered() {
+		long[] stamps = { 1000000, 1500000, 1600000, 3600000, 17000000, 17100000, 19100000 };
+		HxmTrace trace = new HxmTrace(HxmServiceTest.address(0), stamps, false);
+		stamps[HxmTrace.RENDERED] = 0;
+
+		assertEquals(HxmServiceTest.address(0), trace.getAddress());
+		assertFalse(trace.isSuperseded());
+		assertEquals(19100000, trace.getStamp(HxmTrace.RENDERED));
+		assertEquals(0, trace.getStageNanos(HxmTrace.RECEIVED));
+		assertEquals(500000, trace.getStageNanos(HxmTrace.DISPATCHED));
+		assertEquals(13400000, trace.getStageNanos(HxmTrace.RENDER_DUE));
+		assertEquals(18100000, trace.getTotalNanos());
+		assertEquals(HxmServiceTest.address(0) + ": 18.1ms, dispatched +0.5, decoded +0.1, processed +2.0,"
+				+ " render due +13.4, render started +0.1, rendered +2.0", trace.toString());
+	}
+
+	@Test
+	public void superseded() {
+		long[] stamps = { 1000000, 1500000, 1600000, 3600000, 0, 0, 0 };
+		HxmTrace trace = new HxmTrace(HxmServiceTest.address(0), stamps, true);
+
+		assertTrue(trace.isSuperseded());
+		assertEquals(0, trace.getStageNanos(HxmTrace.RENDER_DUE));
+		assertEquals(2600000, trace.getTotalNanos());
+		assertEquals(HxmServiceTest.address(0) + ": 2.6ms, superseded, dispatched +0.5, decoded +0.1, processed +2.0",
+				trace.toString());
+	}
+
+	@Test
+	public void receivedOnly() {
+		HxmTrace trace = new HxmTrace(HxmServiceTest.address(0), new long[HxmTrace.STAGE_COUNT], false);
+		assertEquals(0, trace.getTotalNanos());
+		assertEquals(HxmServiceTest.address(0) + ": 0.0ms", trace.toString());
+	}
+}
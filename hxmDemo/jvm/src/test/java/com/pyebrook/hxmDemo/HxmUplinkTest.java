@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * HxmUplinkTest
+ *
+ * The uplink's batches, through each of its transports and back out with read(),
+ * have to give back the messages that went in byte for byte, device by device.
+ */
+public class HxmUplinkTest {
+
+	private static final int DEVICES = 3;
+	private static final int SECONDS = 600;
+
+	/*
+	 * Small enough for a few batches, few enough of them that the sender never falls
+	 * MAX_QUEUED_BATCHES behind and throws one away
+	 */
+	private static final int BATCH_BYTES = 4096;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void fileTransportRoundTrip() throws Exception {
+		File file = mFolder.newFile("uplink.hxu");
+		HxmUplink uplink = new HxmUplink(new HxmUplink.FileTransport(file), BATCH_BYTES, HxmUplink.DEFAULT_MAX_DELAY_MS);
+		List<List<byte[]>> sent = feed(uplink, 1);
+		close(uplink);
+
+		assertTrue(uplink.getBatchCount() > 1);
+		assertEquals(0, uplink.getFailedBatchCount());
+		assertEquals(0, uplink.getDroppedBatchCount());
+		assertEquals(uplink.getBatchCount(), readAll(new FileInputStream(file), sent));
+	}
+
+	@Test
+	public void fileTransportAppends() throws Exception {
+		File file = mFolder.newFile("uplink.hxu");
+		HxmUplink first = new HxmUplink(new HxmUplink.FileTransport(file));
+		List<List<byte[]>> sent = feed(first, 1);
+		close(first);
+
+		HxmUplink second = new HxmUplink(new HxmUplink.FileTransport(file));
+		List<List<byte[]>> more = feed(second, 2);
+		close(second);
+		for (int d = 0; d < DEVICES; d++)
+			sent.get(d).addAll(more.get(d));
+
+		assertEquals(first.getBatchCount() + second.getBatchCount(), readAll(new FileInputStream(file), sent));
+	}
+
+	@Test
+	public void socketTransportRoundTrip() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		try {
+			Receiving receiving = new Receiving(server);
+			receiving.start();
+
+			HxmUplink uplink = new HxmUplink(new HxmUplink.SocketTransport("127.0.0.1", server.getLocalPort()), BATCH_BYTES,
+					HxmUplink.DEFAULT_MAX_DELAY_MS);
+			List<List<byte[]>> sent = feed(uplink, 1);
+			close(uplink);
+
+			// The connection ends when the transport is closed after the last batch
+			receiving.join(5000);
+			assertEquals(0, uplink.getFailedBatchCount());
+			assertEquals(0, uplink.getDroppedBatchCount());
+			assertEquals(uplink.getBatchCount(), readAll(new ByteArrayInputStream(receiving.getBytes()), sent));
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void socketTransportFailureIsCounted() throws Exception {
+		// A port nothing is listening on any more
+		ServerSocket server = new ServerSocket(0);
+		int port = server.getLocalPort();
+		server.close();
+
+		HxmUplink uplink = new HxmUplink(new HxmUplink.SocketTransport("127.0.0.1", port), BATCH_BYTES,
+				HxmUplink.DEFAULT_MAX_DELAY_MS);
+		feed(uplink, 1);
+		close(uplink);
+
+		assertEquals(uplink.getBatchCount(), uplink.getFailedBatchCount());
+		assertEquals(0, uplink.getSentBatchCount());
+	}
+
+	@Test
+	public void dueBatchIsSentWithoutMoreMessages() throws Exception {
+		File file = mFolder.newFile("uplink.hxu");
+		HxmUplink uplink = new HxmUplink(new HxmUplink.FileTransport(file), HxmUplink.DEFAULT_BATCH_BYTES, 100);
+
+		byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+		new HxmSimulator(1).nextFrame(frame, 0);
+		uplink.process("a", 1, new HrmReading(frame, 0), System.nanoTime());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (uplink.getSentBatchCount() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(1, uplink.getSentBatchCount());
+
+		final List<byte[]> received = new ArrayList<byte[]>();
+		InputStream in = new FileInputStream(file);
+		assertTrue(HxmUplink.read(in, new HxmUplink.Receiver() {
+			public void frame(long deviceId, long time, byte[] buffer, int offset) {
+				received.add(copy(buffer, offset));
+			}
+		}));
+		in.close();
+		assertEquals(1, received.size());
+		assertArrayEquals(frame, received.get(0));
+		uplink.close();
+	}
+
+	/*
+	 * SECONDS messages from each of DEVICES simulators, a second apart, the ones
+	 * that went in for each device in order
+	 */
+	private static List<List<byte[]>> feed(HxmUplink uplink, long seed) {
+		List<List<byte[]>> sent = new ArrayList<List<byte[]>>();
+		HxmSimulator[] simulators = new HxmSimulator[DEVICES];
+		for (int d = 0; d < DEVICES; d++) {
+			simulators[d] = new HxmSimulator(seed * 100 + d);
+			sent.add(new ArrayList<byte[]>());
+		}
+
+		HrmReading reading = new HrmReading();
+		long start = System.nanoTime() - SECONDS * 1000000000L;
+		for (int s = 0; s < SECONDS; s++) {
+			for (int d = 0; d < DEVICES; d++) {
+				byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+				simulators[d].nextFrame(frame, 0);
+				sent.get(d).add(frame);
+				uplink.process("device " + d, d, reading.wrap(frame, 0), start + s * 1000000000L + d * 1000000L);
+			}
+		}
+		return sent;
+	}
+
+	/*
+	 * Close the uplink and wait for the sender to be done with every batch
+	 */
+	private static void close(HxmUplink uplink) throws InterruptedException {
+		uplink.close();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (uplink.getSentBatchCount() + uplink.getFailedBatchCount() + uplink.getDroppedBatchCount() < uplink.getBatchCount()
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+	}
+
+	/*
+	 * Read every batch and check the messages against what was sent
+	 *
+	 * @return the number of batches
+	 */
+	private static long readAll(InputStream stream, List<List<byte[]>> sent) throws IOException {
+		final List<List<byte[]>> received = new ArrayList<List<byte[]>>();
+		for (int d = 0; d < sent.size(); d++)
+			received.add(new ArrayList<byte[]>());
+
+		InputStream in = new BufferedInputStream(stream);
+		long batches = 0;
+		try {
+			while (HxmUplink.read(in, new HxmUplink.Receiver() {
+				public void frame(long deviceId, long time, byte[] frame, int offset) {
+					received.get((int) deviceId).add(copy(frame, offset));
+				}
+			}))
+				batches++;
+		} finally {
+			in.close();
+		}
+
+		for (int d = 0; d < sent.size(); d++) {
+			assertEquals("device " + d, sent.get(d).size(), received.get(d).size());
+			for (int i = 0; i < sent.get(d).size(); i++)
+				assertArrayEquals("device " + d + " message " + i, sent.get(d).get(i), received.get(d).get(i));
+		}
+		return batches;
+	}
+
+	private static byte[] copy(byte[] buffer, int offset) {
+		byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+		System.arraycopy(buffer, offset, frame, 0, frame.length);
+		return frame;
+	}
+
+	/*
+	 * Takes one connection and keeps everything sent on it until it ends
+	 */
+	private static class Receiving extends Thread {
+		private final ServerSocket mServer;
+		private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+		Receiving(ServerSocket server) {
+			mServer = server;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Socket socket = mServer.accept();
+				InputStream in = socket.getInputStream();
+				byte[] buffer = new byte[4096];
+				int count;
+				while ((count = in.read(buffer)) >= 0) {
+					synchronized (mBytes) {
+						mBytes.write(buffer, 0, count);
+					}
+				}
+				socket.close();
+			} catch (IOException e) {
+				// The test finds out from what did or didn't arrive
+			}
+		}
+
+		byte[] getBytes() {
+			synchronized (mBytes) {
+				return mBytes.toByteArray();
+			}
+		}
+	}
+}
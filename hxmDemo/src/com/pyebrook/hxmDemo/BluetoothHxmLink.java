@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+/*
+ * BluetoothHxmLink
+ *
+ * An HxmLink to a Zephyr HxM over a Bluetooth RFCOMM socket.  A new socket is
+ * created every time connect() is called, so the same link can be used to
+ * reconnect to the device.
+ *
+ * A connection lasts from the moment connect() starts until close() ends it,
+ * whether or not connect() managed to make it.  A close() with no connection to
+ * end is kept for the next connect(), which fails on it, so a session cancelled
+ * just before it connects can't connect anyway.
+ */
+public class BluetoothHxmLink implements HxmLink {
+	private static final String TAG = "BluetoothHxmLink";
+
+    // Unique UUID for use by this application, it is the generic & well-known SPP UID
+	private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+
+	private final BluetoothAdapter mAdapter;
+	private final BluetoothDevice mDevice;
+
+	/*
+	 * Guarded by this
+	 */
+	private BluetoothSocket mSocket = null;
+	private boolean mConnecting = false;
+	private boolean mClosed = false;
+
+	public BluetoothHxmLink(BluetoothAdapter adapter, BluetoothDevice device) {
+		mAdapter = adapter;
+		mDevice = device;
+	}
+
+	public String getAddress() {
+		return mDevice.getAddress();
+	}
+
+	public String getName() {
+		return mDevice.getName();
+	}
+
+	public boolean isReconnectable() {
+		return true;
+	}
+
+	public BluetoothDevice getDevice() {
+		return mDevice;
+	}
+
+	/*
+	 * Connect the way that worked last time, and if that fails try the other way
+	 * once before giving up.  Whichever way connects is remembered for every link,
+	 * see the notes on the workaround below.
+	 */
+	public InputStream connect() throws IOException {
+        // Always cancel discovery because it will slow down a connection
+		if (mAdapter != null)
+			mAdapter.cancelDiscovery();
+
+		synchronized (this) {
+			if (mClosed) {
+				mClosed = false;
+				throw new IOException("BluetoothHxmLink.connect(): " + getAddress() + " was closed before it connected");
+			}
+			mConnecting = true;
+		}
+
+		boolean workaround = sStrategy != STRATEGY_STANDARD;
+		try {
+			return connect(workaround);
+		} catch (IOException e) {
+			// Closed while it was connecting, the session has been cancelled
+			if (!isConnecting())
+				throw e;
+			Log.e(TAG, "connect(): " + strategyName(workaround) + " socket didn't connect to " + getAddress()
+					+ ", trying the " + strategyName(!workaround) + " socket", e);
+		}
+		return connect(!workaround);
+	}
+
+	private InputStream connect(boolean workaround) throws IOException {
+		BluetoothSocket socket = workaround ? createWorkaroundSocket(mDevice) : mDevice.createRfcommSocketToServiceRecord(MY_UUID);
+		synchronized (this) {
+			if (!mConnecting) {
+				closeSocket(socket);
+				throw new IOException("BluetoothHxmLink.connect(): " + getAddress() + " has been closed");
+			}
+			mSocket = socket;
+		}
+
+		try {
+	        // This is a blocking call and will only return on a successful connection or an exception
+			socket.connect();
+		} catch (IOException e) {
+			closeSocket(socket);
+			throw e;
+		}
+
+		sStrategy = workaround ? STRATEGY_WORKAROUND : STRATEGY_STANDARD;
+		return socket.getInputStream();
+	}
+
+	/*
+	 * Close the socket, which makes a connect() in progress fail without trying the
+	 * other way, and end the connection.  The link can still be connected again
+	 * afterwards.  With no connection to end, the next connect() fails instead.
+	 */
+	public void close() {
+		BluetoothSocket socket;
+		synchronized (this) {
+			socket = mSocket;
+			mSocket = null;
+			if (mConnecting)
+				mConnecting = false;
+			else
+				mClosed = true;
+		}
+		if (socket != null)
+			closeSocket(socket);
+	}
+
+	private synchronized boolean isConnecting() {
+		return mConnecting;
+	}
+
+	private static void closeSocket(BluetoothSocket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close(): close() of socket failed", e);
+		}
+	}
+
+	private static String strategyName(boolean workaround) {
+		return workaround ? "workaround" : "standard";
+	}
+
+	/*
+	 * The way of making a socket that last connected, for every link.  Until one has
+	 * connected the workaround is tried first.
+	 */
+	private static final int STRATEGY_UNKNOWN = 0;
+	private static final int STRATEGY_WORKAROUND = 1;
+	private static final int STRATEGY_STANDARD = 2;
+	private static volatile int sStrategy = STRATEGY_UNKNOWN;
+
+	/*
+	 * The workaround method, looked up the first time a socket is needed and then
+	 * remembered.  Null if it isn't there.
+	 */
+	private static Method sCreateRfcommSocket = null;
+	private static boolean sResolved = false;
+
+	/* ****************************************************************************************
+	 * IMPORTANT!   IMPORTANT!   IMPORTANT!   IMPORTANT!   IMPORTANT!   IMPORTANT!   IMPORTANT!   
+	 * ****************************************************************************************
+	 * 
+	 * There are some 'issues' with the Bluetooth issues with some versions of Android, and with
+	 * some specific devices.  Ordinarily all you would have to do to create the BLuetooth socket
+	 * is use the create call, specifying the UID of the Bluetooth service profile that will be
+	 * used for the connection.     In the case of our application that call would look 
+	 * like this:
+	 *                  tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
+	 *                  
+	 * The problem is, sometimes when you make that call an error will return either from the 
+	 * attempt to create the socket, or later when the attempt is made to connect to the socket.
+	 * The error code most often reported is 'Unable to start service discovery For device'.
+	 * 
+	 * Obviously this is a problem because you can't create a connection to any device on any
+	 * known UID if the call does not work.
+	 * 
+	 * There is a technique that has been used to work around this issue.  It is referred to as 
+	 * 'java reflection'.  If you are not familiar and are interested, an Internet search for 
+	 * the term will give you lots of interesting reading on the topic.
+	 * 
+	 * The important thing for us is that it gives us a means to call directly into the 
+	 * Bluetooth rfcomm class/object avoiding whatever problem is present in the current 
+	 * Android+Bluetooth+Handset implementation.
+	 * 
+	 * Our application creates the connection using this technique as follows:
+	 * 
+	 *   	Method m = device.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
+     * 	    tmp = (BluetoothSocket) m.invoke(device, 1);            	            	
+	 *
+	 * 
+	 * CAUTION:  
+	 * The problem with doing this is that there isn't any guarantee that the call we are accessing 
+	 * will be there in future versions of the platform.  And if it is there no guarantee that
+	 * it will work in the same manner.  If you look at the current implementation of the rfcomm 
+	 * object you will find several places where there is embedded commentary warning developers 
+	 * noting that the class is likely to change in the future.
+	 * 
+	 * When you build your applications, consider if it is appropriate to restrict the allowed 
+	 * platforms to the ones that you have thoroughly tested.  You may also consider an  
+	 * implementation that uses both the standard implementation and the workaround implementation
+	 * such that if the documented approach does not work, the workaround is attempted as a 
+	 * fall-back.  
+	 * 
+	 * It is also advisable to make sure that the error reporting mechanism within your application is 
+	 * especially robust so that problems that users have that may end up being related to the bluetooth
+	 * issue are quickly isolated. 
+	 * 
+	 * This application does both.  The workaround is looked up once, the first time a socket is
+	 * needed, and tried first.  If it isn't there, or the socket it makes won't connect, that
+	 * socket is closed and the standard call is tried straight away.  Whichever of the two
+	 * actually connects is remembered and tried first from then on, the other one is still
+	 * tried once whenever it fails.
+	 * 
+	 */
+	private static synchronized Method createRfcommSocketMethod(BluetoothDevice device) {
+		if (!sResolved) {
+			try {
+				sCreateRfcommSocket = device.getClass().getMethod("createRfcommSocket", new Class<?>[] {int.class});
+			} catch (SecurityException e) {
+		        Log.e(TAG, "createRfcommSocketMethod() SecurityException, using the standard socket", e);
+			} catch (NoSuchMethodException e) {
+		        Log.e(TAG, "createRfcommSocketMethod() NoSuchMethodException, using the standard socket", e);
+			}
+			sResolved = true;
+		}
+
+		return sCreateRfcommSocket;
+	}
+
+	/*
+	 * Get a BluetoothSocket for a connection with the given BluetoothDevice made with
+	 * the workaround, the IOException says why if it can't be
+	 */
+	private static BluetoothSocket createWorkaroundSocket(BluetoothDevice device) throws IOException {
+		Method m = createRfcommSocketMethod(device);
+		if (m == null)
+			throw new IOException("BluetoothHxmLink.createWorkaroundSocket(): createRfcommSocket isn't available");
+
+		try {
+		    BluetoothSocket tmp = (BluetoothSocket) m.invoke(device, 1);
+		    if (tmp == null)
+		    	throw new IOException("BluetoothHxmLink.createWorkaroundSocket(): createRfcommSocket returned null");
+		    return tmp;
+		} catch (IllegalArgumentException e) {
+			throw workaroundFailed(e);
+		} catch (IllegalAccessException e) {
+			throw workaroundFailed(e);
+		} catch (InvocationTargetException e) {
+			throw workaroundFailed(e.getCause());
+		}
+	}
+
+	private static IOException workaroundFailed(Throwable cause) {
+		IOException e = new IOException("BluetoothHxmLink.createWorkaroundSocket(): createRfcommSocket failed, " + cause);
+		e.initCause(cause);
+		return e;
+	}
+}
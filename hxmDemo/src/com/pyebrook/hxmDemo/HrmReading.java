@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import android.util.Log;
+
+/*
+ * HrmReading
+ *
+ * This class gives access to the information in a single message from the
+ * Zephyr HxM Heart Rate Monitor.
+ *
+ * An HrmReading doesn't copy anything out of the message, it is a view over the
+ * message bytes wherever they happen to be.  Point it at a message with wrap()
+ * and each accessor pulls its field out of the bytes when it is called.  The
+ * same HrmReading can be wrapped around message after message, so reading the
+ * data from the HxM doesn't create an object per message.
+ *
+ * Because Java does not support signed/unsigned variants of numbers, the
+ * accessors return the unsigned HxM fields in an int.
+ *
+ * The view is only as good as the bytes under it, if they get reused for
+ * another message the accessors will return that message's values.
+ */
+public class HrmReading {
+	private static final String TAG = "HrmReading";
+
+	/*
+	 * Where each field lives in the message, see the HxM API guide
+	 */
+	public static final int OFFSET_STX = 0;
+	public static final int OFFSET_MSGID = 1;
+	public static final int OFFSET_DLC = 2;
+	public static final int OFFSET_FIRMWARE_ID = 3;
+	public static final int OFFSET_FIRMWARE_VERSION = 5;
+	public static final int OFFSET_HARDWARE_ID = 7;
+	public static final int OFFSET_HARDWARE_VERSION = 9;
+	public static final int OFFSET_BATTERY_INDICATOR = 11;
+	public static final int OFFSET_HEART_RATE = 12;
+	public static final int OFFSET_HEART_BEAT_NUMBER = 13;
+	public static final int OFFSET_HB_TIME = 14;
+	public static final int OFFSET_RESERVED1 = 44;
+	public static final int OFFSET_RESERVED2 = 46;
+	public static final int OFFSET_RESERVED3 = 48;
+	public static final int OFFSET_DISTANCE = 50;
+	public static final int OFFSET_SPEED = 52;
+	public static final int OFFSET_STRIDES = 54;
+	public static final int OFFSET_RESERVED4 = 55;
+	public static final int OFFSET_RESERVED5 = 56;
+	public static final int OFFSET_CRC = 58;
+	public static final int OFFSET_ETX = 59;
+
+	/*
+	 * The message carries the time stamps of the last 15 heart beats
+	 */
+	public static final int HB_TIME_COUNT = 15;
+
+	private byte[] mBuffer;
+	private int mOffset;
+
+	/*
+	 * An empty view, wrap() it around a message before using it
+	 */
+	public HrmReading() {
+	}
+
+	public HrmReading(byte[] buffer, int offset) {
+		wrap(buffer, offset);
+	}
+
+	/*
+	 * Point this view at the message starting at buffer[offset]
+	 */
+	public HrmReading wrap(byte[] buffer, int offset) {
+		mBuffer = buffer;
+		mOffset = offset;
+		return this;
+	}
+
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	public int getOffset() {
+		return mOffset;
+	}
+
+	public int stx() {
+		return u8(OFFSET_STX);
+	}
+
+	public int msgId() {
+		return u8(OFFSET_MSGID);
+	}
+
+	public int dlc() {
+		return u8(OFFSET_DLC);
+	}
+
+	public int firmwareId() {
+		return u16(OFFSET_FIRMWARE_ID);
+	}
+
+	public int firmwareVersion() {
+		return u16(OFFSET_FIRMWARE_VERSION);
+	}
+
+	public int hardwareId() {
+		return u16(OFFSET_HARDWARE_ID);
+	}
+
+	public int hardwareVersion() {
+		return u16(OFFSET_HARDWARE_VERSION);
+	}
+
+	/*
+	 * Battery charge, in percent
+	 */
+	public int batteryIndicator() {
+		return u8(OFFSET_BATTERY_INDICATOR);
+	}
+
+	/*
+	 * Beats per minute
+	 */
+	public int heartRate() {
+		return u8(OFFSET_HEART_RATE);
+	}
+
+	/*
+	 * Count of heart beats, rolls over from 255 to 0
+	 */
+	public int heartBeatNumber() {
+		return u8(OFFSET_HEART_BEAT_NUMBER);
+	}
+
+	/*
+	 * Time stamp of a recent heart beat in milliseconds, rolls over from 65535 to 0.
+	 * Time stamp 1 belongs to the newest beat, heartBeatNumber(), and time stamp 15 to
+	 * the oldest.
+	 *
+	 * @param i  1 through HB_TIME_COUNT
+	 */
+	public int hbTime(int i) {
+		return u16(OFFSET_HB_TIME + 2 * (i - 1));
+	}
+
+	public int reserved1() {
+		return u16(OFFSET_RESERVED1);
+	}
+
+	public int reserved2() {
+		return u16(OFFSET_RESERVED2);
+	}
+
+	public int reserved3() {
+		return u16(OFFSET_RESERVED3);
+	}
+
+	/*
+	 * Distance covered in 1/16 meter steps, rolls over at 4095
+	 */
+	public int distance() {
+		return u16(OFFSET_DISTANCE);
+	}
+
+	/*
+	 * Speed in 1/256 meter per second steps
+	 */
+	public int speed() {
+		return u16(OFFSET_SPEED);
+	}
+
+	/*
+	 * Count of strides, rolls over at 127
+	 */
+	public int strides() {
+		return u8(OFFSET_STRIDES);
+	}
+
+	public int reserved4() {
+		return u8(OFFSET_RESERVED4);
+	}
+
+	public int reserved5() {
+		return u16(OFFSET_RESERVED5);
+	}
+
+	public int crc() {
+		return u8(OFFSET_CRC);
+	}
+
+	public int etx() {
+		return u8(OFFSET_ETX);
+	}
+
+	/*
+	 * dump() sends the contents of the HrmReading to the log, use 'logcat' to view
+	 */
+	public void dump() {
+		Log.d(TAG,"HrmReading Dump");
+		Log.d(TAG,"...stx "+ stx());
+		Log.d(TAG,"...msgId "+ msgId());
+		Log.d(TAG,"...dlc "+ dlc());
+		Log.d(TAG,"...firmwareId "+ firmwareId());
+		Log.d(TAG,"...firmwareVersion "+ firmwareVersion());
+		Log.d(TAG,"...hardwareId "+ hardwareId());
+		Log.d(TAG,"...hardwareVersion "+ hardwareVersion());
+		Log.d(TAG,"...batteryIndicator "+ batteryIndicator());
+		Log.d(TAG,"...heartRate "+ heartRate());
+		Log.d(TAG,"...heartBeatNumber "+ heartBeatNumber());
+		for (int i = 1; i <= HB_TIME_COUNT; i++)
+			Log.d(TAG,"...hbTime" + i + " " + hbTime(i));
+		Log.d(TAG,"...reserved1 "+ reserved1());
+		Log.d(TAG,"...reserved2 "+ reserved2());
+		Log.d(TAG,"...reserved3 "+ reserved3());
+		Log.d(TAG,"...distance "+ distance());
+		Log.d(TAG,"...speed "+ speed());
+		Log.d(TAG,"...strides "+ strides());
+		Log.d(TAG,"...reserved4 "+ reserved4());
+		Log.d(TAG,"...reserved5 "+ reserved5());
+		Log.d(TAG,"...crc "+ crc());
+		Log.d(TAG,"...etx "+ etx());
+	}
+
+	/*
+	 * Unsigned byte at a message offset
+	 */
+	private int u8(int index) {
+		return u8(mBuffer, mOffset + index);
+	}
+
+	/*
+	 * Unsigned little endian 16 bit value at a message offset
+	 */
+	private int u16(int index) {
+		return u16(mBuffer, mOffset + index);
+	}
+
+	/*
+	 * The same for a message that isn't wrapped, index is from the start of the buffer
+	 */
+	static int u8(byte[] buffer, int index) {
+		return buffer[index] & 0xFF;
+	}
+
+	static int u16(byte[] buffer, int index) {
+		return (buffer[index] & 0xFF) | ((buffer[index + 1] & 0xFF) << 8);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+/*
+ * HxmBatch
+ *
+ * A batch of messages from the HxM devices handed to an HxmListener.  The batch
+ * belongs to the subscription and is filled again for the next call, so it, and the
+ * reading getReading() returns, must not be kept after onReadings() returns.  Copy
+ * what is needed with copyFrame().
+ */
+public class HxmBatch {
+	private final byte[] mFrames;
+	private final long[] mReceivedNanos;
+	private final String[] mAddresses;
+	private final HrmReading mReading = new HrmReading();
+	private int mSize = 0;
+	private long mDroppedCount = 0;
+
+	HxmBatch(int capacity) {
+		mFrames = new byte[capacity * HxmFrameReader.FRAME_LENGTH];
+		mReceivedNanos = new long[capacity];
+		mAddresses = new String[capacity];
+	}
+
+	/*
+	 * Number of messages in the batch
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	public int getCapacity() {
+		return mReceivedNanos.length;
+	}
+
+	/*
+	 * Number of messages the subscription has had to drop since the last batch
+	 * because the listener wasn't keeping up
+	 */
+	public long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/*
+	 * The device message i came from
+	 */
+	public String getAddress(int i) {
+		return mAddresses[i];
+	}
+
+	/*
+	 * When message i arrived, on the System.nanoTime() clock
+	 */
+	public long getReceivedNanos(int i) {
+		return mReceivedNanos[i];
+	}
+
+	/*
+	 * Message i.  The same reading is returned every time, looking at it
+	 * through another call to getReading() moves it to the new message.
+	 */
+	public HrmReading getReading(int i) {
+		checkIndex(i);
+		return mReading.wrap(mFrames, i * HxmFrameReader.FRAME_LENGTH);
+	}
+
+	public void copyFrame(int i, byte[] dst, int offset) {
+		checkIndex(i);
+		System.arraycopy(mFrames, i * HxmFrameReader.FRAME_LENGTH, dst, offset, HxmFrameReader.FRAME_LENGTH);
+	}
+
+	void clear(long droppedCount) {
+		mSize = 0;
+		mDroppedCount = droppedCount;
+	}
+
+	void add(String address, byte[] buffer, int offset, long receivedNanos) {
+		System.arraycopy(buffer, offset, mFrames, mSize * HxmFrameReader.FRAME_LENGTH, HxmFrameReader.FRAME_LENGTH);
+		mReceivedNanos[mSize] = receivedNanos;
+		mAddresses[mSize] = address;
+		mSize++;
+	}
+
+	boolean isFull() {
+		return mSize == mReceivedNanos.length;
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= mSize)
+			throw new IndexOutOfBoundsException("HxmBatch: message " + i + " of " + mSize);
+	}
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * HxmColumnStore
+ *
+ * Reads the decoded HxM fields written by HxmColumnWriter, a field at a time.
+ *
+ * A recording keeps whole messages, so looking at one field over a day means
+ * going through every message.  The column store keeps each field on its own
+ * instead, in a file per device per field, so a question like "heart rate for this
+ * strap between 10 and 11" only reads the time file and the heart rate file, and
+ * only the parts of those that cover the hour.
+ *
+ * The files for a device are named after its id, see HxmRecorder.getDeviceId(), as
+ * 16 hex digits:
+ *
+ *     <id>.idx         the index, one entry per block
+ *     <id>.time        the time of each row, milliseconds since the epoch
+ *     <id>.heartRate   one file for each of COLUMN_NAMES
+ *     ...
+ *
+ * Rows are written in blocks of up to a thousand or so.  Within a block each
+ * column is stored as the difference from the row before, zig-zag encoded so small
+ * negative differences stay small, and written as a variable length integer, seven
+ * bits to a byte.  Heart rate, speed and the counters barely change from one second
+ * to the next, so most rows cost a byte per column.
+ *
+ * An index entry, all big endian:
+ *
+ *     0   long      time of the first row in the block
+ *     8   long      time of the last row in the block
+ *     16  int       number of rows in the block
+ *     20  long+int  offset and length of the block in the time file
+ *     32  long+int  offset and length of the block in each column file, in order
+ *
+ * The index for a device is read once and kept, new entries are read as the file
+ * grows.  It is small, a day of one strap is under a hundred entries, so a query
+ * just looks at every entry and reads the blocks that overlap.
+ *
+ * Queries may be made from any thread, and while the writer is adding to the store.
+ */
+public class HxmColumnStore {
+
+	public static final int COLUMN_HEART_RATE = 0;
+	public static final int COLUMN_HEART_BEAT_NUMBER = 1;
+	public static final int COLUMN_BATTERY = 2;
+	public static final int COLUMN_DISTANCE = 3;
+	public static final int COLUMN_SPEED = 4;
+	public static final int COLUMN_STRIDES = 5;
+	public static final int COLUMN_COUNT = 6;
+
+	private static final String[] COLUMN_NAMES = {
+		"heartRate", "heartBeatNumber", "battery", "distance", "speed", "strides"
+	};
+
+	static final String INDEX_SUFFIX = ".idx";
+	static final String TIME_SUFFIX = ".time";
+
+	static final int INDEX_ENTRY_SIZE = 20 + (COLUMN_COUNT + 1) * 12;
+
+	private final File mDirectory;
+
+	/*
+	 * Guarded by itself
+	 */
+	private final Map<Long, Index> mIndexes = new HashMap<Long, Index>();
+
+	public HxmColumnStore(File directory) {
+		mDirectory = directory;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	public static String getColumnName(int column) {
+		return COLUMN_NAMES[column];
+	}
+
+	/*
+	 * The value of a column in a message
+	 */
+	public static int getValue(HrmReading reading, int column) {
+		switch (column) {
+		case COLUMN_HEART_RATE:
+			return reading.heartRate();
+		case COLUMN_HEART_BEAT_NUMBER:
+			return reading.heartBeatNumber();
+		case COLUMN_BATTERY:
+			return reading.batteryIndicator();
+		case COLUMN_DISTANCE:
+			return reading.distance();
+		case COLUMN_SPEED:
+			return reading.speed();
+		case COLUMN_STRIDES:
+			return reading.strides();
+		default:
+			throw new IllegalArgumentException("HxmColumnStore.getValue(): unknown column " + column);
+		}
+	}
+
+	/*
+	 * Every device with something in the store
+	 */
+	public Set<Long> getDeviceIds() {
+		Set<Long> ids = new LinkedHashSet<Long>();
+		String[] names = mDirectory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.length() == 16 + INDEX_SUFFIX.length() && name.endsWith(INDEX_SUFFIX);
+			}
+		});
+
+		if (names != null) {
+			for (String name : names) {
+				try {
+					ids.add(parseDeviceId(name.substring(0, 16)));
+				} catch (NumberFormatException e) {
+					// Not one of ours
+				}
+			}
+		}
+		return ids;
+	}
+
+	/*
+	 * One column for a device from time from up to but not including time to
+	 */
+	public Series query(long deviceId, int column, long from, long to) throws IOException {
+		return query(deviceId, new int[] { column }, from, to);
+	}
+
+	/**
+	 * Some of the columns for a device over a stretch of time.  Only the blocks of the
+	 * time file and the asked for columns that overlap the stretch are read.
+	 *
+	 * @param deviceId  see HxmRecorder.getDeviceId()
+	 * @param columns   the COLUMN_ values wanted
+	 * @param from      the first time wanted, milliseconds since the epoch
+	 * @param to        the end of the stretch, not included
+	 */
+	public Series query(long deviceId, int[] columns, long from, long to) throws IOException {
+		for (int column : columns) {
+			if (column < 0 || column >= COLUMN_COUNT)
+				throw new IllegalArgumentException("HxmColumnStore.query(): unknown column " + column);
+		}
+
+		Series series = new Series(columns);
+		Index index = getIndex(deviceId);
+		if (index == null)
+			return series;
+
+		FileChannel times = null;
+		FileChannel[] values = new FileChannel[columns.length];
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		long[] rowTimes = new long[0];
+		long[] rowValues = new long[0];
+
+		try {
+			for (int block = 0; block < index.mCount; block++) {
+				if (index.mLast[block] < from || index.mFirst[block] >= to)
+					continue;
+
+				int rows = index.mRows[block];
+				if (rowTimes.length < rows) {
+					rowTimes = new long[rows];
+					rowValues = new long[rows];
+				}
+
+				if (times == null)
+					times = open(deviceId, TIME_SUFFIX);
+				buffer = read(times, index.getOffset(block, -1), index.getLength(block, -1), buffer);
+				decode(buffer, rows, rowTimes);
+
+				int first = series.mCount;
+				for (int row = 0; row < rows; row++) {
+					if (rowTimes[row] >= from && rowTimes[row] < to)
+						series.addTime(rowTimes[row]);
+				}
+				if (series.mCount == first)
+					continue;
+
+				for (int i = 0; i < columns.length; i++) {
+					if (values[i] == null)
+						values[i] = open(deviceId, "." + COLUMN_NAMES[columns[i]]);
+					buffer = read(values[i], index.getOffset(block, columns[i]), index.getLength(block, columns[i]), buffer);
+					decode(buffer, rows, rowValues);
+
+					int at = first;
+					for (int row = 0; row < rows; row++) {
+						if (rowTimes[row] >= from && rowTimes[row] < to)
+							series.mValues[i][at++] = (int) rowValues[row];
+					}
+				}
+			}
+		} finally {
+			close(times);
+			for (FileChannel channel : values)
+				close(channel);
+		}
+
+		return series;
+	}
+
+	/*
+	 * The rows a query found, in the order they were written
+	 */
+	public static class Series {
+		private final int[] mColumns;
+		private int mCount = 0;
+		private long[] mTimes = new long[64];
+		private int[][] mValues;
+
+		Series(int[] columns) {
+			mColumns = columns.clone();
+			mValues = new int[columns.length][mTimes.length];
+		}
+
+		public int getCount() {
+			return mCount;
+		}
+
+		public long getTime(int row) {
+			return mTimes[row];
+		}
+
+		/*
+		 * The value of the first column asked for
+		 */
+		public int getValue(int row) {
+			return mValues[0][row];
+		}
+
+		/*
+		 * @param i  which of the columns asked for, not a COLUMN_ value
+		 */
+		public int getValue(int i, int row) {
+			return mValues[i][row];
+		}
+
+		public int getColumn(int i) {
+			return mColumns[i];
+		}
+
+		void addTime(long time) {
+			if (mCount == mTimes.length) {
+				int size = mTimes.length * 2;
+				long[] times = new long[size];
+				System.arraycopy(mTimes, 0, times, 0, mCount);
+				mTimes = times;
+				for (int i = 0; i < mValues.length; i++) {
+					int[] values = new int[size];
+					System.arraycopy(mValues[i], 0, values, 0, mCount);
+					mValues[i] = values;
+				}
+			}
+			mTimes[mCount++] = time;
+		}
+	}
+
+	/*
+	 * The index for a device, brought up to date with the file.  The Index returned
+	 * never changes, so it can be used after the lock is let go.
+	 */
+	private Index getIndex(long deviceId) throws IOException {
+		File file = getFile(mDirectory, deviceId, INDEX_SUFFIX);
+		synchronized (mIndexes) {
+			Index index = mIndexes.get(deviceId);
+			if (index == null) {
+				if (!file.exists())
+					return null;
+				index = new Index();
+			}
+			index = index.update(file);
+			mIndexes.put(deviceId, index);
+			return index;
+		}
+	}
+
+	/*
+	 * The index entries of one device, read into arrays.  An Index never changes
+	 * once it is made: update() writes the new entries past mCount, where this Index
+	 * never looks, and returns a new Index that covers them.  The arrays are only
+	 * copied when they have to grow.
+	 */
+	private static class Index {
+		final int mCount;
+		final long[] mFirst;
+		final long[] mLast;
+		final int[] mRows;
+		final long[] mOffsets;
+		final int[] mLengths;
+
+		Index() {
+			this(0, new long[0], new long[0], new int[0], new long[0], new int[0]);
+		}
+
+		private Index(int count, long[] first, long[] last, int[] rows, long[] offsets, int[] lengths) {
+			mCount = count;
+			mFirst = first;
+			mLast = last;
+			mRows = rows;
+			mOffsets = offsets;
+			mLengths = lengths;
+		}
+
+		/*
+		 * Read any entries added since this Index was made, a half written entry is
+		 * left for next time.  Only called with the lock held.
+		 */
+		Index update(File file) throws IOException {
+			long have = (long) mCount * INDEX_ENTRY_SIZE;
+			int added = (int) ((file.length() - have) / INDEX_ENTRY_SIZE);
+			if (added <= 0)
+				return this;
+
+			ByteBuffer buffer = ByteBuffer.allocate(added * INDEX_ENTRY_SIZE);
+			FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+			try {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, have + buffer.position()) < 0)
+						throw new IOException("HxmColumnStore: " + file + " got shorter");
+				}
+			} finally {
+				channel.close();
+			}
+			buffer.flip();
+
+			Index index = grow(mCount + added);
+			for (int i = mCount; i < mCount + added; i++) {
+				index.mFirst[i] = buffer.getLong();
+				index.mLast[i] = buffer.getLong();
+				index.mRows[i] = buffer.getInt();
+				for (int c = 0; c <= COLUMN_COUNT; c++) {
+					index.mOffsets[i * (COLUMN_COUNT + 1) + c] = buffer.getLong();
+					index.mLengths[i * (COLUMN_COUNT + 1) + c] = buffer.getInt();
+				}
+			}
+			return index;
+		}
+
+		/*
+		 * @param column  a COLUMN_ value, or -1 for the time column
+		 */
+		long getOffset(int block, int column) {
+			return mOffsets[block * (COLUMN_COUNT + 1) + column + 1];
+		}
+
+		int getLength(int block, int column) {
+			return mLengths[block * (COLUMN_COUNT + 1) + column + 1];
+		}
+
+		/*
+		 * A new Index of count entries, sharing this one's arrays if they are big enough
+		 */
+		private Index grow(int count) {
+			if (count <= mFirst.length)
+				return new Index(count, mFirst, mLast, mRows, mOffsets, mLengths);
+			int size = Math.max(count, mFirst.length * 2);
+
+			long[] first = new long[size];
+			long[] last = new long[size];
+			int[] rows = new int[size];
+			long[] offsets = new long[size * (COLUMN_COUNT + 1)];
+			int[] lengths = new int[size * (COLUMN_COUNT + 1)];
+			System.arraycopy(mFirst, 0, first, 0, mCount);
+			System.arraycopy(mLast, 0, last, 0, mCount);
+			System.arraycopy(mRows, 0, rows, 0, mCount);
+			System.arraycopy(mOffsets, 0, offsets, 0, mCount * (COLUMN_COUNT + 1));
+			System.arraycopy(mLengths, 0, lengths, 0, mCount * (COLUMN_COUNT + 1));
+			return new Index(count, first, last, rows, offsets, lengths);
+		}
+	}
+
+	private FileChannel open(long deviceId, String suffix) throws IOException {
+		return new RandomAccessFile(getFile(mDirectory, deviceId, suffix), "r").getChannel();
+	}
+
+	private static void close(FileChannel channel) {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Only ever read, nothing to lose
+		}
+	}
+
+	/*
+	 * Read length bytes at an offset, into buffer if it's big enough
+	 */
+	private static ByteBuffer read(FileChannel channel, long offset, int length, ByteBuffer buffer) throws IOException {
+		if (buffer.capacity() < length)
+			buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+				throw new IOException("HxmColumnStore.read(): block runs past the end of the file");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	static File getFile(File directory, long deviceId, String suffix) {
+		String hex = Long.toHexString(deviceId);
+		return new File(directory, "0000000000000000".substring(hex.length()) + hex + suffix);
+	}
+
+	static long parseDeviceId(String hex) {
+		return (Long.parseLong(hex.substring(0, 8), 16) << 32) | Long.parseLong(hex.substring(8), 16);
+	}
+
+	/*
+	 * Add a value to an encoded column, as the zig-zag varint of its difference from
+	 * the previous value.  Returns the new end of the data.
+	 */
+	static int encode(long value, long previous, byte[] buffer, int position) {
+		long delta = value - previous;
+		long zigzag = (delta << 1) ^ (delta >> 63);
+
+		while ((zigzag & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		buffer[position++] = (byte) zigzag;
+		return position;
+	}
+
+	/*
+	 * Undo encode() for a block of rows, the first row's previous value is 0
+	 */
+	static void decode(ByteBuffer buffer, int rows, long[] values) throws IOException {
+		long value = 0;
+		for (int row = 0; row < rows; row++) {
+			long zigzag = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (!buffer.hasRemaining() || shift > 63)
+					throw new IOException("HxmColumnStore.decode(): block is damaged");
+				b = buffer.get();
+				zigzag |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+
+			value += (zigzag >>> 1) ^ -(zigzag & 1);
+			values[row] = value;
+		}
+	}
+}
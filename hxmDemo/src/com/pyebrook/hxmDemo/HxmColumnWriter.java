@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/*
+ * HxmColumnWriter
+ *
+ * Decodes the fields of each message and adds them to a column store, see
+ * HxmColumnStore for the layout.
+ *
+ * Each device's rows are gathered in memory until there is a block's worth, then
+ * each column of the block is encoded and added to the end of its file, and
+ * last of all the block's index entry is added, so a reader never finds an entry
+ * for data that isn't there yet.  The files are only open while a block is
+ * written.
+ *
+ * Rows still in memory are lost if the app dies, up to a block of each device.
+ * flush() and close() write them out as a short block.  Nothing is lost for good,
+ * the HxmRecorder recording has every message.
+ *
+ * Called from the pipeline's worker.  append(), flush() and close() share a lock
+ * so they can be called from another thread.  A caller that appends for the same
+ * devices over and over keeps each one's Device from getDevice() and appends to
+ * that, so finding the device's rows costs nothing.
+ */
+public class HxmColumnWriter {
+	private static final String TAG = "HxmColumnWriter";
+
+	/*
+	 * About 17 minutes of a strap sending once a second
+	 */
+	public static final int DEFAULT_BLOCK_ROWS = 1024;
+
+	/*
+	 * The most bytes a value can take once encoded
+	 */
+	private static final int MAX_ENCODED_SIZE = 10;
+
+	private final File mDirectory;
+	private final int mBlockRows;
+
+	/*
+	 * Guarded by this
+	 */
+	private final Map<Long, Device> mDevices = new HashMap<Long, Device>();
+	private byte[] mEncoded;
+	private final ByteBuffer mEntry = ByteBuffer.allocate(HxmColumnStore.INDEX_ENTRY_SIZE);
+	private boolean mClosed = false;
+
+	private volatile long mRowCount = 0;
+	private volatile long mBlockCount = 0;
+	private volatile long mDroppedCount = 0;
+
+	public HxmColumnWriter(File directory) {
+		this(directory, DEFAULT_BLOCK_ROWS);
+	}
+
+	public HxmColumnWriter(File directory, int blockRows) {
+		if (blockRows < 1)
+			throw new IllegalArgumentException("HxmColumnWriter(): a block needs at least one row");
+
+		mDirectory = directory;
+		mBlockRows = blockRows;
+		mEncoded = new byte[blockRows * MAX_ENCODED_SIZE];
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/*
+	 * Rows appended, whether or not they have been written out yet
+	 */
+	public long getRowCount() {
+		return mRowCount;
+	}
+
+	public long getBlockCount() {
+		return mBlockCount;
+	}
+
+	/*
+	 * Rows that couldn't be stored, because the disk failed or the writer was closed
+	 */
+	public long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/*
+	 * The rows of a device, made the first time it is asked for, to pass to append()
+	 *
+	 * @param deviceId  see HxmRecorder.getDeviceId()
+	 */
+	public synchronized Device getDevice(long deviceId) {
+		Device device = mDevices.get(deviceId);
+		if (device == null) {
+			device = new Device(deviceId, mBlockRows);
+			mDevices.put(deviceId, device);
+		}
+		return device;
+	}
+
+	/**
+	 * Add a message's fields to the store.
+	 *
+	 * @param deviceId       see HxmRecorder.getDeviceId()
+	 * @param reading        the message
+	 * @param receivedNanos  when the message was received, on the System.nanoTime() clock
+	 */
+	public synchronized void append(long deviceId, HrmReading reading, long receivedNanos) {
+		append(getDevice(deviceId), reading, receivedNanos);
+	}
+
+	/**
+	 * Add a message's fields to the store.
+	 *
+	 * @param device         the device's rows, from this writer's getDevice()
+	 * @param reading        the message
+	 * @param receivedNanos  when the message was received, on the System.nanoTime() clock
+	 */
+	public synchronized void append(Device device, HrmReading reading, long receivedNanos) {
+		if (mClosed) {
+			mDroppedCount++;
+			return;
+		}
+
+		int row = device.mRows;
+		device.mTimes[row] = HxmRecorder.getWallClock(receivedNanos);
+		for (int column = 0; column < HxmColumnStore.COLUMN_COUNT; column++)
+			device.mValues[column][row] = HxmColumnStore.getValue(reading, column);
+		device.mRows++;
+		mRowCount++;
+
+		if (device.mRows == mBlockRows)
+			write(device);
+	}
+
+	/*
+	 * Write out every device's rows so far
+	 */
+	public synchronized void flush() {
+		for (Device device : mDevices.values()) {
+			if (device.mRows > 0)
+				write(device);
+		}
+	}
+
+	/*
+	 * Flush and stop, rows appended after this are dropped
+	 */
+	public synchronized void close() {
+		if (mClosed)
+			return;
+		flush();
+		mClosed = true;
+		mDevices.clear();
+	}
+
+	/*
+	 * The rows of one device that haven't been written yet, guarded by the writer
+	 */
+	public static final class Device {
+		private final long mDeviceId;
+		private int mRows = 0;
+		private final long[] mTimes;
+		private final int[][] mValues;
+
+		Device(long deviceId, int size) {
+			mDeviceId = deviceId;
+			mTimes = new long[size];
+			mValues = new int[HxmColumnStore.COLUMN_COUNT][size];
+		}
+
+		public long getDeviceId() {
+			return mDeviceId;
+		}
+	}
+
+	/*
+	 * Add a block to the end of each of the device's files and then its index entry.
+	 * If something goes wrong the writer gives up, whatever it had written before
+	 * can still be read.
+	 */
+	private void write(Device device) {
+		final long deviceId = device.mDeviceId;
+		final int rows = device.mRows;
+		device.mRows = 0;
+
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			Log.e(TAG, "write(): unable to make " + mDirectory);
+			fail(rows);
+			return;
+		}
+
+		mEntry.clear();
+		mEntry.putLong(device.mTimes[0]);
+		mEntry.putLong(device.mTimes[rows - 1]);
+		mEntry.putInt(rows);
+
+		try {
+			int length = 0;
+			long previous = 0;
+			for (int row = 0; row < rows; row++) {
+				length = HxmColumnStore.encode(device.mTimes[row], previous, mEncoded, length);
+				previous = device.mTimes[row];
+			}
+			appendTo(deviceId, HxmColumnStore.TIME_SUFFIX, length);
+
+			for (int column = 0; column < HxmColumnStore.COLUMN_COUNT; column++) {
+				final int[] values = device.mValues[column];
+				length = 0;
+				previous = 0;
+				for (int row = 0; row < rows; row++) {
+					length = HxmColumnStore.encode(values[row], previous, mEncoded, length);
+					previous = values[row];
+				}
+				appendTo(deviceId, "." + HxmColumnStore.getColumnName(column), length);
+			}
+
+			FileOutputStream index = new FileOutputStream(HxmColumnStore.getFile(mDirectory, deviceId, HxmColumnStore.INDEX_SUFFIX), true);
+			try {
+				index.write(mEntry.array(), 0, mEntry.position());
+			} finally {
+				index.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "write(): unable to write a block for " + HxmRecorder.getAddress(deviceId), e);
+			fail(rows);
+			return;
+		}
+
+		mBlockCount++;
+	}
+
+	/*
+	 * Add the first length bytes of mEncoded to the end of one of a device's files,
+	 * and put where they went in the index entry
+	 */
+	private void appendTo(long deviceId, String suffix, int length) throws IOException {
+		File file = HxmColumnStore.getFile(mDirectory, deviceId, suffix);
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			mEntry.putLong(out.getChannel().size());
+			mEntry.putInt(length);
+			out.write(mEncoded, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void fail(int rows) {
+		mDroppedCount += rows;
+		mClosed = true;
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.nio.ByteBuffer;
+
+/*
+ * The CRC-8 the HxM puts in every message.
+ *
+ * The API guide describes the CRC one bit at a time: start the accumulator at 0,
+ * and for each byte of the payload exclusive-or it into the accumulator, then eight
+ * times shift the accumulator right, exclusive-or'ing in the polynomial 0x8C
+ * whenever a 1 falls off the end.  Only the payload is covered, not STX, MSGID or
+ * DLC.
+ *
+ * The eight shifts only depend on the value of the accumulator after the byte goes
+ * in, so they are done once for all 256 values when the class loads and looked up
+ * in a table after that, one table lookup per byte.
+ *
+ * Each lookup has to wait for the one before it, which makes the byte at a time
+ * loop slower than decoding the message.  But the table is linear, the entry for
+ * a ^ b is the entry for a ^ the entry for b, so eight bytes can go in at once:
+ * the first through the table eight times over, the second seven times, and so
+ * on, each from its own table made when the class loads.  The eight lookups don't
+ * depend on each other, only the first one on the accumulator, so the processor
+ * can do them together.  The last few bytes go in one at a time.
+ */
+public final class HxmCrc8 {
+
+	/*
+	 * The CRC polynomial from the HxM API guide
+	 */
+	public static final int POLYNOMIAL = 0x8C;
+
+	private static final byte[] TABLE = new byte[256];
+
+	/*
+	 * TABLE applied n times over is at SLICES[(n - 1) * 256], for n from 1 to 8
+	 */
+	private static final byte[] SLICES = new byte[8 * 256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				if ((crc & 0x01) != 0)
+					crc = (crc >>> 1) ^ POLYNOMIAL;
+				else
+					crc = crc >>> 1;
+			}
+			TABLE[i] = (byte) crc;
+		}
+
+		System.arraycopy(TABLE, 0, SLICES, 0, 256);
+		for (int i = 256; i < SLICES.length; i++)
+			SLICES[i] = TABLE[SLICES[i - 256] & 0xFF];
+	}
+
+	private HxmCrc8() {
+	}
+
+	/*
+	 * CRC of length bytes starting at buffer[offset], 0 through 255
+	 */
+	public static int compute(byte[] buffer, int offset, int length) {
+		final byte[] table = TABLE;
+		final byte[] slices = SLICES;
+		final int end = offset + length;
+		int crc = 0;
+		int i = offset;
+
+		for (final int last = end - 8; i <= last; i += 8) {
+			crc = slices[7 * 256 + ((crc ^ buffer[i]) & 0xFF)] ^ slices[6 * 256 + (buffer[i + 1] & 0xFF)]
+					^ slices[5 * 256 + (buffer[i + 2] & 0xFF)] ^ slices[4 * 256 + (buffer[i + 3] & 0xFF)]
+					^ slices[3 * 256 + (buffer[i + 4] & 0xFF)] ^ slices[2 * 256 + (buffer[i + 5] & 0xFF)]
+					^ slices[256 + (buffer[i + 6] & 0xFF)] ^ slices[buffer[i + 7] & 0xFF];
+		}
+
+		for (; i < end; i++)
+			crc = table[(crc ^ buffer[i]) & 0xFF];
+
+		return crc & 0xFF;
+	}
+
+	/*
+	 * CRC of length bytes starting at buffer.get(index), 0 through 255.  The buffer's
+	 * position isn't touched, so this works on a direct buffer without copying.  A
+	 * buffer with an array behind it gets the array version.
+	 */
+	public static int compute(ByteBuffer buffer, int index, int length) {
+		if (buffer.hasArray())
+			return compute(buffer.array(), buffer.arrayOffset() + index, length);
+
+		final byte[] table = TABLE;
+		final int end = index + length;
+		int crc = 0;
+
+		for (int i = index; i < end; i++)
+			crc = table[(crc ^ buffer.get(i)) & 0xFF];
+
+		return crc & 0xFF;
+	}
+
+	/*
+	 * True if the CRC byte of the HxM message starting at buffer[offset] matches its payload
+	 */
+	public static boolean check(byte[] buffer, int offset) {
+		return check(buffer, offset, HxmFrameReader.DLC);
+	}
+
+	/*
+	 * True if the CRC byte of the message with a dlc byte payload starting at
+	 * buffer[offset] matches its payload, for any Zephyr message
+	 */
+	public static boolean check(byte[] buffer, int offset, int dlc) {
+		return compute(buffer, offset + HxmFrameReader.OFFSET_PAYLOAD, dlc)
+				== (buffer[offset + HxmFrameReader.OFFSET_PAYLOAD + dlc] & 0xFF);
+	}
+
+	/*
+	 * True if the CRC byte of the HxM message starting at buffer.get(index) matches its payload
+	 */
+	public static boolean check(ByteBuffer buffer, int index) {
+		return check(buffer, index, HxmFrameReader.DLC);
+	}
+
+	/*
+	 * True if the CRC byte of the message with a dlc byte payload starting at
+	 * buffer.get(index) matches its payload
+	 */
+	public static boolean check(ByteBuffer buffer, int index, int dlc) {
+		return compute(buffer, index + HxmFrameReader.OFFSET_PAYLOAD, dlc)
+				== (buffer.get(index + HxmFrameReader.OFFSET_PAYLOAD + dlc) & 0xFF);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+/*
+ * HxmFieldDecoder
+ *
+ * Reads the fields of a kind of message described by a table, for a
+ * HxmMessageTypes.Decoder that doesn't want to write an accessor for every field
+ * the way HrmReading does.
+ *
+ * Zephyr's fields are one or two bytes, little endian, unsigned.  Each field is
+ * read as two bytes and masked down to its width, so decoding a message is the
+ * same few steps for every field with nothing to decide along the way.  A one
+ * byte field at the end of the payload reads the CRC byte too and masks it off
+ * again, which is why this only works on a whole message.  The decoder is made
+ * for one DLC and checks every field lies inside that DLC's payload, so the
+ * extra byte is never past the CRC.
+ *
+ * The decoder keeps nothing between calls, so one can be shared by every thread,
+ * and it writes the values into an array the caller owns, so it allocates nothing.
+ */
+public final class HxmFieldDecoder {
+
+	private final int mDlc;
+	private final String[] mNames;
+	private final int[] mOffsets;
+	private final int[] mMasks;
+
+	/*
+	 * @param dlc      the payload length of the messages to be decoded, the
+	 *                 messages decode() is given must be at least this long
+	 * @param names    what to call each field
+	 * @param offsets  where each field starts, from the message's STX
+	 * @param widths   each field's size, 1 or 2 bytes
+	 */
+	public HxmFieldDecoder(int dlc, String[] names, int[] offsets, int[] widths) {
+		if (dlc < 0 || dlc > 0xFF)
+			throw new IllegalArgumentException("HxmFieldDecoder(): DLC " + dlc + " isn't a byte");
+		if (names.length != offsets.length || names.length != widths.length)
+			throw new IllegalArgumentException("HxmFieldDecoder(): need a name, an offset and a width for every field");
+
+		mDlc = dlc;
+		mNames = names.clone();
+		mOffsets = offsets.clone();
+		mMasks = new int[widths.length];
+		for (int i = 0; i < widths.length; i++) {
+			if (widths[i] != 1 && widths[i] != 2)
+				throw new IllegalArgumentException("HxmFieldDecoder(): field " + names[i] + " is " + widths[i] + " bytes, only 1 and 2 are supported");
+			if (offsets[i] < HxmFrameReader.OFFSET_PAYLOAD)
+				throw new IllegalArgumentException("HxmFieldDecoder(): field " + names[i] + " starts before the payload");
+			if (offsets[i] + widths[i] > HxmFrameReader.OFFSET_PAYLOAD + dlc)
+				throw new IllegalArgumentException("HxmFieldDecoder(): field " + names[i] + " runs past the end of a " + dlc + " byte payload");
+			mMasks[i] = (widths[i] == 1) ? 0xFF : 0xFFFF;
+		}
+	}
+
+	public int getDlc() {
+		return mDlc;
+	}
+
+	public int getFieldCount() {
+		return mNames.length;
+	}
+
+	public String getName(int field) {
+		return mNames[field];
+	}
+
+	/*
+	 * The field's position in the values decode() fills in, or -1
+	 */
+	public int getField(String name) {
+		for (int i = 0; i < mNames.length; i++) {
+			if (mNames[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/*
+	 * Read every field of the message starting at buffer[offset] into values, which
+	 * needs room for getFieldCount() of them
+	 */
+	public void decode(byte[] buffer, int offset, int[] values) {
+		final int[] offsets = mOffsets;
+		final int[] masks = mMasks;
+
+		for (int i = 0; i < offsets.length; i++) {
+			final int at = offset + offsets[i];
+			values[i] = ((buffer[at] & 0xFF) | ((buffer[at + 1] & 0xFF) << 8)) & masks[i];
+		}
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * HxmFlow
+ *
+ * Reactive streams of HxM readings, where the consumer says how many readings it is
+ * ready for and is never sent more.
+ *
+ * The interfaces are the ones in java.util.concurrent.Flow, which the platforms
+ * this app runs on don't have, with the same methods and the same rules, so moving
+ * to the real thing is a matter of changing the imports:
+ *
+ *     Publisher     something that produces items, subscribe() to it
+ *     Subscriber    gets onSubscribe() once, then onNext() for each item it asked for
+ *     Subscription  the subscriber asks for more items with request(n), or stops with cancel()
+ *
+ * HxmService.readings() publishes the readings from the devices.  The operators
+ * here build on a publisher to make another one:
+ *
+ *     forDevice()   only the readings from one device
+ *     sample()      at most one reading per device per period
+ *     window()      each device's readings gathered into lists covering a period
+ *
+ * An operator asks the publisher under it for one reading at a time, and only
+ * while its own subscriber has asked for something, so the demand of the
+ * subscriber at the end is what decides how fast readings flow through.  The
+ * readers are never held up, readings the consumer can't take are dropped or
+ * sampled down at the start of the stream, see HxmReadingPublisher.
+ */
+public final class HxmFlow {
+
+	private HxmFlow() {
+	}
+
+	public interface Publisher<T> {
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	public interface Subscriber<T> {
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	public interface Subscription {
+		/*
+		 * Ask for n more items, n must be positive
+		 */
+		void request(long n);
+
+		void cancel();
+	}
+
+	public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+	}
+
+	/*
+	 * Only the readings from one device
+	 */
+	public static Publisher<HxmLatest.Snapshot> forDevice(final Publisher<HxmLatest.Snapshot> source, final String address) {
+		return new Publisher<HxmLatest.Snapshot>() {
+			public void subscribe(Subscriber<? super HxmLatest.Snapshot> subscriber) {
+				source.subscribe(new Operator<HxmLatest.Snapshot, HxmLatest.Snapshot>(subscriber) {
+					@Override
+					void process(HxmLatest.Snapshot reading) {
+						if (address.equals(reading.getAddress()))
+							emit(reading);
+					}
+				});
+			}
+		};
+	}
+
+	/*
+	 * At most one reading per device every periodMs, by the time the readings
+	 * arrived.  The first reading after each period has gone by is the one passed on.
+	 */
+	public static Publisher<HxmLatest.Snapshot> sample(final Publisher<HxmLatest.Snapshot> source, final long periodMs) {
+		return new Publisher<HxmLatest.Snapshot>() {
+			public void subscribe(Subscriber<? super HxmLatest.Snapshot> subscriber) {
+				source.subscribe(new Operator<HxmLatest.Snapshot, HxmLatest.Snapshot>(subscriber) {
+					private final Map<String, Long> mLast = new HashMap<String, Long>();
+
+					@Override
+					void process(HxmLatest.Snapshot reading) {
+						Long last = mLast.get(reading.getAddress());
+						if (last != null && reading.getTime() - last < periodMs)
+							return;
+
+						mLast.put(reading.getAddress(), reading.getTime());
+						emit(reading);
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * Each device's readings gathered into lists.  A device's list is passed on when
+	 * the next reading from the device arrives windowMs or more after the first one in
+	 * the list, or finds the list already holds maxSize readings.  That reading starts
+	 * the next list.  The lists can't be changed.  Readings in a list that hasn't been
+	 * passed on when the stream ends are lost.
+	 */
+	public static Publisher<List<HxmLatest.Snapshot>> window(final Publisher<HxmLatest.Snapshot> source,
+			final long windowMs, final int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("HxmFlow.window(): a window needs room for at least one reading");
+
+		return new Publisher<List<HxmLatest.Snapshot>>() {
+			public void subscribe(Subscriber<? super List<HxmLatest.Snapshot>> subscriber) {
+				source.subscribe(new Operator<HxmLatest.Snapshot, List<HxmLatest.Snapshot>>(subscriber) {
+					private final Map<String, List<HxmLatest.Snapshot>> mOpen = new HashMap<String, List<HxmLatest.Snapshot>>();
+
+					@Override
+					void process(HxmLatest.Snapshot reading) {
+						List<HxmLatest.Snapshot> window = mOpen.get(reading.getAddress());
+						List<HxmLatest.Snapshot> closed = null;
+
+						if (window != null && (window.size() == maxSize || reading.getTime() - window.get(0).getTime() >= windowMs)) {
+							closed = window;
+							window = null;
+						}
+
+						if (window == null) {
+							window = new ArrayList<HxmLatest.Snapshot>(Math.min(maxSize, 64));
+							mOpen.put(reading.getAddress(), window);
+						}
+						window.add(reading);
+
+						if (closed != null)
+							emit(Collections.unmodifiableList(closed));
+					}
+				});
+			}
+		};
+	}
+
+	/*
+	 * The part every operator shares.  It sits between the publisher under it and its
+	 * own subscriber, and keeps one request for a single item outstanding upstream
+	 * for as long as the subscriber has demand left.  process() is called with each
+	 * item and may emit() at most one item for each one it is given, so the
+	 * subscriber is never sent more than it asked for.
+	 */
+	private abstract static class Operator<T, R> implements Subscriber<T>, Subscription {
+		private final Subscriber<? super R> mDownstream;
+
+		/*
+		 * Guarded by this
+		 */
+		private Subscription mUpstream = null;
+		private long mDemand = 0;
+		private boolean mRequested = false;
+		private boolean mDone = false;
+
+		/*
+		 * Set while process() runs for an item, and the error a bad request() made
+		 * meanwhile, which goes out once it is done rather than alongside its onNext()
+		 */
+		private boolean mProcessing = false;
+		private Throwable mPendingError = null;
+
+		Operator(Subscriber<? super R> downstream) {
+			mDownstream = downstream;
+		}
+
+		abstract void process(T item);
+
+		final void emit(R item) {
+			synchronized (this) {
+				if (mDone)
+					return;
+				if (mDemand != Long.MAX_VALUE)
+					mDemand--;
+			}
+			mDownstream.onNext(item);
+		}
+
+		public void onSubscribe(Subscription subscription) {
+			synchronized (this) {
+				if (mUpstream != null) {
+					subscription.cancel();
+					return;
+				}
+				mUpstream = subscription;
+			}
+			mDownstream.onSubscribe(this);
+			pull();
+		}
+
+		public void onNext(T item) {
+			synchronized (this) {
+				mRequested = false;
+				if (mDone)
+					return;
+				mProcessing = true;
+			}
+
+			Throwable error;
+			try {
+				process(item);
+			} finally {
+				synchronized (this) {
+					mProcessing = false;
+					error = mPendingError;
+					mPendingError = null;
+				}
+			}
+
+			if (error != null)
+				mDownstream.onError(error);
+			else
+				pull();
+		}
+
+		public void onError(Throwable throwable) {
+			synchronized (this) {
+				if (mDone)
+					return;
+				mDone = true;
+			}
+			mDownstream.onError(throwable);
+		}
+
+		public void onComplete() {
+			synchronized (this) {
+				if (mDone)
+					return;
+				mDone = true;
+			}
+			mDownstream.onComplete();
+		}
+
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("HxmFlow: request(" + n + "), must be positive"));
+				return;
+			}
+
+			synchronized (this) {
+				mDemand = (mDemand + n < 0) ? Long.MAX_VALUE : mDemand + n;
+			}
+			pull();
+		}
+
+		public void cancel() {
+			Subscription upstream;
+			synchronized (this) {
+				mDone = true;
+				upstream = mUpstream;
+			}
+			if (upstream != null)
+				upstream.cancel();
+		}
+
+		/*
+		 * End the stream with an error of this operator's own, cancelling upstream.
+		 * Only the first of onError(), onComplete() and fail() gets through, and if an
+		 * item is being processed the error waits until it has been sent on.
+		 */
+		private void fail(Throwable error) {
+			Subscription upstream;
+			synchronized (this) {
+				if (mDone)
+					return;
+				mDone = true;
+				upstream = mUpstream;
+				if (mProcessing) {
+					mPendingError = error;
+					error = null;
+				}
+			}
+
+			if (upstream != null)
+				upstream.cancel();
+			if (error != null)
+				mDownstream.onError(error);
+		}
+
+		/*
+		 * Ask upstream for the next item if the subscriber wants one and none is on its way
+		 */
+		private void pull() {
+			Subscription upstream;
+			synchronized (this) {
+				if (mDone || mRequested || mDemand == 0 || mUpstream == null)
+					return;
+				mRequested = true;
+				upstream = mUpstream;
+			}
+			upstream.request(1);
+		}
+	}
+}
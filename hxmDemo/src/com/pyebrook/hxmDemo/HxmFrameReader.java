@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * This class pulls complete HxM messages out of a byte stream.
+ *
+ * Rather than asking the stream for one byte at a time, the reader does bulk
+ * reads into a buffer it owns and looks for the message boundaries (STX, MSGID,
+ * DLC and ETX) in memory.  A message is only returned if its CRC matches the
+ * payload, see HxmCrc8.  Any bytes that don't belong to a message are skipped,
+ * and when a candidate message turns out to be bad the search picks up again at
+ * the byte following its STX, so a stray STX inside garbage can't swallow a good
+ * message that follows it.  The looking is done by an HxmFrameScanner, the same
+ * one HxmGateway uses on its sockets' buffers.
+ *
+ * Which MSGID and DLC pairs make a message is up to an HxmMessageTypes registry,
+ * one table lookup per candidate header.  Without one the reader only knows the
+ * HxM's general data message.  getFrameType() and getFrameLength() say what the
+ * last message returned was.
+ *
+ * The reader only knows about InputStream, so it works the same way on a
+ * Bluetooth socket as it does on a file or a recorded byte array.
+ *
+ * A reader is meant to be used by one thread, the one that owns the stream.
+ */
+public class HxmFrameReader {
+
+    /*
+     * The basic message format, see the HxM API guide
+     */
+    public static final int STX = 0x02;
+    public static final int MSGID = 0x26;
+    public static final int DLC = 55;
+    public static final int ETX = 0x03;
+
+    /*
+     * STX, MSGID, DLC, the payload, CRC and ETX
+     */
+    public static final int FRAME_LENGTH = DLC + 5;
+
+    /*
+     * Offsets of the framing bytes within a message
+     */
+    public static final int OFFSET_STX = 0;
+    public static final int OFFSET_MSGID = 1;
+    public static final int OFFSET_DLC = 2;
+    public static final int OFFSET_PAYLOAD = 3;
+    public static final int OFFSET_CRC = OFFSET_PAYLOAD + DLC;
+    public static final int OFFSET_ETX = OFFSET_CRC + 1;
+
+    /*
+     * Big enough to hold a good number of messages, so a single read can pick
+     * up everything the socket has waiting for us
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /*
+     * Returned by pollFrame() when there isn't a complete message yet
+     */
+    public static final int NO_FRAME = -2;
+
+    /*
+     * For readers that aren't given a registry, it only ever holds HEART_RATE
+     */
+    private static final HxmMessageTypes HXM_ONLY = new HxmMessageTypes();
+
+    private final InputStream mInStream;
+    private final HxmFrameScanner mScanner;
+    private final byte[] mBuffer;
+
+    /*
+     * mBuffer, as the scanner wants it
+     */
+    private final ByteBuffer mByteBuffer;
+
+    /*
+     * The bytes in mBuffer from mPosition up to mLimit haven't been looked at yet
+     */
+    private int mPosition = 0;
+    private int mLimit = 0;
+
+    /*
+     * Written only by the thread doing the reading, anyone may look at them
+     */
+    private volatile long mFrameCount = 0;
+
+    public HxmFrameReader(InputStream in) {
+    	this(in, HXM_ONLY, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HxmFrameReader(InputStream in, int bufferSize) {
+    	this(in, HXM_ONLY, bufferSize);
+    }
+
+    public HxmFrameReader(InputStream in, HxmMessageTypes types) {
+    	this(in, types, DEFAULT_BUFFER_SIZE);
+    }
+
+    /*
+     * @param in          the stream the HxM bytes arrive on
+     * @param types       the messages to look for
+     * @param bufferSize  size of the read buffer, it has to be able to hold the longest message there can be
+     */
+    public HxmFrameReader(InputStream in, HxmMessageTypes types, int bufferSize) {
+    	if (in == null)
+    		throw new IllegalArgumentException("HxmFrameReader(): no input stream");
+
+    	if (bufferSize < HxmMessageTypes.MAX_FRAME_LENGTH)
+    		throw new IllegalArgumentException("HxmFrameReader(): buffer size " + bufferSize + " is smaller than a message");
+
+    	mInStream = in;
+    	mScanner = new HxmFrameScanner(types);
+    	mBuffer = new byte[bufferSize];
+    	mByteBuffer = ByteBuffer.wrap(mBuffer);
+    }
+
+    /**
+     * Read the next complete message from the stream into dst, blocking until one
+     * arrives.
+     *
+     * @param dst     where the message is copied to, needs room for the longest message
+     *                the registry knows, FRAME_LENGTH bytes for the HxM alone
+     * @param offset  position in dst where the message starts
+     * @return the number of bytes copied, see getFrameLength(), or -1 if the stream ended
+     * @throws IOException if the underlying stream fails
+     */
+    public int readFrame(byte[] dst, int offset) throws IOException {
+    	int start = nextFrame();
+    	if (start < 0)
+    		return -1;
+
+    	final int length = mScanner.getFrameLength();
+    	System.arraycopy(mBuffer, start, dst, offset, length);
+    	return length;
+    }
+
+    /**
+     * Like readFrame(), but leaves the message where it is in the reader's own buffer
+     * instead of copying it.  The bytes are only good until the next call into the
+     * reader, so copy anything that has to live longer.
+     *
+     * @return the offset of the message in getBuffer(), or -1 if the stream ended
+     * @throws IOException if the underlying stream fails
+     */
+    public int nextFrame() throws IOException {
+    	while (true) {
+    		int start = scan();
+
+    		if (start >= 0) {
+    			mPosition = start + mScanner.getFrameLength();
+    			mFrameCount++;
+    			return start;
+    		}
+
+    		if (!fill(mBuffer.length))
+    			return -1;
+    	}
+    }
+
+    /**
+     * Like nextFrame(), but never blocks.  Only the bytes the stream says are
+     * available are read, so a thread can look after many readers by calling
+     * pollFrame() on each in turn.
+     *
+     * A stream that ends without an error can only be noticed by a blocking read, so
+     * a polling caller finds out the connection is gone when available() throws, which
+     * is what a closed Bluetooth socket does.
+     *
+     * @return the offset of the message in getBuffer(), NO_FRAME if a complete message
+     *         hasn't arrived yet, or -1 if the stream ended
+     * @throws IOException if the underlying stream fails
+     */
+    public int pollFrame() throws IOException {
+    	while (true) {
+    		int start = scan();
+
+    		if (start >= 0) {
+    			mPosition = start + mScanner.getFrameLength();
+    			mFrameCount++;
+    			return start;
+    		}
+
+    		int available = mInStream.available();
+    		if (available <= 0)
+    			return NO_FRAME;
+
+    		if (!fill(available))
+    			return -1;
+    	}
+    }
+
+    /*
+     * The reader's buffer, offsets returned by nextFrame() index into it
+     */
+    public byte[] getBuffer() {
+    	return mBuffer;
+    }
+
+    /*
+     * The HxmMessageTypes type of the last message returned
+     */
+    public int getFrameType() {
+    	return mScanner.getFrameType();
+    }
+
+    /*
+     * The length of the last message returned, its DLC + 5
+     */
+    public int getFrameLength() {
+    	return mScanner.getFrameLength();
+    }
+
+    /*
+     * Number of good messages found in the stream
+     */
+    public long getFrameCount() {
+    	return mFrameCount;
+    }
+
+    /*
+     * Number of bytes thrown away while hunting for the start of a message
+     */
+    public long getSkippedByteCount() {
+    	return mScanner.getSkippedByteCount();
+    }
+
+    /*
+     * Number of messages thrown away because their CRC didn't match, the bytes of a
+     * rejected message are counted in getSkippedByteCount() as well
+     */
+    public long getCrcFailureCount() {
+    	return mScanner.getCrcFailureCount();
+    }
+
+    /*
+     * Look through the unread part of the buffer for a message.  Returns the index of
+     * the message's STX, or -1 if there isn't a complete message yet.  Everything in
+     * front of the first place a message could still start is discarded.
+     */
+    private int scan() {
+    	final boolean found = mScanner.scan(mByteBuffer, mPosition, mLimit);
+    	mPosition = mScanner.getStop();
+    	return found ? mPosition : -1;
+    }
+
+    /*
+     * Move whatever is left of a partial message to the front of the buffer and read
+     * as much as the stream will give us behind it, up to max bytes.  Returns false at
+     * end of stream.
+     */
+    private boolean fill(int max) throws IOException {
+    	int remaining = mLimit - mPosition;
+
+    	if (mPosition > 0) {
+    		if (remaining > 0)
+    			System.arraycopy(mBuffer, mPosition, mBuffer, 0, remaining);
+    		mPosition = 0;
+    		mLimit = remaining;
+    	}
+
+    	int count = mInStream.read(mBuffer, mLimit, Math.min(max, mBuffer.length - mLimit));
+    	if (count < 0)
+    		return false;
+
+    	mLimit += count;
+    	return true;
+    }
+}
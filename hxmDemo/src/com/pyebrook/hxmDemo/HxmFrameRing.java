@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed ring of message slots used to hand HxM messages from the thread reading
+ * the device to the thread consuming them.
+ *
+ * All of the slots are allocated up front in one byte array, so once the ring
+ * exists passing a message along doesn't create any garbage.  The reader copies
+ * each message into a free slot with offer(), the consumer takes the oldest one
+ * with poll(), looks at the bytes in place, and hands the slot back with release().
+ * A slot is never written while the consumer holds it, so the consumer can't see
+ * a message that is half overwritten by the next one.
+ *
+ * There must be exactly one producer thread and one consumer thread.  Neither
+ * side takes a lock.
+ *
+ * What happens when the consumer falls behind and the ring fills up is decided
+ * by the overflow policy:
+ *
+ *     OVERFLOW_DROP_OLDEST   throw away the oldest unread message to make room
+ *     OVERFLOW_DROP_NEWEST   throw away the message being offered
+ *     OVERFLOW_BLOCK         make the producer wait for the consumer
+ *
+ * Every message thrown away is counted.
+ */
+public class HxmFrameRing {
+
+	public static final int OVERFLOW_DROP_OLDEST = 0;
+	public static final int OVERFLOW_DROP_NEWEST = 1;
+	public static final int OVERFLOW_BLOCK = 2;
+
+	/*
+	 * How long a blocked producer sleeps before it looks at the ring again
+	 */
+	private static final long BLOCK_PARK_NANOS = 100000L;
+
+	private final int mCapacity;
+	private final int mSlotCount;
+	private final int mSlotSize;
+	private final int mPolicy;
+	private final byte[] mBuffer;
+	private final int[] mLengths;
+	private final long[] mTimestamps;
+	private final Object[] mTags;
+
+	/*
+	 * Sequence numbers, not slot numbers.  mTail is the next message the producer
+	 * will write, mHead the next one the consumer will take.  The producer moves
+	 * mHead too when it drops the oldest message, which is why mHead is
+	 * compare-and-set by both sides.
+	 */
+	private final AtomicLong mHead = new AtomicLong(0);
+	private final AtomicLong mTail = new AtomicLong(0);
+
+	/*
+	 * Sequence number of the message the consumer is looking at, or -1.  The ring has
+	 * one more slot than its capacity so the producer can always fill the ring
+	 * without touching this slot.
+	 */
+	private volatile long mHeld = -1;
+
+	/*
+	 * Set when the consumer has been told there is something to read, see needsSignal()
+	 */
+	private final AtomicBoolean mSignalled = new AtomicBoolean(false);
+
+	/*
+	 * Written only by the producer
+	 */
+	private volatile long mOfferedCount = 0;
+	private volatile long mDroppedOldestCount = 0;
+	private volatile long mDroppedNewestCount = 0;
+
+	/*
+	 * @param capacity  the number of messages the ring holds before the overflow policy kicks in
+	 * @param slotSize  the largest message that will be offered
+	 * @param policy    one of the OVERFLOW_ values
+	 */
+	public HxmFrameRing(int capacity, int slotSize, int policy) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("HxmFrameRing(): capacity must be at least 1");
+
+		if (slotSize < 1)
+			throw new IllegalArgumentException("HxmFrameRing(): slot size must be at least 1");
+
+		if (policy != OVERFLOW_DROP_OLDEST && policy != OVERFLOW_DROP_NEWEST && policy != OVERFLOW_BLOCK)
+			throw new IllegalArgumentException("HxmFrameRing(): unknown overflow policy " + policy);
+
+		mCapacity = capacity;
+		mSlotCount = capacity + 1;
+		mSlotSize = slotSize;
+		mPolicy = policy;
+		mBuffer = new byte[mSlotCount * slotSize];
+		mLengths = new int[mSlotCount];
+		mTimestamps = new long[mSlotCount];
+		mTags = new Object[mSlotCount];
+	}
+
+	/**
+	 * Producer side.  Copy a message into the ring.
+	 *
+	 * @param timestamp  stored with the message, see getTimestamp()
+	 * @return true if the message was added, false if it was dropped because of the
+	 *         overflow policy or because a blocked producer was interrupted
+	 */
+	public boolean offer(byte[] src, int offset, int length, long timestamp) {
+		return offer(src, offset, length, timestamp, null);
+	}
+
+	/**
+	 * Producer side.  Like offer(src, offset, length, timestamp), and the tag is kept
+	 * with the message too, see getTag().  For a ring holding messages from more
+	 * than one device, say.
+	 */
+	public boolean offer(byte[] src, int offset, int length, long timestamp, Object tag) {
+		if (length > mSlotSize)
+			throw new IllegalArgumentException("HxmFrameRing.offer(): " + length + " bytes won't fit in a " + mSlotSize + " byte slot");
+
+		final long tail = mTail.get();
+
+		while (true) {
+			long head = mHead.get();
+
+			if (tail - head < mCapacity) {
+				long held = mHeld;
+				if (held < 0 || tail - held < mSlotCount)
+					break;
+
+				/*
+				 * The consumer has held on to a message long enough for us to lap it,
+				 * that slot can't be given up so we can't drop the oldest either
+				 */
+				if (mPolicy != OVERFLOW_BLOCK) {
+					mDroppedNewestCount++;
+					return false;
+				}
+			} else if (mPolicy == OVERFLOW_DROP_OLDEST) {
+				if (mHead.compareAndSet(head, head + 1))
+					mDroppedOldestCount++;
+				continue;
+			} else if (mPolicy == OVERFLOW_DROP_NEWEST) {
+				mDroppedNewestCount++;
+				return false;
+			}
+
+			LockSupport.parkNanos(BLOCK_PARK_NANOS);
+			if (Thread.currentThread().isInterrupted()) {
+				mDroppedNewestCount++;
+				return false;
+			}
+		}
+
+		int slot = (int) (tail % mSlotCount);
+		System.arraycopy(src, offset, mBuffer, slot * mSlotSize, length);
+		mLengths[slot] = length;
+		mTimestamps[slot] = timestamp;
+		mTags[slot] = tag;
+		mOfferedCount++;
+		mTail.set(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Producer side.  True if offer() would add a message right now, without dropping
+	 * anything or waiting.  The consumer can only make more room, so it stays true
+	 * until the producer offers again.
+	 */
+	public boolean hasRoom() {
+		final long tail = mTail.get();
+		if (tail - mHead.get() >= mCapacity)
+			return false;
+
+		long held = mHeld;
+		return held < 0 || tail - held < mSlotCount;
+	}
+
+	/**
+	 * Producer side.  Returns true exactly once for each time the consumer has called
+	 * clearSignal(), meaning the producer should wake the consumer up.  This keeps the
+	 * producer from sending a wake up for every message when the consumer is already
+	 * on its way.
+	 */
+	public boolean needsSignal() {
+		return !mSignalled.get() && mSignalled.compareAndSet(false, true);
+	}
+
+	/**
+	 * Consumer side.  Call before draining the ring after being woken up.
+	 */
+	public void clearSignal() {
+		mSignalled.set(false);
+	}
+
+	/**
+	 * Consumer side.  Take the oldest message in the ring.
+	 *
+	 * @return the offset of the message in getBuffer(), or -1 if the ring is empty.  The
+	 *         bytes stay put until release() is called.
+	 */
+	public int poll() {
+		if (mHeld >= 0)
+			throw new IllegalStateException("HxmFrameRing.poll(): the previous message has not been released");
+
+		while (true) {
+			long head = mHead.get();
+			if (head >= mTail.get())
+				return -1;
+
+			mHeld = head;
+			if (mHead.compareAndSet(head, head + 1))
+				return (int) (head % mSlotCount) * mSlotSize;
+
+			// The producer dropped this one out from under us, try the next
+			mHeld = -1;
+		}
+	}
+
+	/**
+	 * Consumer side.  Give back the slot returned by the last poll().
+	 */
+	public void release() {
+		mHeld = -1;
+	}
+
+	/*
+	 * The array holding all of the slots, offsets returned by poll() index into it
+	 */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	/*
+	 * The length of the message at an offset returned by poll()
+	 */
+	public int getLength(int offset) {
+		return mLengths[offset / mSlotSize];
+	}
+
+	/*
+	 * The timestamp offered with the message at an offset returned by poll()
+	 */
+	public long getTimestamp(int offset) {
+		return mTimestamps[offset / mSlotSize];
+	}
+
+	/*
+	 * The tag offered with the message at an offset returned by poll()
+	 */
+	public Object getTag(int offset) {
+		return mTags[offset / mSlotSize];
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/*
+	 * Number of messages waiting to be read, only a snapshot when the other side is busy
+	 */
+	public int size() {
+		long size = mTail.get() - mHead.get();
+		return (int) Math.max(0, Math.min(size, mCapacity));
+	}
+
+	public long getOfferedCount() {
+		return mOfferedCount;
+	}
+
+	public long getDroppedOldestCount() {
+		return mDroppedOldestCount;
+	}
+
+	public long getDroppedNewestCount() {
+		return mDroppedNewestCount;
+	}
+
+	public long getDroppedCount() {
+		return mDroppedOldestCount + mDroppedNewestCount;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.nio.ByteBuffer;
+
+/*
+ * HxmFrameScanner
+ *
+ * Finds HxM messages among the bytes in a buffer, for HxmFrameReader, which reads a
+ * stream into an array, and HxmGateway, which reads sockets into direct buffers.
+ * A message is STX, a MSGID and DLC pair the HxmMessageTypes registry knows, the
+ * payload, a CRC that matches it and ETX.  When a candidate message turns out to be
+ * bad the search picks up again at the byte following its STX, so a stray STX in
+ * garbage can't swallow a good message that follows it.
+ *
+ * The scanner only looks, it never moves the buffer's position or limit, so the
+ * caller keeps track of what it has used up.  It counts the bytes it throws away and
+ * the messages that fail their CRC.  A scanner is meant to be used by one thread,
+ * anyone may look at the counts.
+ */
+final class HxmFrameScanner {
+
+	private final HxmMessageTypes mTypes;
+
+	/*
+	 * Where the last scan() stopped, and what it found there
+	 */
+	private int mStop = 0;
+	private int mFrameType = HxmMessageTypes.UNKNOWN;
+	private int mFrameLength = 0;
+
+	/*
+	 * Written only by the thread doing the scanning, anyone may look at them
+	 */
+	private volatile long mSkippedByteCount = 0;
+	private volatile long mCrcFailureCount = 0;
+
+	HxmFrameScanner(HxmMessageTypes types) {
+		mTypes = types;
+	}
+
+	/*
+	 * Look through the bytes from position up to limit for a message.  Afterwards
+	 * getStop() is the index of the message's STX if there was one, or of the first
+	 * byte that could still be the start of one if there wasn't.  Everything from
+	 * position up to there is counted as skipped.
+	 *
+	 * @return true if a complete, good message was found
+	 */
+	boolean scan(ByteBuffer buffer, int position, int limit) {
+		final byte[] types = mTypes.getTable();
+		int i = position;
+		boolean found = false;
+
+		while (i < limit) {
+			if (buffer.get(i) != HxmFrameReader.STX) {
+				i++;
+				continue;
+			}
+
+			// Can't tell anything about this one until the rest of the header is here
+			if (i + HxmFrameReader.OFFSET_PAYLOAD > limit)
+				break;
+
+			final int dlc = buffer.get(i + HxmFrameReader.OFFSET_DLC) & 0xFF;
+			final int type = types[((buffer.get(i + HxmFrameReader.OFFSET_MSGID) & 0xFF) << 8) | dlc];
+			if (type == HxmMessageTypes.UNKNOWN) {
+				i++;
+				continue;
+			}
+
+			// The header looks good, wait for the rest of the message
+			final int length = dlc + 5;
+			if (i + length > limit)
+				break;
+
+			if (buffer.get(i + length - 1) != HxmFrameReader.ETX) {
+				i++;
+				continue;
+			}
+
+			// Everything is where it should be, but the bytes may have been damaged on the way
+			if (!HxmCrc8.check(buffer, i, dlc)) {
+				mCrcFailureCount++;
+				i++;
+				continue;
+			}
+
+			mFrameType = type;
+			mFrameLength = length;
+			found = true;
+			break;
+		}
+
+		if (i > position)
+			mSkippedByteCount += i - position;
+		mStop = i;
+		return found;
+	}
+
+	/*
+	 * Where the last scan() stopped, see scan()
+	 */
+	int getStop() {
+		return mStop;
+	}
+
+	/*
+	 * The HxmMessageTypes type of the last message found
+	 */
+	int getFrameType() {
+		return mFrameType;
+	}
+
+	/*
+	 * The length of the last message found, its DLC + 5
+	 */
+	int getFrameLength() {
+		return mFrameLength;
+	}
+
+	long getSkippedByteCount() {
+		return mSkippedByteCount;
+	}
+
+	long getCrcFailureCount() {
+		return mCrcFailureCount;
+	}
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * HxmGateway
+ *
+ * A server for the box in the middle, where phones relay the HxM data from their
+ * straps over TCP.  Rather than a thread per connection, which would run out of
+ * threads long before it ran out of straps, a few worker threads each look after
+ * thousands of connections with a Selector, and only touch a connection when it
+ * has bytes waiting.
+ *
+ * A phone opens a connection for each strap it relays.  The connection starts
+ * with a hello, so the gateway knows whose messages follow:
+ *
+ *     0   4 bytes   MAGIC, "HXMG"
+ *     4   byte      VERSION
+ *     5   long      the device id, see HxmRecorder.getDeviceId(), big endian
+ *
+ * and after that carries the bytes from the strap exactly as the strap sent them.
+ *
+ * Each connection has a small direct buffer the socket reads straight into, and
+ * the messages are found in it where they lie by an HxmFrameScanner, the same one
+ * HxmFrameReader uses, looking for the kinds the gateway's HxmMessageTypes knows.
+ * Messages other than HEART_RATE go to their type's Decoder on the worker's
+ * thread.
+ *
+ * The gateway has nothing to do with Android, so it can run on a server.  Each
+ * worker has a ring, every message goes in it tagged with its device's address,
+ * and the Sink is told when there is something to take.  A Sink that can't keep
+ * up loses the oldest messages, the workers never wait for it.  In the app,
+ * HxmPipeline.getGatewaySink() takes the messages into the processing pipeline
+ * the same way a session's are.  What the gateway has to say goes to a Logger,
+ * nowhere unless it is given one: HxmLogcat.LOGGER in the app, STDERR_LOGGER for
+ * a server that wants it on System.err.
+ *
+ * Given an HxmMetrics, the gateway counts each device's messages, skipped bytes,
+ * CRC failures and connections there, like a session does, and adds its
+ * connection count and dropped messages as gauges.
+ */
+public class HxmGateway {
+	private static final String TAG = "HxmGateway";
+
+	public static final byte[] MAGIC = { 'H', 'X', 'M', 'G' };
+	public static final int VERSION = 1;
+	public static final int HELLO_LENGTH = 13;
+
+	/*
+	 * Room for several messages, a connection only needs the part of one that
+	 * has arrived plus whatever came with it
+	 */
+	public static final int CONNECTION_BUFFER_SIZE = 512;
+
+	public static final int RING_CAPACITY = 4096;
+	public static final int ACCEPT_BACKLOG = 1024;
+
+	/*
+	 * How long accept() waits after it fails, doubling while it keeps failing.  It
+	 * fails for as long as we are out of file descriptors, and spinning on it would
+	 * only keep the connections we do have from being served.
+	 */
+	public static final long ACCEPT_BACKOFF_MIN_MS = 10;
+	public static final long ACCEPT_BACKOFF_MAX_MS = 1000;
+
+	/*
+	 * Takes the messages the workers find
+	 */
+	public interface Sink {
+
+		/*
+		 * Called on a worker's thread when messages are waiting in the ring and
+		 * whoever takes them needs waking up.  Every message in the ring is tagged
+		 * with its device's address.  Take them with ring.clearSignal() and then
+		 * poll() and release() until there are none left, all on one thread, and
+		 * this is called again when the next message arrives after that.
+		 */
+		void framesReady(HxmFrameRing ring);
+	}
+
+	/*
+	 * Takes what the gateway has to say
+	 */
+	public interface Logger {
+		void info(String tag, String message);
+
+		void error(String tag, String message, Throwable e);
+	}
+
+	/*
+	 * The Logger until the gateway is given another, it throws everything away
+	 */
+	public static final Logger NO_LOGGER = new Logger() {
+		public void info(String tag, String message) {
+		}
+
+		public void error(String tag, String message, Throwable e) {
+		}
+	};
+
+	/*
+	 * For a server, gateway.setLogger(HxmGateway.STDERR_LOGGER)
+	 */
+	public static final Logger STDERR_LOGGER = new Logger() {
+		public void info(String tag, String message) {
+			System.err.println(tag + ": " + message);
+		}
+
+		public void error(String tag, String message, Throwable e) {
+			System.err.println(tag + ": " + message + ((e != null) ? ", " + e : ""));
+		}
+	};
+
+	private final InetSocketAddress mBindAddress;
+	private final Worker[] mWorkers;
+	private volatile Sink mSink = null;
+	private volatile Logger mLogger = NO_LOGGER;
+	private volatile HxmMetrics mMetrics = null;
+	private volatile HxmMessageTypes mMessageTypes = new HxmMessageTypes();
+
+	private ServerSocketChannel mServer = null;
+	private Thread mAcceptThread = null;
+	private volatile boolean mStopped = false;
+	private volatile long mAcceptedCount = 0;
+	private int mNextWorker = 0;
+
+	/*
+	 * @param bindAddress  where to listen, port 0 for any free port, see getPort()
+	 * @param workerCount  threads looking after the connections
+	 */
+	public HxmGateway(InetSocketAddress bindAddress, int workerCount) {
+		if (workerCount < 1)
+			throw new IllegalArgumentException("HxmGateway(): needs at least one worker");
+
+		mBindAddress = bindAddress;
+		mWorkers = new Worker[workerCount];
+	}
+
+	/*
+	 * Pass the messages to this Sink, see HxmPipeline.getGatewaySink().  Set it
+	 * before start(), messages that arrive without a Sink wait in the rings.
+	 */
+	public void setSink(Sink sink) {
+		mSink = sink;
+	}
+
+	public void setLogger(Logger logger) {
+		mLogger = logger;
+	}
+
+	/*
+	 * The kinds of message to look for, the HxM's general data message unless told
+	 * otherwise.  Set it before start().
+	 */
+	public void setMessageTypes(HxmMessageTypes types) {
+		mMessageTypes = types;
+	}
+
+	/*
+	 * Count each device's messages in the metrics.  Set it before start().
+	 */
+	public void setMetrics(HxmMetrics metrics) {
+		mMetrics = metrics;
+
+		metrics.register("gateway_connections", new HxmMetrics.Gauge() {
+			public long get() {
+				return getConnectionCount();
+			}
+		});
+		metrics.register("gateway_dropped", new HxmMetrics.Gauge() {
+			public long get() {
+				return getDroppedCount();
+			}
+		});
+	}
+
+	/*
+	 * Start listening.  Returns once the gateway is accepting connections.
+	 */
+	public synchronized void start() throws IOException {
+		if (mServer != null)
+			throw new IllegalStateException("HxmGateway.start(): already started");
+
+		for (int i = 0; i < mWorkers.length; i++) {
+			mWorkers[i] = new Worker();
+			Thread thread = new Thread(mWorkers[i], "HxmGateway-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		mServer = ServerSocketChannel.open();
+		mServer.socket().setReuseAddress(true);
+		mServer.socket().bind(mBindAddress, ACCEPT_BACKLOG);
+
+		mAcceptThread = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "HxmGatewayAccept");
+		mAcceptThread.setDaemon(true);
+		mAcceptThread.start();
+
+		mLogger.info(TAG, "start(): listening on " + mServer.socket().getLocalSocketAddress());
+	}
+
+	/*
+	 * Close every connection and stop
+	 */
+	public synchronized void stop() {
+		mStopped = true;
+
+		if (mServer != null) {
+			try {
+				mServer.close();
+			} catch (IOException e) {
+				mLogger.error(TAG, "stop(): close() of server failed", e);
+			}
+		}
+
+		for (Worker worker : mWorkers) {
+			if (worker != null)
+				worker.mSelector.wakeup();
+		}
+	}
+
+	/*
+	 * The port the gateway is listening on
+	 */
+	public synchronized int getPort() {
+		return (mServer != null) ? mServer.socket().getLocalPort() : -1;
+	}
+
+	public long getAcceptedCount() {
+		return mAcceptedCount;
+	}
+
+	/*
+	 * Number of connections open right now
+	 */
+	public int getConnectionCount() {
+		int count = 0;
+		for (Worker worker : mWorkers) {
+			if (worker != null)
+				count += worker.mConnectionCount;
+		}
+		return count;
+	}
+
+	public long getFrameCount() {
+		long count = 0;
+		for (Worker worker : mWorkers) {
+			if (worker != null)
+				count += worker.mFrameCount;
+		}
+		return count;
+	}
+
+	public long getCrcFailureCount() {
+		long count = 0;
+		for (Worker worker : mWorkers) {
+			if (worker != null)
+				count += worker.mScanner.getCrcFailureCount();
+		}
+		return count;
+	}
+
+	/*
+	 * Number of bytes thrown away while hunting for the start of a message
+	 */
+	public long getSkippedByteCount() {
+		long count = 0;
+		for (Worker worker : mWorkers) {
+			if (worker != null)
+				count += worker.mScanner.getSkippedByteCount();
+		}
+		return count;
+	}
+
+	/*
+	 * Number of connections closed because they didn't start with a good hello
+	 */
+	public long getBadHelloCount() {
+		long count = 0;
+		for (Worker worker : mWorkers) {
+			if (worker != null)
+				count += worker.mBadHelloCount;
+		}
+		return count;
+	}
+
+	/*
+	 * Number of messages lost because the pipeline wasn't keeping up
+	 */
+	public long getDroppedCount() {
+		long count = 0;
+		for (Worker worker : mWorkers) {
+			if (worker != null)
+				count += worker.mRing.getDroppedCount();
+		}
+		return count;
+	}
+
+	/*
+	 * Hand each new connection to the workers in turn
+	 */
+	private void accept() {
+		long backoffMs = 0;
+
+		while (!mStopped) {
+			SocketChannel channel;
+			try {
+				channel = mServer.accept();
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				// Most likely out of file descriptors, give the workers a chance to close some
+				backoffMs = (backoffMs == 0) ? ACCEPT_BACKOFF_MIN_MS : Math.min(backoffMs * 2, ACCEPT_BACKOFF_MAX_MS);
+				mLogger.error(TAG, "accept(): accept() failed, trying again in " + backoffMs + "ms", e);
+				try {
+					Thread.sleep(backoffMs);
+				} catch (InterruptedException ie) {
+					break;
+				}
+				continue;
+			}
+			backoffMs = 0;
+
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				mLogger.error(TAG, "accept(): unable to set up the connection", e);
+				closeChannel(channel);
+				continue;
+			}
+
+			mAcceptedCount++;
+			Worker worker = mWorkers[mNextWorker];
+			mNextWorker = (mNextWorker + 1) % mWorkers.length;
+			worker.add(channel);
+		}
+		mLogger.info(TAG, "accept(): stopped");
+	}
+
+	private void closeChannel(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			mLogger.error(TAG, "closeChannel(): close() of connection failed", e);
+		}
+	}
+
+	/*
+	 * What the gateway knows about one connection
+	 */
+	private static class Connection {
+		final ByteBuffer mBuffer = ByteBuffer.allocateDirect(CONNECTION_BUFFER_SIZE);
+		String mAddress = null;
+		HxmMetrics.Device mMetrics = null;
+	}
+
+	/*
+	 * Looks after its share of the connections on its own thread
+	 */
+	private class Worker implements Runnable {
+		final Selector mSelector;
+		final HxmFrameRing mRing = new HxmFrameRing(RING_CAPACITY, HxmFrameReader.FRAME_LENGTH, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		final ConcurrentLinkedQueue<SocketChannel> mAdded = new ConcurrentLinkedQueue<SocketChannel>();
+		final byte[] mFrame = new byte[HxmMessageTypes.MAX_FRAME_LENGTH];
+		final HxmMessageTypes mTypes = mMessageTypes;
+		final HxmFrameScanner mScanner = new HxmFrameScanner(mTypes);
+
+		/*
+		 * Written only by the worker's thread
+		 */
+		volatile int mConnectionCount = 0;
+		volatile long mFrameCount = 0;
+		volatile long mBadHelloCount = 0;
+
+		Worker() throws IOException {
+			mSelector = Selector.open();
+		}
+
+		/*
+		 * Called by the accept thread, the channel is registered by the worker's thread.
+		 * If the worker has stopped, or is stopping, nothing else will close it.
+		 */
+		void add(SocketChannel channel) {
+			mAdded.add(channel);
+			mSelector.wakeup();
+			if (mStopped)
+				closeAdded();
+		}
+
+		/*
+		 * Close the channels that were never registered, safe on any thread
+		 */
+		void closeAdded() {
+			SocketChannel channel;
+			while ((channel = mAdded.poll()) != null)
+				closeChannel(channel);
+		}
+
+		public void run() {
+			while (!mStopped) {
+				try {
+					mSelector.select();
+				} catch (IOException e) {
+					mLogger.error(TAG, "Worker.run(): select() failed", e);
+					break;
+				}
+
+				SocketChannel channel;
+				while ((channel = mAdded.poll()) != null) {
+					try {
+						channel.register(mSelector, SelectionKey.OP_READ, new Connection());
+						mConnectionCount++;
+					} catch (ClosedChannelException e) {
+						// Gone before we got to it
+					}
+				}
+
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isReadable())
+						read(key);
+				}
+			}
+
+			closeAdded();
+			for (SelectionKey key : mSelector.keys())
+				close(key);
+			try {
+				mSelector.close();
+			} catch (IOException e) {
+				mLogger.error(TAG, "Worker.run(): close() of selector failed", e);
+			}
+		}
+
+		/*
+		 * Take whatever the connection has for us and pass on the messages in it
+		 */
+		private void read(SelectionKey key) {
+			Connection connection = (Connection) key.attachment();
+			ByteBuffer buffer = connection.mBuffer;
+
+			try {
+				if (((SocketChannel) key.channel()).read(buffer) < 0) {
+					close(key);
+					return;
+				}
+			} catch (IOException e) {
+				close(key);
+				return;
+			}
+
+			buffer.flip();
+			if (connection.mAddress == null) {
+				// Wait for the whole hello
+				if (buffer.remaining() < HELLO_LENGTH) {
+					buffer.compact();
+					return;
+				}
+
+				if (!hello(connection, buffer)) {
+					mBadHelloCount++;
+					close(key);
+					return;
+				}
+			}
+			frames(connection, buffer);
+			buffer.compact();
+		}
+
+		/*
+		 * Read the hello at the start of the buffer.  Returns false if it isn't one.
+		 */
+		private boolean hello(Connection connection, ByteBuffer buffer) {
+			int start = buffer.position();
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (buffer.get(start + i) != MAGIC[i])
+					return false;
+			}
+			if (buffer.get(start + 4) != VERSION)
+				return false;
+
+			connection.mAddress = HxmRecorder.getAddress(buffer.getLong(start + 5));
+
+			HxmMetrics metrics = mMetrics;
+			if (metrics != null) {
+				connection.mMetrics = metrics.getDevice(connection.mAddress);
+				connection.mMetrics.increment(HxmMetrics.CONNECTS);
+			}
+			buffer.position(start + HELLO_LENGTH);
+			return true;
+		}
+
+		/*
+		 * Pass on every complete message in the buffer, leaving the position at the first
+		 * byte that could still be the start of one
+		 */
+		private void frames(Connection connection, ByteBuffer buffer) {
+			final HxmFrameScanner scanner = mScanner;
+			final int limit = buffer.limit();
+			int i = buffer.position();
+			long skipped = scanner.getSkippedByteCount();
+			long crcFailures = scanner.getCrcFailureCount();
+			long frames = mFrameCount;
+
+			while (scanner.scan(buffer, i, limit)) {
+				final int length = scanner.getFrameLength();
+				final int type = scanner.getFrameType();
+
+				buffer.position(scanner.getStop());
+				buffer.get(mFrame, 0, length);
+				i = scanner.getStop() + length;
+				mFrameCount++;
+
+				if (type == HxmMessageTypes.HEART_RATE)
+					deliver(connection.mAddress);
+				else
+					mTypes.dispatch(connection.mAddress, type, mFrame, 0, length, System.nanoTime());
+			}
+
+			buffer.position(scanner.getStop());
+
+			HxmMetrics.Device metrics = connection.mMetrics;
+			if (metrics != null) {
+				metrics.add(HxmMetrics.FRAMES, mFrameCount - frames);
+				metrics.add(HxmMetrics.SKIPPED_BYTES, scanner.getSkippedByteCount() - skipped);
+				metrics.add(HxmMetrics.CRC_FAILURES, scanner.getCrcFailureCount() - crcFailures);
+			}
+		}
+
+		private void deliver(String address) {
+			mRing.offer(mFrame, 0, HxmFrameReader.FRAME_LENGTH, System.nanoTime(), address);
+
+			// Only ask for the sink's attention once there is a sink to ask
+			Sink sink = mSink;
+			if (sink != null && mRing.needsSignal())
+				sink.framesReady(mRing);
+		}
+
+		private void close(SelectionKey key) {
+			Connection connection = (Connection) key.attachment();
+			if (connection.mMetrics != null && !mStopped)
+				connection.mMetrics.increment(HxmMetrics.CONNECTIONS_LOST);
+
+			key.cancel();
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				mLogger.error(TAG, "Worker.close(): close() of connection failed", e);
+			}
+			mConnectionCount--;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+/*
+ * HxmHrv
+ *
+ * The heart rate variability of one device over several windows at once, fed
+ * straight from the device's HxmRrExtractor.  See HxmHrvWindow for what is
+ * measured and how.
+ *
+ * Must only be used by one thread.
+ */
+public class HxmHrv implements HxmRrExtractor.Listener {
+
+	/*
+	 * Half a minute, a minute and five minutes
+	 */
+	public static final long[] DEFAULT_WINDOWS_MS = { 30000, 60000, 300000 };
+
+	private final HxmHrvWindow[] mWindows;
+
+	public HxmHrv() {
+		this(DEFAULT_WINDOWS_MS);
+	}
+
+	/*
+	 * @param windowsMs  length of each window, in milliseconds
+	 */
+	public HxmHrv(long[] windowsMs) {
+		mWindows = new HxmHrvWindow[windowsMs.length];
+		for (int i = 0; i < windowsMs.length; i++)
+			mWindows[i] = new HxmHrvWindow(windowsMs[i]);
+	}
+
+	public int getWindowCount() {
+		return mWindows.length;
+	}
+
+	/*
+	 * The windows, in the order they were given to the constructor
+	 */
+	public HxmHrvWindow getWindow(int i) {
+		return mWindows[i];
+	}
+
+	public void onRrInterval(long beatTimeMs, int rrMs) {
+		for (int i = 0; i < mWindows.length; i++)
+			mWindows[i].add(beatTimeMs, rrMs);
+	}
+
+	public void onRrGap() {
+		for (int i = 0; i < mWindows.length; i++)
+			mWindows[i].gap();
+	}
+}
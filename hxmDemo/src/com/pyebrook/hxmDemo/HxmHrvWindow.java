@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+/*
+ * HxmHrvWindow
+ *
+ * Heart rate variability over the RR intervals of the last so many seconds:
+ *
+ *     SDNN    standard deviation of the intervals
+ *     RMSSD   root mean square of the differences between successive intervals
+ *     pNN50   percentage of successive differences larger than 50 milliseconds
+ *
+ * Nothing is recomputed over the window.  The intervals are kept in a ring of
+ * primitive arrays along with running sums of the intervals, their squares and
+ * their squared differences, all in whole milliseconds so the sums never drift.
+ * Each new beat adds to the sums, and each beat that falls out of the window is
+ * taken back out of them.  The ring is sized for the shortest plausible interval,
+ * so memory is fixed when the window is made.
+ *
+ * A successive difference only counts when both intervals are in the window and
+ * no beats were missed between them, see HxmRrExtractor.Listener.onRrGap().
+ *
+ * Must only be used by one thread.
+ */
+public class HxmHrvWindow {
+
+	/*
+	 * No heart beats faster than 240 a minute
+	 */
+	public static final int MIN_RR_MS = 250;
+
+	/*
+	 * Successive differences above this count towards pNN50
+	 */
+	public static final int NN50_MS = 50;
+
+	private final long mWindowMs;
+	private final int mCapacity;
+	private final long[] mBeatTimes;
+	private final int[] mIntervals;
+
+	/*
+	 * Difference from the previous interval, and whether it is counted in the sums
+	 */
+	private final int[] mDiffs;
+	private final boolean[] mDiffCounted;
+
+	private int mHead = 0;
+	private int mSize = 0;
+	private boolean mContinuous = false;
+	private int mLastInterval;
+
+	private long mSum = 0;
+	private long mSumSquares = 0;
+	private long mDiffSumSquares = 0;
+	private int mDiffCount = 0;
+	private int mNn50Count = 0;
+
+	/*
+	 * @param windowMs  how far back the window reaches, in milliseconds
+	 */
+	public HxmHrvWindow(long windowMs) {
+		if (windowMs < MIN_RR_MS)
+			throw new IllegalArgumentException("HxmHrvWindow(): window of " + windowMs + "ms is too short");
+
+		mWindowMs = windowMs;
+		mCapacity = (int) (windowMs / MIN_RR_MS) + 1;
+		mBeatTimes = new long[mCapacity];
+		mIntervals = new int[mCapacity];
+		mDiffs = new int[mCapacity];
+		mDiffCounted = new boolean[mCapacity];
+	}
+
+	public long getWindowMs() {
+		return mWindowMs;
+	}
+
+	/*
+	 * Add the interval ending with the beat at beatTimeMs
+	 */
+	public void add(long beatTimeMs, int rrMs) {
+		expire(beatTimeMs);
+
+		// A beat faster than we allow for would overflow the ring, make room
+		if (mSize == mCapacity)
+			removeOldest();
+
+		int slot = (mHead + mSize) % mCapacity;
+		mBeatTimes[slot] = beatTimeMs;
+		mIntervals[slot] = rrMs;
+		mSum += rrMs;
+		mSumSquares += (long) rrMs * rrMs;
+
+		// Only count the difference if the previous interval is still in the window
+		mDiffCounted[slot] = false;
+		if (mContinuous && mSize > 0) {
+			int diff = rrMs - mLastInterval;
+			mDiffs[slot] = diff;
+			countDiff(slot, true);
+		}
+
+		mSize++;
+		mLastInterval = rrMs;
+		mContinuous = true;
+	}
+
+	/*
+	 * Beats were missed, the next interval doesn't follow on from the last one
+	 */
+	public void gap() {
+		mContinuous = false;
+	}
+
+	/*
+	 * Drop everything
+	 */
+	public void clear() {
+		mHead = 0;
+		mSize = 0;
+		mContinuous = false;
+		mSum = 0;
+		mSumSquares = 0;
+		mDiffSumSquares = 0;
+		mDiffCount = 0;
+		mNn50Count = 0;
+	}
+
+	/*
+	 * Number of intervals in the window
+	 */
+	public int getCount() {
+		return mSize;
+	}
+
+	/*
+	 * Mean interval in milliseconds, 0 if the window is empty
+	 */
+	public double getMeanRr() {
+		return (mSize > 0) ? (double) mSum / mSize : 0;
+	}
+
+	/*
+	 * Standard deviation of the intervals in milliseconds, 0 with fewer than two
+	 */
+	public double getSdnn() {
+		if (mSize < 2)
+			return 0;
+
+		double variance = (mSumSquares - (double) mSum * mSum / mSize) / (mSize - 1);
+		return Math.sqrt(Math.max(0, variance));
+	}
+
+	/*
+	 * Root mean square of successive differences in milliseconds, 0 if there are none
+	 */
+	public double getRmssd() {
+		return (mDiffCount > 0) ? Math.sqrt((double) mDiffSumSquares / mDiffCount) : 0;
+	}
+
+	/*
+	 * Percentage of successive differences over 50 milliseconds, 0 if there are none
+	 */
+	public double getPnn50() {
+		return (mDiffCount > 0) ? 100.0 * mNn50Count / mDiffCount : 0;
+	}
+
+	/*
+	 * Take out the beats that are now too old
+	 */
+	private void expire(long nowMs) {
+		while (mSize > 0 && nowMs - mBeatTimes[mHead] > mWindowMs)
+			removeOldest();
+	}
+
+	private void removeOldest() {
+		int rr = mIntervals[mHead];
+		mSum -= rr;
+		mSumSquares -= (long) rr * rr;
+		countDiff(mHead, false);
+
+		mHead = (mHead + 1) % mCapacity;
+		mSize--;
+
+		// The new oldest interval's predecessor just left the window
+		if (mSize > 0)
+			countDiff(mHead, false);
+	}
+
+	/*
+	 * Put a successive difference into the sums, or take it back out
+	 */
+	private void countDiff(int slot, boolean counted) {
+		if (mDiffCounted[slot] == counted)
+			return;
+
+		int diff = mDiffs[slot];
+		int sign = counted ? 1 : -1;
+		mDiffSumSquares += sign * (long) diff * diff;
+		mDiffCount += sign;
+		if (Math.abs(diff) > NN50_MS)
+			mNn50Count += sign;
+		mDiffCounted[slot] = counted;
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * HxmLatest
+ *
+ * The latest message from each device, for anything that wants to know how things
+ * stand right now, a dashboard say, without hooking into the Handler messages.
+ *
+ * Every session publishes each good message here as soon as it is read, on the
+ * session's own thread.  Each device has one slot, made once, that holds a copy of
+ * its latest message, and publishing writes over it in place, so a session makes
+ * no garbage however many messages it publishes.  The slot is guarded by a
+ * version number, a seqlock: it is odd while the session writes and even once
+ * it is done.  A reader copies the message into a Snapshot of its own and tries
+ * again if the version was odd or changed while it copied, so it never sees a half
+ * written message, takes no lock and never holds up a session.  Readers that keep
+ * their Snapshots and hand the same ones back make no garbage either.
+ *
+ * Devices stay in the registry after they disconnect, showing the last message
+ * they sent, until remove() is called.
+ */
+public class HxmLatest {
+
+	/*
+	 * The message in a slot, packed eight bytes to a long
+	 */
+	private static final int FRAME_WORDS = (HxmFrameReader.FRAME_LENGTH + 7) / 8;
+
+	/*
+	 * Where the message's sequence number and arrival time are kept in a slot, the
+	 * message itself follows them
+	 */
+	private static final int WORD_SEQUENCE = 0;
+	private static final int WORD_RECEIVED_NANOS = 1;
+	private static final int WORD_FRAME = 2;
+
+	/*
+	 * The slots, kept by address.  mSlots is replaced whenever a device is added or
+	 * removed so getAll() can go through it without a lock.
+	 */
+	private final ConcurrentHashMap<String, Slot> mSlotMap = new ConcurrentHashMap<String, Slot>();
+	private volatile Slot[] mSlots = new Slot[0];
+
+	/*
+	 * Where one device's messages are published
+	 */
+	public static class Slot {
+		private final String mAddress;
+		private final long mDeviceId;
+
+		/*
+		 * Odd while a message is being written, even otherwise, and 0 until the first
+		 * one.  The words are read and written one volatile long at a time, so a
+		 * reader that sees the same even version before and after copying them has
+		 * one whole message.
+		 */
+		private volatile long mVersion = 0;
+		private final AtomicLongArray mWords = new AtomicLongArray(WORD_FRAME + FRAME_WORDS);
+
+		/*
+		 * Only the publishing thread uses this
+		 */
+		private long mSequence = -1;
+
+		Slot(String address) {
+			mAddress = address;
+			mDeviceId = HxmRecorder.getDeviceId(address);
+		}
+
+		public String getAddress() {
+			return mAddress;
+		}
+
+		/*
+		 * Copy the latest message into a snapshot
+		 *
+		 * @return false, leaving the snapshot as it was, if there hasn't been one
+		 */
+		public boolean getLatest(Snapshot into) {
+			final byte[] frame = into.mFrame;
+			long sequence;
+			long receivedNanos;
+
+			while (true) {
+				long version = mVersion;
+				if (version == 0)
+					return false;
+				if ((version & 1) != 0) {
+					Thread.yield();
+					continue;
+				}
+
+				sequence = mWords.get(WORD_SEQUENCE);
+				receivedNanos = mWords.get(WORD_RECEIVED_NANOS);
+				for (int w = 0; w < FRAME_WORDS; w++) {
+					long word = mWords.get(WORD_FRAME + w);
+					for (int b = w * 8; b < Math.min(w * 8 + 8, HxmFrameReader.FRAME_LENGTH); b++) {
+						frame[b] = (byte) word;
+						word >>>= 8;
+					}
+				}
+
+				if (mVersion == version)
+					break;
+			}
+
+			into.fill(this, sequence, receivedNanos);
+			return true;
+		}
+
+		/*
+		 * Publish the HxM message starting at buffer[offset].  Only one thread should
+		 * publish to a slot at a time, the one reading the device.  Nothing is made.
+		 *
+		 * @param receivedNanos  when the message arrived, on the System.nanoTime() clock
+		 */
+		public void publish(byte[] buffer, int offset, long receivedNanos) {
+			final long version = mVersion;
+			mVersion = version + 1;
+
+			mWords.set(WORD_SEQUENCE, ++mSequence);
+			mWords.set(WORD_RECEIVED_NANOS, receivedNanos);
+			for (int w = 0; w < FRAME_WORDS; w++) {
+				long word = 0;
+				for (int b = Math.min(w * 8 + 8, HxmFrameReader.FRAME_LENGTH) - 1; b >= w * 8; b--)
+					word = (word << 8) | (buffer[offset + b] & 0xFF);
+				mWords.set(WORD_FRAME + w, word);
+			}
+
+			mVersion = version + 2;
+		}
+	}
+
+	/*
+	 * One message from one device, decoded.  A Snapshot belongs to whoever made it,
+	 * the registry only ever copies into it, so a reader can keep one and pass it
+	 * back to be filled in again each time it looks.  The accessors are named after
+	 * the ones in HrmReading.
+	 */
+	public static final class Snapshot {
+		private String mAddress;
+		private long mDeviceId;
+		private long mSequence;
+		private long mReceivedNanos;
+		private long mTime;
+		private final byte[] mFrame = new byte[HxmFrameReader.FRAME_LENGTH];
+
+		private int mBatteryIndicator;
+		private int mHeartRate;
+		private int mHeartBeatNumber;
+		private int mDistance;
+		private int mSpeed;
+		private int mStrides;
+
+		public Snapshot() {
+		}
+
+		/*
+		 * Decode the message just copied into mFrame
+		 */
+		void fill(Slot slot, long sequence, long receivedNanos) {
+			mAddress = slot.mAddress;
+			mDeviceId = slot.mDeviceId;
+			mSequence = sequence;
+			mReceivedNanos = receivedNanos;
+			mTime = HxmRecorder.getWallClock(receivedNanos);
+
+			mBatteryIndicator = HrmReading.u8(mFrame, HrmReading.OFFSET_BATTERY_INDICATOR);
+			mHeartRate = HrmReading.u8(mFrame, HrmReading.OFFSET_HEART_RATE);
+			mHeartBeatNumber = HrmReading.u8(mFrame, HrmReading.OFFSET_HEART_BEAT_NUMBER);
+			mDistance = HrmReading.u16(mFrame, HrmReading.OFFSET_DISTANCE);
+			mSpeed = HrmReading.u16(mFrame, HrmReading.OFFSET_SPEED);
+			mStrides = HrmReading.u8(mFrame, HrmReading.OFFSET_STRIDES);
+		}
+
+		public String getAddress() {
+			return mAddress;
+		}
+
+		public long getDeviceId() {
+			return mDeviceId;
+		}
+
+		/*
+		 * Counts up by one with each message from the device, a reader that sees the
+		 * same number twice has seen the same message twice
+		 */
+		public long getSequence() {
+			return mSequence;
+		}
+
+		/*
+		 * When the message arrived, on the System.nanoTime() clock
+		 */
+		public long getReceivedNanos() {
+			return mReceivedNanos;
+		}
+
+		/*
+		 * When the message arrived, milliseconds since the epoch
+		 */
+		public long getTime() {
+			return mTime;
+		}
+
+		public int batteryIndicator() {
+			return mBatteryIndicator;
+		}
+
+		public int heartRate() {
+			return mHeartRate;
+		}
+
+		public int heartBeatNumber() {
+			return mHeartBeatNumber;
+		}
+
+		public int distance() {
+			return mDistance;
+		}
+
+		public int speed() {
+			return mSpeed;
+		}
+
+		public int strides() {
+			return mStrides;
+		}
+
+		/*
+		 * Copy the whole message, for the fields that aren't decoded here
+		 */
+		public void copyFrame(byte[] dst, int offset) {
+			System.arraycopy(mFrame, 0, dst, offset, HxmFrameReader.FRAME_LENGTH);
+		}
+	}
+
+	/*
+	 * The slot for a device, made if it isn't there already
+	 */
+	public Slot getSlot(String address) {
+		Slot slot = mSlotMap.get(address);
+		if (slot != null)
+			return slot;
+
+		synchronized (this) {
+			slot = mSlotMap.get(address);
+			if (slot == null) {
+				slot = new Slot(address);
+				mSlotMap.put(address, slot);
+				mSlots = mSlotMap.values().toArray(new Slot[0]);
+			}
+			return slot;
+		}
+	}
+
+	/*
+	 * Copy the latest message from a device into a snapshot
+	 *
+	 * @return false, leaving the snapshot as it was, if there hasn't been one
+	 */
+	public boolean get(String address, Snapshot into) {
+		Slot slot = mSlotMap.get(address);
+		return slot != null && slot.getLatest(into);
+	}
+
+	/**
+	 * The latest message from every device that has sent one.
+	 *
+	 * @param into  filled in from the start, if it's too small only the first into.length
+	 *              are filled in.  The Snapshots already in it are filled in again, a new
+	 *              one is only made where there's a null.
+	 * @return the number of devices that have sent a message, which can be more than
+	 *         into.length
+	 */
+	public int getAll(Snapshot[] into) {
+		final Slot[] slots = mSlots;
+		int count = 0;
+
+		for (Slot slot : slots) {
+			if (count < into.length) {
+				if (into[count] == null)
+					into[count] = new Snapshot();
+				if (slot.getLatest(into[count]))
+					count++;
+			} else if (slot.mVersion != 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Number of devices with a slot
+	 */
+	public int size() {
+		return mSlots.length;
+	}
+
+	/*
+	 * Forget a device.  A session still publishing to its slot carries on doing so
+	 * unseen, the next getSlot() for the address makes a new one.
+	 */
+	public synchronized void remove(String address) {
+		if (mSlotMap.remove(address) != null)
+			mSlots = mSlotMap.values().toArray(new Slot[0]);
+	}
+}
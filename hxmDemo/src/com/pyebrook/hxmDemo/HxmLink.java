@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * HxmLink
+ *
+ * Something an HxmSession can connect to and read HxM bytes from.  Usually this
+ * is a Bluetooth connection to a strap, see BluetoothHxmLink, but anything that
+ * produces an InputStream of HxM messages will do, which is how the service can
+ * be run against recorded or simulated data, see StreamHxmLink.
+ */
+public interface HxmLink {
+
+	/*
+	 * Identifies the device, sessions are kept by address so it has to be unique
+	 */
+	String getAddress();
+
+	/*
+	 * A name to show the user
+	 */
+	String getName();
+
+	/*
+	 * Whether connecting again can bring the device back once the connection is
+	 * lost or can't be made.  A link to something that only plays once, an open
+	 * stream or a recording, says no, and the service leaves it at rest rather than
+	 * trying it again.
+	 */
+	boolean isReconnectable();
+
+	/*
+	 * Make the connection and return the stream the HxM messages will arrive on.  This
+	 * is a blocking call and will only return on a successful connection or an exception.
+	 */
+	InputStream connect() throws IOException;
+
+	/*
+	 * Close the connection, a thread blocked in connect() or reading the stream
+	 * should get an IOException.  May be called more than once.
+	 */
+	void close();
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+/*
+ * HxmListener
+ *
+ * What a subscriber to the HxmService hears about, the same things the service
+ * tells its Handler but as method calls with proper types, and with the messages
+ * from the devices handed over in batches.  See HxmService.subscribe().
+ *
+ * The calls are made by the subscription's executor, never more than one at a time.
+ * Extend Adapter to only hear about some of them.
+ */
+public interface HxmListener {
+
+	/*
+	 * A device changed state, or if address is null the service did
+	 * @param state  one of the HXM_SERVICE_ states
+	 */
+	void onStateChanged(String address, int state);
+
+	/*
+	 * The connection to a device has been made
+	 */
+	void onConnected(String address, String name);
+
+	/*
+	 * Something the user should be told about, what the service would toast
+	 */
+	void onNotice(String address, String text);
+
+	/*
+	 * Messages from the devices, oldest first.  The batch is only good for the
+	 * duration of the call.
+	 */
+	void onReadings(HxmBatch batch);
+
+	/*
+	 * Does nothing for each call, for listeners that only want some of them
+	 */
+	public static class Adapter implements HxmListener {
+		public void onStateChanged(String address, int state) {
+		}
+
+		public void onConnected(String address, String name) {
+		}
+
+		public void onNotice(String address, String text) {
+		}
+
+		public void onReadings(HxmBatch batch) {
+		}
+	}
+}
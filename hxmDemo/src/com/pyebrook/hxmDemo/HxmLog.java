@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+/*
+ * HxmLog
+ *
+ * Switches for the logging done on the packet path, where anything done per
+ * message is done once a second for every strap.
+ *
+ * Logging on the packet path is written like this:
+ *
+ *         if (HxmLog.DEBUG)
+ *             Log.d(TAG, "read " + count + " bytes");
+ *
+ * DEBUG is a compile time constant, so when it is false the compiler drops the
+ * whole statement, string building and all, and a release build does no work at
+ * all for it.  Set DEBUG to true for a debugging build to get every message logged.
+ *
+ * With DEBUG off the trace mode can still log a sample of the messages, one in
+ * every N, which is usually enough to see what the devices are sending without
+ * flooding logcat:
+ *
+ *         if (HxmLog.DEBUG || HxmLog.trace(messageNumber))
+ *             reading.dump();
+ *
+ * When tracing is off, as it is to start with, trace() costs a read and a compare.
+ */
+public final class HxmLog {
+
+	/*
+	 * Log everything on the packet path, leave false for release builds
+	 */
+	public static final boolean DEBUG = false;
+
+	private static volatile int sTraceInterval = 0;
+
+	private HxmLog() {
+	}
+
+	/*
+	 * Log one message in every interval, 0 turns tracing off
+	 */
+	public static void setTraceInterval(int interval) {
+		if (interval < 0)
+			throw new IllegalArgumentException("HxmLog.setTraceInterval(): interval can't be negative");
+		sTraceInterval = interval;
+	}
+
+	public static int getTraceInterval() {
+		return sTraceInterval;
+	}
+
+	/*
+	 * True if the message with this sequence number should be traced
+	 */
+	public static boolean trace(long sequence) {
+		final int interval = sTraceInterval;
+		return interval > 0 && sequence % interval == 0;
+	}
+}
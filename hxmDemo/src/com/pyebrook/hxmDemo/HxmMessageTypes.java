@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.util.Arrays;
+
+/*
+ * HxmMessageTypes
+ *
+ * The kinds of message the readers know how to pull out of a stream.  Zephyr's
+ * devices all frame their messages the same way, STX, MSGID, DLC, the payload,
+ * CRC and ETX, but each kind of message has its own MSGID and payload length.
+ * The HxM only sends the one, the general data message, MSGID 0x26 with 55 bytes
+ * of payload, which is HEART_RATE and always registered.  Other kinds, from other
+ * Zephyr sensors say, are added with register().
+ *
+ * Whether a header belongs to a message we know is found with one look in a
+ * table with an entry for every MSGID and DLC pair, 64K of them, made up front,
+ * so a reader costs the same however many kinds of message there are.  The entry
+ * is the message's type, or UNKNOWN.
+ *
+ * HEART_RATE messages go the way they always have, into the session's ring and
+ * on to the pipeline.  Every other good message is handed to its type's Decoder,
+ * on the thread that read it.  A Decoder shouldn't allocate or take long, it runs
+ * once per message on the reading thread, HrmReading and HxmFieldDecoder show how
+ * to read the fields in place.
+ *
+ * Registering replaces the table rather than changing it, so the readers never
+ * take a lock to look.  A type can't be removed once registered.
+ */
+public class HxmMessageTypes {
+
+	public static final int UNKNOWN = -1;
+
+	/*
+	 * The HxM's general data message, see HrmReading
+	 */
+	public static final int HEART_RATE = 0;
+
+	/*
+	 * The longest payload a Zephyr message can have
+	 */
+	public static final int MAX_DLC = 128;
+
+	/*
+	 * STX, MSGID, DLC, the longest payload, CRC and ETX.  Readers need room for this much.
+	 */
+	public static final int MAX_FRAME_LENGTH = MAX_DLC + 5;
+
+	/*
+	 * The table holds types in a byte
+	 */
+	public static final int MAX_TYPES = 127;
+
+	/*
+	 * Given every good message of its type.  The bytes are only good for the duration
+	 * of the call.
+	 */
+	public interface Decoder {
+		/*
+		 * @param offset         where the message's STX is in buffer
+		 * @param length         the whole message, DLC + 5 bytes
+		 * @param receivedNanos  when it was read, on the System.nanoTime() clock
+		 */
+		void decode(String address, int type, byte[] buffer, int offset, int length, long receivedNanos);
+	}
+
+	/*
+	 * One kind of message
+	 */
+	public static final class Type {
+		private final int mId;
+		private final int mMsgId;
+		private final int mMinDlc;
+		private final int mMaxDlc;
+		private final String mName;
+		private final Decoder mDecoder;
+
+		Type(int id, int msgId, int minDlc, int maxDlc, String name, Decoder decoder) {
+			mId = id;
+			mMsgId = msgId;
+			mMinDlc = minDlc;
+			mMaxDlc = maxDlc;
+			mName = name;
+			mDecoder = decoder;
+		}
+
+		public int getId() {
+			return mId;
+		}
+
+		public int getMsgId() {
+			return mMsgId;
+		}
+
+		public int getMinDlc() {
+			return mMinDlc;
+		}
+
+		public int getMaxDlc() {
+			return mMaxDlc;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public Decoder getDecoder() {
+			return mDecoder;
+		}
+	}
+
+	/*
+	 * Replaced, never changed, see register()
+	 */
+	private volatile byte[] mTable;
+	private volatile Type[] mTypes = new Type[0];
+
+	public HxmMessageTypes() {
+		mTable = new byte[256 * 256];
+		Arrays.fill(mTable, (byte) UNKNOWN);
+		register(HxmFrameReader.MSGID, HxmFrameReader.DLC, HxmFrameReader.DLC, "general data", null);
+	}
+
+	/**
+	 * Add a kind of message.
+	 *
+	 * @param msgId    its MSGID
+	 * @param minDlc   the shortest payload it can have
+	 * @param maxDlc   the longest, the same as minDlc for a message with a fixed length
+	 * @param decoder  given each one, may be null to just skip over them cleanly
+	 * @return the new type
+	 * @throws IllegalArgumentException if the MSGID and any of the lengths are already taken
+	 */
+	public synchronized int register(int msgId, int minDlc, int maxDlc, String name, Decoder decoder) {
+		if (msgId < 0 || msgId > 255)
+			throw new IllegalArgumentException("HxmMessageTypes.register(): MSGID " + msgId + " doesn't fit in a byte");
+
+		if (minDlc < 0 || maxDlc > MAX_DLC || minDlc > maxDlc)
+			throw new IllegalArgumentException("HxmMessageTypes.register(): bad payload lengths " + minDlc + " to " + maxDlc);
+
+		if (mTypes.length >= MAX_TYPES)
+			throw new IllegalArgumentException("HxmMessageTypes.register(): no room for another type");
+
+		byte[] table = mTable.clone();
+		int id = mTypes.length;
+		for (int dlc = minDlc; dlc <= maxDlc; dlc++) {
+			int index = (msgId << 8) | dlc;
+			if (table[index] != UNKNOWN)
+				throw new IllegalArgumentException("HxmMessageTypes.register(): MSGID " + msgId + " with DLC " + dlc
+						+ " is already " + mTypes[table[index]].getName());
+			table[index] = (byte) id;
+		}
+
+		Type[] types = new Type[id + 1];
+		System.arraycopy(mTypes, 0, types, 0, id);
+		types[id] = new Type(id, msgId, minDlc, maxDlc, name, decoder);
+
+		// The type has to be there before the table can point at it
+		mTypes = types;
+		mTable = table;
+		return id;
+	}
+
+	/*
+	 * The type of message with this header, or UNKNOWN
+	 */
+	public int lookup(int msgId, int dlc) {
+		return mTable[((msgId & 0xFF) << 8) | (dlc & 0xFF)];
+	}
+
+	/*
+	 * The table behind lookup(), indexed by MSGID << 8 | DLC.  A reader holds on to it
+	 * for a pass through its buffer.
+	 */
+	byte[] getTable() {
+		return mTable;
+	}
+
+	public Type getType(int type) {
+		return mTypes[type];
+	}
+
+	public int getTypeCount() {
+		return mTypes.length;
+	}
+
+	/*
+	 * Hand a message to its type's Decoder, if it has one
+	 */
+	void dispatch(String address, int type, byte[] buffer, int offset, int length, long receivedNanos) {
+		Decoder decoder = mTypes[type].mDecoder;
+		if (decoder != null)
+			decoder.decode(address, type, buffer, offset, length, receivedNanos);
+	}
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * HxmMetrics
+ *
+ * Counts what happens to the messages on their way through, for each device and
+ * for all of them together, so we can see what the straps and the app are up to
+ * instead of guessing.
+ *
+ * Each device has a set of counters: messages read, bytes thrown away while
+ * looking for the start of a message, CRC failures, messages dropped because the
+ * consumer fell behind, connections made, failed, lost and retried.  The
+ * number of messages waiting in the device's ring is looked at when asked for.
+ * And there are latency histograms for the stages a message goes through, see
+ * HxmTrace:
+ *
+ *     READ_TO_DECODE     read, to the pipeline starting on it
+ *     DECODE_TO_DISPLAY  the pipeline starting on it, to the screen starting to show it
+ *     DISPATCH           read, to the pipeline's worker being handed its ring
+ *     PROCESS            the worker starting on it, to the worker being done with it
+ *     UI_QUEUE           the screen being due to show it, to the UI thread getting to it
+ *     RENDER             the UI thread showing it
+ *     READ_TO_DISPLAY    read, to being on the screen, how stale what we show is
+ *
+ * The last four only count the messages that made it to the screen.
+ *
+ * Everything is kept in atomic longs, so updating costs an uncontended atomic
+ * add and never takes a lock, and reading the metrics never holds up the threads
+ * updating them.  The totals for all devices are only added up when a snapshot is
+ * taken, so the threads reading different devices don't fight over a shared
+ * counter.  A snapshot is taken counter by counter while the counting goes on,
+ * so the counters in it may be a message or two apart.
+ *
+ * Anything else worth watching, the gateway's connection count say, can be added
+ * as a Gauge, which is read when a snapshot is taken.
+ */
+public class HxmMetrics {
+
+	public static final int FRAMES = 0;
+	public static final int SKIPPED_BYTES = 1;
+	public static final int CRC_FAILURES = 2;
+	public static final int DROPPED = 3;
+	public static final int CONNECTS = 4;
+	public static final int CONNECT_FAILURES = 5;
+	public static final int CONNECTIONS_LOST = 6;
+	public static final int RECONNECTS = 7;
+	public static final int COUNTER_COUNT = 8;
+
+	public static final String[] COUNTER_NAMES = {
+		"frames", "skipped_bytes", "crc_failures", "dropped",
+		"connects", "connect_failures", "connections_lost", "reconnects"
+	};
+
+	public static final int READ_TO_DECODE = 0;
+	public static final int DECODE_TO_DISPLAY = 1;
+	public static final int DISPATCH = 2;
+	public static final int PROCESS = 3;
+	public static final int UI_QUEUE = 4;
+	public static final int RENDER = 5;
+	public static final int READ_TO_DISPLAY = 6;
+	public static final int HISTOGRAM_COUNT = 7;
+
+	public static final String[] HISTOGRAM_NAMES = {
+		"read_to_decode", "decode_to_display", "dispatch", "process", "ui_queue", "render", "read_to_display"
+	};
+
+	/*
+	 * Something to read when a snapshot is taken
+	 */
+	public interface Gauge {
+		long get();
+	}
+
+	/*
+	 * The devices, kept by address.  mDevices is replaced whenever a device is added
+	 * so snapshot() can go through it without a lock.
+	 */
+	private final ConcurrentHashMap<String, Device> mDeviceMap = new ConcurrentHashMap<String, Device>();
+	private volatile Device[] mDevices = new Device[0];
+	private final ConcurrentHashMap<String, Gauge> mGauges = new ConcurrentHashMap<String, Gauge>();
+
+	/*
+	 * The metrics of one device, made the first time it is asked for.  Devices stay
+	 * for the life of the registry so their counts carry on across reconnects.
+	 */
+	public Device getDevice(String address) {
+		Device device = mDeviceMap.get(address);
+		if (device != null)
+			return device;
+
+		synchronized (this) {
+			device = mDeviceMap.get(address);
+			if (device == null) {
+				device = new Device(address);
+				mDeviceMap.put(address, device);
+				mDevices = mDeviceMap.values().toArray(new Device[0]);
+			}
+			return device;
+		}
+	}
+
+	/*
+	 * One counter added up across every device, without taking a whole snapshot
+	 */
+	public long getTotal(int counter) {
+		long total = 0;
+		for (Device device : mDevices)
+			total += device.get(counter);
+		return total;
+	}
+
+	/*
+	 * Read a gauge with every snapshot, replacing any gauge with the same name
+	 */
+	public void register(String name, Gauge gauge) {
+		mGauges.put(name, gauge);
+	}
+
+	public void unregister(String name) {
+		mGauges.remove(name);
+	}
+
+	/*
+	 * Everything counted so far, the counting carries on while it is taken
+	 */
+	public Snapshot snapshot() {
+		Device[] devices = mDevices;
+		DeviceSnapshot[] snapshots = new DeviceSnapshot[devices.length];
+		for (int i = 0; i < devices.length; i++)
+			snapshots[i] = devices[i].snapshot();
+
+		Map<String, Long> gauges = new TreeMap<String, Long>();
+		for (Map.Entry<String, Gauge> entry : mGauges.entrySet())
+			gauges.put(entry.getKey(), entry.getValue().get());
+
+		return new Snapshot(snapshots, gauges);
+	}
+
+	/*
+	 * The metrics of one device.  Any thread can count.
+	 */
+	public static class Device {
+		private final String mAddress;
+		private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+		private final Histogram[] mHistograms = new Histogram[HISTOGRAM_COUNT];
+		private volatile HxmFrameRing mRing = null;
+
+		Device(String address) {
+			mAddress = address;
+			for (int i = 0; i < HISTOGRAM_COUNT; i++)
+				mHistograms[i] = new Histogram();
+		}
+
+		public String getAddress() {
+			return mAddress;
+		}
+
+		/*
+		 * @param counter  one of the counters, FRAMES to RECONNECTS
+		 */
+		public void add(int counter, long delta) {
+			if (delta != 0)
+				mCounters.addAndGet(counter, delta);
+		}
+
+		public void increment(int counter) {
+			mCounters.incrementAndGet(counter);
+		}
+
+		public long get(int counter) {
+			return mCounters.get(counter);
+		}
+
+		/*
+		 * @param histogram  one of the histograms, READ_TO_DECODE to READ_TO_DISPLAY
+		 */
+		public void record(int histogram, long nanos) {
+			mHistograms[histogram].record(nanos);
+		}
+
+		public Histogram getHistogram(int histogram) {
+			return mHistograms[histogram];
+		}
+
+		/*
+		 * The ring the device's messages wait in, its size is the device's queue depth
+		 */
+		public void setRing(HxmFrameRing ring) {
+			mRing = ring;
+		}
+
+		DeviceSnapshot snapshot() {
+			long[] counters = new long[COUNTER_COUNT];
+			for (int i = 0; i < COUNTER_COUNT; i++)
+				counters[i] = mCounters.get(i);
+
+			HistogramSnapshot[] histograms = new HistogramSnapshot[HISTOGRAM_COUNT];
+			for (int i = 0; i < HISTOGRAM_COUNT; i++)
+				histograms[i] = mHistograms[i].snapshot();
+
+			HxmFrameRing ring = mRing;
+			return new DeviceSnapshot(mAddress, counters, (ring != null) ? ring.size() : 0, histograms);
+		}
+	}
+
+	/*
+	 * Latencies in nanoseconds, counted into buckets that double in width, the first
+	 * for up to a microsecond and the last for anything over a minute or so.  Good
+	 * enough to tell a microsecond from a millisecond from a second, which is what
+	 * we want to know, at the cost of a few atomic adds per value.
+	 */
+	public static class Histogram {
+		public static final int BUCKET_COUNT = 28;
+
+		private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+		private final AtomicLong mSum = new AtomicLong(0);
+		private final AtomicLong mMax = new AtomicLong(0);
+
+		public void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+
+			mBuckets.incrementAndGet(getBucket(nanos));
+			mSum.addAndGet(nanos);
+
+			long max;
+			while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos))
+				;
+		}
+
+		/*
+		 * Bucket 0 holds up to 1024ns, bucket i up to 1024 << i
+		 */
+		public static int getBucket(long nanos) {
+			if (nanos <= 1024)
+				return 0;
+
+			int bucket = 64 - Long.numberOfLeadingZeros((nanos - 1) >> 10);
+			return Math.min(bucket, BUCKET_COUNT - 1);
+		}
+
+		/*
+		 * The largest value that goes in a bucket, the last one has no limit
+		 */
+		public static long getUpperBound(int bucket) {
+			return (bucket < BUCKET_COUNT - 1) ? 1024L << bucket : Long.MAX_VALUE;
+		}
+
+		HistogramSnapshot snapshot() {
+			long[] buckets = new long[BUCKET_COUNT];
+			long count = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				buckets[i] = mBuckets.get(i);
+				count += buckets[i];
+			}
+			return new HistogramSnapshot(buckets, count, mSum.get(), mMax.get());
+		}
+	}
+
+	public static final class HistogramSnapshot {
+		private final long[] mBuckets;
+		private final long mCount;
+		private final long mSum;
+		private final long mMax;
+
+		HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+			mBuckets = buckets;
+			mCount = count;
+			mSum = sum;
+			mMax = max;
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getBucket(int bucket) {
+			return mBuckets[bucket];
+		}
+
+		public long getSumNanos() {
+			return mSum;
+		}
+
+		public long getMaxNanos() {
+			return mMax;
+		}
+
+		public long getMeanNanos() {
+			return (mCount > 0) ? mSum / mCount : 0;
+		}
+
+		/*
+		 * The upper bound of the bucket the percentile falls in, never more than the
+		 * largest value seen
+		 *
+		 * @param percentile  0 to 100
+		 */
+		public long getPercentileNanos(double percentile) {
+			if (mCount == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(mCount * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < Histogram.BUCKET_COUNT; i++) {
+				seen += mBuckets[i];
+				if (seen >= rank && seen > 0)
+					return Math.min(Histogram.getUpperBound(i), mMax);
+			}
+			return mMax;
+		}
+
+		HistogramSnapshot merge(HistogramSnapshot other) {
+			long[] buckets = new long[Histogram.BUCKET_COUNT];
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = mBuckets[i] + other.mBuckets[i];
+			return new HistogramSnapshot(buckets, mCount + other.mCount, mSum + other.mSum, Math.max(mMax, other.mMax));
+		}
+	}
+
+	public static final class DeviceSnapshot {
+		private final String mAddress;
+		private final long[] mCounters;
+		private final int mQueueDepth;
+		private final HistogramSnapshot[] mHistograms;
+
+		DeviceSnapshot(String address, long[] counters, int queueDepth, HistogramSnapshot[] histograms) {
+			mAddress = address;
+			mCounters = counters;
+			mQueueDepth = queueDepth;
+			mHistograms = histograms;
+		}
+
+		/*
+		 * Null for the totals
+		 */
+		public String getAddress() {
+			return mAddress;
+		}
+
+		public long get(int counter) {
+			return mCounters[counter];
+		}
+
+		/*
+		 * Messages waiting for the consumer when the snapshot was taken
+		 */
+		public int getQueueDepth() {
+			return mQueueDepth;
+		}
+
+		public HistogramSnapshot getHistogram(int histogram) {
+			return mHistograms[histogram];
+		}
+	}
+
+	/*
+	 * The metrics as they stood at one moment, never changed afterwards
+	 */
+	public static final class Snapshot {
+		private final DeviceSnapshot[] mDevices;
+		private final DeviceSnapshot mTotal;
+		private final Map<String, Long> mGauges;
+
+		Snapshot(DeviceSnapshot[] devices, Map<String, Long> gauges) {
+			mDevices = devices;
+			mGauges = gauges;
+
+			long[] counters = new long[COUNTER_COUNT];
+			int queueDepth = 0;
+			HistogramSnapshot[] histograms = new HistogramSnapshot[HISTOGRAM_COUNT];
+			for (int i = 0; i < HISTOGRAM_COUNT; i++)
+				histograms[i] = new HistogramSnapshot(new long[Histogram.BUCKET_COUNT], 0, 0, 0);
+
+			for (DeviceSnapshot device : devices) {
+				for (int i = 0; i < COUNTER_COUNT; i++)
+					counters[i] += device.mCounters[i];
+				queueDepth += device.mQueueDepth;
+				for (int i = 0; i < HISTOGRAM_COUNT; i++)
+					histograms[i] = histograms[i].merge(device.mHistograms[i]);
+			}
+			mTotal = new DeviceSnapshot(null, counters, queueDepth, histograms);
+		}
+
+		public DeviceSnapshot[] getDevices() {
+			return mDevices.clone();
+		}
+
+		/*
+		 * Every device added together
+		 */
+		public DeviceSnapshot getTotal() {
+			return mTotal;
+		}
+
+		public Map<String, Long> getGauges() {
+			return mGauges;
+		}
+
+		/**
+		 * Write the snapshot in the Prometheus text format, one line per value.  Only
+		 * the devices are written, each line labelled with its device, so sum() over
+		 * the label gives the totals without counting anything twice.  The latencies
+		 * are in seconds.
+		 */
+		public void writeText(Appendable out) throws IOException {
+			for (int c = 0; c < COUNTER_COUNT; c++) {
+				String name = "hxm_" + COUNTER_NAMES[c] + "_total";
+				out.append("# TYPE ").append(name).append(" counter\n");
+				for (DeviceSnapshot device : mDevices)
+					line(out, name, device.mAddress, null, device.get(c));
+			}
+
+			out.append("# TYPE hxm_queue_depth gauge\n");
+			for (DeviceSnapshot device : mDevices)
+				line(out, "hxm_queue_depth", device.mAddress, null, device.mQueueDepth);
+
+			for (int h = 0; h < HISTOGRAM_COUNT; h++) {
+				String name = "hxm_" + HISTOGRAM_NAMES[h] + "_seconds";
+				out.append("# TYPE ").append(name).append(" histogram\n");
+				for (DeviceSnapshot device : mDevices)
+					histogram(out, name, device.mAddress, device.getHistogram(h));
+			}
+
+			for (Map.Entry<String, Long> gauge : mGauges.entrySet()) {
+				String name = "hxm_" + gauge.getKey();
+				out.append("# TYPE ").append(name).append(" gauge\n");
+				line(out, name, null, null, gauge.getValue());
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			try {
+				writeText(text);
+			} catch (IOException e) {
+				// Not from a StringBuilder
+			}
+			return text.toString();
+		}
+
+		private static void histogram(Appendable out, String name, String address, HistogramSnapshot histogram) throws IOException {
+			long cumulative = 0;
+			for (int i = 0; i < Histogram.BUCKET_COUNT - 1; i++) {
+				cumulative += histogram.getBucket(i);
+				line(out, name + "_bucket", address, seconds(Histogram.getUpperBound(i)), cumulative);
+			}
+			line(out, name + "_bucket", address, "+Inf", histogram.getCount());
+			line(out, name + "_sum", address, null, seconds(histogram.getSumNanos()));
+			line(out, name + "_count", address, null, histogram.getCount());
+		}
+
+		private static void line(Appendable out, String name, String address, String le, Object value) throws IOException {
+			out.append(name);
+			if (address != null || le != null) {
+				out.append('{');
+				if (address != null)
+					out.append("device=\"").append(address).append('"');
+				if (le != null)
+					out.append((address != null) ? ",le=\"" : "le=\"").append(le).append('"');
+				out.append('}');
+			}
+			out.append(' ').append(String.valueOf(value)).append('\n');
+		}
+
+		private static String seconds(long nanos) {
+			return String.format(Locale.US, "%.9f", nanos / 1e9);
+		}
+	}
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * HxmPipeline
+ *
+ * Does the work on the messages from the HxM devices away from the UI thread.
+ *
+ * The pipeline has a worker thread of its own.  Give getHandler() to the
+ * HxmService as its frame handler and the worker is told whenever a session has
+ * messages waiting.  Give getGatewaySink() to an HxmGateway and the worker is
+ * told the same way when a gateway ring has messages from the relayed devices.
+ * The worker takes the messages out of the ring, decodes them, and runs each
+ * device's analytics: the RR intervals are pulled out of the beat time stamps
+ * and fed to the heart rate variability windows.  If
+ * there is a recorder each message is written to it straight out of the ring,
+ * and if there is a column writer the decoded fields are added to the column store.
+ * Anything else that wants every message can be added as a Stage.
+ * The latest message is copied aside for the screen.
+ *
+ * The screen doesn't get every message.  The UI thread is asked to show each
+ * device's latest message at most once per display frame, however many messages
+ * arrived in between, so a strap costs the UI thread one message a frame however
+ * fast it sends, and one device's messages never take the place of another's.
+ *
+ * Each message carries the time the session read it, and the pipeline notes
+ * when it reaches each stage after that, all the way to the screen.  With
+ * metrics set, the time between the stages goes into the device's latency
+ * histograms.  The messages HxmLog.trace() picks, and any that took longer than
+ * the slow trace limit to reach the screen, are logged stage by stage as an
+ * HxmTrace, and the latest traces are kept, see getTraces().
+ */
+public class HxmPipeline {
+	private static final String TAG = "HxmPipeline";
+
+	/*
+	 * About one display frame at 60 frames per second
+	 */
+	public static final long FRAME_INTERVAL_MS = 16;
+
+	/*
+	 * Trace any message that is on the screen this long after it was read, a strap
+	 * only sends once a second
+	 */
+	public static final long DEFAULT_SLOW_TRACE_MS = 250;
+
+	/*
+	 * Number of traces getTraces() can return
+	 */
+	public static final int TRACE_CAPACITY = 32;
+
+	/*
+	 * Called on the UI thread with the latest message.  The reading is only good
+	 * for the duration of the call.
+	 */
+	public interface Display {
+		void show(String address, HrmReading reading);
+	}
+
+	/*
+	 * Extra work done on every message on the worker thread, after the analytics.
+	 * The reading is only good for the duration of the call.
+	 */
+	public interface Stage {
+		void process(String address, long deviceId, HrmReading reading, long receivedNanos);
+	}
+
+	private final HandlerThread mThread;
+	private final Handler mWorker;
+	private final Handler mUi;
+	private final Display mDisplay;
+	private volatile HxmRecorder mRecorder = null;
+	private volatile HxmColumnWriter mColumnWriter = null;
+	private volatile HxmMetrics mMetrics = null;
+	private volatile long mSlowTraceNanos = DEFAULT_SLOW_TRACE_MS * 1000000L;
+
+	/*
+	 * Replaced, never changed, so the worker can go through it without a lock
+	 */
+	private volatile Stage[] mStages = new Stage[0];
+
+	/*
+	 * Used only by the worker thread
+	 */
+	private final HrmReading mReading = new HrmReading();
+	private final long[] mStamps = new long[HxmTrace.STAGE_COUNT];
+	private long mProcessedCount = 0;
+	private final Map<String, Device> mDevices = new HashMap<String, Device>();
+
+	/*
+	 * The devices whose latest message is waiting for the UI thread, each at most
+	 * once, see Pending.  Written by the worker and read by the UI thread, both
+	 * under mLock.
+	 */
+	private final Object mLock = new Object();
+	private final List<Pending> mWaiting = new ArrayList<Pending>();
+
+	/*
+	 * Used only by the UI thread, the devices it is showing this time round
+	 */
+	private final List<Pending> mShowing = new ArrayList<Pending>();
+	private final AtomicBoolean mRenderPosted = new AtomicBoolean(false);
+	private volatile long mLastRender = 0;
+	private volatile long mRenderDueNanos = 0;
+
+	/*
+	 * The latest traces, guarded by themselves
+	 */
+	private final HxmTrace[] mTraces = new HxmTrace[TRACE_CAPACITY];
+	private int mTraceCount = 0;
+
+	/*
+	 * @param uiHandler  a Handler on the UI thread
+	 * @param display    shows the latest message on the screen
+	 */
+	public HxmPipeline(Handler uiHandler, Display display) {
+		mUi = uiHandler;
+		mDisplay = display;
+
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+
+		mWorker = new Handler(mThread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what != R.string.HXM_SERVICE_MSG_READ)
+					return;
+
+				final long dispatchNanos = System.nanoTime();
+				if (msg.obj instanceof HxmSession) {
+					HxmSession session = (HxmSession) msg.obj;
+					drain(session.getRing(), session.getAddress(), dispatchNanos);
+				} else {
+					drain((HxmFrameRing) msg.obj, null, dispatchNanos);
+				}
+			}
+		};
+	}
+
+	/*
+	 * The Handler the HxmService should send HXM_SERVICE_MSG_READ messages to
+	 */
+	public Handler getHandler() {
+		return mWorker;
+	}
+
+	/*
+	 * A Sink for an HxmGateway, sends the worker HXM_SERVICE_MSG_READ with the
+	 * gateway's ring like a session does
+	 */
+	public HxmGateway.Sink getGatewaySink() {
+		return new HxmGateway.Sink() {
+			public void framesReady(HxmFrameRing ring) {
+				mWorker.obtainMessage(R.string.HXM_SERVICE_MSG_READ, ring).sendToTarget();
+			}
+		};
+	}
+
+	/*
+	 * Record every message from now on, or stop recording if null.  The recorder
+	 * isn't closed by the pipeline.
+	 */
+	public void setRecorder(HxmRecorder recorder) {
+		mRecorder = recorder;
+	}
+
+	public HxmRecorder getRecorder() {
+		return mRecorder;
+	}
+
+	/*
+	 * Add the fields of every message to a column store from now on, or stop if
+	 * null.  The writer isn't closed by the pipeline.
+	 */
+	public void setColumnWriter(HxmColumnWriter writer) {
+		mColumnWriter = writer;
+	}
+
+	public HxmColumnWriter getColumnWriter() {
+		return mColumnWriter;
+	}
+
+	/*
+	 * Time each message from being read to being decoded, and from being decoded to
+	 * being shown, in the devices' latency histograms, or stop if null
+	 */
+	public void setMetrics(HxmMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	/*
+	 * Trace any message that takes longer than this to reach the screen, 0 to only
+	 * trace the ones HxmLog.trace() picks
+	 */
+	public void setSlowTraceMs(long ms) {
+		mSlowTraceNanos = ms * 1000000L;
+	}
+
+	/*
+	 * The latest traces, oldest first
+	 */
+	public List<HxmTrace> getTraces() {
+		synchronized (mTraces) {
+			List<HxmTrace> traces = new ArrayList<HxmTrace>(Math.min(mTraceCount, TRACE_CAPACITY));
+			for (int i = Math.max(0, mTraceCount - TRACE_CAPACITY); i < mTraceCount; i++)
+				traces.add(mTraces[i % TRACE_CAPACITY]);
+			return traces;
+		}
+	}
+
+	/*
+	 * Run a stage on every message from now on, may be called from any thread
+	 */
+	public synchronized void addStage(Stage stage) {
+		Stage[] stages = new Stage[mStages.length + 1];
+		System.arraycopy(mStages, 0, stages, 0, mStages.length);
+		stages[mStages.length] = stage;
+		mStages = stages;
+	}
+
+	public synchronized void removeStage(Stage stage) {
+		for (int i = 0; i < mStages.length; i++) {
+			if (mStages[i] == stage) {
+				Stage[] stages = new Stage[mStages.length - 1];
+				System.arraycopy(mStages, 0, stages, 0, i);
+				System.arraycopy(mStages, i + 1, stages, i, stages.length - i);
+				mStages = stages;
+				return;
+			}
+		}
+	}
+
+	public Looper getLooper() {
+		return mThread.getLooper();
+	}
+
+	/*
+	 * Stop the worker thread, messages still waiting are dropped
+	 */
+	public void quit() {
+		mThread.quit();
+		mUi.removeCallbacks(mRender);
+	}
+
+	/*
+	 * Stop the worker thread once it has dealt with the messages already waiting,
+	 * running last on it as the very last thing it does.  Whatever the worker writes
+	 * to can be closed in last without racing the worker, and without making the UI
+	 * thread wait for the files.
+	 */
+	public void quit(final Runnable last) {
+		mWorker.post(new Runnable() {
+			public void run() {
+				try {
+					last.run();
+				} finally {
+					mThread.quit();
+					mUi.removeCallbacks(mRender);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Take every message waiting in a ring.  The signal is cleared first so that a
+	 * message arriving while we work brings us back here.
+	 *
+	 * @param address  the device every message in the ring came from, or null for a
+	 *                 ring holding many devices' messages, each tagged with its
+	 *                 address, like an HxmGateway's
+	 * @param dispatchNanos  when the worker was handed the ring
+	 */
+	private void drain(HxmFrameRing ring, String address, long dispatchNanos) {
+		ring.clearSignal();
+
+		int offset;
+		while ((offset = ring.poll()) >= 0) {
+			mReading.wrap(ring.getBuffer(), offset);
+			process((address != null) ? address : (String) ring.getTag(offset), mReading, ring.getTimestamp(offset), dispatchNanos);
+			ring.release();
+		}
+	}
+
+	/*
+	 * Everything done with a message on the worker thread, the message has to be
+	 * finished with before this returns
+	 *
+	 * @param receivedNanos  when the message was read, on the System.nanoTime() clock
+	 * @param dispatchNanos  when the worker was handed the ring it was waiting in
+	 */
+	private void process(String address, HrmReading reading, long receivedNanos, long dispatchNanos) {
+		final long decodeNanos = System.nanoTime();
+		Device device = getDevice(address);
+		device.mRr.update(reading);
+
+		HxmRecorder recorder = mRecorder;
+		if (recorder != null)
+			recorder.append(device.mDeviceId, reading.getBuffer(), reading.getOffset(), HxmFrameReader.FRAME_LENGTH, receivedNanos);
+
+		HxmColumnWriter columns = mColumnWriter;
+		if (columns != null) {
+			if (device.mColumnWriter != columns) {
+				device.mColumnWriter = columns;
+				device.mColumns = columns.getDevice(device.mDeviceId);
+			}
+			columns.append(device.mColumns, reading, receivedNanos);
+		}
+
+		for (Stage stage : mStages)
+			stage.process(device.mAddress, device.mDeviceId, reading, receivedNanos);
+
+		final boolean traced = HxmLog.trace(mProcessedCount);
+		if (HxmLog.DEBUG || traced) {
+			reading.dump();
+			device.dump();
+		}
+		mProcessedCount++;
+
+		final long[] stamps = mStamps;
+		stamps[HxmTrace.RECEIVED] = receivedNanos;
+		stamps[HxmTrace.DISPATCHED] = dispatchNanos;
+		stamps[HxmTrace.DECODED] = decodeNanos;
+		stamps[HxmTrace.PROCESSED] = System.nanoTime();
+
+		HxmMetrics metrics = mMetrics;
+		HxmMetrics.Device deviceMetrics = null;
+		if (metrics != null) {
+			if (device.mMetrics == null)
+				device.mMetrics = metrics.getDevice(address);
+			deviceMetrics = device.mMetrics;
+			deviceMetrics.record(HxmMetrics.DISPATCH, dispatchNanos - receivedNanos);
+			deviceMetrics.record(HxmMetrics.READ_TO_DECODE, decodeNanos - receivedNanos);
+			deviceMetrics.record(HxmMetrics.PROCESS, stamps[HxmTrace.PROCESSED] - decodeNanos);
+		}
+
+		publish(device.mPending, reading, deviceMetrics, traced);
+	}
+
+	/*
+	 * The analytics for a device, made the first time a message arrives from it.  They
+	 * are kept by address, so they carry on across reconnects.
+	 */
+	private Device getDevice(String address) {
+		Device device = mDevices.get(address);
+		if (device == null) {
+			device = new Device(address);
+			mDevices.put(address, device);
+		}
+		return device;
+	}
+
+	/*
+	 * Everything the worker keeps about one device
+	 */
+	private static class Device {
+		final String mAddress;
+		final long mDeviceId;
+		final HxmHrv mHrv = new HxmHrv();
+		final HxmRrExtractor mRr = new HxmRrExtractor(mHrv);
+		final Pending mPending;
+		HxmMetrics.Device mMetrics = null;
+
+		/*
+		 * The device's rows in the column writer they came from, kept so appending
+		 * doesn't have to look them up
+		 */
+		HxmColumnWriter mColumnWriter = null;
+		HxmColumnWriter.Device mColumns = null;
+
+		Device(String address) {
+			mAddress = address;
+			mDeviceId = HxmRecorder.getDeviceId(address);
+			mPending = new Pending(address);
+		}
+
+		void dump() {
+			for (int i = 0; i < mHrv.getWindowCount(); i++) {
+				HxmHrvWindow window = mHrv.getWindow(i);
+				Log.d(TAG, mAddress + " HRV " + (window.getWindowMs() / 1000) + "s: " + window.getCount() + " beats"
+						+ ", SDNN " + window.getSdnn() + ", RMSSD " + window.getRmssd() + ", pNN50 " + window.getPnn50());
+			}
+		}
+	}
+
+	/*
+	 * One device's latest message on its way to the screen.  The worker writes the
+	 * pending message and the UI thread takes it, both under mLock, into the shown
+	 * message, which only the UI thread uses.  Made once per device, so nothing is
+	 * made per message.
+	 */
+	private static class Pending {
+		final String mAddress;
+
+		final byte[] mFrame = new byte[HxmFrameReader.FRAME_LENGTH];
+		final long[] mStamps = new long[HxmTrace.STAGE_COUNT];
+		HxmMetrics.Device mMetrics = null;
+		boolean mTraced = false;
+		boolean mWaiting = false;
+
+		final byte[] mShown = new byte[HxmFrameReader.FRAME_LENGTH];
+		final HrmReading mShownReading = new HrmReading(mShown, 0);
+		final long[] mShownStamps = new long[HxmTrace.STAGE_COUNT];
+		HxmMetrics.Device mShownMetrics = null;
+		boolean mShownTraced = false;
+
+		Pending(String address) {
+			mAddress = address;
+		}
+	}
+
+	/*
+	 * Put the message aside for the screen, in place of any message from the same
+	 * device still waiting, and make sure the UI thread will come for it
+	 */
+	private void publish(Pending pending, HrmReading reading, HxmMetrics.Device metrics, boolean traced) {
+		HxmTrace superseded = null;
+
+		synchronized (mLock) {
+			// A traced message that never made it to the screen is still worth a trace
+			if (pending.mWaiting && pending.mTraced)
+				superseded = new HxmTrace(pending.mAddress, pending.mStamps, true);
+
+			System.arraycopy(reading.getBuffer(), reading.getOffset(), pending.mFrame, 0, HxmFrameReader.FRAME_LENGTH);
+			System.arraycopy(mStamps, 0, pending.mStamps, 0, HxmTrace.STAGE_COUNT);
+			pending.mMetrics = metrics;
+			pending.mTraced = traced;
+			if (!pending.mWaiting) {
+				pending.mWaiting = true;
+				mWaiting.add(pending);
+			}
+		}
+
+		if (superseded != null)
+			keep(superseded, false);
+
+		if (mRenderPosted.compareAndSet(false, true)) {
+			long wait = Math.max(0, mLastRender + FRAME_INTERVAL_MS - SystemClock.uptimeMillis());
+			mRenderDueNanos = System.nanoTime() + wait * 1000000L;
+			mUi.postDelayed(mRender, wait);
+		}
+	}
+
+	/*
+	 * Log a trace and keep it for getTraces()
+	 */
+	private void keep(HxmTrace trace, boolean slow) {
+		synchronized (mTraces) {
+			mTraces[mTraceCount % TRACE_CAPACITY] = trace;
+			mTraceCount++;
+		}
+
+		if (slow)
+			Log.w(TAG, "slow: " + trace);
+		else
+			Log.d(TAG, "trace: " + trace);
+	}
+
+	/*
+	 * Runs on the UI thread, shows each waiting device's latest message by now
+	 */
+	private final Runnable mRender = new Runnable() {
+		public void run() {
+			synchronized (mLock) {
+				for (int i = 0; i < mWaiting.size(); i++) {
+					Pending pending = mWaiting.get(i);
+					System.arraycopy(pending.mFrame, 0, pending.mShown, 0, HxmFrameReader.FRAME_LENGTH);
+					System.arraycopy(pending.mStamps, 0, pending.mShownStamps, 0, HxmTrace.STAGE_COUNT);
+					pending.mShownMetrics = pending.mMetrics;
+					pending.mShownTraced = pending.mTraced;
+					pending.mWaiting = false;
+					// A message that took the place of the pending one after the render was
+					// posted wasn't due to be shown before it was processed
+					pending.mShownStamps[HxmTrace.RENDER_DUE] = Math.max(mRenderDueNanos, pending.mShownStamps[HxmTrace.PROCESSED]);
+					mShowing.add(pending);
+				}
+				mWaiting.clear();
+				mRenderPosted.set(false);
+			}
+
+			mLastRender = SystemClock.uptimeMillis();
+			for (int i = 0; i < mShowing.size(); i++)
+				show(mShowing.get(i));
+			mShowing.clear();
+		}
+	};
+
+	/*
+	 * Show one device's message on the UI thread, then time and trace it
+	 */
+	private void show(Pending pending) {
+		final long startNanos = System.nanoTime();
+		final long[] stamps = pending.mShownStamps;
+		mDisplay.show(pending.mAddress, pending.mShownReading);
+
+		stamps[HxmTrace.RENDER_STARTED] = startNanos;
+		stamps[HxmTrace.RENDERED] = System.nanoTime();
+		final long received = stamps[HxmTrace.RECEIVED];
+		final long rendered = stamps[HxmTrace.RENDERED];
+
+		// Only the messages that make it to the screen are timed
+		HxmMetrics.Device metrics = pending.mShownMetrics;
+		if (metrics != null) {
+			metrics.record(HxmMetrics.DECODE_TO_DISPLAY, startNanos - stamps[HxmTrace.DECODED]);
+			metrics.record(HxmMetrics.UI_QUEUE, startNanos - stamps[HxmTrace.RENDER_DUE]);
+			metrics.record(HxmMetrics.RENDER, rendered - startNanos);
+			metrics.record(HxmMetrics.READ_TO_DISPLAY, rendered - received);
+		}
+
+		final long slow = mSlowTraceNanos;
+		final boolean late = slow > 0 && rendered - received >= slow;
+		if (pending.mShownTraced || late)
+			keep(new HxmTrace(pending.mAddress, stamps, false), late);
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * HxmReadingPublisher
+ *
+ * Publishes the readings from every device an HxmService is connected to as an
+ * HxmFlow stream, see HxmService.readings().  The items are decoded HxmLatest
+ * snapshots, one made for each reading and shared by the subscribers, which nothing
+ * fills in again, so they can be kept as long as the subscriber likes.
+ *
+ * Each subscriber has a buffer of fixed size.  The sessions put each reading in it
+ * as they read it, which never blocks.  The readings are passed to the subscriber on
+ * the executor, only as many as it has asked for.  If the subscriber falls behind
+ * and the buffer fills up, the strategy decides what gives:
+ *
+ *     STRATEGY_DROP_OLDEST   throw away the oldest reading waiting
+ *     STRATEGY_DROP_NEWEST   throw away the reading that just arrived
+ *     STRATEGY_LATEST        keep only the newest reading from each device, a new
+ *                            reading takes the place of an older one from the same
+ *                            device that is still waiting
+ *
+ * Every reading thrown away is counted, see getDroppedCount().
+ */
+public class HxmReadingPublisher implements HxmFlow.Publisher<HxmLatest.Snapshot> {
+
+	public static final int STRATEGY_DROP_OLDEST = 0;
+	public static final int STRATEGY_DROP_NEWEST = 1;
+	public static final int STRATEGY_LATEST = 2;
+
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+
+	private final HxmService mService;
+	private final Executor mExecutor;
+	private final int mBufferSize;
+	private final int mStrategy;
+
+	private final AtomicLong mDroppedCount = new AtomicLong(0);
+
+	/*
+	 * @param executor    passes the readings to the subscribers
+	 * @param bufferSize  the most readings that can be waiting for each subscriber
+	 * @param strategy    what gives when a subscriber's buffer is full, one of the STRATEGY_ values
+	 */
+	HxmReadingPublisher(HxmService service, Executor executor, int bufferSize, int strategy) {
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("HxmReadingPublisher(): buffer size must be at least 1");
+		if (strategy != STRATEGY_DROP_OLDEST && strategy != STRATEGY_DROP_NEWEST && strategy != STRATEGY_LATEST)
+			throw new IllegalArgumentException("HxmReadingPublisher(): unknown strategy " + strategy);
+
+		mService = service;
+		mExecutor = executor;
+		mBufferSize = bufferSize;
+		mStrategy = strategy;
+	}
+
+	public void subscribe(HxmFlow.Subscriber<? super HxmLatest.Snapshot> subscriber) {
+		ReadingSubscription subscription = new ReadingSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		if (subscription.mCancelled)
+			return;
+
+		mService.addReadingSubscription(subscription);
+		if (subscription.mCancelled)
+			mService.removeReadingSubscription(subscription);
+	}
+
+	/*
+	 * Readings thrown away across all of this publisher's subscribers
+	 */
+	public long getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	/*
+	 * One subscriber's buffer and demand
+	 */
+	class ReadingSubscription implements HxmFlow.Subscription {
+		private final HxmFlow.Subscriber<? super HxmLatest.Snapshot> mSubscriber;
+
+		/*
+		 * A ring of readings, guarded by itself
+		 */
+		private final HxmLatest.Snapshot[] mBuffer = new HxmLatest.Snapshot[mBufferSize];
+		private int mHead = 0;
+		private int mSize = 0;
+
+		/*
+		 * For STRATEGY_LATEST, the slot in mBuffer each device's reading was last put
+		 * in.  Entries aren't taken out when the reading leaves the buffer, replace()
+		 * checks the slot still holds a reading from the device before using it.
+		 */
+		private final Map<String, int[]> mSlots = (mStrategy == STRATEGY_LATEST) ? new HashMap<String, int[]>() : null;
+
+		private final AtomicLong mDemand = new AtomicLong(0);
+		private final AtomicInteger mWork = new AtomicInteger(0);
+		private volatile boolean mCancelled = false;
+		private volatile Throwable mError = null;
+
+		ReadingSubscription(HxmFlow.Subscriber<? super HxmLatest.Snapshot> subscriber) {
+			mSubscriber = subscriber;
+		}
+
+		public void request(long n) {
+			// The error goes out from the drain loop, so it can't overlap an onNext()
+			if (n <= 0) {
+				mError = new IllegalArgumentException("HxmReadingPublisher: request(" + n + "), must be positive");
+				drain();
+				return;
+			}
+
+			long demand;
+			do {
+				demand = mDemand.get();
+				if (demand == Long.MAX_VALUE)
+					break;
+			} while (!mDemand.compareAndSet(demand, (demand + n < 0) ? Long.MAX_VALUE : demand + n));
+
+			drain();
+		}
+
+		public void cancel() {
+			if (mCancelled)
+				return;
+			mCancelled = true;
+			mService.removeReadingSubscription(this);
+
+			synchronized (mBuffer) {
+				for (int i = 0; i < mBuffer.length; i++)
+					mBuffer[i] = null;
+				mSize = 0;
+			}
+		}
+
+		/*
+		 * Called by a session, on its own thread, for every reading.  Never blocks for
+		 * longer than it takes to put the reading in the buffer.
+		 */
+		void offer(HxmLatest.Snapshot reading) {
+			if (mCancelled)
+				return;
+
+			synchronized (mBuffer) {
+				if (mStrategy == STRATEGY_LATEST && replace(reading))
+					return;
+
+				if (mSize == mBuffer.length) {
+					mDroppedCount.incrementAndGet();
+					if (mStrategy == STRATEGY_DROP_NEWEST)
+						return;
+
+					mBuffer[mHead] = null;
+					mHead = (mHead + 1) % mBuffer.length;
+					mSize--;
+				}
+
+				int slot = (mHead + mSize) % mBuffer.length;
+				mBuffer[slot] = reading;
+				mSize++;
+				if (mSlots != null)
+					remember(reading.getAddress(), slot);
+			}
+
+			drain();
+		}
+
+		/*
+		 * Put a reading in place of a waiting one from the same device, if there is one
+		 */
+		private boolean replace(HxmLatest.Snapshot reading) {
+			int[] slot = mSlots.get(reading.getAddress());
+			if (slot == null)
+				return false;
+
+			// Every slot a reading has left is null, so a reading here is still waiting
+			HxmLatest.Snapshot waiting = mBuffer[slot[0]];
+			if (waiting == null || !waiting.getAddress().equals(reading.getAddress()))
+				return false;
+
+			mBuffer[slot[0]] = reading;
+			mDroppedCount.incrementAndGet();
+			return true;
+		}
+
+		private void remember(String address, int slot) {
+			int[] remembered = mSlots.get(address);
+			if (remembered == null)
+				mSlots.put(address, new int[] { slot });
+			else
+				remembered[0] = slot;
+		}
+
+		private HxmLatest.Snapshot poll() {
+			synchronized (mBuffer) {
+				if (mSize == 0)
+					return null;
+
+				HxmLatest.Snapshot reading = mBuffer[mHead];
+				mBuffer[mHead] = null;
+				mHead = (mHead + 1) % mBuffer.length;
+				mSize--;
+				return reading;
+			}
+		}
+
+		/*
+		 * Get the executor to pass on what it can, unless it is already at it
+		 */
+		private void drain() {
+			if (mWork.getAndIncrement() == 0)
+				mExecutor.execute(mDrain);
+		}
+
+		/*
+		 * Pass readings on while there are some and the subscriber wants them.  Anyone
+		 * calling drain() while this runs bumps mWork, which sends it round again.
+		 */
+		private final Runnable mDrain = new Runnable() {
+			public void run() {
+				int work = 1;
+				do {
+					Throwable error = mError;
+					if (error != null && !mCancelled) {
+						cancel();
+						mSubscriber.onError(error);
+					}
+
+					while (!mCancelled && mDemand.get() > 0) {
+						HxmLatest.Snapshot reading = poll();
+						if (reading == null)
+							break;
+
+						if (mDemand.get() != Long.MAX_VALUE)
+							mDemand.decrementAndGet();
+						mSubscriber.onNext(reading);
+					}
+					work = mWork.addAndGet(-work);
+				} while (work != 0);
+			}
+		};
+	}
+}
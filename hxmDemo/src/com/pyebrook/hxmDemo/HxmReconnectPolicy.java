@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.util.Random;
+
+/*
+ * HxmReconnectPolicy
+ *
+ * Decides whether and when the HxmService tries to connect to a device again after
+ * a connection is lost or a connection attempt fails.
+ *
+ * The wait before each attempt doubles with every failure in a row, starting at
+ * the initial delay and never going past the maximum.  Half of each wait is random
+ * so that a group of straps that dropped out together don't all come back at the
+ * same instant.  After the retry budget is used up the service gives up on the
+ * device until someone asks it to connect again.  A successful connection starts
+ * the count over.
+ */
+public class HxmReconnectPolicy {
+
+	/*
+	 * Never reconnect, the way the service used to behave
+	 */
+	public static final HxmReconnectPolicy NEVER = new HxmReconnectPolicy(0, 0, 0);
+
+	private final long mInitialDelayMs;
+	private final long mMaxDelayMs;
+	private final int mRetryBudget;
+	private final Random mRandom = new Random();
+
+	/*
+	 * @param initialDelayMs  wait before the first attempt after a connection is lost
+	 * @param maxDelayMs      longest wait between attempts
+	 * @param retryBudget     number of attempts in a row before giving up on a device
+	 */
+	public HxmReconnectPolicy(long initialDelayMs, long maxDelayMs, int retryBudget) {
+		if (initialDelayMs < 0 || maxDelayMs < initialDelayMs || retryBudget < 0)
+			throw new IllegalArgumentException("HxmReconnectPolicy(): bad delays or budget");
+
+		mInitialDelayMs = initialDelayMs;
+		mMaxDelayMs = maxDelayMs;
+		mRetryBudget = retryBudget;
+	}
+
+	public int getRetryBudget() {
+		return mRetryBudget;
+	}
+
+	/*
+	 * True if another attempt should be made after failures attempts in a row have failed
+	 */
+	public boolean shouldRetry(int failures) {
+		return failures < mRetryBudget;
+	}
+
+	/*
+	 * How long to wait before the next attempt after failures attempts in a row have failed
+	 */
+	public long getDelayMs(int failures) {
+		long delay = mInitialDelayMs;
+		for (int i = 0; i < failures && delay < mMaxDelayMs; i++)
+			delay *= 2;
+		delay = Math.min(delay, mMaxDelayMs);
+
+		long half = delay / 2;
+		return half + (long) (mRandom.nextDouble() * (delay - half));
+	}
+}
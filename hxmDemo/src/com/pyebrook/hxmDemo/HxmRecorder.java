@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/*
+ * HxmRecorder
+ *
+ * Saves the raw messages from the HxM devices to disk so a session outlives the
+ * Activity and can be played back later, see HxmReplayLink.
+ *
+ * The recording is a series of segment files in one directory.  Each segment is
+ * mapped into memory and messages are appended to it as fixed size records, so
+ * writing a message is a copy into the mapping and nothing more, no streams and
+ * no buffers to allocate.  A separate thread forces the mapping out to the disk
+ * every so often.  When a segment is full the next one is started.
+ *
+ * A segment starts with a header:
+ *
+ *     0   8 bytes   MAGIC
+ *     8   int       FORMAT_VERSION
+ *     12  int       RECORD_SIZE
+ *     16  long      time the segment was started, milliseconds since the epoch
+ *     24  int       number of records in the segment
+ *     28  int       reserved
+ *
+ * followed by the records:
+ *
+ *     0   long      time the message was received, milliseconds since the epoch
+ *     8   long      device id, see getDeviceId()
+ *     16  short     length of the message
+ *     18  short     reserved
+ *     20  60 bytes  the message, starting with STX
+ *
+ * All numbers are big endian.  The record count in the header is updated after
+ * each record is written, so anything past it can be ignored.
+ *
+ * append() is called by the pipeline's worker, never by a thread reading a
+ * device, so the device threads never wait on the disk.  append() and close()
+ * share a lock so the recorder can be closed from another thread, nobody else
+ * ever wants it so it costs next to nothing.
+ */
+public class HxmRecorder {
+	private static final String TAG = "HxmRecorder";
+
+	public static final byte[] MAGIC = { 'H', 'X', 'M', 'R', 'E', 'C', 'O', 'R' };
+	public static final int FORMAT_VERSION = 1;
+
+	public static final int HEADER_SIZE = 32;
+	public static final int HEADER_OFFSET_START_TIME = 16;
+	public static final int HEADER_OFFSET_COUNT = 24;
+
+	public static final int RECORD_SIZE = 80;
+	public static final int RECORD_OFFSET_TIME = 0;
+	public static final int RECORD_OFFSET_DEVICE = 8;
+	public static final int RECORD_OFFSET_LENGTH = 16;
+	public static final int RECORD_OFFSET_FRAME = 20;
+	public static final int MAX_FRAME_LENGTH = RECORD_SIZE - RECORD_OFFSET_FRAME;
+
+	public static final String SEGMENT_SUFFIX = ".hxr";
+
+	/*
+	 * About 52 thousand records, 14 hours of one strap or 17 minutes of 50
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	public static final long DEFAULT_FLUSH_INTERVAL_MS = 5000;
+
+	private final File mDirectory;
+	private final int mRecordsPerSegment;
+	private final ScheduledExecutorService mFlusher;
+
+	/*
+	 * Guarded by this, apart from mSegment which the flusher forces
+	 */
+	private volatile MappedByteBuffer mSegment = null;
+	private RandomAccessFile mSegmentFile = null;
+	private int mSegmentRecords = 0;
+	private int mSegmentNumber = 0;
+	private volatile boolean mClosed = false;
+
+	private volatile long mRecordCount = 0;
+	private volatile long mDroppedCount = 0;
+
+	public HxmRecorder(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL_MS);
+	}
+
+	/*
+	 * @param directory        where the segment files go, made if need be
+	 * @param segmentSize      size of each segment file in bytes
+	 * @param flushIntervalMs  how often the segment is forced out to the disk
+	 */
+	public HxmRecorder(File directory, int segmentSize, long flushIntervalMs) {
+		if (segmentSize < HEADER_SIZE + RECORD_SIZE)
+			throw new IllegalArgumentException("HxmRecorder(): segment size " + segmentSize + " can't hold a record");
+
+		mDirectory = directory;
+		mRecordsPerSegment = (segmentSize - HEADER_SIZE) / RECORD_SIZE;
+
+		mFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HxmRecorderFlush");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mFlusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	public long getRecordCount() {
+		return mRecordCount;
+	}
+
+	/*
+	 * Messages that couldn't be recorded, because the disk failed or the recorder was closed
+	 */
+	public long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * Append a message to the recording.
+	 *
+	 * @param deviceId       the device the message came from, see getDeviceId()
+	 * @param buffer         holds the message
+	 * @param offset         where the message starts
+	 * @param length         the length of the message
+	 * @param receivedNanos  when the message was received, on the System.nanoTime() clock
+	 */
+	public synchronized void append(long deviceId, byte[] buffer, int offset, int length, long receivedNanos) {
+		if (mClosed || length > MAX_FRAME_LENGTH) {
+			mDroppedCount++;
+			return;
+		}
+
+		if (mSegment == null || mSegmentRecords == mRecordsPerSegment) {
+			if (!nextSegment()) {
+				mDroppedCount++;
+				return;
+			}
+		}
+
+		final MappedByteBuffer segment = mSegment;
+		final int position = HEADER_SIZE + mSegmentRecords * RECORD_SIZE;
+		final long received = getWallClock(receivedNanos);
+
+		segment.putLong(position + RECORD_OFFSET_TIME, received);
+		segment.putLong(position + RECORD_OFFSET_DEVICE, deviceId);
+		segment.putShort(position + RECORD_OFFSET_LENGTH, (short) length);
+		segment.position(position + RECORD_OFFSET_FRAME);
+		segment.put(buffer, offset, length);
+
+		mSegmentRecords++;
+		segment.putInt(HEADER_OFFSET_COUNT, mSegmentRecords);
+		mRecordCount++;
+	}
+
+	/*
+	 * Force what has been written so far out to the disk, safe to call from any thread
+	 */
+	public void flush() {
+		MappedByteBuffer segment = mSegment;
+		if (segment != null)
+			segment.force();
+	}
+
+	/*
+	 * Flush and stop recording, messages appended after this are dropped
+	 */
+	public synchronized void close() {
+		mClosed = true;
+		mFlusher.shutdown();
+		closeSegment();
+	}
+
+	/*
+	 * Finish the current segment and map the next one.  Returns false if it can't be
+	 * made, the recorder gives up after that.
+	 */
+	private boolean nextSegment() {
+		closeSegment();
+
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			Log.e(TAG, "nextSegment(): unable to make " + mDirectory);
+			mClosed = true;
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		File file = new File(mDirectory, "hxm-" + now + "-" + (++mSegmentNumber) + SEGMENT_SUFFIX);
+		int size = HEADER_SIZE + mRecordsPerSegment * RECORD_SIZE;
+
+		try {
+			mSegmentFile = new RandomAccessFile(file, "rw");
+			MappedByteBuffer segment = mSegmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+			segment.put(MAGIC);
+			segment.putInt(FORMAT_VERSION);
+			segment.putInt(RECORD_SIZE);
+			segment.putLong(now);
+			segment.putInt(0);
+			segment.putInt(0);
+
+			mSegmentRecords = 0;
+			mSegment = segment;
+		} catch (IOException e) {
+			Log.e(TAG, "nextSegment(): unable to map " + file, e);
+			closeSegment();
+			mClosed = true;
+			return false;
+		}
+
+		Log.d(TAG, "nextSegment(): recording to " + file);
+		return true;
+	}
+
+	private void closeSegment() {
+		MappedByteBuffer segment = mSegment;
+		mSegment = null;
+		if (segment != null)
+			segment.force();
+
+		if (mSegmentFile != null) {
+			try {
+				mSegmentFile.close();
+			} catch (IOException e) {
+				Log.e(TAG, "closeSegment(): close() of segment failed", e);
+			}
+			mSegmentFile = null;
+		}
+	}
+
+	/*
+	 * A time on the System.nanoTime() clock, which is what the ring keeps because it
+	 * never jumps, as milliseconds since the epoch
+	 */
+	public static long getWallClock(long nanos) {
+		return System.currentTimeMillis() - (System.nanoTime() - nanos) / 1000000L;
+	}
+
+	/*
+	 * The segment files in a recording directory, oldest first.  Empty if there
+	 * aren't any.
+	 */
+	public static File[] listSegments(File directory) {
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null)
+			return new File[0];
+
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long[] ka = segmentKey(a);
+				long[] kb = segmentKey(b);
+				for (int i = 0; i < ka.length; i++) {
+					if (ka[i] != kb[i])
+						return (ka[i] < kb[i]) ? -1 : 1;
+				}
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return files;
+	}
+
+	/*
+	 * The start time and sequence number out of a segment's name, made by nextSegment()
+	 */
+	private static long[] segmentKey(File file) {
+		long[] key = { 0, 0 };
+		String[] parts = file.getName().split("[-.]");
+		for (int i = 0; i < key.length && i + 1 < parts.length; i++) {
+			try {
+				key[i] = Long.parseLong(parts[i + 1]);
+			} catch (NumberFormatException e) {
+				break;
+			}
+		}
+		return key;
+	}
+
+	/*
+	 * Turn a device address into the id kept in the records.  A Bluetooth address,
+	 * six hex bytes separated by colons, is packed into the low 48 bits and can be
+	 * turned back with getAddress().  Anything else is hashed and has the top bit
+	 * set.
+	 */
+	public static long getDeviceId(String address) {
+		long id = 0;
+		int digits = 0;
+		boolean mac = address.length() == 17;
+
+		for (int i = 0; mac && i < address.length(); i++) {
+			char c = address.charAt(i);
+			if (i % 3 == 2) {
+				mac = (c == ':');
+				continue;
+			}
+			int digit = Character.digit(c, 16);
+			mac = (digit >= 0);
+			id = (id << 4) | digit;
+			digits++;
+		}
+
+		if (mac && digits == 12)
+			return id;
+
+		long hash = 1125899906842597L;
+		for (int i = 0; i < address.length(); i++)
+			hash = 31 * hash + address.charAt(i);
+		return hash | Long.MIN_VALUE;
+	}
+
+	/*
+	 * The address for a device id, the Bluetooth address if it was one, otherwise
+	 * a made up address that is at least unique
+	 */
+	public static String getAddress(long deviceId) {
+		if (deviceId < 0)
+			return "hxm-" + Long.toHexString(deviceId);
+
+		StringBuilder sb = new StringBuilder(17);
+		for (int shift = 40; shift >= 0; shift -= 8) {
+			int b = (int) (deviceId >>> shift) & 0xFF;
+			if (sb.length() > 0)
+				sb.append(':');
+			sb.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)));
+			sb.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+		}
+		return sb.toString();
+	}
+}
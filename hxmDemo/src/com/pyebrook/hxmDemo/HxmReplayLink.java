@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * HxmReplayLink
+ *
+ * An HxmLink that plays one device's messages back out of a recording made by
+ * HxmRecorder.  The session reading it can't tell it from a strap, so a recording
+ * goes through exactly the same reader, ring and pipeline a live device does.  That
+ * makes it the way to reproduce a problem seen in the field, to load the pipeline
+ * with many devices at once, and to run the service without a phone.
+ *
+ * The messages come out at the pace they were recorded at, times the speed:
+ *
+ *     SPEED_REALTIME   the same gaps as when they were recorded
+ *     2.0, 10.0, ...   that many times faster
+ *     SPEED_MAX        as fast as the reader can take them
+ *
+ * The segments are mapped into memory one at a time as the replay reaches them,
+ * nothing is copied into the heap except the message being read, so a recording of
+ * any size can be played back.
+ *
+ * Like a StreamHxmLink, a replay link can only be connected once.
+ */
+public class HxmReplayLink implements HxmLink {
+
+	public static final double SPEED_REALTIME = 1.0;
+	public static final double SPEED_MAX = 0.0;
+
+	/*
+	 * Longest a paced read sleeps before it looks to see if the link was closed
+	 */
+	private static final long MAX_PARK_NANOS = 50000000L;
+
+	private final File[] mSegments;
+	private final long mDeviceId;
+	private final double mSpeed;
+	private final String mAddress;
+	private final String mName;
+
+	private volatile boolean mClosed = false;
+	private boolean mConnected = false;
+
+	/*
+	 * @param segments  the recording, oldest segment first, see HxmRecorder.listSegments()
+	 * @param deviceId  the device to play back, see HxmRecorder.getDeviceId()
+	 * @param speed     SPEED_REALTIME, SPEED_MAX, or how many times faster than real time
+	 */
+	public HxmReplayLink(File[] segments, long deviceId, double speed) {
+		if (speed < 0 || Double.isNaN(speed))
+			throw new IllegalArgumentException("HxmReplayLink(): bad speed " + speed);
+
+		mSegments = segments.clone();
+		mDeviceId = deviceId;
+		mSpeed = speed;
+		mAddress = HxmRecorder.getAddress(deviceId);
+		mName = "Replay " + mAddress;
+	}
+
+	/*
+	 * A link for every device in the recording in a directory
+	 */
+	public static List<HxmReplayLink> forRecording(File directory, double speed) throws IOException {
+		File[] segments = HxmRecorder.listSegments(directory);
+		List<HxmReplayLink> links = new ArrayList<HxmReplayLink>();
+
+		for (long deviceId : getDeviceIds(segments))
+			links.add(new HxmReplayLink(segments, deviceId, speed));
+		return links;
+	}
+
+	/*
+	 * The devices that appear in a recording, in the order they first appear
+	 */
+	public static Set<Long> getDeviceIds(File[] segments) throws IOException {
+		Set<Long> ids = new LinkedHashSet<Long>();
+
+		for (File segment : segments) {
+			ByteBuffer buffer = map(segment);
+			int count = buffer.getInt(HxmRecorder.HEADER_OFFSET_COUNT);
+			for (int i = 0; i < count; i++)
+				ids.add(buffer.getLong(HxmRecorder.HEADER_SIZE + i * HxmRecorder.RECORD_SIZE + HxmRecorder.RECORD_OFFSET_DEVICE));
+		}
+		return ids;
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/*
+	 * A replay plays once, the end of the recording is the end of the device
+	 */
+	public boolean isReconnectable() {
+		return false;
+	}
+
+	public long getDeviceId() {
+		return mDeviceId;
+	}
+
+	public double getSpeed() {
+		return mSpeed;
+	}
+
+	public synchronized InputStream connect() throws IOException {
+		if (mClosed || mConnected)
+			throw new IOException("HxmReplayLink.connect(): " + mAddress + " has already been played");
+
+		mConnected = true;
+		return new ReplayStream();
+	}
+
+	public void close() {
+		mClosed = true;
+	}
+
+	/*
+	 * Map a segment read only and check its header.  The mapping stays good after the
+	 * file is closed.
+	 */
+	private static MappedByteBuffer map(File segment) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.capacity() < HxmRecorder.HEADER_SIZE)
+				throw new IOException("HxmReplayLink.map(): " + segment + " is too short to be a segment");
+
+			for (int i = 0; i < HxmRecorder.MAGIC.length; i++) {
+				if (buffer.get(i) != HxmRecorder.MAGIC[i])
+					throw new IOException("HxmReplayLink.map(): " + segment + " is not a recording");
+			}
+
+			if (buffer.getInt(8) != HxmRecorder.FORMAT_VERSION || buffer.getInt(12) != HxmRecorder.RECORD_SIZE)
+				throw new IOException("HxmReplayLink.map(): " + segment + " was recorded in a format we don't read");
+
+			int count = buffer.getInt(HxmRecorder.HEADER_OFFSET_COUNT);
+			if (count < 0 || HxmRecorder.HEADER_SIZE + (long) count * HxmRecorder.RECORD_SIZE > buffer.capacity())
+				throw new IOException("HxmReplayLink.map(): " + segment + " claims more records than it holds");
+
+			return buffer;
+		} finally {
+			file.close();
+		}
+	}
+
+	/*
+	 * The device's messages, one after the other, each held back until it is due.
+	 * Read by one thread, the session's.
+	 */
+	private class ReplayStream extends InputStream {
+		private int mSegmentIndex = 0;
+		private MappedByteBuffer mSegment = null;
+		private int mRecord = 0;
+		private int mRecordCount = 0;
+
+		/*
+		 * The message being played, mPosition through mLimit in mSegment.  Its bytes
+		 * can't be read until mDue on the System.nanoTime() clock, mReleased is set
+		 * once they can.
+		 */
+		private int mPosition = 0;
+		private int mLimit = 0;
+		private long mDue = 0;
+		private boolean mReleased = false;
+
+		/*
+		 * The first message's recorded time and when it was played, the rest are
+		 * paced from there
+		 */
+		private boolean mStarted = false;
+		private long mFirstRecorded = 0;
+		private long mFirstPlayed = 0;
+
+		private boolean mEnded = false;
+
+		@Override
+		public int read() throws IOException {
+			if (!ready(true))
+				return -1;
+			return mSegment.get(mPosition++) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0)
+				return 0;
+			if (!ready(true))
+				return -1;
+
+			int count = Math.min(length, mLimit - mPosition);
+			mSegment.position(mPosition);
+			mSegment.get(buffer, offset, count);
+			mPosition += count;
+			return count;
+		}
+
+		/*
+		 * Only counts a message once it is due.  The end of the replay is reported by
+		 * throwing, like a closed socket, so a polling reader notices it.
+		 */
+		@Override
+		public int available() throws IOException {
+			if (!ready(false)) {
+				if (mEnded)
+					throw new EOFException("HxmReplayLink: " + mAddress + " replay finished");
+				return 0;
+			}
+			return mLimit - mPosition;
+		}
+
+		@Override
+		public void close() {
+			HxmReplayLink.this.close();
+		}
+
+		/*
+		 * Make sure there are released bytes to read.  Returns false at the end of the
+		 * replay, or if block is false and the next message isn't due yet.
+		 */
+		private boolean ready(boolean block) throws IOException {
+			if (mClosed)
+				throw new IOException("HxmReplayLink: " + mAddress + " has been closed");
+
+			if (mPosition == mLimit) {
+				if (!nextMessage())
+					return false;
+			}
+
+			if (!mReleased) {
+				if (block)
+					waitUntil(mDue);
+				else if (mDue - System.nanoTime() > 0)
+					return false;
+				mReleased = true;
+			}
+			return true;
+		}
+
+		/*
+		 * Move on to the device's next message, mapping the next segment if need be.
+		 * Returns false when there are no more.
+		 */
+		private boolean nextMessage() throws IOException {
+			while (!mEnded) {
+				if (mRecord == mRecordCount) {
+					if (mSegmentIndex == mSegments.length) {
+						mSegment = null;
+						mEnded = true;
+						break;
+					}
+					mSegment = map(mSegments[mSegmentIndex++]);
+					mRecord = 0;
+					mRecordCount = mSegment.getInt(HxmRecorder.HEADER_OFFSET_COUNT);
+					continue;
+				}
+
+				int record = HxmRecorder.HEADER_SIZE + (mRecord++) * HxmRecorder.RECORD_SIZE;
+				if (mSegment.getLong(record + HxmRecorder.RECORD_OFFSET_DEVICE) != mDeviceId)
+					continue;
+
+				int length = mSegment.getShort(record + HxmRecorder.RECORD_OFFSET_LENGTH);
+				if (length <= 0 || length > HxmRecorder.MAX_FRAME_LENGTH)
+					continue;
+
+				mPosition = record + HxmRecorder.RECORD_OFFSET_FRAME;
+				mLimit = mPosition + length;
+				mDue = due(mSegment.getLong(record + HxmRecorder.RECORD_OFFSET_TIME));
+				mReleased = false;
+				return true;
+			}
+			return false;
+		}
+
+		/*
+		 * When a message recorded at a time should be played
+		 */
+		private long due(long recorded) {
+			long now = System.nanoTime();
+			if (!mStarted) {
+				mStarted = true;
+				mFirstRecorded = recorded;
+				mFirstPlayed = now;
+			}
+
+			if (mSpeed == SPEED_MAX)
+				return now;
+
+			return mFirstPlayed + (long) ((recorded - mFirstRecorded) * 1000000.0 / mSpeed);
+		}
+
+		private void waitUntil(long due) throws IOException {
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(Math.min(wait, MAX_PARK_NANOS));
+
+				if (Thread.interrupted())
+					throw new InterruptedIOException("HxmReplayLink: " + mAddress + " interrupted");
+				if (mClosed)
+					throw new IOException("HxmReplayLink: " + mAddress + " has been closed");
+			}
+		}
+	}
+}
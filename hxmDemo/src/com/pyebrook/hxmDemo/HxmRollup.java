@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+/*
+ * HxmRollup
+ *
+ * Summaries of one device's heart rate, speed and battery over fixed intervals,
+ * ten seconds say.  Each interval with messages in it gets a bucket holding the
+ * minimum, maximum, average and last value of each field.
+ *
+ * Only the newest buckets are kept, in a ring of fixed size, so however long the
+ * session runs the rollup never takes more memory than it did at the start.  The
+ * buckets are held as primitive arrays indexed by slot, adding a message touches a
+ * few array elements and nothing else.
+ *
+ * Buckets are numbered 0, the oldest kept, through size() - 1, the newest.  The
+ * newest bucket is still filling while messages for its interval arrive.
+ *
+ * A message from before the newest bucket, which only happens if the clock was
+ * set back, is counted in the newest bucket rather than reopening an old one.
+ *
+ * Not thread safe, see HxmRollups.
+ */
+public class HxmRollup {
+
+	public static final int FIELD_HEART_RATE = 0;
+	public static final int FIELD_SPEED = 1;
+	public static final int FIELD_BATTERY = 2;
+	public static final int FIELD_COUNT = 3;
+
+	private final long mIntervalMs;
+	private final int mCapacity;
+
+	private final long[] mStart;
+	private final int[] mCount;
+	private final int[] mMin;
+	private final int[] mMax;
+	private final int[] mLast;
+	private final long[] mSum;
+
+	/*
+	 * Slot of the oldest bucket, and how many buckets there are
+	 */
+	private int mFirst = 0;
+	private int mSize = 0;
+
+	/*
+	 * Buckets dropped off the old end of the ring so far
+	 */
+	private long mDroppedCount = 0;
+
+	/*
+	 * @param intervalMs  the length of the interval each bucket covers
+	 * @param capacity    how many buckets to keep
+	 */
+	public HxmRollup(long intervalMs, int capacity) {
+		if (intervalMs < 1)
+			throw new IllegalArgumentException("HxmRollup(): interval must be at least 1ms");
+		if (capacity < 1)
+			throw new IllegalArgumentException("HxmRollup(): capacity must be at least 1");
+
+		mIntervalMs = intervalMs;
+		mCapacity = capacity;
+		mStart = new long[capacity];
+		mCount = new int[capacity];
+		mMin = new int[capacity * FIELD_COUNT];
+		mMax = new int[capacity * FIELD_COUNT];
+		mLast = new int[capacity * FIELD_COUNT];
+		mSum = new long[capacity * FIELD_COUNT];
+	}
+
+	/*
+	 * A copy, for looking at on another thread
+	 */
+	public HxmRollup(HxmRollup other) {
+		this(other.mIntervalMs, other.mCapacity);
+		copyFrom(other);
+	}
+
+	/*
+	 * Make this rollup the same as another one with the same interval and capacity
+	 */
+	public void copyFrom(HxmRollup other) {
+		if (other.mIntervalMs != mIntervalMs || other.mCapacity != mCapacity)
+			throw new IllegalArgumentException("HxmRollup.copyFrom(): rollups are not the same shape");
+
+		System.arraycopy(other.mStart, 0, mStart, 0, mCapacity);
+		System.arraycopy(other.mCount, 0, mCount, 0, mCapacity);
+		System.arraycopy(other.mMin, 0, mMin, 0, mMin.length);
+		System.arraycopy(other.mMax, 0, mMax, 0, mMax.length);
+		System.arraycopy(other.mLast, 0, mLast, 0, mLast.length);
+		System.arraycopy(other.mSum, 0, mSum, 0, mSum.length);
+		mFirst = other.mFirst;
+		mSize = other.mSize;
+		mDroppedCount = other.mDroppedCount;
+	}
+
+	/*
+	 * Count a message in the bucket for its time
+	 */
+	public void add(long timeMs, HrmReading reading) {
+		add(timeMs, reading.heartRate(), reading.speed(), reading.batteryIndicator());
+	}
+
+	public void add(long timeMs, int heartRate, int speed, int battery) {
+		long start = timeMs - floorMod(timeMs, mIntervalMs);
+		int slot;
+
+		if (mSize == 0 || start > mStart[newestSlot()]) {
+			if (mSize == mCapacity) {
+				mFirst = (mFirst + 1) % mCapacity;
+				mSize--;
+				mDroppedCount++;
+			}
+			slot = (mFirst + mSize) % mCapacity;
+			mSize++;
+
+			mStart[slot] = start;
+			mCount[slot] = 0;
+			for (int f = slot * FIELD_COUNT; f < (slot + 1) * FIELD_COUNT; f++) {
+				mMin[f] = Integer.MAX_VALUE;
+				mMax[f] = Integer.MIN_VALUE;
+				mSum[f] = 0;
+			}
+		} else {
+			slot = newestSlot();
+		}
+
+		mCount[slot]++;
+		int base = slot * FIELD_COUNT;
+		accumulate(base + FIELD_HEART_RATE, heartRate);
+		accumulate(base + FIELD_SPEED, speed);
+		accumulate(base + FIELD_BATTERY, battery);
+	}
+
+	public void clear() {
+		mFirst = 0;
+		mSize = 0;
+	}
+
+	public long getIntervalMs() {
+		return mIntervalMs;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/*
+	 * The start of a bucket's interval, milliseconds since the epoch
+	 */
+	public long getStart(int bucket) {
+		return mStart[slot(bucket)];
+	}
+
+	/*
+	 * Number of messages counted in a bucket
+	 */
+	public int getCount(int bucket) {
+		return mCount[slot(bucket)];
+	}
+
+	public int getMin(int bucket, int field) {
+		return mMin[slot(bucket) * FIELD_COUNT + field];
+	}
+
+	public int getMax(int bucket, int field) {
+		return mMax[slot(bucket) * FIELD_COUNT + field];
+	}
+
+	public int getLast(int bucket, int field) {
+		return mLast[slot(bucket) * FIELD_COUNT + field];
+	}
+
+	public double getAverage(int bucket, int field) {
+		int slot = slot(bucket);
+		return (double) mSum[slot * FIELD_COUNT + field] / mCount[slot];
+	}
+
+	/*
+	 * The first bucket whose interval ends after a time, size() if there isn't one.
+	 * The buckets are in time order so this is a binary search.
+	 */
+	public int find(long timeMs) {
+		int low = 0;
+		int high = mSize;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mStart[slot(mid)] + mIntervalMs <= timeMs)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private void accumulate(int index, int value) {
+		if (value < mMin[index])
+			mMin[index] = value;
+		if (value > mMax[index])
+			mMax[index] = value;
+		mLast[index] = value;
+		mSum[index] += value;
+	}
+
+	private int newestSlot() {
+		return (mFirst + mSize - 1) % mCapacity;
+	}
+
+	private int slot(int bucket) {
+		if (bucket < 0 || bucket >= mSize)
+			throw new IndexOutOfBoundsException("HxmRollup: bucket " + bucket + " of " + mSize);
+		return (mFirst + bucket) % mCapacity;
+	}
+
+	private static long floorMod(long x, long y) {
+		long mod = x % y;
+		return (mod < 0) ? mod + y : mod;
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * HxmRollups
+ *
+ * A pipeline stage that keeps every device's heart rate, speed and battery rolled
+ * up at a few resolutions, by default
+ *
+ *     10 seconds    for the last hour
+ *     1 minute      for the last day
+ *     10 minutes    for the last week
+ *
+ * so a long session can be looked over without keeping every message.  Each
+ * resolution of each device is an HxmRollup with a fixed number of buckets, so the
+ * memory used depends on the number of devices and nothing else.
+ *
+ * The rollups are kept up to date on the pipeline's worker.  Any thread can take a
+ * copy of one with getRollup() and look at it at leisure.
+ *
+ * Finished buckets can be written out with flush(), which adds them to the end of a
+ * CSV file for each resolution.  Buckets that fall off the end of a ring before
+ * being flushed are lost, so flush at least once per ring, once an hour with the
+ * defaults.
+ */
+public class HxmRollups implements HxmPipeline.Stage {
+
+	public static final long[] DEFAULT_INTERVALS_MS = { 10000, 60000, 600000 };
+	public static final int[] DEFAULT_CAPACITIES = { 360, 1440, 1008 };
+
+	private final long[] mIntervalsMs;
+	private final int[] mCapacities;
+
+	/*
+	 * Guarded by this
+	 */
+	private final Map<String, Device> mDevices = new HashMap<String, Device>();
+
+	public HxmRollups() {
+		this(DEFAULT_INTERVALS_MS, DEFAULT_CAPACITIES);
+	}
+
+	/*
+	 * @param intervalsMs  the resolutions, one rollup is kept for each
+	 * @param capacities   how many buckets to keep at each resolution
+	 */
+	public HxmRollups(long[] intervalsMs, int[] capacities) {
+		if (intervalsMs.length != capacities.length)
+			throw new IllegalArgumentException("HxmRollups(): need a capacity for every interval");
+
+		mIntervalsMs = intervalsMs.clone();
+		mCapacities = capacities.clone();
+	}
+
+	public synchronized void process(String address, long deviceId, HrmReading reading, long receivedNanos) {
+		Device device = mDevices.get(address);
+		if (device == null) {
+			device = new Device();
+			mDevices.put(address, device);
+		}
+
+		long time = HxmRecorder.getWallClock(receivedNanos);
+		for (HxmRollup rollup : device.mRollups)
+			rollup.add(time, reading);
+	}
+
+	public int getResolutionCount() {
+		return mIntervalsMs.length;
+	}
+
+	public long getIntervalMs(int resolution) {
+		return mIntervalsMs[resolution];
+	}
+
+	public synchronized List<String> getAddresses() {
+		return new ArrayList<String>(mDevices.keySet());
+	}
+
+	/*
+	 * A copy of a device's rollup at one resolution, or null if the device hasn't
+	 * been heard from
+	 */
+	public HxmRollup getRollup(String address, int resolution) {
+		return getRollup(address, resolution, null);
+	}
+
+	/*
+	 * Like getRollup(address, resolution), but copies into a rollup from an earlier
+	 * call if there is one, so looking every so often doesn't make garbage
+	 */
+	public synchronized HxmRollup getRollup(String address, int resolution, HxmRollup into) {
+		Device device = mDevices.get(address);
+		if (device == null)
+			return null;
+
+		HxmRollup rollup = device.mRollups[resolution];
+		if (into == null)
+			return new HxmRollup(rollup);
+
+		into.copyFrom(rollup);
+		return into;
+	}
+
+	/*
+	 * Forget a device's rollups, the buckets that haven't been flushed are lost
+	 */
+	public synchronized void remove(String address) {
+		mDevices.remove(address);
+	}
+
+	/**
+	 * Add the buckets that haven't been written yet to the end of a file for each
+	 * resolution in a directory, rollup-10s.csv and so on.  Each line is
+	 *
+	 *     address, start, count, then min, max, average and last of heart rate, speed and battery
+	 *
+	 * with start in milliseconds since the epoch.
+	 *
+	 * @param all  write the newest buckets too, which may still be filling.  For when
+	 *             no more messages are coming, otherwise they are written again when
+	 *             they fill.
+	 */
+	public synchronized void flush(File directory, boolean all) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("HxmRollups.flush(): unable to make " + directory);
+
+		StringBuilder line = new StringBuilder(128);
+
+		for (int r = 0; r < mIntervalsMs.length; r++) {
+			Writer out = new FileWriter(new File(directory, "rollup-" + (mIntervalsMs[r] / 1000) + "s.csv"), true);
+			try {
+				for (Map.Entry<String, Device> entry : mDevices.entrySet()) {
+					Device device = entry.getValue();
+					HxmRollup rollup = device.mRollups[r];
+					int end = all ? rollup.size() : rollup.size() - 1;
+
+					for (int b = rollup.find(device.mFlushed[r]); b < end; b++) {
+						line.setLength(0);
+						line.append(entry.getKey()).append(',').append(rollup.getStart(b)).append(',').append(rollup.getCount(b));
+						for (int f = 0; f < HxmRollup.FIELD_COUNT; f++) {
+							line.append(',').append(rollup.getMin(b, f));
+							line.append(',').append(rollup.getMax(b, f));
+							line.append(',').append(Math.round(rollup.getAverage(b, f) * 100) / 100.0);
+							line.append(',').append(rollup.getLast(b, f));
+						}
+						line.append('\n');
+						out.write(line.toString());
+
+						if (b < rollup.size() - 1)
+							device.mFlushed[r] = rollup.getStart(b) + rollup.getIntervalMs();
+					}
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/*
+	 * The rollups of one device, and for each resolution the time the buckets
+	 * already written end at
+	 */
+	private class Device {
+		final HxmRollup[] mRollups = new HxmRollup[mIntervalsMs.length];
+		final long[] mFlushed = new long[mIntervalsMs.length];
+
+		Device() {
+			for (int r = 0; r < mRollups.length; r++)
+				mRollups[r] = new HxmRollup(mIntervalsMs[r], mCapacities[r]);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+/*
+ * HxmRrExtractor
+ *
+ * Turns the heart beat time stamps in a device's messages into a stream of RR
+ * intervals, the time between one beat and the next.
+ *
+ * Every message carries the time stamps of the last 15 beats, newest first, and
+ * the number of the newest beat.  Beats come about once a second and so do
+ * messages, so consecutive messages mostly repeat each other.  The extractor
+ * remembers the number and time stamp of the last beat it has seen and uses the
+ * beat number in each new message to work out how many of the time stamps are
+ * new, so every interval comes out exactly once and the work per message never
+ * depends on how long the session has been going.
+ *
+ * The beat number rolls over from 255 to 0 and the time stamps from 65535 to 0,
+ * all of the arithmetic is done modulo those.
+ *
+ * If more than 15 beats go by between two messages, or the time stamps don't
+ * line up with the ones seen before, the intervals in between can't be known.
+ * The listener is told about the gap so that anything built on successive
+ * intervals can start over, and then gets the intervals in the new message.
+ *
+ * There is one extractor per device, and it must only be used by one thread.
+ */
+public class HxmRrExtractor {
+
+	/*
+	 * Receives the intervals in the order the beats happened
+	 */
+	public interface Listener {
+
+		/*
+		 * @param beatTimeMs  time of the beat that ends the interval, in milliseconds
+		 *                    on the device's clock with the roll overs taken out
+		 * @param rrMs        the interval, in milliseconds
+		 */
+		void onRrInterval(long beatTimeMs, int rrMs);
+
+		/*
+		 * Some intervals were missed, the next one doesn't follow on from the last
+		 */
+		void onRrGap();
+	}
+
+	/*
+	 * The most new intervals a single message can give, one less than the time stamps
+	 */
+	public static final int MAX_INTERVALS = HrmReading.HB_TIME_COUNT - 1;
+
+	private final Listener mListener;
+
+	private boolean mStarted = false;
+	private int mLastBeatNumber;
+	private int mLastBeatTime;
+	private long mBeatClock;
+
+	private long mIntervalCount = 0;
+	private long mGapCount = 0;
+
+	public HxmRrExtractor(Listener listener) {
+		mListener = listener;
+	}
+
+	/*
+	 * Forget everything, the next message is treated as the first
+	 */
+	public void reset() {
+		mStarted = false;
+	}
+
+	public long getIntervalCount() {
+		return mIntervalCount;
+	}
+
+	public long getGapCount() {
+		return mGapCount;
+	}
+
+	/*
+	 * Take the new beats out of a message
+	 */
+	public void update(HrmReading reading) {
+		final int beatNumber = reading.heartBeatNumber();
+
+		// The first message, everything in it is new
+		if (!mStarted) {
+			mStarted = true;
+			mBeatClock = reading.hbTime(HrmReading.HB_TIME_COUNT);
+			emit(reading, MAX_INTERVALS);
+			remember(reading, beatNumber);
+			return;
+		}
+
+		final int newBeats = (beatNumber - mLastBeatNumber) & 0xFF;
+
+		// Nothing happened since the last message
+		if (newBeats == 0)
+			return;
+
+		// The time stamp before the new ones is the last beat we know about
+		if (newBeats <= MAX_INTERVALS) {
+			if (reading.hbTime(newBeats + 1) == mLastBeatTime) {
+				emit(reading, newBeats);
+				remember(reading, beatNumber);
+				return;
+			}
+
+			// The time stamps don't agree with what we had, the strap probably restarted
+			restart(reading, beatNumber);
+			return;
+		}
+
+		/*
+		 * Exactly 15 new beats, the last beat we know about is the one just before
+		 * the oldest time stamp in the message, so nothing was missed.  The interval
+		 * up to the oldest stamp comes first, then the 14 in the message.
+		 */
+		if (newBeats == HrmReading.HB_TIME_COUNT) {
+			int rr = (reading.hbTime(HrmReading.HB_TIME_COUNT) - mLastBeatTime) & 0xFFFF;
+			mBeatClock += rr;
+			mIntervalCount++;
+			mListener.onRrInterval(mBeatClock, rr);
+			emit(reading, MAX_INTERVALS);
+			remember(reading, beatNumber);
+			return;
+		}
+
+		// Too many beats went by, some of the intervals were never seen
+		restart(reading, beatNumber);
+	}
+
+	/*
+	 * Start over from a message that doesn't follow on from the last one.  The
+	 * listener hears about the gap and then gets the 14 intervals in the message.
+	 * The beat clock moves on by the time from the last beat we knew about to the
+	 * oldest stamp in the message, which is the best that can be done when the 16
+	 * bit stamps can't say how many times they rolled over in between.
+	 */
+	private void restart(HrmReading reading, int beatNumber) {
+		gap();
+		mBeatClock += (reading.hbTime(HrmReading.HB_TIME_COUNT) - mLastBeatTime) & 0xFFFF;
+		emit(reading, MAX_INTERVALS);
+		remember(reading, beatNumber);
+	}
+
+	/*
+	 * Send out the count newest intervals in the message, oldest first
+	 */
+	private void emit(HrmReading reading, int count) {
+		int previous = reading.hbTime(count + 1);
+
+		for (int i = count; i >= 1; i--) {
+			int time = reading.hbTime(i);
+			int rr = (time - previous) & 0xFFFF;
+			previous = time;
+
+			mBeatClock += rr;
+			mIntervalCount++;
+			mListener.onRrInterval(mBeatClock, rr);
+		}
+	}
+
+	private void remember(HrmReading reading, int beatNumber) {
+		mLastBeatNumber = beatNumber;
+		mLastBeatTime = reading.hbTime(1);
+	}
+
+	private void gap() {
+		mGapCount++;
+		mListener.onRrGap();
+	}
+}
@@ -21,26 +21,29 @@
  *     'Bluetooth HXM API Guide 2010-07-22'
  *
  * which is Copyright (C) Zephyr Technology, and used with the permission
- * of the company. Information on Zephyr Technology products and how to 
+ * of the company. Information on Zephyr Technology products and how to
  * obtain the Bluetooth HXM API Guide can be found on the Zephyr
  * Technology Corporation website at
- * 
+ *
  *      http://www.zephyr-technology.com
- * 
+ *
  *
  */
 
 package com.pyebrook.hxmDemo;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
@@ -49,25 +52,57 @@ import android.util.Log;
 
 /**
  * This class does all the work for setting up and managing the 
- * Bluetooth connection to the HxM device.  It also does the parsing of the
- * packet structure.
+ * Bluetooth connections to the HxM devices.
  * 
- * It has a thread for connecting to the HxM device, and a
- * thread for performing data transmissions when connected.
+ * Any number of HxM devices can be connected at the same time, each one has 
+ * its own HxmSession, kept by device address.  Which threads run the sessions is
+ * up to the HxmSessionExecutor, by default a pool with a thread per connected
+ * device, see setSessionExecutor().  Messages from all of the devices end up with
+ * the one Handler given to the constructor.
+ * 
+ * Anything else that wants to hear from the service can subscribe() an
+ * HxmListener.  Each subscriber gets the same news the Handler does as method
+ * calls on an executor of its choosing, and the messages from the devices in
+ * batches straight from the threads reading them.  The readings are also
+ * available as a stream with demand and a bounded buffer, see readings().
+ * 
+ * When a connection is lost or can't be made the service keeps trying to connect
+ * to the device on its own, as the HxmReconnectPolicy allows, unless the link
+ * can't be connected again, see HxmLink.isReconnectable().
  */
 public class HxmService {
     // Debugging
     private static final String TAG = "HrmService";
-            
-    // Unique UUID for use by this application, it is the generic & well-known SPP UID
-    @SuppressWarnings("unused")
-	private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+
+    /*
+     * Try again a quarter second after a strap drops out, backing off to a try every 30
+     * seconds, and give up after 10 failures in a row 
+     */
+    public static final HxmReconnectPolicy DEFAULT_RECONNECT_POLICY = new HxmReconnectPolicy(250, 30000, 10);
 
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
+    private volatile Handler mFrameHandler;
+    private final Map<String, HxmSession> mSessions = new HashMap<String, HxmSession>();
+    private final HxmLatest mLatest = new HxmLatest();
+    private final HxmMetrics mMetrics = new HxmMetrics();
+    private final HxmMessageTypes mMessageTypes = new HxmMessageTypes();
+
+    /*
+     * Replaced, never changed, so the sessions can go through it without a lock
+     */
+    private volatile HxmSubscription[] mSubscriptions = new HxmSubscription[0];
+    private volatile HxmReadingPublisher.ReadingSubscription[] mReadingSubscriptions = new HxmReadingPublisher.ReadingSubscription[0];
+    private HxmSessionExecutor mExecutor = new PooledSessionExecutor();
+    private HxmReconnectPolicy mReconnectPolicy = DEFAULT_RECONNECT_POLICY;
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    	public Thread newThread(Runnable r) {
+    		Thread thread = new Thread(r, "HxmReconnect");
+    		thread.setDaemon(true);
+    		return thread;
+    	}
+    });
     private int mState;
 
 
@@ -83,22 +118,125 @@ public class HxmService {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mState = R.string.HXM_SERVICE_RESTING;
         mHandler = handler;
+        mFrameHandler = handler;
     }
 
     /*
-     * Set the current state of the HxmService connection to the device
-     * @param state  The states are defined in the string resource
+     * Send the HXM_SERVICE_MSG_READ messages to a different Handler than the rest, so
+     * the messages from the devices can be dealt with away from the UI thread, see 
+     * HxmPipeline
+     * @param handler  the Handler to send HXM_SERVICE_MSG_READ messages to
      */
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
+    public void setFrameHandler(Handler handler) {
+    	mFrameHandler = handler;
+    }
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_STATE, state, -1).sendToTarget();
+    /*
+     * Set the current state of a session and work out the state of the service from
+     * the state of all the sessions: connected if any device is connected, connecting
+     * if any is trying to, otherwise at rest.
+     * 
+     * @param session  The session whose state changed, null if only the service state changed
+     * @param state    The states are defined in the string resource
+     */
+    private synchronized void setState(HxmSession session, int state) {
+    	String address = null;
+    	
+    	if (session != null) {
+    		Log.d(TAG, "setState() " + session.getAddress() + " " + session.getState() + " -> " + state);
+    		session.setState(state);
+    		address = session.getAddress();
+    	}
+    	
+    	int serviceState = R.string.HXM_SERVICE_RESTING;
+    	for (HxmSession s : mSessions.values()) {
+    		if (s.getState() == R.string.HXM_SERVICE_CONNECTED) {
+    			serviceState = R.string.HXM_SERVICE_CONNECTED;
+    			break;
+    		}
+    		if (s.getState() == R.string.HXM_SERVICE_CONNECTING)
+    			serviceState = R.string.HXM_SERVICE_CONNECTING;
+    	}
+    	
+        Log.d(TAG, "setState() " + mState + " -> " + serviceState);
+        mState = serviceState;
+
+        // Give the new state to the Handler so the UI Activity can update, the device address tags along
+        mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_STATE, state, -1, address).sendToTarget();
+
+        for (HxmSubscription subscription : mSubscriptions)
+        	subscription.stateChanged(address, state);
+    }
+
+    /*
+     * Subscribe a listener with the default batching, see HxmSubscription
+     * @param executor  Calls the listener, HxmSubscription.on(handler) for a Handler's thread
+     */
+    public HxmSubscription subscribe(HxmListener listener, Executor executor) {
+    	return subscribe(listener, executor, HxmSubscription.DEFAULT_BATCH_SIZE, HxmSubscription.DEFAULT_BATCH_DELAY_MS,
+    			HxmSubscription.DEFAULT_CAPACITY, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+    }
+
+    /*
+     * Subscribe a listener to everything the service has to say, see HxmSubscription
+     * @param executor      Calls the listener
+     * @param batchSize     The most messages from the devices handed over at once
+     * @param batchDelayMs  The longest a message waits for a batch to fill, 0 for no waiting
+     * @param capacity      The most messages that can be waiting for the listener
+     * @param policy        What happens when that many are waiting, one of the HxmFrameRing OVERFLOW_ values
+     */
+    public synchronized HxmSubscription subscribe(HxmListener listener, Executor executor, int batchSize, long batchDelayMs,
+    		int capacity, int policy) {
+    	HxmSubscription subscription = new HxmSubscription(listener, executor, batchSize, batchDelayMs, capacity, policy);
+
+    	HxmSubscription[] subscriptions = new HxmSubscription[mSubscriptions.length + 1];
+    	System.arraycopy(mSubscriptions, 0, subscriptions, 0, mSubscriptions.length);
+    	subscriptions[mSubscriptions.length] = subscription;
+    	mSubscriptions = subscriptions;
+    	return subscription;
     }
 
     /*
-     * Return the current connection state. 
+     * Stop calling a subscription's listener
+     */
+    public synchronized void unsubscribe(HxmSubscription subscription) {
+    	subscription.cancel();
+
+    	for (int i = 0; i < mSubscriptions.length; i++) {
+    		if (mSubscriptions[i] == subscription) {
+    			HxmSubscription[] subscriptions = new HxmSubscription[mSubscriptions.length - 1];
+    			System.arraycopy(mSubscriptions, 0, subscriptions, 0, i);
+    			System.arraycopy(mSubscriptions, i + 1, subscriptions, i, subscriptions.length - i);
+    			mSubscriptions = subscriptions;
+    			return;
+    		}
+    	}
+    }
+
+    /*
+     * Change the way sessions are run.  The current sessions are stopped and their
+     * executor shut down, connect to the devices again to pick up the new one.
+     * @param executor  Runs the sessions from now on
+     */
+    public synchronized void setSessionExecutor(HxmSessionExecutor executor) {
+    	Log.d(TAG, "setSessionExecutor() " + executor.getClass().getSimpleName());
+
+    	cancelAll();
+    	mExecutor.shutdown();
+    	mExecutor = executor;
+    	setState(null, R.string.HXM_SERVICE_RESTING);
+    }
+
+    /*
+     * Change when the service tries to connect to a device again on its own, use 
+     * HxmReconnectPolicy.NEVER to leave it to the user
+     */
+    public synchronized void setReconnectPolicy(HxmReconnectPolicy policy) {
+    	mReconnectPolicy = policy;
+    }
+
+    /*
+     * Return the current connection state of the service. 
      * 
      */
     public synchronized int getState() {
@@ -106,74 +244,155 @@ public class HxmService {
     } 
 
     /*
-     * Start the HxM service. Specifically start AcceptThread to begin a
-     * session in listening (server) mode. Called by the Activity onResume() 
+     * Return the current connection state of one device, resting if there is no
+     * session for it. 
+     */
+    public synchronized int getState(String address) {
+    	HxmSession session = mSessions.get(address);
+    	return (session != null) ? session.getState() : R.string.HXM_SERVICE_RESTING;
+    }
+
+    /*
+     * Return the sessions the service currently has, connecting or connected
+     */
+    public synchronized List<HxmSession> getSessions() {
+    	return new ArrayList<HxmSession>(mSessions.values());
+    }
+
+    /*
+     * Return the registry holding the latest message from every device, it can be
+     * read from any thread without getting in the way of the sessions
+     */
+    public HxmLatest getLatest() {
+    	return mLatest;
+    }
+
+    /*
+     * Return the kinds of message the sessions look for.  Register a type before
+     * connecting to a device that sends it, see HxmMessageTypes.
+     */
+    public HxmMessageTypes getMessageTypes() {
+    	return mMessageTypes;
+    }
+
+    /*
+     * Return the counters and latencies of every device, see HxmMetrics
+     */
+    public HxmMetrics getMetrics() {
+    	return mMetrics;
+    }
+
+    /*
+     * Return the number of messages thrown away because their CRC didn't match, 
+     * across every device since the service was made.  It comes from the metrics,
+     * so it keeps the count of sessions that have ended and is only as fresh as
+     * the last time each session reported.
+     */
+    public long getCrcFailureCount() {
+    	return mMetrics.getTotal(HxmMetrics.CRC_FAILURES);
+    }
+
+    /*
+     * Start the HxM service. Cancel any sessions and put the service in the resting
+     * state. Called by the Activity onResume() 
      *
      */
     public synchronized void start() {
         Log.d(TAG, "start()");
 
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-        	mConnectThread.cancel(); mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-        	mConnectedThread.cancel(); mConnectedThread = null;
-        }
-
-        setState(R.string.HXM_SERVICE_RESTING);
+        cancelAll();
+        setState(null, R.string.HXM_SERVICE_RESTING);
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Start a session to initiate a connection to a remote device.
      * @param device  The BluetoothDevice to connect with
      */
     public synchronized void connect(BluetoothDevice device) {
-        Log.d(TAG, "connect(): starting connection to " + device);
+    	connect(new BluetoothHxmLink(mAdapter, device));
+    }
 
-        // If a connection attempt is currently in progress, cancel it!
-        if (mState == R.string.HXM_SERVICE_CONNECTING) {
-            if (mConnectThread != null) {
-            	mConnectThread.cancel(); mConnectThread = null;
-            }
-        }
+    /**
+     * Start a session to initiate a connection over any HxmLink.  An existing session
+     * with the same address is cancelled first.
+     * @param link  The link to connect with
+     */
+    public synchronized void connect(HxmLink link) {
+        Log.d(TAG, "connect(): starting connection to " + link.getAddress());
 
-        // If a connection currently active, cancel it!
-        if (mConnectedThread != null) {
-        	mConnectedThread.cancel(); 
-        	mConnectedThread = null;
-        }
+        // If a connection to this device is in progress or active, cancel it!
+        HxmSession old = mSessions.remove(link.getAddress());
+        if (old != null)
+        	old.cancel();
 
         // Make the connection
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        setState(R.string.HXM_SERVICE_CONNECTING);
+        HxmSession session = new HxmSession(this, link, 0);
+        mSessions.put(link.getAddress(), session);
+        setState(session, R.string.HXM_SERVICE_CONNECTING);
+        mExecutor.execute(session);
     }
 
     /*
-     * Start the ConnectedThread to begin managing a Bluetooth connection
-     * @param socket  The BluetoothSocket on which the connection was made
-     * @param device  The BluetoothDevice that has been connected
+     * Whether to connect to a session's device again, a link that plays once is
+     * never retried whatever the policy says
+     * @param failures  Number of attempts in a row that have failed so far
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-    	Log.d(TAG, "connected() starting ");
+    private boolean shouldRetry(HxmSession session, int failures) {
+    	return session.getLink().isReconnectable() && mReconnectPolicy.shouldRetry(failures);
+    }
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-        	mConnectThread.cancel(); mConnectThread = null;
-        }
+    /*
+     * Connect to a device again after the wait the reconnect policy asks for.  The
+     * new session stands in for the device while it waits, so it can be cancelled
+     * like any other.
+     * @param link      The link to connect with
+     * @param failures  Number of attempts in a row that have failed so far
+     */
+    private synchronized void reconnect(HxmLink link, int failures) {
+    	final HxmSession session = new HxmSession(this, link, failures);
+    	long delay = mReconnectPolicy.getDelayMs(failures);
+
+    	Log.d(TAG, "reconnect(): " + link.getAddress() + " in " + delay + "ms, " + failures + " failures so far");
+    	mMetrics.getDevice(link.getAddress()).increment(HxmMetrics.RECONNECTS);
+
+        mSessions.put(link.getAddress(), session);
+        setState(session, R.string.HXM_SERVICE_CONNECTING);
+
+        mScheduler.schedule(new Runnable() {
+        	public void run() {
+        		synchronized (HxmService.this) {
+        			if (mSessions.get(session.getAddress()) == session && !session.isCancelled())
+        				mExecutor.execute(session);
+        		}
+        	}
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-        	mConnectedThread.cancel(); mConnectedThread = null;
-        }
+    /*
+     * Stop the session with one device
+     * @param address  The address of the device
+     */
+    public synchronized void disconnect(String address) {
+        Log.d(TAG, "disconnect(): " + address);
+
+    	HxmSession session = mSessions.remove(address);
+    	if (session != null) {
+    		session.cancel();
+    		setState(session, R.string.HXM_SERVICE_RESTING);
+    	}
+    }
+
+    /*
+     * Called by a session once its connection has been made
+     * @param session  The session that has been connected
+     */
+    synchronized void connected(HxmSession session) {
+    	Log.d(TAG, "connected() " + session.getAddress());
 
-        // Start the thread to manage the connection and read the data from the device
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+    	if (mSessions.get(session.getAddress()) != session)
+    		return;
 
+    	mMetrics.getDevice(session.getAddress()).increment(HxmMetrics.CONNECTS);
         
         /*
          *  Send the name of the connected HxM back to the UI Activity
@@ -181,13 +400,73 @@ public class HxmService {
          */
         Message msg = mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(null, device.getName()); 
+        bundle.putString(null, session.getName()); 
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
-        setState(R.string.HXM_SERVICE_CONNECTED);
-        Log.d(TAG, "connected() finished");
+        for (HxmSubscription subscription : mSubscriptions)
+        	subscription.connected(session.getAddress(), session.getName());
 
+        setState(session, R.string.HXM_SERVICE_CONNECTED);
+    }
+
+    /*
+     * Called by a session, on its own thread, for every message it reads.  The message
+     * is copied into each subscription's ring, and a snapshot of it, just published
+     * in latest, goes to each reading stream subscriber's buffer.  The snapshot is
+     * only made when there is a reading stream subscriber to keep it.
+     */
+    void frameRead(HxmSession session, byte[] buffer, int offset, long receivedNanos, HxmLatest.Slot latest) {
+    	for (HxmSubscription subscription : mSubscriptions)
+    		subscription.offer(session.getAddress(), buffer, offset, receivedNanos);
+
+    	final HxmReadingPublisher.ReadingSubscription[] readingSubscriptions = mReadingSubscriptions;
+    	if (readingSubscriptions.length == 0)
+    		return;
+
+    	HxmLatest.Snapshot snapshot = new HxmLatest.Snapshot();
+    	latest.getLatest(snapshot);
+    	for (HxmReadingPublisher.ReadingSubscription subscription : readingSubscriptions)
+    		subscription.offer(snapshot);
+    }
+
+    /*
+     * The readings from every device as a stream that only sends a subscriber as many
+     * readings as it asks for, see HxmReadingPublisher and HxmFlow for what can be
+     * built on it
+     * @param executor    Passes the readings to the subscribers
+     * @param bufferSize  The most readings that can be waiting for each subscriber
+     * @param strategy    What gives when a subscriber's buffer is full, one of the HxmReadingPublisher STRATEGY_ values
+     */
+    public HxmReadingPublisher readings(Executor executor, int bufferSize, int strategy) {
+    	return new HxmReadingPublisher(this, executor, bufferSize, strategy);
+    }
+
+    synchronized void addReadingSubscription(HxmReadingPublisher.ReadingSubscription subscription) {
+    	HxmReadingPublisher.ReadingSubscription[] subscriptions = new HxmReadingPublisher.ReadingSubscription[mReadingSubscriptions.length + 1];
+    	System.arraycopy(mReadingSubscriptions, 0, subscriptions, 0, mReadingSubscriptions.length);
+    	subscriptions[mReadingSubscriptions.length] = subscription;
+    	mReadingSubscriptions = subscriptions;
+    }
+
+    synchronized void removeReadingSubscription(HxmReadingPublisher.ReadingSubscription subscription) {
+    	for (int i = 0; i < mReadingSubscriptions.length; i++) {
+    		if (mReadingSubscriptions[i] == subscription) {
+    			HxmReadingPublisher.ReadingSubscription[] subscriptions = new HxmReadingPublisher.ReadingSubscription[mReadingSubscriptions.length - 1];
+    			System.arraycopy(mReadingSubscriptions, 0, subscriptions, 0, i);
+    			System.arraycopy(mReadingSubscriptions, i + 1, subscriptions, i, subscriptions.length - i);
+    			mReadingSubscriptions = subscriptions;
+    			return;
+    		}
+    	}
+    }
+
+    /*
+     * Called by a session when there are messages waiting in its ring, the consumer
+     * is passed the session and takes the messages from session.getRing()
+     */
+    void framesReady(HxmSession session) {
+    	mFrameHandler.obtainMessage(R.string.HXM_SERVICE_MSG_READ, session).sendToTarget();
     }
 
     /*
@@ -196,50 +475,54 @@ public class HxmService {
     public synchronized void stop() {
         Log.d(TAG, "stop() starting ---- ok, it's a little funny:)");
         
-        if (mConnectThread != null) {
-        	mConnectThread.cancel(); 
-        	mConnectThread = null;
-        }
-        
-        if (mConnectedThread != null) {
-        	mConnectedThread.cancel(); 
-        	mConnectedThread = null;
-        }
+        cancelAll();
         
-        setState(R.string.HXM_SERVICE_RESTING);
+        setState(null, R.string.HXM_SERVICE_RESTING);
         Log.d(TAG, "stop() finished");
     }
 
     /*
-     * Reset all connections, put the HxM service back into the resting state
-     * functionally equivalent to stop with this version of the bluetooth implementation
+     * Stop all connections and let the session and reconnect threads go.  The
+     * service can't be started again afterwards.  Called by the Activity onDestroy()
      */
-    @SuppressWarnings("unused")
-	private synchronized void reset() {
-        Log.d(TAG, "reset() starting");
-        
-        if (mConnectThread != null) {
-        	mConnectThread.cancel(); 
-        	mConnectThread = null;
-        }
-        
-        if (mConnectedThread != null) {
-        	mConnectedThread.cancel(); 
-        	mConnectedThread = null;
-        }
-        
-        setState(R.string.HXM_SERVICE_RESTING);
-        Log.d(TAG, "reset() finished");
+    public synchronized void close() {
+        stop();
+        mExecutor.shutdown();
+        mScheduler.shutdownNow();
+        Log.d(TAG, "close() finished");
+    }
+
+    /*
+     * Cancel every session
+     */
+    private synchronized void cancelAll() {
+    	for (HxmSession session : mSessions.values()) {
+    		session.cancel();
+    		session.setState(R.string.HXM_SERVICE_RESTING);
+    	}
+    	mSessions.clear();
     }
 
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    private void connectionFailed() {
-    	Log.d(TAG, "BEGIN connectionFailed");
+    synchronized void connectionFailed(HxmSession session) {
+    	Log.d(TAG, "BEGIN connectionFailed " + session.getAddress());
 
-        setState(R.string.HXM_SERVICE_RESTING);
+    	if (!removeSession(session))
+    		return;
+
+    	mMetrics.getDevice(session.getAddress()).increment(HxmMetrics.CONNECT_FAILURES);
+
+    	// Keep trying while there is budget left
+    	int failures = session.getFailureCount() + 1;
+    	if (shouldRetry(session, failures)) {
+    		reconnect(session.getLink(), failures);
+    		return;
+    	}
+
+        setState(session, R.string.HXM_SERVICE_RESTING);
 
         /*
          *  Tell the main activity about the problem connecting.  Only one parameter 
@@ -247,9 +530,13 @@ public class HxmService {
          */
         Message msg = mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_TOAST);
         Bundle bundle = new Bundle();
-        bundle.putString(null, "connectionFailed(): Unable to connect device");
+        String text = "connectionFailed(): Unable to connect device " + session.getName() + " after " + failures + " attempts";
+        bundle.putString(null, text);
         msg.setData(bundle);
         mHandler.sendMessage(msg);
+
+        for (HxmSubscription subscription : mSubscriptions)
+        	subscription.notice(session.getAddress(), text);
         
         Log.d(TAG, "END connectionFailed");
         
@@ -258,8 +545,21 @@ public class HxmService {
     /*
      * Indicate that the connection was lost and notify the UI Activity.
      */
-    private void connectionLost() {
-        setState(R.string.HXM_SERVICE_RESTING);
+    synchronized void connectionLost(HxmSession session) {
+    	if (!removeSession(session))
+    		return;
+
+    	mMetrics.getDevice(session.getAddress()).increment(HxmMetrics.CONNECTIONS_LOST);
+
+    	/*
+    	 * A connection that delivered messages gets the whole retry budget again, one 
+    	 * that didn't counts as another failure
+    	 */
+    	int failures = (session.getFrameCount() > 0) ? 0 : session.getFailureCount() + 1;
+    	if (shouldRetry(session, failures))
+    		reconnect(session.getLink(), failures);
+    	else
+    		setState(session, R.string.HXM_SERVICE_RESTING);
 
         /*
          *  Tell the main activity about the problem with the connection.  Only
@@ -267,253 +567,23 @@ public class HxmService {
          */
         Message msg = mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_TOAST);
         Bundle bundle = new Bundle();
-        bundle.putString(null, "connectionLost(): Device connection was lost");
+        String text = "connectionLost(): Device connection was lost " + session.getName();
+        bundle.putString(null, text);
         msg.setData(bundle);
         mHandler.sendMessage(msg);
-    }
-
 
-    /*
-     * This thread runs while attempting to create the outgoing connection
-     * with a HxM. It runs straight through; the connection either
-     * succeeds or fails.
-     */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-
-            // Get a BluetoothSocket for a connection with the
-			// given BluetoothDevice
-			try {
-				/* ****************************************************************************************
-				 * IMPORTANT!   IMPORTANT!   IMPORTANT!   IMPORTANT!   IMPORTANT!   IMPORTANT!   IMPORTANT!   
-				 * ****************************************************************************************
-				 * 
-				 * There are some 'issues' with the Bluetooth issues with some versions of Android, and with
-				 * some specific devices.  Ordinarily all you would have to do to create the BLuetooth socket
-				 * is use the create call, specifying the UID of the Bluetooth service profile that will be
-				 * used for the connection.     In the case of our application that call would look 
-				 * like this:
-				 *                  tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
-				 *                  
-				 * The problem is, sometimes when you make that call an error will return either from the 
-				 * attempt to create the socket, or later when the attempt is made to connect to the socket.
-				 * The error code most often reported is 'Unable to start service discovery For device'.
-				 * 
-				 * Obviously this is a problem because you can't create a connection to any device on any
-				 * known UID if the call does not work.
-				 * 
-				 * There is a technique that has been used to work around this issue.  It is referred to as 
-				 * 'java reflection'.  If you are not familiar and are interested, an Internet search for 
-				 * the term will give you lots of interesting reading on the topic.
-				 * 
-				 * The important thing for us is that it gives us a means to call directly into the 
-				 * Bluetooth rfcomm class/object avoiding whatever problem is present in the current 
-				 * Android+Bluetooth+Handset implementation.
-				 * 
-				 * Our application creates the connection using this technique as follows:
-				 * 
-				 *   	Method m = device.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
-			     * 	    tmp = (BluetoothSocket) m.invoke(device, 1);            	            	
-				 *
-				 * 
-				 * CAUTION:  
-				 * The problem with doing this is that there isn't any guarantee that the call we are accessing 
-				 * will be there in future versions of the platform.  And if it is there no guarantee that
-				 * it will work in the same manner.  If you look at the current implementation of the rfcomm 
-				 * object you will find several places where there is embedded commentary warning developers 
-				 * noting that the class is likely to change in the future.
-				 * 
-				 * When you build your applications, consider if it is appropriate to restrict the allowed 
-				 * platforms to the ones that you have thoroughly tested.  You may also consider an  
-				 * implementation that uses both the standard implementation and the workaround implementation
-				 * such that if the documented approach does not work, the workaround is attempted as a 
-				 * fall-back.  
-				 * 
-				 * It is also advisable to make sure that the error reporting mechanism within your application is 
-				 * especially robust so that problems that users have that may end up being related to the bluetooth
-				 * issue are quickly isolated. 
-				 * 
-				 */
-				Method m = device.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
-			    tmp = (BluetoothSocket) m.invoke(device, 1);            	            	
-			} catch (SecurityException e) {
-		        Log.e(TAG, "ConnectThread() SecurityException");
-		        e.printStackTrace();
-			} catch (NoSuchMethodException e) {
-		        Log.e(TAG, "ConnectThread() SecurityException");
-		        e.printStackTrace();
-			} catch (IllegalArgumentException e) {
-		        Log.e(TAG, "ConnectThread() SecurityException");
-		        e.printStackTrace();
-			} catch (IllegalAccessException e) {
-		        Log.e(TAG, "ConnectThread() SecurityException");
-		        e.printStackTrace();
-			} catch (InvocationTargetException e) {
-		        Log.e(TAG, "ConnectThread() SecurityException");
-		        e.printStackTrace();
-			}
-			
-            mmSocket = tmp;
-        }
-
-        @Override
-		public void run() {
-            Log.i(TAG, "BEGIN mConnectThread");
-            setName("ConnectThread");
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                connectionFailed();
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "ConnectThread.run(): unable to close() socket during connection failure", e2);
-                }
-                
-                // Start the service over to restart listening mode
-                HxmService.this.start();
-                return;
-            }
-
-            // Reset the ConnectThread because we're done
-            synchronized (HxmService.this) {
-                mConnectThread = null;
-            }
-
-            // Start the connected thread
-            connected(mmSocket, mmDevice);
-        }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "cancel(): close() of connect socket failed", e);
-            }
-        }
+        for (HxmSubscription subscription : mSubscriptions)
+        	subscription.notice(session.getAddress(), text);
     }
 
     /*
-     * This thread runs during a connection with the Hxm.
-     * It handles all incoming data
+     * Forget a session, returns false if it had already been replaced or removed
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
+    private synchronized boolean removeSession(HxmSession session) {
+    	if (mSessions.get(session.getAddress()) != session)
+    		return false;
 
-        public ConnectedThread(BluetoothSocket socket) {
-        	Log.d(TAG, "ConnectedThread(): starting");
-
-            mmSocket = socket;
-            InputStream tmpIn = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "ConnectedThread(): temp sockets not created", e);
-            }
-
-            mmInStream = tmpIn;
-            
-            Log.d(TAG, "ConnectedThread(): finished");
-            
-        }
-
-        /*
-         * The code below is a basic implementation of a reader specific to the HxM device.  It is 
-         * intended to illustrate the packet structure and field extraction.  Consider if your 
-         * implementation should include more robust error detection logic to prevent things like 
-         * buffer sizes from causing read overruns, or recomputing the CRC and comparing it to the 
-         * contents of the message to detect transmission erros.
-         */
-        private final int STX = 0x02;
-        private final int MSGID = 0x26;
-        private final int DLC = 55;
-        private final int ETX = 0x03;
-        
-        @Override
-		public void run() {
-        	Log.d(TAG, "ConnectedThread.run(): starting");
-            byte[] buffer = new byte[1024];
-            int b = 0;
-            int bufferIndex = 0;
-            int payloadBytesRemaining;
-            
-            // Keep listening to the InputStream while connected
-            while (true) {
-                try {
-                	
-                	bufferIndex = 0;
-                	// Read bytes from the stream until we encounter the the start of message character
-                	while (( b = mmInStream.read()) != STX )
-                		;
-                	
-                	buffer[bufferIndex++] = (byte) b;
-                	
-                	// The next byte must be the message ID, see the basic message format in the document 
-                	if ((b = mmInStream.read()) != MSGID )
-                		continue;
-                	
-                	buffer[bufferIndex++] = (byte) b;
-                	
-                	// The next byte must be the expected data length code, we don't handle variable length messages, see the doc 
-                	if ((b = mmInStream.read()) != DLC )
-                		continue;
-
-                	buffer[bufferIndex++] = (byte) b;
-                	
-                	payloadBytesRemaining = b;
-                	
-                	while ( (payloadBytesRemaining--) > 0 ) {
-                		buffer[bufferIndex++] = (byte) (b = mmInStream.read());                		                		
-                	}
-                	
-                	// The next byte should be a CRC
-                	buffer[bufferIndex++] = (byte) (b = mmInStream.read());
-                		
-                	// The next byte must be the end of text indicator, or there was sadness, see the basic message format in the document 
-                	if ((b = mmInStream.read()) != ETX )
-                		continue;
-                            	
-                   	buffer[bufferIndex++] = (byte) b;
-                               	
-                    Log.d(TAG, "mConnectedThread: read "+Integer.toString(bufferIndex)+" bytes");
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_READ, bufferIndex, 0, buffer)
-                            .sendToTarget();
-                    
-                    	
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    break;
-                }
-            }            
-            
-            Log.d(TAG, "ConnectedThread.run(): finished");
-
-        }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "ConnectedThread.cancel(): close() of connect socket failed", e);
-            }
-        }
+    	mSessions.remove(session.getAddress());
+    	return true;
     }
 }
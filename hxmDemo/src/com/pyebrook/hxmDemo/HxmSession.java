@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/*
+ * HxmSession
+ *
+ * One connection to one HxM.  The session connects its HxmLink, reads messages
+ * from the link's stream with an HxmFrameReader and puts each one in the
+ * session's ring for the consumer to pick up.  Messages of any other kind the
+ * service's HxmMessageTypes knows go to their type's Decoder instead.  Each
+ * message is also published in the service's HxmLatest registry and handed to
+ * the service's subscribers and reading streams, and counted in the service's
+ * HxmMetrics.
+ *
+ * The session doesn't have a thread of its own, it is run by the service's
+ * HxmSessionExecutor.  run() connects and then blocks reading for as long as the
+ * connection lasts.  An executor that wants to share threads between sessions
+ * can instead call open() once and then read(false) whenever it likes, which
+ * never blocks.  The session tells the service when the connection is made, when
+ * it fails or is lost, and when there are messages waiting in the ring.
+ */
+public class HxmSession implements Runnable {
+	private static final String TAG = "HxmSession";
+
+    /*
+     * Number of messages that can be waiting for the consumer before the oldest
+     * ones get thrown away, the HxM sends one a second
+     */
+	public static final int RING_CAPACITY = 16;
+
+	private final HxmService mService;
+	private final HxmLink mLink;
+	private final HxmFrameRing mRing;
+	private final HxmLatest.Slot mLatest;
+	private final HxmMetrics.Device mMetrics;
+	private volatile HxmFrameReader mReader;
+	private volatile int mState = R.string.HXM_SERVICE_RESTING;
+	private volatile boolean mCancelled = false;
+	private final int mFailures;
+
+	/*
+	 * The reader's and the ring's counts already added to the metrics
+	 */
+	private long mReportedFrames = 0;
+	private long mReportedSkipped = 0;
+	private long mReportedCrcFailures = 0;
+	private long mReportedDropped = 0;
+
+	/*
+	 * @param failures  number of attempts in a row to connect this link that have failed
+	 */
+	HxmSession(HxmService service, HxmLink link, int failures) {
+		mService = service;
+		mLink = link;
+		mFailures = failures;
+		mRing = new HxmFrameRing(RING_CAPACITY, HxmFrameReader.FRAME_LENGTH, HxmFrameRing.OVERFLOW_DROP_OLDEST);
+		mLatest = service.getLatest().getSlot(link.getAddress());
+		mMetrics = service.getMetrics().getDevice(link.getAddress());
+		mMetrics.setRing(mRing);
+	}
+
+	public String getAddress() {
+		return mLink.getAddress();
+	}
+
+	public String getName() {
+		return mLink.getName();
+	}
+
+	public HxmLink getLink() {
+		return mLink;
+	}
+
+	/*
+	 * The messages read from the device, there is one consumer for all of them
+	 */
+	public HxmFrameRing getRing() {
+		return mRing;
+	}
+
+	/*
+	 * One of the HXM_SERVICE_ states
+	 */
+	public int getState() {
+		return mState;
+	}
+
+	void setState(int state) {
+		mState = state;
+	}
+
+	/*
+	 * Number of attempts in a row to connect this device that failed before this session
+	 */
+	public int getFailureCount() {
+		return mFailures;
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	public long getFrameCount() {
+		HxmFrameReader reader = mReader;
+		return (reader != null) ? reader.getFrameCount() : 0;
+	}
+
+	public long getCrcFailureCount() {
+		HxmFrameReader reader = mReader;
+		return (reader != null) ? reader.getCrcFailureCount() : 0;
+	}
+
+	/*
+	 * Connect and read messages until the connection ends, this ties up the calling
+	 * thread for the life of the connection
+	 */
+	public void run() {
+		if (!open())
+			return;
+
+		while (read(true) >= 0)
+			;
+	}
+
+	/*
+	 * Stop the session, the thread running it will finish up shortly.  The service is
+	 * not told about a session it cancelled itself.
+	 */
+	public void cancel() {
+		mCancelled = true;
+		mLink.close();
+	}
+
+	/*
+	 * Make the connection.  Returns true if the session is connected and ready for read().
+	 */
+	boolean open() {
+		Log.i(TAG, "BEGIN session " + getAddress());
+
+		if (mCancelled)
+			return false;
+
+		InputStream in;
+		try {
+			in = mLink.connect();
+		} catch (IOException e) {
+			mLink.close();
+			if (!mCancelled)
+				mService.connectionFailed(this);
+			return false;
+		}
+
+		if (mCancelled) {
+			mLink.close();
+			return false;
+		}
+
+		mReader = new HxmFrameReader(in, mService.getMessageTypes());
+		mService.connected(this);
+		return true;
+	}
+
+    /*
+     * Read messages from the device and put them in the ring.  A blocking read waits for
+     * one message, a non-blocking read takes every message that has already arrived.
+     * 
+     * The HxmFrameReader does the work of finding the messages in the byte stream, see
+     * the HxmFrameReader class for the details of the packet structure.
+     * 
+     * Returns the number of messages read, or -1 once the connection has ended.
+     */
+	int read(boolean block) {
+		HxmFrameReader reader = mReader;
+		byte[] buffer = reader.getBuffer();
+		int count = 0;
+
+		if (mCancelled) {
+			finish();
+			return -1;
+		}
+
+		try {
+			while (true) {
+				int bufferIndex = block ? reader.nextFrame() : reader.pollFrame();
+
+				if (bufferIndex == HxmFrameReader.NO_FRAME) {
+					report();
+					return count;
+				}
+
+				// The end of the stream means the other end went away
+				if (bufferIndex < 0) {
+					Log.e(TAG, getAddress() + " disconnected, end of stream");
+					break;
+				}
+
+				if (HxmLog.DEBUG)
+					Log.d(TAG, getAddress() + ": read " + Integer.toString(reader.getFrameLength()) + " bytes");
+
+				// Note when the message arrived, on the monotonic clock
+				long now = System.nanoTime();
+
+				// Anything but the heart rate message is for its own decoder
+				int type = reader.getFrameType();
+				if (type == HxmMessageTypes.HEART_RATE)
+					heartRate(buffer, bufferIndex, now);
+				else
+					mService.getMessageTypes().dispatch(getAddress(), type, buffer, bufferIndex, reader.getFrameLength(), now);
+
+				count++;
+				if (block) {
+					report();
+					return count;
+				}
+			}
+		} catch (IOException e) {
+			if (!mCancelled)
+				Log.e(TAG, getAddress() + " disconnected", e);
+		}
+
+		finish();
+		return -1;
+	}
+
+	/*
+	 * Pass on a heart rate message, to the ring, the latest registry and the subscribers
+	 */
+	private void heartRate(byte[] buffer, int bufferIndex, long now) {
+		if (!mRing.offer(buffer, bufferIndex, HxmFrameReader.FRAME_LENGTH, now) && HxmLog.DEBUG)
+			Log.d(TAG, getAddress() + ": ring full, dropped a message");
+
+		// Anyone who only wants the latest message gets it right away
+		mLatest.publish(buffer, bufferIndex, now);
+
+		// So do the service's subscribers, in their own rings and buffers
+		mService.frameRead(this, buffer, bufferIndex, now, mLatest);
+
+		// The consumer only needs to be woken up if it isn't already on its way
+		if (mRing.needsSignal())
+			mService.framesReady(this);
+	}
+
+	/*
+	 * Add what the reader and the ring have counted since last time to the metrics.
+	 * The reader counts every byte it skips, this is only called once per read().
+	 */
+	private void report() {
+		HxmFrameReader reader = mReader;
+
+		long frames = reader.getFrameCount();
+		long skipped = reader.getSkippedByteCount();
+		long crcFailures = reader.getCrcFailureCount();
+		long dropped = mRing.getDroppedCount();
+
+		mMetrics.add(HxmMetrics.FRAMES, frames - mReportedFrames);
+		mMetrics.add(HxmMetrics.SKIPPED_BYTES, skipped - mReportedSkipped);
+		mMetrics.add(HxmMetrics.CRC_FAILURES, crcFailures - mReportedCrcFailures);
+		mMetrics.add(HxmMetrics.DROPPED, dropped - mReportedDropped);
+
+		mReportedFrames = frames;
+		mReportedSkipped = skipped;
+		mReportedCrcFailures = crcFailures;
+		mReportedDropped = dropped;
+	}
+
+	/*
+	 * The connection is over, clean up and tell the service unless it asked for it
+	 */
+	private void finish() {
+		HxmFrameReader reader = mReader;
+
+		mLink.close();
+		report();
+
+		Log.d(TAG, getAddress() + ": " + reader.getFrameCount() + " messages, "
+				+ reader.getCrcFailureCount() + " CRC failures, " + reader.getSkippedByteCount() + " bytes skipped");
+
+		if (!mCancelled)
+			mService.connectionLost(this);
+
+		Log.i(TAG, "END session " + getAddress());
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.util.Random;
+
+/*
+ * HxmSimulator
+ *
+ * Makes up HxM messages for one pretend device, so the service can be run and
+ * loaded up without a strap, or a phone, see SimulatedHxmLink.
+ *
+ * The messages are laid out as the API guide says, STX, MSGID, DLC, the 55 byte
+ * payload, a good CRC and ETX, and what's in them behaves the way a person wearing
+ * a strap would.  Speed wanders about between standing still and a run, heart rate
+ * follows it with a lag, and a heart beat is put down every 60000 / heart rate
+ * milliseconds, give or take a few percent so there is some variability.  The beat
+ * count and beat time stamps, distance, strides and battery all carry on from one
+ * message to the next and roll over the way the real ones do.  The device starts
+ * out as though it had been worn for a while at rest, so even the first message
+ * has a full set of beat time stamps.
+ *
+ * Each message moves the device's clock on by the message interval, one second
+ * for a real HxM.  Two simulators with the same seed make the same messages.
+ */
+public class HxmSimulator {
+
+	/*
+	 * Identify the device, made up, a real HxM sends its own
+	 */
+	public static final int FIRMWARE_ID = 9500;
+	public static final int FIRMWARE_VERSION = 'A';
+	public static final int HARDWARE_ID = 9800;
+	public static final int HARDWARE_VERSION = 'A';
+
+	public static final long DEFAULT_INTERVAL_MS = 1000;
+
+	private static final double MAX_SPEED = 5.0;
+	private static final double MIN_HEART_RATE = 45;
+	private static final double MAX_HEART_RATE = 195;
+
+	/*
+	 * How long it takes the battery indicator to go down by one percent
+	 */
+	private static final long BATTERY_STEP_MS = 20 * 60 * 1000;
+
+	private final Random mRandom;
+	private final long mIntervalMs;
+
+	/*
+	 * The device's clock, milliseconds since it was turned on
+	 */
+	private long mNow = 0;
+
+	private double mSpeed;
+	private double mTargetSpeed;
+	private double mHeartRate;
+	private final double mRestingRate;
+
+	/*
+	 * The last HB_TIME_COUNT beats, newest at mBeatIndex
+	 */
+	private final long[] mBeats = new long[HrmReading.HB_TIME_COUNT];
+	private int mBeatIndex = 0;
+	private long mBeatCount = 0;
+	private long mNextBeat;
+
+	private double mMeters = 0;
+	private double mStrides = 0;
+
+	public HxmSimulator(long seed) {
+		this(seed, DEFAULT_INTERVAL_MS);
+	}
+
+	/*
+	 * @param seed        decides everything the device does
+	 * @param intervalMs  how far the device's clock moves on with each message
+	 */
+	public HxmSimulator(long seed, long intervalMs) {
+		if (intervalMs < 1)
+			throw new IllegalArgumentException("HxmSimulator(): interval must be at least 1ms");
+
+		mRandom = new Random(seed);
+		mIntervalMs = intervalMs;
+		mRestingRate = 55 + mRandom.nextInt(20);
+		mHeartRate = mRestingRate;
+		mSpeed = 0;
+		mTargetSpeed = 0;
+		mNextBeat = mRandom.nextInt(1000);
+
+		// The heart was beating before the device was turned on, give it a history
+		long rr = Math.round(60000.0 / mRestingRate);
+		for (int i = 0; i < mBeats.length; i++)
+			mBeats[(mBeatIndex - i + mBeats.length) % mBeats.length] = mNextBeat - (i + 1) * rr;
+	}
+
+	public long getIntervalMs() {
+		return mIntervalMs;
+	}
+
+	/*
+	 * The device's clock, milliseconds since it was turned on
+	 */
+	public long getTime() {
+		return mNow;
+	}
+
+	/*
+	 * Move the device on by one interval and write the message it would send into
+	 * dst, HxmFrameReader.FRAME_LENGTH bytes starting at offset
+	 */
+	public void nextFrame(byte[] dst, int offset) {
+		step();
+
+		dst[offset + HrmReading.OFFSET_STX] = HxmFrameReader.STX;
+		dst[offset + HrmReading.OFFSET_MSGID] = HxmFrameReader.MSGID;
+		dst[offset + HrmReading.OFFSET_DLC] = HxmFrameReader.DLC;
+
+		put16(dst, offset + HrmReading.OFFSET_FIRMWARE_ID, FIRMWARE_ID);
+		put16(dst, offset + HrmReading.OFFSET_FIRMWARE_VERSION, FIRMWARE_VERSION);
+		put16(dst, offset + HrmReading.OFFSET_HARDWARE_ID, HARDWARE_ID);
+		put16(dst, offset + HrmReading.OFFSET_HARDWARE_VERSION, HARDWARE_VERSION);
+
+		dst[offset + HrmReading.OFFSET_BATTERY_INDICATOR] = (byte) Math.max(1, 100 - (int) (mNow / BATTERY_STEP_MS));
+		dst[offset + HrmReading.OFFSET_HEART_RATE] = (byte) Math.round(mHeartRate);
+		dst[offset + HrmReading.OFFSET_HEART_BEAT_NUMBER] = (byte) mBeatCount;
+
+		// Time stamp 1 is the newest beat
+		for (int i = 0; i < HrmReading.HB_TIME_COUNT; i++) {
+			long beat = mBeats[(mBeatIndex - i + mBeats.length) % mBeats.length];
+			put16(dst, offset + HrmReading.OFFSET_HB_TIME + 2 * i, (int) beat);
+		}
+
+		put16(dst, offset + HrmReading.OFFSET_RESERVED1, 0);
+		put16(dst, offset + HrmReading.OFFSET_RESERVED2, 0);
+		put16(dst, offset + HrmReading.OFFSET_RESERVED3, 0);
+		put16(dst, offset + HrmReading.OFFSET_DISTANCE, (int) (mMeters * 16) % 4096);
+		put16(dst, offset + HrmReading.OFFSET_SPEED, (int) Math.round(mSpeed * 256));
+		dst[offset + HrmReading.OFFSET_STRIDES] = (byte) ((long) mStrides % 128);
+		dst[offset + HrmReading.OFFSET_RESERVED4] = 0;
+		put16(dst, offset + HrmReading.OFFSET_RESERVED5, 0);
+
+		dst[offset + HrmReading.OFFSET_CRC] = (byte) HxmCrc8.compute(dst, offset + HxmFrameReader.OFFSET_PAYLOAD, HxmFrameReader.DLC);
+		dst[offset + HrmReading.OFFSET_ETX] = HxmFrameReader.ETX;
+	}
+
+	/*
+	 * One interval of pretend exercise
+	 */
+	private void step() {
+		final double seconds = mIntervalMs / 1000.0;
+		mNow += mIntervalMs;
+
+		// Every so often decide to do something else, walk, run or stand about
+		if (mRandom.nextDouble() < 0.01 * seconds)
+			mTargetSpeed = (mRandom.nextInt(3) == 0) ? 0 : mRandom.nextDouble() * MAX_SPEED;
+
+		mSpeed += (mTargetSpeed - mSpeed) * Math.min(1, 0.1 * seconds) + mRandom.nextGaussian() * 0.05 * Math.sqrt(seconds);
+		mSpeed = Math.max(0, Math.min(MAX_SPEED, mSpeed));
+
+		// Heart rate catches up with the effort over half a minute or so
+		double target = mRestingRate + mSpeed * 22;
+		mHeartRate += (target - mHeartRate) * Math.min(1, 0.04 * seconds) + mRandom.nextGaussian() * 0.5 * Math.sqrt(seconds);
+		mHeartRate = Math.max(MIN_HEART_RATE, Math.min(MAX_HEART_RATE, mHeartRate));
+
+		while (mNextBeat <= mNow) {
+			mBeatIndex = (mBeatIndex + 1) % mBeats.length;
+			mBeats[mBeatIndex] = mNextBeat;
+			mBeatCount++;
+
+			double rr = 60000.0 / mHeartRate * (1 + mRandom.nextGaussian() * 0.03);
+			mNextBeat += Math.max(300, Math.round(rr));
+		}
+
+		mMeters += mSpeed * seconds;
+		if (mSpeed > 0.3)
+			mStrides += (0.7 + mSpeed * 0.15) * seconds;
+	}
+
+	private static void put16(byte[] dst, int index, int value) {
+		dst[index] = (byte) value;
+		dst[index + 1] = (byte) (value >> 8);
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Handler;
+
+/*
+ * HxmSubscription
+ *
+ * One HxmListener's subscription to an HxmService, made by HxmService.subscribe().
+ *
+ * Each subscription has its own ring the sessions put the messages from the
+ * devices in, as they read them, and its own executor the listener is called
+ * on.  The messages are handed over in batches: once batchSize of them are waiting,
+ * or batchDelayMs after the first one arrived, whichever comes first.  A batch
+ * delay of 0 hands each message over as soon as it arrives.
+ *
+ * A listener that can't keep up only holds up itself.  What happens once its
+ * ring is full is up to the overflow policy, one of the HxmFrameRing OVERFLOW_
+ * values: drop the oldest messages, drop the new ones, or make the sessions wait,
+ * which slows reading the devices down to the listener's pace.  A waiting session
+ * waits outside the lock the sessions share, so cancelling the subscription lets
+ * it go at once.
+ *
+ * The other events, state changes and so on, are handed to the executor as they
+ * happen.  With an executor that has more than one thread they can arrive out of
+ * order with respect to each other, though never at the same time as a batch.
+ */
+public class HxmSubscription {
+
+	public static final int DEFAULT_BATCH_SIZE = 16;
+	public static final long DEFAULT_BATCH_DELAY_MS = 250;
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/*
+	 * Counts down the batch delays for every subscription
+	 */
+	/*
+	 * How long a session waiting for room in a full OVERFLOW_BLOCK ring sleeps
+	 * before it looks again
+	 */
+	private static final long BLOCK_PARK_NANOS = 100000L;
+
+	private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "HxmSubscriptionTimer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final HxmListener mListener;
+	private final Executor mExecutor;
+	private final int mBatchSize;
+	private final long mBatchDelayMs;
+
+	/*
+	 * The sessions take turns putting messages in, under mOfferLock, the executor
+	 * takes them out under mDeliverLock
+	 */
+	private final HxmFrameRing mRing;
+	private final boolean mBlocking;
+	private final Object mOfferLock = new Object();
+	private final Object mDeliverLock = new Object();
+	private final HxmBatch mBatch;
+
+	/*
+	 * Set while a delivery of a full batch, or one at the end of the batch delay, is on its way
+	 */
+	private final AtomicBoolean mDeliveryQueued = new AtomicBoolean(false);
+	private final AtomicBoolean mDeliveryTimed = new AtomicBoolean(false);
+
+	private volatile boolean mCancelled = false;
+	private volatile long mInterruptedCount = 0;
+	private long mDroppedReported = 0;
+	private volatile long mDeliveredCount = 0;
+
+	/*
+	 * @param executor      calls the listener
+	 * @param batchSize     the most messages handed over at once
+	 * @param batchDelayMs  the longest a message waits for a batch to fill
+	 * @param capacity      the most messages that can be waiting
+	 * @param policy        what to do when capacity messages are waiting, one of the HxmFrameRing OVERFLOW_ values
+	 */
+	HxmSubscription(HxmListener listener, Executor executor, int batchSize, long batchDelayMs, int capacity, int policy) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("HxmSubscription(): batch size must be at least 1");
+		if (batchDelayMs < 0)
+			throw new IllegalArgumentException("HxmSubscription(): batch delay can't be negative");
+
+		mListener = listener;
+		mExecutor = executor;
+		mBatchSize = batchSize;
+		mBatchDelayMs = batchDelayMs;
+		mRing = new HxmFrameRing(capacity, HxmFrameReader.FRAME_LENGTH, policy);
+		mBlocking = (policy == HxmFrameRing.OVERFLOW_BLOCK);
+		mBatch = new HxmBatch(batchSize);
+	}
+
+	/*
+	 * An Executor that runs things on a Handler's thread, to have a listener called on the UI thread
+	 */
+	public static Executor on(final Handler handler) {
+		return new Executor() {
+			public void execute(Runnable command) {
+				handler.post(command);
+			}
+		};
+	}
+
+	public HxmListener getListener() {
+		return mListener;
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/*
+	 * Number of messages handed to the listener
+	 */
+	public long getDeliveredCount() {
+		return mDeliveredCount;
+	}
+
+	/*
+	 * Number of messages dropped because the listener wasn't keeping up, or because a
+	 * session waiting for room was interrupted
+	 */
+	public long getDroppedCount() {
+		return mRing.getDroppedCount() + mInterruptedCount;
+	}
+
+	/*
+	 * Number of messages waiting for the listener
+	 */
+	public int getBacklog() {
+		return mRing.size();
+	}
+
+	/*
+	 * Stop calling the listener, called by HxmService.unsubscribe().  A call already
+	 * under way finishes.
+	 */
+	void cancel() {
+		mCancelled = true;
+	}
+
+	/*
+	 * Called by a session for every message it reads.  With OVERFLOW_BLOCK the ring
+	 * is only offered the message once it has room, so the offer never waits under
+	 * the lock, and the session waits for room with the lock let go.
+	 */
+	void offer(String address, byte[] buffer, int offset, long receivedNanos) {
+		while (true) {
+			if (mCancelled)
+				return;
+
+			synchronized (mOfferLock) {
+				if (!mBlocking || mRing.hasRoom()) {
+					if (!mRing.offer(buffer, offset, HxmFrameReader.FRAME_LENGTH, receivedNanos, address))
+						return;
+					break;
+				}
+			}
+
+			LockSupport.parkNanos(BLOCK_PARK_NANOS);
+			if (Thread.currentThread().isInterrupted()) {
+				synchronized (mOfferLock) {
+					mInterruptedCount++;
+				}
+				return;
+			}
+		}
+
+		if (mBatchDelayMs == 0 || mRing.size() >= mBatchSize) {
+			if (mDeliveryQueued.compareAndSet(false, true))
+				mExecutor.execute(mDeliver);
+		} else if (mDeliveryTimed.compareAndSet(false, true)) {
+			sTimer.schedule(mDeliverLater, mBatchDelayMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	void stateChanged(final String address, final int state) {
+		post(new Runnable() {
+			public void run() {
+				mListener.onStateChanged(address, state);
+			}
+		});
+	}
+
+	void connected(final String address, final String name) {
+		post(new Runnable() {
+			public void run() {
+				mListener.onConnected(address, name);
+			}
+		});
+	}
+
+	void notice(final String address, final String text) {
+		post(new Runnable() {
+			public void run() {
+				mListener.onNotice(address, text);
+			}
+		});
+	}
+
+	/*
+	 * Run an event on the executor, one at a time with the batches
+	 */
+	private void post(final Runnable event) {
+		if (mCancelled)
+			return;
+
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				synchronized (mDeliverLock) {
+					if (!mCancelled)
+						event.run();
+				}
+			}
+		});
+	}
+
+	private final Runnable mDeliverLater = new Runnable() {
+		public void run() {
+			mExecutor.execute(mDeliver);
+		}
+	};
+
+	/*
+	 * Hand over everything waiting, in batches.  The flags are cleared first so a
+	 * message arriving from here on asks for another delivery, which may find
+	 * nothing left to do.
+	 */
+	private final Runnable mDeliver = new Runnable() {
+		public void run() {
+			synchronized (mDeliverLock) {
+				mDeliveryQueued.set(false);
+				mDeliveryTimed.set(false);
+
+				while (!mCancelled) {
+					long dropped = mRing.getDroppedCount();
+					mBatch.clear(dropped - mDroppedReported);
+
+					int offset;
+					while (!mBatch.isFull() && (offset = mRing.poll()) >= 0) {
+						mBatch.add((String) mRing.getTag(offset), mRing.getBuffer(), offset, mRing.getTimestamp(offset));
+						mRing.release();
+					}
+
+					if (mBatch.size() == 0)
+						break;
+
+					mDroppedReported = dropped;
+					mDeliveredCount += mBatch.size();
+					mListener.onReadings(mBatch);
+
+					// Whatever is left is less than a batch, leave it for its own delay
+					if (mRing.size() < mBatchSize && mBatchDelayMs > 0) {
+						if (mRing.size() > 0 && mDeliveryTimed.compareAndSet(false, true))
+							sTimer.schedule(mDeliverLater, mBatchDelayMs, TimeUnit.MILLISECONDS);
+						break;
+					}
+				}
+			}
+		}
+	};
+}
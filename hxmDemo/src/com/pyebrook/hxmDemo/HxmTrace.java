@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.util.Locale;
+
+/*
+ * HxmTrace
+ *
+ * The times one message passed each stage on its way from the strap to the
+ * screen, all on the System.nanoTime() clock:
+ *
+ *     RECEIVED        the session read it off the link
+ *     DISPATCHED      the pipeline's worker was handed the ring it was waiting in
+ *     DECODED         the worker started on it
+ *     PROCESSED       the worker was done with it, analytics, recording and stages
+ *     RENDER_DUE      the UI thread was due to show it, the pipeline holds messages
+ *                     back to one per display frame
+ *     RENDER_STARTED  the UI thread started showing it
+ *     RENDERED        the UI thread was done showing it
+ *
+ * The gaps tell where the time went.  A big one before DISPATCHED is the
+ * worker's Handler queue backing up, one between RENDER_DUE and RENDER_STARTED
+ * is the main thread's.
+ *
+ * The pipeline makes a trace for the messages HxmLog.trace() picks, and for any
+ * message that took longer than the pipeline's slow trace limit to reach the
+ * screen, see HxmPipeline.setSlowTraceMs().  Those are logged and the latest are
+ * kept, see HxmPipeline.getTraces().  A message the screen skipped because a newer
+ * one came along has no render stamps, and isSuperseded() is true.
+ */
+public final class HxmTrace {
+
+	public static final int RECEIVED = 0;
+	public static final int DISPATCHED = 1;
+	public static final int DECODED = 2;
+	public static final int PROCESSED = 3;
+	public static final int RENDER_DUE = 4;
+	public static final int RENDER_STARTED = 5;
+	public static final int RENDERED = 6;
+	public static final int STAGE_COUNT = 7;
+
+	public static final String[] STAGE_NAMES = {
+		"received", "dispatched", "decoded", "processed", "render due", "render started", "rendered"
+	};
+
+	private final String mAddress;
+	private final long[] mStamps;
+	private final boolean mSuperseded;
+
+	/*
+	 * @param stamps  one for each stage, 0 for the stages the message never got to
+	 */
+	HxmTrace(String address, long[] stamps, boolean superseded) {
+		mAddress = address;
+		mStamps = stamps.clone();
+		mSuperseded = superseded;
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	/*
+	 * When the message passed a stage, 0 if it didn't
+	 */
+	public long getStamp(int stage) {
+		return mStamps[stage];
+	}
+
+	/*
+	 * Time from the stage before to this one, 0 if the message didn't get to this one
+	 */
+	public long getStageNanos(int stage) {
+		if (stage == RECEIVED || mStamps[stage] == 0)
+			return 0;
+		return mStamps[stage] - mStamps[stage - 1];
+	}
+
+	/*
+	 * Time from the strap to the last stage the message got to
+	 */
+	public long getTotalNanos() {
+		for (int stage = STAGE_COUNT - 1; stage > RECEIVED; stage--) {
+			if (mStamps[stage] != 0)
+				return mStamps[stage] - mStamps[RECEIVED];
+		}
+		return 0;
+	}
+
+	/*
+	 * True if a newer message was shown in its place
+	 */
+	public boolean isSuperseded() {
+		return mSuperseded;
+	}
+
+	/*
+	 * One line for the log, each stage in milliseconds since the one before
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append(mAddress).append(": ").append(millis(getTotalNanos())).append("ms");
+		if (mSuperseded)
+			text.append(", superseded");
+		for (int stage = DISPATCHED; stage < STAGE_COUNT; stage++) {
+			if (mStamps[stage] == 0)
+				break;
+			text.append(", ").append(STAGE_NAMES[stage]).append(" +").append(millis(getStageNanos(stage)));
+		}
+		return text.toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.US, "%.1f", nanos / 1e6);
+	}
+}
@@ -0,0 +1,806 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+/*
+ * HxmUplink
+ *
+ * Sends the messages on to somewhere else, a server or a file, as few times and
+ * in as few bytes as it can.  Each time the radio wakes up to send costs battery,
+ * and so does each byte it sends, so the messages are saved up and sent in
+ * batches.
+ *
+ * Add the uplink to the pipeline as a Stage.  Each message is encoded as soon as
+ * it arrives, as the difference from the one before it from the same device.
+ * Very little changes from one second to the next: the ids never change, the
+ * heart rate and the speed hardly do, and 14 of the 15 beat time stamps are the
+ * ones the previous message sent, one place along.  A message that would take 60
+ * bytes usually takes around 10, with the beat stamps sent as RR intervals.
+ *
+ * The batch is sent once it holds batchBytes of encoded messages or its oldest
+ * message is maxDelayMs old, whichever comes first, and the batch is deflated on
+ * the way out.  The sender thread keeps an eye on the time limit, so the last
+ * messages go out on time when the straps go quiet, and only wakes up when a
+ * batch is ready or due.
+ *
+ * Every batch stands on its own, the first message from each device in a batch is
+ * encoded from nothing, so a batch that goes missing doesn't spoil the ones after
+ * it.  read() turns a batch back into the original messages, byte for byte.
+ *
+ * The batches are written to the Transport by a thread of the uplink's own, so a
+ * slow network never holds up the pipeline.  A batch that fails to send is
+ * counted and thrown away, and if the transport falls more than
+ * MAX_QUEUED_BATCHES behind the oldest waiting batch is thrown away.
+ *
+ * A batch looks like this, big endian:
+ *
+ *     0   4 bytes   MAGIC, "HXMU"
+ *     4   byte      VERSION
+ *     5   byte      flags, FLAG_DEFLATED if the body is deflated
+ *     6   long      the time of the first message in the batch, milliseconds since the epoch
+ *    14   int       length of the body before deflating
+ *    18   int       length of the body as sent
+ *    22             the body
+ *
+ * The body is a varint count of devices, then for each device its id (a long, see
+ * HxmRecorder.getDeviceId()), a varint count of its messages, and the messages.
+ * Each message is
+ *
+ *     varint    milliseconds since the previous message, or since the batch time
+ *     byte      which fields follow, the FIELD_ bits
+ *     8 bytes   firmware and hardware ids and versions, if FIELD_IDS
+ *     varint    change in battery, heart rate, distance, speed and strides, each
+ *               only if its bit is set
+ *     9 bytes   the reserved bytes, if FIELD_RESERVED
+ *     byte      the heart beat number
+ *     varints   if FIELD_ALL_BEATS, the oldest beat stamp then the 14 intervals up
+ *               to the newest.  Otherwise the intervals leading up to each of the
+ *               new beats since the previous message, newest last, and the older
+ *               stamps are the previous message's.
+ *
+ * The varints are 7 bits a byte, low bits first, and the changes are zig-zag
+ * encoded, the same as in HxmColumnStore.
+ */
+public class HxmUplink implements HxmPipeline.Stage {
+	private static final String TAG = "HxmUplink";
+
+	public static final byte[] MAGIC = { 'H', 'X', 'M', 'U' };
+	public static final int VERSION = 1;
+	public static final int HEADER_LENGTH = 22;
+	public static final int FLAG_DEFLATED = 0x01;
+
+	public static final int FIELD_IDS = 0x01;
+	public static final int FIELD_BATTERY = 0x02;
+	public static final int FIELD_HEART_RATE = 0x04;
+	public static final int FIELD_DISTANCE = 0x08;
+	public static final int FIELD_SPEED = 0x10;
+	public static final int FIELD_STRIDES = 0x20;
+	public static final int FIELD_RESERVED = 0x40;
+	public static final int FIELD_ALL_BEATS = 0x80;
+
+	/*
+	 * A couple of hundred device seconds
+	 */
+	public static final int DEFAULT_BATCH_BYTES = 2048;
+
+	/*
+	 * The radio wakes up at most once a minute while the batches are small
+	 */
+	public static final long DEFAULT_MAX_DELAY_MS = 60000;
+
+	public static final int MAX_QUEUED_BATCHES = 16;
+
+	/*
+	 * The most bytes one encoded message can take
+	 */
+	private static final int MAX_RECORD_SIZE = 128;
+
+	private static final int IDS_LENGTH = 8;
+	private static final int OFFSET_RESERVED_HIGH = HrmReading.OFFSET_RESERVED4;
+	private static final int RESERVED_LOW_LENGTH = HrmReading.OFFSET_DISTANCE - HrmReading.OFFSET_RESERVED1;
+	private static final int RESERVED_HIGH_LENGTH = HrmReading.OFFSET_CRC - HrmReading.OFFSET_RESERVED4;
+
+	/*
+	 * Tells the sender thread to finish up
+	 */
+	private static final byte[] CLOSE = new byte[0];
+
+	/*
+	 * Where the batches go.  Only ever called on the uplink's sender thread.
+	 */
+	public interface Transport {
+		void send(byte[] batch, int offset, int length) throws IOException;
+
+		void close();
+	}
+
+	/*
+	 * Given each message read back out of a batch, see read().  The frame is only good
+	 * for the duration of the call.
+	 */
+	public interface Receiver {
+		void frame(long deviceId, long time, byte[] frame, int offset);
+	}
+
+	private final Transport mTransport;
+	private final int mBatchBytes;
+	private final long mMaxDelayNanos;
+	private final ArrayBlockingQueue<byte[]> mQueue = new ArrayBlockingQueue<byte[]>(MAX_QUEUED_BATCHES);
+	private final Thread mSender;
+
+	/*
+	 * Guarded by this
+	 */
+	private final Map<Long, Device> mDevices = new HashMap<Long, Device>();
+	private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+	private int mPendingBytes = 0;
+	private int mPendingCount = 0;
+	private long mBaseTime = 0;
+	private long mBatchStartNanos = 0;
+	private boolean mClosed = false;
+
+	private volatile long mFrameCount = 0;
+	private volatile long mBatchCount = 0;
+	private volatile long mEncodedByteCount = 0;
+	private volatile long mSentBatchCount = 0;
+	private volatile long mSentByteCount = 0;
+	private volatile long mFailedBatchCount = 0;
+	private volatile long mDroppedBatchCount = 0;
+
+	public HxmUplink(Transport transport) {
+		this(transport, DEFAULT_BATCH_BYTES, DEFAULT_MAX_DELAY_MS);
+	}
+
+	/*
+	 * @param batchBytes  send once the encoded messages waiting add up to this many bytes
+	 * @param maxDelayMs  send once the oldest message waiting is this old
+	 */
+	public HxmUplink(Transport transport, int batchBytes, long maxDelayMs) {
+		if (batchBytes < 1)
+			throw new IllegalArgumentException("HxmUplink(): batch size must be at least 1 byte");
+
+		mTransport = transport;
+		mBatchBytes = batchBytes;
+		mMaxDelayNanos = maxDelayMs * 1000000L;
+
+		mSender = new Thread(new Runnable() {
+			public void run() {
+				send();
+			}
+		}, TAG);
+		mSender.setDaemon(true);
+		mSender.start();
+	}
+
+	/*
+	 * Messages taken by the uplink, whether or not they have been sent yet
+	 */
+	public long getFrameCount() {
+		return mFrameCount;
+	}
+
+	public long getBatchCount() {
+		return mBatchCount;
+	}
+
+	/*
+	 * Size of the batch bodies before deflating, the HxM's own messages would have
+	 * been getFrameCount() * 60
+	 */
+	public long getEncodedByteCount() {
+		return mEncodedByteCount;
+	}
+
+	public long getSentBatchCount() {
+		return mSentBatchCount;
+	}
+
+	/*
+	 * Bytes handed to the transport, headers included
+	 */
+	public long getSentByteCount() {
+		return mSentByteCount;
+	}
+
+	/*
+	 * Batches the transport failed to send
+	 */
+	public long getFailedBatchCount() {
+		return mFailedBatchCount;
+	}
+
+	/*
+	 * Batches thrown away because the transport was too far behind
+	 */
+	public long getDroppedBatchCount() {
+		return mDroppedBatchCount;
+	}
+
+	public synchronized void process(String address, long deviceId, HrmReading reading, long receivedNanos) {
+		if (mClosed)
+			return;
+
+		final long time = HxmRecorder.getWallClock(receivedNanos);
+		if (mPendingCount == 0) {
+			mBaseTime = time;
+			mBatchStartNanos = receivedNanos;
+		}
+
+		Device device = mDevices.get(deviceId);
+		if (device == null) {
+			device = new Device(deviceId);
+			mDevices.put(deviceId, device);
+		}
+		if (device.mCount == 0)
+			device.start(mBaseTime);
+
+		int before = device.mLength;
+		device.encode(reading, time);
+		mPendingBytes += device.mLength - before;
+		mPendingCount++;
+		mFrameCount++;
+
+		if (mPendingBytes >= mBatchBytes || receivedNanos - mBatchStartNanos >= mMaxDelayNanos)
+			batch();
+	}
+
+	/*
+	 * Send whatever is waiting now, without waiting for the batch to fill up or fall due
+	 */
+	public synchronized void flush() {
+		batch();
+	}
+
+	/*
+	 * Only when the batch waiting has been waiting for maxDelayMs
+	 */
+	public synchronized void flushIfDue() {
+		if (mPendingCount > 0 && System.nanoTime() - mBatchStartNanos >= mMaxDelayNanos)
+			batch();
+	}
+
+	/*
+	 * Send whatever is waiting, then close the transport once everything queued has
+	 * been sent.  Messages that arrive afterwards are ignored.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (mClosed)
+				return;
+
+			batch();
+			mClosed = true;
+			mDeflater.end();
+		}
+		queue(CLOSE);
+	}
+
+	/*
+	 * Put the waiting messages into a batch and queue it for the sender.  Called
+	 * holding the lock.
+	 */
+	private void batch() {
+		if (mPendingCount == 0)
+			return;
+
+		int devices = 0;
+		int size = 5;
+		for (Device device : mDevices.values()) {
+			if (device.mCount > 0) {
+				devices++;
+				size += 8 + 5 + device.mLength;
+			}
+		}
+
+		byte[] body = new byte[size];
+		int length = putUnsigned(devices, body, 0);
+		for (Device device : mDevices.values()) {
+			if (device.mCount == 0)
+				continue;
+
+			for (int shift = 56; shift >= 0; shift -= 8)
+				body[length++] = (byte) (device.mDeviceId >>> shift);
+			length = putUnsigned(device.mCount, body, length);
+			System.arraycopy(device.mRecords, 0, body, length, device.mLength);
+			length += device.mLength;
+			device.mCount = 0;
+			device.mLength = 0;
+		}
+
+		// Only send it deflated if that made it smaller
+		byte[] deflated = new byte[length];
+		mDeflater.reset();
+		mDeflater.setInput(body, 0, length);
+		mDeflater.finish();
+		int deflatedLength = mDeflater.deflate(deflated);
+		boolean useDeflated = mDeflater.finished() && deflatedLength < length;
+
+		int sentLength = useDeflated ? deflatedLength : length;
+		ByteBuffer batch = ByteBuffer.allocate(HEADER_LENGTH + sentLength);
+		batch.put(MAGIC);
+		batch.put((byte) VERSION);
+		batch.put((byte) (useDeflated ? FLAG_DEFLATED : 0));
+		batch.putLong(mBaseTime);
+		batch.putInt(length);
+		batch.putInt(sentLength);
+		batch.put(useDeflated ? deflated : body, 0, sentLength);
+
+		mPendingBytes = 0;
+		mPendingCount = 0;
+		mBatchCount++;
+		mEncodedByteCount += length;
+
+		queue(batch.array());
+	}
+
+	/*
+	 * Hand a batch to the sender, making room if it has fallen behind
+	 */
+	private void queue(byte[] batch) {
+		while (!mQueue.offer(batch)) {
+			if (mQueue.poll() != null)
+				mDroppedBatchCount++;
+		}
+	}
+
+	/*
+	 * The sender thread
+	 */
+	private void send() {
+		while (true) {
+			byte[] batch;
+			try {
+				batch = mQueue.poll(getNanosUntilDue(), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			// Nothing ready, but the messages waiting may have waited long enough
+			if (batch == null) {
+				flushIfDue();
+				continue;
+			}
+
+			if (batch == CLOSE)
+				break;
+
+			try {
+				mTransport.send(batch, 0, batch.length);
+				mSentBatchCount++;
+				mSentByteCount += batch.length;
+			} catch (IOException e) {
+				mFailedBatchCount++;
+				Log.e(TAG, "send(): unable to send a batch of " + batch.length + " bytes", e);
+			}
+		}
+
+		mTransport.close();
+		Log.i(TAG, "send(): " + mSentBatchCount + " batches, " + mSentByteCount + " bytes sent, "
+				+ mFailedBatchCount + " failed, " + mDroppedBatchCount + " dropped");
+	}
+
+	/*
+	 * How long until the messages waiting have to be sent, or maxDelayMs if there
+	 * are none.  A message arriving while the sender waits that long falls due
+	 * after it has woken up, so the sender is never late.  It waits at least a
+	 * millisecond, so a maxDelayMs of 0 doesn't make it spin.
+	 */
+	private synchronized long getNanosUntilDue() {
+		if (mPendingCount == 0)
+			return Math.max(mMaxDelayNanos, 1000000L);
+		return Math.max(0, mBatchStartNanos + mMaxDelayNanos - System.nanoTime());
+	}
+
+	/**
+	 * Read one batch from a stream of them, as written by a FileTransport or received
+	 * from a SocketTransport, and hand each message in it to the receiver.
+	 *
+	 * @return false if the stream ended before the batch started
+	 */
+	public static boolean read(InputStream in, Receiver receiver) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] header = new byte[HEADER_LENGTH];
+
+		int first = data.read();
+		if (first < 0)
+			return false;
+		header[0] = (byte) first;
+		data.readFully(header, 1, HEADER_LENGTH - 1);
+
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (buffer.get() != MAGIC[i])
+				throw new IOException("HxmUplink.read(): not a batch");
+		}
+		int version = buffer.get();
+		if (version != VERSION)
+			throw new IOException("HxmUplink.read(): unknown batch version " + version);
+
+		int flags = buffer.get();
+		long baseTime = buffer.getLong();
+		int length = buffer.getInt();
+		int sentLength = buffer.getInt();
+		if (length < 0 || sentLength < 0)
+			throw new IOException("HxmUplink.read(): batch is damaged");
+
+		byte[] sent = new byte[sentLength];
+		data.readFully(sent);
+
+		byte[] body = sent;
+		if ((flags & FLAG_DEFLATED) != 0) {
+			body = new byte[length];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(sent);
+				if (inflater.inflate(body) != length || !inflater.finished())
+					throw new IOException("HxmUplink.read(): batch is damaged");
+			} catch (DataFormatException e) {
+				throw new IOException("HxmUplink.read(): batch is damaged");
+			} finally {
+				inflater.end();
+			}
+		} else if (sentLength != length) {
+			throw new IOException("HxmUplink.read(): batch is damaged");
+		}
+
+		try {
+			decode(ByteBuffer.wrap(body, 0, length), baseTime, receiver);
+		} catch (RuntimeException e) {
+			// A bad varint or a short body runs off the end of the buffer
+			throw new IOException("HxmUplink.read(): batch is damaged");
+		}
+		return true;
+	}
+
+	/*
+	 * Undo Device.encode() for a whole batch body
+	 */
+	private static void decode(ByteBuffer body, long baseTime, Receiver receiver) throws IOException {
+		final byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+		final byte[] previous = new byte[HxmFrameReader.FRAME_LENGTH];
+		final HrmReading last = new HrmReading(previous, 0);
+
+		long devices = getUnsigned(body);
+		for (long d = 0; d < devices; d++) {
+			long deviceId = body.getLong();
+			long count = getUnsigned(body);
+			long time = baseTime;
+			Arrays.fill(previous, (byte) 0);
+
+			for (long m = 0; m < count; m++) {
+				System.arraycopy(previous, 0, frame, 0, frame.length);
+				time += getSigned(body);
+				int fields = body.get() & 0xFF;
+
+				if ((fields & FIELD_IDS) != 0)
+					body.get(frame, HrmReading.OFFSET_FIRMWARE_ID, IDS_LENGTH);
+				if ((fields & FIELD_BATTERY) != 0)
+					frame[HrmReading.OFFSET_BATTERY_INDICATOR] = (byte) (last.batteryIndicator() + getSigned(body));
+				if ((fields & FIELD_HEART_RATE) != 0)
+					frame[HrmReading.OFFSET_HEART_RATE] = (byte) (last.heartRate() + getSigned(body));
+				if ((fields & FIELD_DISTANCE) != 0)
+					putU16(frame, HrmReading.OFFSET_DISTANCE, (int) (last.distance() + getSigned(body)));
+				if ((fields & FIELD_SPEED) != 0)
+					putU16(frame, HrmReading.OFFSET_SPEED, (int) (last.speed() + getSigned(body)));
+				if ((fields & FIELD_STRIDES) != 0)
+					frame[HrmReading.OFFSET_STRIDES] = (byte) (last.strides() + getSigned(body));
+				if ((fields & FIELD_RESERVED) != 0) {
+					body.get(frame, HrmReading.OFFSET_RESERVED1, RESERVED_LOW_LENGTH);
+					body.get(frame, OFFSET_RESERVED_HIGH, RESERVED_HIGH_LENGTH);
+				}
+
+				int number = body.get() & 0xFF;
+				frame[HrmReading.OFFSET_HEART_BEAT_NUMBER] = (byte) number;
+
+				int stamp;
+				int from;
+				if ((fields & FIELD_ALL_BEATS) != 0) {
+					stamp = (int) getUnsigned(body);
+					putU16(frame, hbTimeOffset(HrmReading.HB_TIME_COUNT), stamp);
+					from = HrmReading.HB_TIME_COUNT - 1;
+				} else {
+					// The stamps the previous message already sent, moved along
+					int beats = (number - last.heartBeatNumber()) & 0xFF;
+					for (int i = HrmReading.HB_TIME_COUNT; i > beats; i--)
+						putU16(frame, hbTimeOffset(i), last.hbTime(i - beats));
+					stamp = last.hbTime(1);
+					from = beats;
+				}
+				for (int i = from; i >= 1; i--) {
+					stamp += (int) getUnsigned(body);
+					putU16(frame, hbTimeOffset(i), stamp);
+				}
+
+				frame[HxmFrameReader.OFFSET_STX] = HxmFrameReader.STX;
+				frame[HxmFrameReader.OFFSET_MSGID] = HxmFrameReader.MSGID;
+				frame[HxmFrameReader.OFFSET_DLC] = HxmFrameReader.DLC;
+				frame[HxmFrameReader.OFFSET_CRC] = (byte) HxmCrc8.compute(frame, HxmFrameReader.OFFSET_PAYLOAD, HxmFrameReader.DLC);
+				frame[HxmFrameReader.OFFSET_ETX] = HxmFrameReader.ETX;
+
+				receiver.frame(deviceId, time, frame, 0);
+				System.arraycopy(frame, 0, previous, 0, frame.length);
+			}
+		}
+	}
+
+	/*
+	 * The messages from one device waiting to go in the next batch
+	 */
+	private static class Device {
+		final long mDeviceId;
+		byte[] mRecords = new byte[16 * MAX_RECORD_SIZE];
+		int mLength = 0;
+		int mCount = 0;
+
+		final byte[] mPrevious = new byte[HxmFrameReader.FRAME_LENGTH];
+		final HrmReading mLast = new HrmReading(mPrevious, 0);
+		long mPreviousTime;
+
+		Device(long deviceId) {
+			mDeviceId = deviceId;
+		}
+
+		/*
+		 * The first message of a batch is encoded from nothing
+		 */
+		void start(long baseTime) {
+			Arrays.fill(mPrevious, (byte) 0);
+			mPreviousTime = baseTime;
+		}
+
+		void encode(HrmReading reading, long time) {
+			if (mLength + MAX_RECORD_SIZE > mRecords.length) {
+				byte[] records = new byte[mRecords.length * 2];
+				System.arraycopy(mRecords, 0, records, 0, mLength);
+				mRecords = records;
+			}
+
+			final byte[] out = mRecords;
+			final byte[] buffer = reading.getBuffer();
+			final int offset = reading.getOffset();
+			final HrmReading last = mLast;
+
+			int p = putSigned(time - mPreviousTime, out, mLength);
+			final int fieldsAt = p++;
+			int fields = 0;
+
+			if (!same(buffer, offset, HrmReading.OFFSET_FIRMWARE_ID, IDS_LENGTH)) {
+				fields |= FIELD_IDS;
+				System.arraycopy(buffer, offset + HrmReading.OFFSET_FIRMWARE_ID, out, p, IDS_LENGTH);
+				p += IDS_LENGTH;
+			}
+			if (reading.batteryIndicator() != last.batteryIndicator()) {
+				fields |= FIELD_BATTERY;
+				p = putSigned(reading.batteryIndicator() - last.batteryIndicator(), out, p);
+			}
+			if (reading.heartRate() != last.heartRate()) {
+				fields |= FIELD_HEART_RATE;
+				p = putSigned(reading.heartRate() - last.heartRate(), out, p);
+			}
+			if (reading.distance() != last.distance()) {
+				fields |= FIELD_DISTANCE;
+				p = putSigned(reading.distance() - last.distance(), out, p);
+			}
+			if (reading.speed() != last.speed()) {
+				fields |= FIELD_SPEED;
+				p = putSigned(reading.speed() - last.speed(), out, p);
+			}
+			if (reading.strides() != last.strides()) {
+				fields |= FIELD_STRIDES;
+				p = putSigned(reading.strides() - last.strides(), out, p);
+			}
+			if (!same(buffer, offset, HrmReading.OFFSET_RESERVED1, RESERVED_LOW_LENGTH)
+					|| !same(buffer, offset, OFFSET_RESERVED_HIGH, RESERVED_HIGH_LENGTH)) {
+				fields |= FIELD_RESERVED;
+				System.arraycopy(buffer, offset + HrmReading.OFFSET_RESERVED1, out, p, RESERVED_LOW_LENGTH);
+				p += RESERVED_LOW_LENGTH;
+				System.arraycopy(buffer, offset + OFFSET_RESERVED_HIGH, out, p, RESERVED_HIGH_LENGTH);
+				p += RESERVED_HIGH_LENGTH;
+			}
+
+			out[p++] = (byte) reading.heartBeatNumber();
+
+			/*
+			 * Only the new beats need sending if the older stamps are the previous
+			 * message's moved along.  Otherwise, at the start of a batch, after a gap of
+			 * 15 beats or more, or if the strap started counting again, send them all.
+			 */
+			int beats = (reading.heartBeatNumber() - last.heartBeatNumber()) & 0xFF;
+			boolean all = mCount == 0 || beats >= HrmReading.HB_TIME_COUNT;
+			for (int i = HrmReading.HB_TIME_COUNT; !all && i > beats; i--) {
+				if (reading.hbTime(i) != last.hbTime(i - beats))
+					all = true;
+			}
+
+			int from = beats;
+			if (all) {
+				fields |= FIELD_ALL_BEATS;
+				p = putUnsigned(reading.hbTime(HrmReading.HB_TIME_COUNT), out, p);
+				from = HrmReading.HB_TIME_COUNT - 1;
+			}
+			for (int i = from; i >= 1; i--)
+				p = putUnsigned((reading.hbTime(i) - reading.hbTime(i + 1)) & 0xFFFF, out, p);
+
+			out[fieldsAt] = (byte) fields;
+			mLength = p;
+			mCount++;
+			mPreviousTime = time;
+			System.arraycopy(buffer, offset, mPrevious, 0, HxmFrameReader.FRAME_LENGTH);
+		}
+
+		private boolean same(byte[] buffer, int offset, int index, int length) {
+			for (int i = index; i < index + length; i++) {
+				if (buffer[offset + i] != mPrevious[i])
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private static int hbTimeOffset(int i) {
+		return HrmReading.OFFSET_HB_TIME + 2 * (i - 1);
+	}
+
+	private static void putU16(byte[] frame, int index, int value) {
+		frame[index] = (byte) value;
+		frame[index + 1] = (byte) (value >> 8);
+	}
+
+	static int putUnsigned(long value, byte[] buffer, int position) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	static int putSigned(long value, byte[] buffer, int position) {
+		return putUnsigned((value << 1) ^ (value >> 63), buffer, position);
+	}
+
+	static long getUnsigned(ByteBuffer buffer) throws IOException {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (shift > 63)
+				throw new IOException("HxmUplink.getUnsigned(): varint is too long");
+			b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	static long getSigned(ByteBuffer buffer) throws IOException {
+		long zigzag = getUnsigned(buffer);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/*
+	 * Appends each batch to a file, read them back with read()
+	 */
+	public static class FileTransport implements Transport {
+		private final File mFile;
+		private FileOutputStream mOut = null;
+
+		public FileTransport(File file) {
+			mFile = file;
+		}
+
+		public void send(byte[] batch, int offset, int length) throws IOException {
+			if (mOut == null)
+				mOut = new FileOutputStream(mFile, true);
+			mOut.write(batch, offset, length);
+			mOut.flush();
+		}
+
+		public void close() {
+			if (mOut == null)
+				return;
+			try {
+				mOut.close();
+			} catch (IOException e) {
+				Log.e(TAG, "FileTransport.close(): close() of " + mFile + " failed", e);
+			}
+			mOut = null;
+		}
+	}
+
+	/*
+	 * Writes each batch to a TCP connection, connecting when the first batch is sent
+	 * and again after the connection fails
+	 */
+	public static class SocketTransport implements Transport {
+		public static final int CONNECT_TIMEOUT_MS = 10000;
+
+		private final String mHost;
+		private final int mPort;
+		private Socket mSocket = null;
+		private OutputStream mOut = null;
+
+		public SocketTransport(String host, int port) {
+			mHost = host;
+			mPort = port;
+		}
+
+		public void send(byte[] batch, int offset, int length) throws IOException {
+			try {
+				if (mSocket == null) {
+					mSocket = new Socket();
+					mSocket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+					mOut = mSocket.getOutputStream();
+				}
+				mOut.write(batch, offset, length);
+				mOut.flush();
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		public void close() {
+			if (mSocket == null)
+				return;
+			try {
+				mSocket.close();
+			} catch (IOException e) {
+				Log.e(TAG, "SocketTransport.close(): close() failed", e);
+			}
+			mSocket = null;
+			mOut = null;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/*
+ * PollingSessionExecutor
+ *
+ * Shares a small, fixed number of reader threads between all of the sessions.
+ * Each reader thread goes round its sessions asking each one for whatever messages
+ * have already arrived, which never blocks, and naps for a few milliseconds when
+ * none of them had anything.  An HxM only sends one message a second, so one reader
+ * thread can keep up with a great many devices.
+ *
+ * Making a connection can take seconds and there is no way to do it without
+ * blocking, so connecting is done on a separate pool of threads that are only
+ * busy while a connection is being made.  Once connected the session is handed to
+ * the reader thread with the fewest sessions.
+ *
+ * A lost connection is noticed when the stream throws, see HxmFrameReader.pollFrame().
+ */
+public class PollingSessionExecutor implements HxmSessionExecutor {
+	private static final String TAG = "PollingSessionExecutor";
+
+	/*
+	 * How long a reader thread naps when none of its sessions had anything to read
+	 */
+	public static final long DEFAULT_POLL_INTERVAL_MS = 20;
+
+	private final long mPollIntervalMs;
+	private final Poller[] mPollers;
+	private final ExecutorService mConnectExecutor;
+	private volatile boolean mShutdown = false;
+
+	/*
+	 * One reader thread per processor, polling every DEFAULT_POLL_INTERVAL_MS
+	 */
+	public PollingSessionExecutor() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_POLL_INTERVAL_MS);
+	}
+
+	/*
+	 * @param readerThreads   number of threads shared by the sessions for reading
+	 * @param pollIntervalMs  how long a reader thread naps when there was nothing to read
+	 */
+	public PollingSessionExecutor(int readerThreads, long pollIntervalMs) {
+		if (readerThreads < 1)
+			throw new IllegalArgumentException("PollingSessionExecutor(): need at least one reader thread");
+
+		mPollIntervalMs = pollIntervalMs;
+		mConnectExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger(0);
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HxmConnect-" + mCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		mPollers = new Poller[readerThreads];
+		for (int i = 0; i < readerThreads; i++) {
+			mPollers[i] = new Poller("HxmPoller-" + (i + 1));
+			mPollers[i].start();
+		}
+	}
+
+	public void execute(final HxmSession session) {
+		mConnectExecutor.execute(new Runnable() {
+			public void run() {
+				if (session.open())
+					leastBusy().add(session);
+			}
+		});
+	}
+
+	public void shutdown() {
+		mShutdown = true;
+		mConnectExecutor.shutdown();
+	}
+
+	private Poller leastBusy() {
+		Poller best = mPollers[0];
+		for (int i = 1; i < mPollers.length; i++) {
+			if (mPollers[i].mSize.get() < best.mSize.get())
+				best = mPollers[i];
+		}
+		return best;
+	}
+
+	/*
+	 * A reader thread and the sessions it looks after.  Only the thread itself touches
+	 * mSessions, new sessions come in through mAdded.  mSize goes up on the thread
+	 * handing the session over and down on the poller, so it has to be atomic.
+	 */
+	private class Poller extends Thread {
+		private final ConcurrentLinkedQueue<HxmSession> mAdded = new ConcurrentLinkedQueue<HxmSession>();
+		private final List<HxmSession> mSessions = new ArrayList<HxmSession>();
+		private final AtomicInteger mSize = new AtomicInteger();
+
+		Poller(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		void add(HxmSession session) {
+			mSize.incrementAndGet();
+			mAdded.add(session);
+		}
+
+		@Override
+		public void run() {
+			Log.d(TAG, getName() + " starting");
+
+			// Keep reading as long as there are sessions, or might be more
+			while (!mShutdown || !mSessions.isEmpty() || !mAdded.isEmpty()) {
+				HxmSession added;
+				while ((added = mAdded.poll()) != null)
+					mSessions.add(added);
+
+				boolean busy = false;
+				for (Iterator<HxmSession> it = mSessions.iterator(); it.hasNext(); ) {
+					int count = it.next().read(false);
+					if (count < 0) {
+						it.remove();
+						mSize.decrementAndGet();
+					} else if (count > 0) {
+						busy = true;
+					}
+				}
+
+				if (!busy) {
+					try {
+						Thread.sleep(mPollIntervalMs);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+
+			Log.d(TAG, getName() + " finished");
+		}
+	}
+}
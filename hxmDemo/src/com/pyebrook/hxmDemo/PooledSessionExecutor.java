@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * PooledSessionExecutor
+ *
+ * Runs each session on a thread of its own for as long as the session lasts, the
+ * thread blocks reading the device.  Threads come from a pool, so when a device
+ * drops out and reconnects the new session picks up a thread left idle by the old
+ * one instead of starting a new one.  Idle threads are let go after a minute.
+ *
+ * This is the simplest strategy and gets each message to the consumer the moment
+ * it arrives, at the cost of a thread, and its stack, per connected device.
+ */
+public class PooledSessionExecutor implements HxmSessionExecutor {
+
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger mCount = new AtomicInteger(0);
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "HxmSession-" + mCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	public void execute(HxmSession session) {
+		mExecutor.execute(session);
+	}
+
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+}
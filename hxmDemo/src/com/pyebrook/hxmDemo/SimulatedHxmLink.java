@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+
+package com.pyebrook.hxmDemo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * SimulatedHxmLink
+ *
+ * An HxmLink to a pretend HxM, an HxmSimulator, for running the service on a
+ * machine without Bluetooth and for loading it up with as many devices as you
+ * like.  The stream the link hands out carries the simulator's messages at the
+ * message rate, and can be made to misbehave like a real radio link:
+ *
+ *     noise        the chance a message has a byte changed on the way, which the
+ *                  reader should catch with the CRC or the framing
+ *     frame loss   the chance a message never arrives at all
+ *     drop         the chance the connection is lost at a message
+ *     split        reads return the bytes a few at a time rather than a message at
+ *                  a time, at most this many
+ *
+ * Like a BluetoothHxmLink the link can be connected again after the connection is
+ * lost, the device carries on where it was.  With a frame limit the device stops
+ * after that many messages, the stream ends and connecting again fails.
+ *
+ * The settings must be made before connect().
+ */
+public class SimulatedHxmLink implements HxmLink {
+
+	/*
+	 * A message rate of 0 sends the messages as fast as they can be read
+	 */
+	public static final double RATE_MAX = 0;
+
+	private final String mAddress;
+	private final String mName;
+	private final HxmSimulator mSimulator;
+	private final Random mRandom;
+
+	private double mFramesPerSecond;
+	private double mNoise = 0;
+	private double mFrameLoss = 0;
+	private double mDrop = 0;
+	private int mSplit = HxmFrameReader.FRAME_LENGTH;
+	private long mFrameLimit = Long.MAX_VALUE;
+
+	/*
+	 * Messages made so far, across connections, guarded by this
+	 */
+	private long mFrameCount = 0;
+	private volatile SimulatedStream mStream = null;
+
+	/*
+	 * A device sending at the HxM's own rate, one message a second
+	 *
+	 * @param index  makes the address, name and seed, so devices with different
+	 *               indexes behave differently and the same index behaves the same
+	 *               every time
+	 */
+	public SimulatedHxmLink(int index) {
+		mAddress = HxmRecorder.getAddress(0x5A0000000000L | (index & 0xFFFFFFFFL));
+		mName = "HXM-SIM-" + index;
+		mSimulator = new HxmSimulator(index);
+		mRandom = new Random(~index);
+		mFramesPerSecond = 1000.0 / mSimulator.getIntervalMs();
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public boolean isReconnectable() {
+		return true;
+	}
+
+	public HxmSimulator getSimulator() {
+		return mSimulator;
+	}
+
+	/*
+	 * How many messages a second to send, RATE_MAX for as fast as they are read.
+	 * The device's clock still moves one interval per message, so a faster rate plays
+	 * the pretend exercise faster.
+	 */
+	public void setFrameRate(double framesPerSecond) {
+		if (framesPerSecond < 0)
+			throw new IllegalArgumentException("SimulatedHxmLink.setFrameRate(): rate can't be negative");
+		mFramesPerSecond = framesPerSecond;
+	}
+
+	/*
+	 * The chance, 0 to 1, that a message has a byte changed
+	 */
+	public void setNoise(double probability) {
+		mNoise = probability;
+	}
+
+	/*
+	 * The chance, 0 to 1, that a message is lost altogether
+	 */
+	public void setFrameLoss(double probability) {
+		mFrameLoss = probability;
+	}
+
+	/*
+	 * The chance, 0 to 1, that the connection is lost before a message
+	 */
+	public void setDrop(double probability) {
+		mDrop = probability;
+	}
+
+	/*
+	 * The most bytes one read returns, each read returns between 1 and this many
+	 */
+	public void setSplit(int maxBytes) {
+		if (maxBytes < 1)
+			throw new IllegalArgumentException("SimulatedHxmLink.setSplit(): must return at least 1 byte");
+		mSplit = maxBytes;
+	}
+
+	/*
+	 * The device stops after this many messages, including the lost ones
+	 */
+	public void setFrameLimit(long frames) {
+		mFrameLimit = frames;
+	}
+
+	/*
+	 * Messages the device has made so far, including the lost ones
+	 */
+	public synchronized long getFrameCount() {
+		return mFrameCount;
+	}
+
+	public synchronized InputStream connect() throws IOException {
+		if (mFrameCount >= mFrameLimit)
+			throw new IOException("SimulatedHxmLink.connect(): " + mName + " has sent all of its messages");
+
+		SimulatedStream stream = new SimulatedStream();
+		mStream = stream;
+		return stream;
+	}
+
+	public void close() {
+		SimulatedStream stream = mStream;
+		if (stream != null)
+			stream.mClosed = true;
+	}
+
+	/*
+	 * Make the next message, or return false if the device is done.  Lost messages
+	 * are made and thrown away so the device's clock keeps going.
+	 */
+	private synchronized boolean nextFrame(byte[] frame) {
+		while (mFrameCount < mFrameLimit) {
+			mSimulator.nextFrame(frame, 0);
+			mFrameCount++;
+
+			if (mFrameLoss > 0 && mRandom.nextDouble() < mFrameLoss)
+				continue;
+
+			if (mNoise > 0 && mRandom.nextDouble() < mNoise)
+				frame[mRandom.nextInt(frame.length)] ^= (byte) (1 + mRandom.nextInt(255));
+
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * One connection's worth of messages.  Read by one thread, the session's.
+	 */
+	private class SimulatedStream extends InputStream {
+		private final byte[] mFrame = new byte[HxmFrameReader.FRAME_LENGTH];
+		private int mPosition = mFrame.length;
+		private long mDue = System.nanoTime();
+		private boolean mEnded = false;
+		volatile boolean mClosed = false;
+
+		@Override
+		public int read() throws IOException {
+			if (!ready(true))
+				return -1;
+			return mFrame[mPosition++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0)
+				return 0;
+			if (!ready(true))
+				return -1;
+
+			int count = Math.min(length, mFrame.length - mPosition);
+			if (mSplit < count)
+				count = 1 + mRandom.nextInt(mSplit);
+
+			System.arraycopy(mFrame, mPosition, buffer, offset, count);
+			mPosition += count;
+			return count;
+		}
+
+		/*
+		 * Only counts a message once it is due.  The end of the messages is reported
+		 * by throwing, like a closed socket, so a polling reader notices it.
+		 */
+		@Override
+		public int available() throws IOException {
+			if (!ready(false)) {
+				if (mEnded)
+					throw new EOFException("SimulatedHxmLink: " + mName + " has sent all of its messages");
+				return 0;
+			}
+			return Math.min(mFrame.length - mPosition, mSplit);
+		}
+
+		@Override
+		public void close() {
+			mClosed = true;
+		}
+
+		/*
+		 * Make sure there are bytes to read.  Returns false at the end of the
+		 * messages, or if block is false and the next message isn't due yet.
+		 */
+		private boolean ready(boolean block) throws IOException {
+			if (mClosed)
+				throw new IOException("SimulatedHxmLink: " + mName + " has been closed");
+
+			if (mPosition < mFrame.length)
+				return true;
+			if (mEnded)
+				return false;
+
+			if (mFramesPerSecond != RATE_MAX) {
+				if (block)
+					waitUntil(mDue);
+				else if (mDue - System.nanoTime() > 0)
+					return false;
+				mDue += (long) (1000000000L / mFramesPerSecond);
+			}
+
+			if (mDrop > 0 && mRandom.nextDouble() < mDrop)
+				throw new IOException("SimulatedHxmLink: " + mName + " connection dropped");
+
+			if (!nextFrame(mFrame)) {
+				mEnded = true;
+				return false;
+			}
+			mPosition = 0;
+			return true;
+		}
+
+		private void waitUntil(long due) throws IOException {
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(Math.min(wait, 50000000L));
+
+				if (Thread.interrupted())
+					throw new InterruptedIOException("SimulatedHxmLink: " + mName + " interrupted");
+				if (mClosed)
+					throw new IOException("SimulatedHxmLink: " + mName + " has been closed");
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2010 Pye Brook Company, Inc.
+ *               http://www.pyebrook.com
+ *               info@pyebrook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This software uses information from the document
+ *
+ *     'Bluetooth HXM API Guide 2010-07-22'
+ *
+ * which is Copyright (C) Zephyr Technology, and used with the permission
+ * of the company. Information on Zephyr Technology products and how to
+ * obtain the Bluetooth HXM API Guide can be found on the Zephyr
+ * Technology Corporation website at
+ *
+ *      http://www.zephyr-technology.com
+ *
+ *
+ */
+
+package com.pyebrook.hxmDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/*
+ * StreamHxmLink
+ *
+ * An HxmLink over an InputStream that is already open, for feeding recorded or
+ * simulated HxM data through the service without a Bluetooth device.  The stream
+ * can only be used once, trying to connect after the link has been closed fails.
+ */
+public class StreamHxmLink implements HxmLink {
+	private static final String TAG = "StreamHxmLink";
+
+	private final String mAddress;
+	private final String mName;
+	private final InputStream mInStream;
+	private volatile boolean mClosed = false;
+
+	public StreamHxmLink(String address, String name, InputStream in) {
+		mAddress = address;
+		mName = name;
+		mInStream = in;
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/*
+	 * The stream was open before we got it, once it ends there is no more
+	 */
+	public boolean isReconnectable() {
+		return false;
+	}
+
+	public InputStream connect() throws IOException {
+		if (mClosed)
+			throw new IOException("StreamHxmLink.connect(): " + mAddress + " has already been closed");
+		return mInStream;
+	}
+
+	public void close() {
+		mClosed = true;
+		try {
+			mInStream.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close(): close() of stream failed", e);
+		}
+	}
+}
@@ -33,6 +33,10 @@
 
 package com.pyebrook.hxmDemo;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
@@ -65,12 +69,6 @@ public class hxmDemo extends Activity {
     private TextView mTitle;
     private TextView mStatus;
     
-    /*
-     * Name of the connected device, and it's address
-     */
-    private String mHxMName = null;
-    private String mHxMAddress = null;
-    
     /*
      * Local Bluetooth adapter
      */
@@ -81,6 +79,60 @@ public class hxmDemo extends Activity {
      */
     private HxmService mHxmService = null;
     
+    /*
+     * Decodes the messages from the HxM devices off the UI thread
+     */
+    private HxmPipeline mPipeline = null;
+    
+    /*
+     * Keeps every message from the HxM devices in the sessions directory
+     */
+    private HxmRecorder mRecorder = null;
+    
+    /*
+     * Keeps the decoded fields in the columns directory, for looking back over
+     */
+    private HxmColumnWriter mColumnWriter = null;
+    
+    /*
+     * Heart rate, speed and battery summarized over 10 seconds, 1 minute and 10 minutes
+     */
+    private HxmRollups mRollups = null;
+    
+    /*
+     * How often the rollups are written out, well inside the hour the 10 second ones cover
+     */
+    private static final long ROLLUP_FLUSH_MS = 10 * 60 * 1000;
+    
+    /*
+     * Runs on the pipeline's worker, keeps itself going until the worker quits
+     */
+    private final Runnable mFlushRollups = new Runnable() {
+    	public void run() {
+    		flushRollups(false);
+    		mPipeline.getHandler().postDelayed(this, ROLLUP_FLUSH_MS);
+    	}
+    };
+    
+    /*
+     * The views the HxM fields are displayed in, looked up once, and the value each
+     * one is showing so unchanged fields can be left alone.  FIELD_IDS is in the
+     * order displayRaw() goes through the fields.
+     */
+    private static final int[] FIELD_IDS = {
+    	R.id.stx, R.id.msgId, R.id.dlc,
+    	R.id.firmwareId, R.id.firmwareVersion, R.id.hardwareId, R.id.hardwareVersion,
+    	R.id.batteryChargeIndicator, R.id.heartRate, R.id.heartBeatNumber,
+    	R.id.hbTimestamp1, R.id.hbTimestamp2, R.id.hbTimestamp3, R.id.hbTimestamp4, R.id.hbTimestamp5,
+    	R.id.hbTimestamp6, R.id.hbTimestamp7, R.id.hbTimestamp8, R.id.hbTimestamp9, R.id.hbTimestamp10,
+    	R.id.hbTimestamp11, R.id.hbTimestamp12, R.id.hbTimestamp13, R.id.hbTimestamp14, R.id.hbTimestamp15,
+    	R.id.reserved1, R.id.reserved2, R.id.reserved3,
+    	R.id.distance, R.id.speed, R.id.strides,
+    	R.id.reserved4, R.id.reserved5, R.id.crc, R.id.etx
+    };
+    private final TextView[] mFieldViews = new TextView[FIELD_IDS.length];
+    private final int[] mFieldValues = new int[FIELD_IDS.length];
+    
 
     
     
@@ -101,12 +153,13 @@ public class hxmDemo extends Activity {
 	    	setupHrm();
 	    
 	    /*
-	     * Look for an Hxm to connect to, if none is found tell the user
+	     * Look for the Hxms to connect to, if none are found tell the user
 	     * about it
 	     */
-	    if ( getFirstConnectedHxm() ) {
-	    	BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mHxMAddress);
-	    	mHxmService.connect(device); 	// Attempt to connect to the device
+	    List<BluetoothDevice> devices = getPairedHxms();
+	    if ( devices.size() > 0 ) {
+	    	for (BluetoothDevice device : devices)
+	    		mHxmService.connect(device); 	// Attempt to connect to the device
 	    } else {
 	      	mStatus.setText(R.string.nonePaired);	    	
 	    }
@@ -115,21 +168,15 @@ public class hxmDemo extends Activity {
     
     
     /*
-     * Loop through all the connected bluetooth devices, the first one that 
-     * starts with HXM will be assumed to be our Zephyr HxM Heart Rate Monitor,
-     * and this is the device we will connect to
+     * Loop through all the connected bluetooth devices, every one that 
+     * starts with HXM will be assumed to be a Zephyr HxM Heart Rate Monitor,
+     * and these are the devices we will connect to
      * 
-     * returns true if a HxM is found and the global device address has been set 
+     * returns the HxM devices found, the list is empty if there aren't any
      */
-    private boolean getFirstConnectedHxm() {
+    private List<BluetoothDevice> getPairedHxms() {
 
-    	/*
-    	 * Initialize the global device address to null, that means we haven't 
-    	 * found a HxM to connect to yet    	
-    	 */
-    	mHxMAddress = null;    	
-    	mHxMName = null;
-    	
+    	List<BluetoothDevice> hxms = new ArrayList<BluetoothDevice>();
     	
 	    /*
 	     * Get the local Bluetooth adapter
@@ -144,30 +191,46 @@ public class hxmDemo extends Activity {
 
 	    /*
 	     * For each device check to see if it starts with HXM, if it does assume it
-	     * is the Zephyr HxM device we want to pair with      
+	     * is a Zephyr HxM device we want to talk to      
 	     */
-	    if (bondedDevices.size() > 0) {
-	        for (BluetoothDevice device : bondedDevices) {
-	        	String deviceName = device.getName();
-	        	if ( deviceName.startsWith("HXM") ) {
-	        		/*
-	        		 * we found an HxM to try to talk to!, let's remember its name and 
-	        		 * stop looking for more
-	        		 */
-	        		mHxMAddress = device.getAddress();
-	        		mHxMName = device.getName();
-	        		Log.d(TAG,"getFirstConnectedHxm() found a device whose name starts with 'HXM', its name is "+mHxMName+" and its address is ++mHxMAddress");
-	        		break;
-	        	}
-	        }
-	    }
+        for (BluetoothDevice device : bondedDevices) {
+        	String deviceName = device.getName();
+        	if ( deviceName != null && deviceName.startsWith("HXM") ) {
+        		Log.d(TAG,"getPairedHxms() found a device whose name starts with 'HXM', its name is "+deviceName+" and its address is "+device.getAddress());
+        		hxms.add(device);
+        	}
+        }
     
-	    /*
-	     * return true if we found an HxM and set the global device address
-	     */
-	    return (mHxMAddress != null);
+	    return hxms;
    }
 
+    /*
+     * Show which devices we're connected to, or that we aren't connected at all
+     */
+    private void updateStatus() {
+    	if (mStatus == null)
+    		return;
+
+    	if (mHxmService == null || mHxmService.getState() == R.string.HXM_SERVICE_RESTING) {
+    		mStatus.setText(R.string.notConnected);
+    		return;
+    	}
+
+    	if (mHxmService.getState() == R.string.HXM_SERVICE_CONNECTING) {
+    		mStatus.setText(R.string.connecting);
+    		return;
+    	}
+
+    	mStatus.setText(R.string.connectedTo);
+    	String separator = "";
+    	for (HxmSession session : mHxmService.getSessions()) {
+    		if (session.getState() == R.string.HXM_SERVICE_CONNECTED) {
+    			mStatus.append(separator + session.getName());
+    			separator = ", ";
+    		}
+    	}
+    }
+
     
         
 /*
@@ -209,6 +272,14 @@ public class hxmDemo extends Activity {
         	finish();
         }            
 	    
+        /*
+         * Find the views for the HxM fields once, rather than every time a message arrives
+         */
+        for (int i = 0; i < FIELD_IDS.length; i++) {
+        	mFieldViews[i] = (TextView) findViewById(FIELD_IDS[i]);
+        	mFieldValues[i] = NOT_SHOWN;
+        }
+
         /*
          * Put some initial information into our display until we have 
          * something more interesting to tell the user about 
@@ -299,6 +370,24 @@ public class hxmDemo extends Activity {
 
         // Initialize the service to perform bluetooth connections
         mHxmService = new HxmService(this, mHandler);
+
+        // The messages from the devices are handled by the pipeline, which shows us the latest
+        mPipeline = new HxmPipeline(mHandler, new HxmPipeline.Display() {
+        	public void show(String address, HrmReading reading) {
+        		displayRaw(reading);
+        	}
+        });
+        mHxmService.setFrameHandler(mPipeline.getHandler());
+        mPipeline.setMetrics(mHxmService.getMetrics());
+
+        // Record the sessions so they are still around after we are gone
+        mRecorder = new HxmRecorder(new File(getFilesDir(), "sessions"));
+        mPipeline.setRecorder(mRecorder);
+        mColumnWriter = new HxmColumnWriter(new File(getFilesDir(), "columns"));
+        mPipeline.setColumnWriter(mColumnWriter);
+        mRollups = new HxmRollups();
+        mPipeline.addStage(mRollups);
+        mPipeline.getHandler().postDelayed(mFlushRollups, ROLLUP_FLUSH_MS);
     }
 
     @Override
@@ -317,10 +406,32 @@ public class hxmDemo extends Activity {
     public void onDestroy() {
         super.onDestroy();
         // Stop the Bluetooth chat services
-        if (mHxmService != null) mHxmService.stop();
+        if (mHxmService != null) mHxmService.close();
+        if (mPipeline != null) {
+            // Close the files on the worker once it has finished with them
+            mPipeline.getHandler().removeCallbacks(mFlushRollups);
+            mPipeline.quit(new Runnable() {
+                public void run() {
+                    mRecorder.close();
+                    mColumnWriter.close();
+                    flushRollups(true);
+                }
+            });
+        }
         Log.e(TAG, "--- ON DESTROY ---");
     }
 
+    /*
+     * Add the finished rollup buckets to the files in the rollups directory
+     */
+    private void flushRollups(boolean all) {
+    	try {
+    		mRollups.flush(new File(getFilesDir(), "rollups"), all);
+    	} catch (IOException e) {
+    		Log.e(TAG, "flushRollups(): unable to write the rollups", e);
+    	}
+    }
+
      /**
      * Sends a message.
      * @param message  A string of text to send.
@@ -331,38 +442,10 @@ public class hxmDemo extends Activity {
         public void handleMessage(Message msg) {
             switch (msg.what) {
             case R.string.HXM_SERVICE_MSG_STATE: 
-                Log.d(TAG, "handleMessage():  MESSAGE_STATE_CHANGE: " + msg.arg1);
-                switch (msg.arg1) {
-	                case R.string.HXM_SERVICE_CONNECTED:
-	                	if ((mStatus != null) && (mHxMName != null)) {
-	                		mStatus.setText(R.string.connectedTo);
-	                		mStatus.append(mHxMName);
-	                	}
-	                    break;
-
-	                case R.string.HXM_SERVICE_CONNECTING:
-	                    mStatus.setText(R.string.connecting);
-	                    break;
-	                    
-	                case R.string.HXM_SERVICE_RESTING:
-	                	if (mStatus != null ) {
-	                		mStatus.setText(R.string.notConnected);
-	                	}
-	                    break;
-                }
+                Log.d(TAG, "handleMessage():  MESSAGE_STATE_CHANGE: " + msg.obj + " " + msg.arg1);
+                updateStatus();
                 break;
 
-            case R.string.HXM_SERVICE_MSG_READ: {
-            	/*
-            	 * MESSAGE_READ will have the byte buffer in tow, we take it, build an instance
-            	 * of a HrmReading object from the bytes, and then display it into our view
-            	 */
-                byte[] readBuf = (byte[]) msg.obj;
-                HrmReading hrm = new HrmReading( readBuf );
-                hrm.displayRaw();
-                break;
-            }
-                
             case R.string.HXM_SERVICE_MSG_TOAST:
                 Toast.makeText(getApplicationContext(), msg.getData().getString(null),Toast.LENGTH_SHORT).show();
                 break;
@@ -415,268 +498,66 @@ public class hxmDemo extends Activity {
     }
     
     /*
-     * HrmReading
-     * 
-     * This class holds the information corresponding to a single message from 
-     * the Zephyr HxM Heart Rate Monitor
-     * 
-     * The constructor HrmReading(byte[]) will fill the member fields from the bytes presumably 
-     * read from a connected Zephyr HxM Heart Rate Monitor.  Because Java does not support 
-     * signed/unsigned variants of numbers, we sometimes put the fields extracted from the 
-     * HxM message into fields larger than is necessary.
-     * 
-     *
-     *  
+     * Display the HRM reading into the layout, the fields go in the order of FIELD_IDS     
      */
-    public class HrmReading {
-        public final int STX = 0x02;
-        public final int MSGID = 0x26;
-        public final int DLC = 55;
-        public final int ETX = 0x03;
+    private void displayRaw(HrmReading hrm) {  	  
+    	int field = 0;
+    	displayHex ( field++,  hrm.stx() );
+    	displayHex ( field++,  hrm.msgId() );
+    	displayHex ( field++,  hrm.dlc() );
+    	display ( field++,   hrm.firmwareId() );
+    	display ( field++,   hrm.firmwareVersion() );
+    	display ( field++,   hrm.hardwareId() );
+    	display ( field++,   hrm.hardwareVersion() );
+    	display ( field++,  hrm.batteryIndicator() );
+    	display ( field++, hrm.heartRate() );
+    	display ( field++,  hrm.heartBeatNumber() );
+    	for (int i = 1; i <= HrmReading.HB_TIME_COUNT; i++)
+    		display ( field++,   hrm.hbTime(i) );
+    	display ( field++,   hrm.reserved1() );
+    	display ( field++,   hrm.reserved2() );
+    	display ( field++,   hrm.reserved3() );
+    	display ( field++,   hrm.distance() );
+    	display ( field++,   hrm.speed() );
+    	display ( field++,  hrm.strides() );
+    	displayHex ( field++,  hrm.reserved4() );
+    	display ( field++,  hrm.reserved5() );
+    	displayHex ( field++,  hrm.crc() );
+    	displayHex ( field++,  hrm.etx() );    	    	    	
     	
-    	private static final String TAG = "HrmReading";
-
-    	int serial;
-        byte stx;
-        byte msgId;
-        byte dlc;
-        int firmwareId;
-        int firmwareVersion;
-        int hardWareId;
-        int hardwareVersion;
-        int batteryIndicator;
-        int heartRate;
-        int heartBeatNumber;
-        long hbTime1;
-        long hbTime2;
-        long hbTime3;
-        long hbTime4;
-        long hbTime5;
-        long hbTime6;
-        long hbTime7;
-        long hbTime8;
-        long hbTime9;
-        long hbTime10;
-        long hbTime11;
-        long hbTime12;
-        long hbTime13;
-        long hbTime14;
-        long hbTime15;
-        long reserved1;
-        long reserved2;
-        long reserved3;
-        long distance;
-        long speed;
-        byte strides;    
-        byte reserved4;
-        long reserved5;
-        byte crc;
-        byte etx;
-
-        public HrmReading (byte[] buffer) {
-        	int bufferIndex = 0;
-
-        	Log.d ( TAG, "HrmReading being built from byte buffer");
-        	
-            try {
-    			stx 				= buffer[bufferIndex++];
-    			msgId 				= buffer[bufferIndex++];
-    			dlc 				= buffer[bufferIndex++];
-    			firmwareId 			= (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			firmwareVersion 	= (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hardWareId 			= (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hardwareVersion		= (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			batteryIndicator  	= (int)(0x000000FF & (int)(buffer[bufferIndex++]));
-    			heartRate  			= (int)(0x000000FF & (int)(buffer[bufferIndex++]));
-    			heartBeatNumber  	= (int)(0x000000FF & (int)(buffer[bufferIndex++]));
-    			hbTime1				= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime2				= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime3				= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime4				= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime5				= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime6				= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime7				= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime8				= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime9				= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime10			= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime11			= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime12			= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime13			= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime14			= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			hbTime15			= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			reserved1			= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			reserved2			= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			reserved3			= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			distance			= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			speed				= (long) (int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			strides 			= buffer[bufferIndex++];    
-    			reserved4 			= buffer[bufferIndex++];
-    			reserved5 			= (long)(int)((0x000000FF & (int)buffer[bufferIndex++]) | (int)(0x000000FF & (int)buffer[bufferIndex++])<< 8);
-    			crc 				= buffer[bufferIndex++];
-    			etx 				= buffer[bufferIndex];
-    		} catch (Exception e) {
-    			/*
-    			 * An exception should only happen if the buffer is too short and we walk off the end of the bytes,
-    			 * because of the way we read the bytes from the device this should never happen, but just in case
-    			 * we'll catch the exception
-    			 */
-    	        Log.d(TAG, "Failure building HrmReading from byte buffer, probably an incopmplete or corrupted buffer");
-    		}
-                
-    		
-            Log.d(TAG, "Building HrmReading from byte buffer complete, consumed " + bufferIndex + " bytes in the process");
-            
-            /*
-             * One simple check to see if we parsed the bytes properly is to check if the ETX 
-             * character was found where we expected it,  a more robust implementation would be
-             * to calculate the CRC from the message contents and compare it to the CRC from 
-             * the packet.  
-             */
-            if ( etx != ETX )
-            	 Log.e(TAG,"...ETX mismatch!  The HxM message was not parsed properly");
-            
-            /*
-             * log the contents of the HrmReading, use logcat to watch the data as it arrives  
-             */
-            dump();
-            }
+    }    
 
-        
-        /*
-         * Display the HRM reading into the layout     
-         */
-            private void displayRaw() {  	  
-            	display	( R.id.stx,  stx );
-            	display ( R.id.msgId,  msgId );
-            	display ( R.id.dlc,  dlc );
-            	display ( R.id.firmwareId,   firmwareId );
-            	display ( R.id.firmwareVersion,   firmwareVersion );
-            	display ( R.id.hardwareId,   hardWareId );
-            	display ( R.id.hardwareVersion,   hardwareVersion );
-            	display ( R.id.batteryChargeIndicator,  (int)batteryIndicator );
-            	display ( R.id.heartRate, (int)heartRate );
-            	display ( R.id.heartBeatNumber,  (int)heartBeatNumber );
-            	display ( R.id.hbTimestamp1,   hbTime1 );
-            	display ( R.id.hbTimestamp2,   hbTime2 );
-            	display ( R.id.hbTimestamp3,   hbTime3 );
-            	display ( R.id.hbTimestamp4,   hbTime4 );
-            	display ( R.id.hbTimestamp5,   hbTime5 );
-            	display ( R.id.hbTimestamp6,   hbTime6 );
-            	display ( R.id.hbTimestamp7,   hbTime7 );
-            	display ( R.id.hbTimestamp8,   hbTime8 );
-            	display ( R.id.hbTimestamp9,   hbTime9 );
-            	display ( R.id.hbTimestamp10,   hbTime10 );
-            	display ( R.id.hbTimestamp11,   hbTime11 );
-            	display ( R.id.hbTimestamp12,   hbTime12 );
-            	display ( R.id.hbTimestamp13,   hbTime13 );
-            	display ( R.id.hbTimestamp14,   hbTime14 );
-            	display ( R.id.hbTimestamp15,   hbTime15 );
-            	display ( R.id.reserved1,   reserved1 );
-            	display ( R.id.reserved2,   reserved2 );
-            	display ( R.id.reserved3,   reserved3 );
-            	display ( R.id.distance,   distance );
-            	display ( R.id.speed,   speed );
-            	display ( R.id.strides,  (int)strides );
-            	display ( R.id.reserved4,  reserved4 );
-            	display ( R.id.reserved5,  reserved5 );
-            	display ( R.id.crc,  crc );
-            	display ( R.id.etx,  etx );    	    	    	
-            	
-            }    
-
-        
-        
-        /*
-         * dump() sends the contents of the HrmReading object to the log, use 'logcat' to view
-         */    
-        public void dump() {
-        		Log.d(TAG,"HrmReading Dump");
-        		Log.d(TAG,"...serial "+ ( serial ));
-        		Log.d(TAG,"...stx "+ ( stx ));
-        		Log.d(TAG,"...msgId "+( msgId ));
-        		Log.d(TAG,"...dlc "+ ( dlc ));
-        		Log.d(TAG,"...firmwareId "+ ( firmwareId ));
-        		Log.d(TAG,"...sfirmwareVersiontx "+ (  firmwareVersion ));
-        		Log.d(TAG,"...hardWareId "+ (  hardWareId ));
-        		Log.d(TAG,"...hardwareVersion "+ (  hardwareVersion ));
-        		Log.d(TAG,"...batteryIndicator "+ ( batteryIndicator ));
-        		Log.d(TAG,"...heartRate "+ ( heartRate ));
-        		Log.d(TAG,"...heartBeatNumber "+ ( heartBeatNumber ));
-        		Log.d(TAG,"...shbTime1tx "+ (  hbTime1 ));
-        		Log.d(TAG,"...hbTime2 "+ (  hbTime2 ));
-        		Log.d(TAG,"...hbTime3 "+ (  hbTime3 ));
-        		Log.d(TAG,"...hbTime4 "+ (  hbTime4 ));
-        		Log.d(TAG,"...hbTime4 "+ (  hbTime5 ));
-        		Log.d(TAG,"...hbTime6 "+ (  hbTime6 ));
-        		Log.d(TAG,"...hbTime7 "+ (  hbTime7 ));
-        		Log.d(TAG,"...hbTime8 "+ (  hbTime8 ));
-        		Log.d(TAG,"...hbTime9 "+ (  hbTime9 ));
-        		Log.d(TAG,"...hbTime10 "+ (  hbTime10 ));
-        		Log.d(TAG,"...hbTime11 "+ (  hbTime11 ));
-        		Log.d(TAG,"...hbTime12 "+ (  hbTime12 ));
-        		Log.d(TAG,"...hbTime13 "+ (  hbTime13 ));
-        		Log.d(TAG,"...hbTime14 "+ (  hbTime14 ));
-        		Log.d(TAG,"...hbTime15 "+ (  hbTime15 ));
-        		Log.d(TAG,"...reserved1 "+ (  reserved1 ));
-        		Log.d(TAG,"...reserved2 "+ (  reserved2 ));
-        		Log.d(TAG,"...reserved3 "+ (  reserved3 ));
-        		Log.d(TAG,"...distance "+ (  distance ));
-        		Log.d(TAG,"...speed "+ (  speed ));
-        		Log.d(TAG,"...strides "+ ( strides ));
-        		Log.d(TAG,"...reserved4 "+ ( reserved4 ));
-        		Log.d(TAG,"...reserved5 "+ ( reserved5 ));
-        		Log.d(TAG,"...crc "+ ( crc ));
-        		Log.d(TAG,"...etx "+ ( etx ));    	    	    	
-        }    
-
-        
-        
+    
+    
 /****************************************************************************
  * Some utility functions to control the formatting of HxM fields into the 
  * activity's view
  ****************************************************************************/
-        
-        
-        /*
-         * display a byte value
-         */
-    	private void display  ( int nField, byte d ) {   
-    		String INT_FORMAT = "%x";
-    		
-    		String s = String.format(INT_FORMAT, d);
-
-    		display( nField, s  );
-    	}
-
-    	/*
-    	 * display an integer value
-    	 */
-    	private void display  ( int nField, int d ) {   
-    		String INT_FORMAT = "%d";
-    		
-    		String s = String.format(INT_FORMAT, d);
-
-    		display( nField, s  );
-    	}
-
-    	/*
-    	 * display a long integer value
-    	 */
-    	private void display  ( int nField, long d ) {   
-    		String INT_FORMAT = "%d";
-    		
-    		String s = String.format(INT_FORMAT, d);
-
-    		display( nField, s  );
-    	}
+    
+    /*
+     * Value in mFieldValues for a field that hasn't been displayed yet
+     */
+    private static final int NOT_SHOWN = Integer.MIN_VALUE;
+    
+    /*
+     * display a byte value in hex
+     */
+	private void displayHex  ( int field, int d ) {   
+		if ( mFieldValues[field] == d || mFieldViews[field] == null )
+			return;
+		
+		mFieldValues[field] = d;
+		mFieldViews[field].setText(Integer.toHexString(d));
+	}
 
-    	/*
-    	 * display a character string
-    	 */
-    	private void display ( int nField, CharSequence  str  ) {
-        	TextView tvw = (TextView) findViewById(nField);
-        	if ( tvw != null )
-        		tvw.setText(str);
-        }
-    }    	   
-}
\ No newline at end of file
+	/*
+	 * display an integer value
+	 */
+	private void display  ( int field, int d ) {   
+		if ( mFieldValues[field] == d || mFieldViews[field] == null )
+			return;
+		
+		mFieldValues[field] = d;
+		mFieldViews[field].setText(Integer.toString(d));
+	}
+}